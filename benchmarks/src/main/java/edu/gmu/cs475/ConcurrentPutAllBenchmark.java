@@ -0,0 +1,131 @@
+package edu.gmu.cs475;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of many concurrent putAll callers, each running the same lock/prepare/commit/unlock sequence that
+ * KeyValueClient.putAll sends to the server.
+ * <p>
+ * With independent directories, every caller's transaction touches different keys and should prepare and commit in
+ * parallel with the others; with a shared directory, callers serialize on the key locks, which gives the baseline.
+ * Replicas are in-process and can delay each message to stand in for a network round trip.
+ * <p>
+ * Run with: java -jar benchmarks/target/benchmarks.jar ConcurrentPutAllBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class ConcurrentPutAllBenchmark {
+
+	@Param({"true", "false"})
+	public boolean independentDirectories;
+
+	@Param({"1", "20", "200"})
+	public int keysPerDirectory;
+
+	@Param({"4"})
+	public int nReplicas;
+
+	@Param({"0", "100"})
+	public int roundTripMicros;
+
+	private KeyValueServer server;
+	private final AtomicInteger nextCaller = new AtomicInteger();
+
+	/**
+	 * Each benchmark thread's directory (all the same one if directories aren't independent)
+	 */
+	@State(Scope.Thread)
+	public static class Caller {
+		HashMap<String, String> writes;
+		TreeSet<String> keys;
+
+		@Setup(Level.Trial)
+		public void setup(ConcurrentPutAllBenchmark benchmark) {
+			int id = benchmark.independentDirectories ? benchmark.nextCaller.getAndIncrement() : 0;
+			writes = new HashMap<>();
+			for (int i = 0; i < benchmark.keysPerDirectory; i++) {
+				String key = "/dir" + id + "/key" + i;
+				benchmark.server._set(key, "initial");
+				writes.put(key, "updated by " + Thread.currentThread().getName());
+			}
+			keys = new TreeSet<>(writes.keySet());
+		}
+	}
+
+	/**
+	 * A replica that accepts everything, optionally after a delay
+	 */
+	class DelayingReplica implements IKeyValueReplica {
+		private void roundTrip() {
+			if (roundTripMicros > 0)
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(roundTripMicros));
+		}
+
+		@Override
+		public boolean innerWriteKey(String key, String content, long xid) {
+			roundTrip();
+			return true;
+		}
+
+		@Override
+		public boolean innerWriteKeys(HashMap<String, String> keysAndContent, long xid) {
+			roundTrip();
+			return true;
+		}
+
+		@Override
+		public void commitTransaction(long id) {
+			roundTrip();
+		}
+
+		@Override
+		public void abortTransaction(long id) {
+			roundTrip();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		server = new KeyValueServer();
+		for (int i = 0; i < nReplicas; i++)
+			server.registerClient("localhost", 9000 + i, new DelayingReplica());
+	}
+
+	@Benchmark
+	public void putAll(Caller caller) throws RemoteException {
+		long lease = server.lockKeys(caller.keys);
+		try {
+			long xid = server.startNewTransaction();
+			if (server.setManyInTransaction(caller.writes, xid))
+				server.issueCommitTransaction(xid);
+			else
+				server.issueAbortTransaction(xid);
+		} finally {
+			server.unlockKeys(lease);
+		}
+	}
+}
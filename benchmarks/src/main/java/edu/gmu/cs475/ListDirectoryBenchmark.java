@@ -0,0 +1,64 @@
+package edu.gmu.cs475;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How KeyValueServer.listDirectory scales with the size of the store and of the directory being listed.
+ * <p>
+ * The store is split into directories of directorySize keys each. Ideally the cost follows the directory, not the
+ * store; an engine that scans every key shows up as a cost that grows with storeSize instead.
+ * <p>
+ * Run with: java -jar benchmarks/target/benchmarks.jar ListDirectoryBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListDirectoryBenchmark {
+
+	@Param({"synchronized", "concurrent"})
+	public String engine;
+
+	@Param({"1000", "100000"})
+	public int storeSize;
+
+	@Param({"10", "1000"})
+	public int directorySize;
+
+	private KeyValueServer server;
+	private String[] directories;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		server = new KeyValueServer("synchronized".equals(engine) ? new SynchronizedStorageEngine() : new ConcurrentStorageEngine());
+		int perDirectory = Math.min(directorySize, storeSize);
+		directories = new String[storeSize / perDirectory];
+		for (int d = 0; d < directories.length; d++) {
+			directories[d] = "/dir" + d + "/";
+			for (int i = 0; i < perDirectory; i++)
+				server._set(directories[d] + "key" + i, "value" + i);
+		}
+	}
+
+	@Benchmark
+	public Set<String> listDirectory() {
+		return server.listDirectory(directories[ThreadLocalRandom.current().nextInt(directories.length)]);
+	}
+}
@@ -0,0 +1,51 @@
+package edu.gmu.cs475;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A replica that accepts everything and stores nothing, so only the server (or transport) is measured. Can wait before
+ * answering each message to stand in for a network round trip.
+ */
+class NoopReplica implements IKeyValueReplica {
+	private final long roundTripNanos;
+
+	NoopReplica() {
+		this(0);
+	}
+
+	/**
+	 * @param roundTripMicros how long to wait before answering each message
+	 */
+	NoopReplica(int roundTripMicros) {
+		this.roundTripNanos = TimeUnit.MICROSECONDS.toNanos(roundTripMicros);
+	}
+
+	private void roundTrip() {
+		if (roundTripNanos > 0)
+			LockSupport.parkNanos(roundTripNanos);
+	}
+
+	@Override
+	public boolean innerWriteKey(String key, String content, long xid) {
+		roundTrip();
+		return true;
+	}
+
+	@Override
+	public boolean innerWriteKeys(HashMap<String, String> keysAndContent, long xid) {
+		roundTrip();
+		return true;
+	}
+
+	@Override
+	public void commitTransaction(long id) {
+		roundTrip();
+	}
+
+	@Override
+	public void abortTransaction(long id) {
+		roundTrip();
+	}
+}
@@ -0,0 +1,124 @@
+package edu.gmu.cs475;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares writing a whole directory in one transaction with one setInTransaction call per key (the old putAll)
+ * against a single setManyInTransaction call.
+ * <p>
+ * Replicas are in-process and count every message they receive; an optional per-message delay stands in for a
+ * network round trip. The replicaMessages counter reports the total number of messages replicas received in each
+ * iteration; divide by the number of operations to get messages per transaction (nKeys * nReplicas + nReplicas for
+ * perKey, 2 * nReplicas for batched).
+ * <p>
+ * Run with: java -jar benchmarks/target/benchmarks.jar PutAllRoundTripBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PutAllRoundTripBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int nKeys;
+
+	@Param({"4"})
+	public int nReplicas;
+
+	@Param({"0", "50"})
+	public int roundTripMicros;
+
+	private KeyValueServer server;
+	private HashMap<String, String> writes;
+	private final LongAdder messages = new LongAdder();
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class RoundTrips {
+		public long replicaMessages;
+	}
+
+	/**
+	 * A replica that stages nothing, and just counts (and optionally delays) every message it is sent
+	 */
+	class CountingReplica implements IKeyValueReplica {
+		private void roundTrip() {
+			messages.increment();
+			if (roundTripMicros > 0)
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(roundTripMicros));
+		}
+
+		@Override
+		public boolean innerWriteKey(String key, String content, long xid) {
+			roundTrip();
+			return true;
+		}
+
+		@Override
+		public boolean innerWriteKeys(HashMap<String, String> keysAndContent, long xid) {
+			roundTrip();
+			return true;
+		}
+
+		@Override
+		public void commitTransaction(long id) {
+			roundTrip();
+		}
+
+		@Override
+		public void abortTransaction(long id) {
+			roundTrip();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		server = new KeyValueServer();
+		writes = new HashMap<>();
+		for (int i = 0; i < nKeys; i++) {
+			server._set("/dir/key" + i, "initial");
+			writes.put("/dir/key" + i, "updated");
+		}
+		for (int i = 0; i < nReplicas; i++)
+			server.registerClient("localhost", 9000 + i, new CountingReplica());
+	}
+
+	@Benchmark
+	public void perKey(RoundTrips roundTrips) throws RemoteException {
+		long before = messages.sum();
+		long xid = server.startNewTransaction();
+		for (String key : writes.keySet())
+			server.setInTransaction(key, "updated", xid);
+		server.issueCommitTransaction(xid);
+		roundTrips.replicaMessages += messages.sum() - before;
+	}
+
+	@Benchmark
+	public void batched(RoundTrips roundTrips) throws RemoteException {
+		long before = messages.sum();
+		long xid = server.startNewTransaction();
+		server.setManyInTransaction(writes, xid);
+		server.issueCommitTransaction(xid);
+		roundTrips.replicaMessages += messages.sum() - before;
+	}
+}
@@ -0,0 +1,109 @@
+package edu.gmu.cs475;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of bringing a new replica up to date: registerClient copies the whole store while holding the server's write
+ * lock, while registerClientStreaming only holds it to add the replica and then pages through the store with
+ * getBootstrapChunk.
+ * <p>
+ * The fullCopy and streaming methods measure one registration (and disconnect) on their own. The
+ * fullCopyDuringWrites and streamingDuringWrites groups add a thread that keeps calling set, so its score shows how
+ * long writers stall while a replica joins.
+ * <p>
+ * Run with: java -jar benchmarks/target/benchmarks.jar RegisterClientBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegisterClientBenchmark {
+
+	private static final int CHUNK_ENTRIES = 1024;
+	private static final int REPLICA_PORT = 9000;
+
+	@Param({"1000", "100000"})
+	public int storeSize;
+
+	private KeyValueServer server;
+	private final NoopReplica replica = new NoopReplica();
+
+	@Setup(Level.Trial)
+	public void setup() {
+		server = new KeyValueServer();
+		for (int i = 0; i < storeSize; i++)
+			server._set("/dir" + (i % 100) + "/key" + i, "value" + i);
+	}
+
+	@Benchmark
+	public HashMap<String, String> fullCopy() {
+		HashMap<String, String> copy = server.registerClient("localhost", REPLICA_PORT, replica);
+		server.cacheDisconnect("localhost", REPLICA_PORT);
+		return copy;
+	}
+
+	@Benchmark
+	public int streaming() {
+		BootstrapChunk chunk = server.registerClientStreaming("localhost", REPLICA_PORT, replica, CHUNK_ENTRIES);
+		int entries = chunk.getEntries().size();
+		while (chunk.isLast() == false) {
+			chunk = server.getBootstrapChunk(chunk.getVersion(), chunk.getLastKey(), CHUNK_ENTRIES);
+			entries += chunk.getEntries().size();
+		}
+		server.cacheDisconnect("localhost", REPLICA_PORT);
+		return entries;
+	}
+
+	@Benchmark
+	@Group("fullCopyDuringWrites")
+	@GroupThreads(1)
+	public HashMap<String, String> fullCopyRegister() {
+		return fullCopy();
+	}
+
+	@Benchmark
+	@Group("fullCopyDuringWrites")
+	@GroupThreads(1)
+	public void fullCopyWriter() throws IOException {
+		write();
+	}
+
+	@Benchmark
+	@Group("streamingDuringWrites")
+	@GroupThreads(1)
+	public int streamingRegister() {
+		return streaming();
+	}
+
+	@Benchmark
+	@Group("streamingDuringWrites")
+	@GroupThreads(1)
+	public void streamingWriter() throws IOException {
+		write();
+	}
+
+	private void write() throws IOException {
+		int i = ThreadLocalRandom.current().nextInt(storeSize);
+		server.set("/dir" + (i % 100) + "/key" + i, "updated");
+	}
+}
@@ -0,0 +1,62 @@
+package edu.gmu.cs475;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of KeyValueServer.set as the number of replicas grows: each set prepares and commits on every replica, so
+ * this shows how much of the fan-out runs in parallel.
+ * <p>
+ * Replicas are in-process and can delay each message to stand in for a network round trip. set writes the same key
+ * from one thread; setConcurrent writes a different key from each of 8 threads, so callers only share the replicas.
+ * <p>
+ * Run with: java -jar benchmarks/target/benchmarks.jar ReplicaFanoutBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplicaFanoutBenchmark {
+
+	@Param({"1", "4", "16", "64"})
+	public int nReplicas;
+
+	@Param({"0", "50"})
+	public int roundTripMicros;
+
+	private KeyValueServer server;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		server = new KeyValueServer();
+		for (int i = 0; i < nReplicas; i++)
+			server.registerClient("localhost", 9000 + i, new NoopReplica(roundTripMicros));
+	}
+
+	@Benchmark
+	public void set() throws IOException {
+		server.set("/dir/key", "value");
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void setConcurrent() throws IOException {
+		server.set("/dir/key" + Thread.currentThread().getId(), "value");
+	}
+}
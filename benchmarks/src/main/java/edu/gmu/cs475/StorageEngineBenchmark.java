@@ -0,0 +1,87 @@
+package edu.gmu.cs475;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the storage engines behind AbstractKeyValueServer's _get/_set when many threads hit them at once.
+ * <p>
+ * Goes through the server rather than the engine, so writes also pay for keeping each key's version. With a single
+ * key every thread contends on the same entry; with 1024 keys they mostly don't.
+ * <p>
+ * Run with: java -jar benchmarks/target/benchmarks.jar StorageEngineBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageEngineBenchmark {
+
+	@Param({"synchronized", "concurrent"})
+	public String engine;
+
+	@Param({"1", "1024"})
+	public int nKeys;
+
+	private KeyValueServer server;
+	private String[] keys;
+	private final AtomicLong nextVersion = new AtomicLong();
+
+	@Setup
+	public void setup() {
+		server = new KeyValueServer("synchronized".equals(engine) ? new SynchronizedStorageEngine() : new ConcurrentStorageEngine());
+		keys = new String[nKeys];
+		for (int i = 0; i < nKeys; i++) {
+			keys[i] = "/dir" + (i % 32) + "/key" + i;
+			server._set(keys[i], "value" + i, nextVersion.incrementAndGet());
+		}
+	}
+
+	private String randomKey() {
+		return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object readOnly() {
+		return server._get(randomKey());
+	}
+
+	@Benchmark
+	@Group("readMostly")
+	@GroupThreads(7)
+	public Object readMostlyGet() {
+		return server._get(randomKey());
+	}
+
+	@Benchmark
+	@Group("readMostly")
+	@GroupThreads(1)
+	public void readMostlySet() {
+		server._set(randomKey(), "updated", nextVersion.incrementAndGet());
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void writeOnly() {
+		server._set(randomKey(), "updated", nextVersion.incrementAndGet());
+	}
+}
@@ -0,0 +1,146 @@
+package edu.gmu.cs475;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares RMI with the binary NIO transport, over loopback, for the same server and replica.
+ * <p>
+ * get and listDirectory are a single round trip to the server; set is a round trip to the server plus the server's
+ * prepare and commit round trips to one replica; putAllBatch is the lock/prepare/commit/unlock sequence putAll uses
+ * for a whole directory. Sample time gives the latency distribution, and the 4-thread throughput runs show how each
+ * transport holds up under concurrent callers.
+ * <p>
+ * Run with: java -jar benchmarks/target/benchmarks.jar TransportBenchmark
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.rmi.server.hostname=127.0.0.1")
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+
+	@Param({"RMI", "BINARY"})
+	public Transport transport;
+
+	@Param({"100"})
+	public int nKeys;
+
+	private KeyValueServer server;
+	private IKeyValueServer stub;
+	private NioRpcServer nioServer;
+	private NioRpcServer nioReplica;
+	private Registry serverRegistry;
+	private Registry replicaRegistry;
+	private final NoopReplica replica = new NoopReplica();
+	private final HashMap<String, String> directory = new HashMap<>();
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new KeyValueServer();
+		for (int i = 0; i < nKeys; i++) {
+			server._set("/dir/key" + i, "initial value " + i);
+			directory.put("/dir/key" + i, "updated value " + i);
+		}
+		int replicaPort;
+		if (transport == Transport.BINARY) {
+			nioServer = new NioRpcServer(0, new BinaryKeyValueServerEndpoint(server));
+			stub = new BinaryKeyValueServerStub("127.0.0.1", nioServer.getPort());
+			nioReplica = new NioRpcServer(0, new BinaryReplicaEndpoint(replica));
+			replicaPort = nioReplica.getPort();
+		} else {
+			int port = freePort();
+			serverRegistry = LocateRegistry.createRegistry(port);
+			serverRegistry.rebind(IKeyValueServer.RMI_NAME, UnicastRemoteObject.exportObject(server, 0));
+			stub = (IKeyValueServer) serverRegistry.lookup(IKeyValueServer.RMI_NAME);
+			replicaPort = freePort();
+			replicaRegistry = LocateRegistry.createRegistry(replicaPort);
+			replicaRegistry.rebind(IKeyValueReplica.RMI_NAME, UnicastRemoteObject.exportObject(replica, 0));
+		}
+		stub.registerClientStreaming("127.0.0.1", replicaPort, 1024);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		if (transport == Transport.BINARY) {
+			((BinaryKeyValueServerStub) stub).close();
+			nioServer.close();
+			nioReplica.close();
+		} else {
+			UnicastRemoteObject.unexportObject(server, true);
+			UnicastRemoteObject.unexportObject(replica, true);
+			UnicastRemoteObject.unexportObject(serverRegistry, true);
+			UnicastRemoteObject.unexportObject(replicaRegistry, true);
+		}
+	}
+
+	@Benchmark
+	public String get() throws Exception {
+		return stub.get("/dir/key7");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String getConcurrent() throws Exception {
+		return stub.get("/dir/key7");
+	}
+
+	@Benchmark
+	public Set<String> listDirectory() throws Exception {
+		return stub.listDirectory("/dir/");
+	}
+
+	@Benchmark
+	public void set() throws Exception {
+		stub.set("/dir/key7", "new value");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void setConcurrent() throws Exception {
+		stub.set("/dir/key" + Thread.currentThread().getId() % nKeys, "new value");
+	}
+
+	@Benchmark
+	public void putAllBatch() throws Exception {
+		long lease = stub.lockKeys(new TreeSet<>(directory.keySet()));
+		try {
+			long xid = stub.startNewTransaction();
+			if (stub.setManyInTransaction(directory, xid))
+				stub.issueCommitTransaction(xid);
+			else
+				stub.issueAbortTransaction(xid);
+		} finally {
+			stub.unlockKeys(lease);
+		}
+	}
+}
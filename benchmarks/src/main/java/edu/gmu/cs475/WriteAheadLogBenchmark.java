@@ -0,0 +1,80 @@
+package edu.gmu.cs475;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Commit throughput of the write-ahead log under each fsync policy, with one committer and with many (where group
+ * commit lets concurrent appends share an fsync).
+ * <p>
+ * The log is written to the default temp directory; point java.io.tmpdir at the disk you care about.
+ * Run with: java -jar benchmarks/target/benchmarks.jar WriteAheadLogBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteAheadLogBenchmark {
+
+	@Param({"ALWAYS", "PERIODIC", "NEVER"})
+	public WriteAheadLog.FsyncPolicy policy;
+
+	@Param({"64"})
+	public int valueBytes;
+
+	private Path file;
+	private WriteAheadLog log;
+	private String value;
+	private final AtomicLong xids = new AtomicLong();
+
+	@Setup
+	public void setup() throws IOException {
+		file = Files.createTempFile("kvstore-wal-bench", ".log");
+		log = new WriteAheadLog(file, policy, 10);
+		log.replay((key, value) -> {
+		});
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < valueBytes; i++)
+			sb.append('x');
+		value = sb.toString();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		log.close();
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void singleCommitter() throws IOException {
+		long xid = xids.incrementAndGet();
+		log.append(xid, "/bench/key" + (xid & 1023), value);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void concurrentCommitters() throws IOException {
+		long xid = xids.incrementAndGet();
+		log.append(xid, "/bench/key" + (xid & 1023), value);
+	}
+}
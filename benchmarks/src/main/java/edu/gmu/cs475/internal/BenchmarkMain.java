@@ -0,0 +1,29 @@
+package edu.gmu.cs475.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH, writing results as JSON to jmh-result.json (unless -rf or -rff is given) so runs can be compared to find
+ * regressions. Takes the same arguments as org.openjdk.jmh.Main.
+ */
+public class BenchmarkMain {
+
+	static final String RESULT_FORMAT = "json";
+	static final String RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		List<String> jmhArgs = new ArrayList<>();
+		List<String> given = Arrays.asList(args);
+		if(given.contains("-rf") == false && given.contains("-rff") == false)
+		{
+			jmhArgs.add("-rf");
+			jmhArgs.add(RESULT_FORMAT);
+			jmhArgs.add("-rff");
+			jmhArgs.add(RESULT_FILE);
+		}
+		jmhArgs.addAll(given);
+		org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+	}
+}
@@ -1,6 +1,7 @@
 package edu.gmu.cs475;
 
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.rmi.NotBoundException;
@@ -10,15 +11,59 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public abstract class AbstractKeyValueClient implements IKeyValueReplica {
 
+	// how many keys the replica pulls from the server per bootstrap chunk
+	protected static final int BOOTSTRAP_CHUNK_ENTRIES = 1024;
+
+	// how many times runTransaction tries a transaction that keeps conflicting before giving up
+	protected static final int MAX_OPTIMISTIC_ATTEMPTS = 16;
+
 	private IKeyValueServer keyValueServer;
+	// the same server, if it is a router over several shards; null otherwise
+	private ShardedKeyValueServer shardedServer;
+	private IAsyncKeyValueServer asyncServer;
+	private final Transport transport;
+	// re-registers the replica with a new leader of a replicated server group, one leader change at a time
+	private ExecutorService resyncExecutor;
+
+	// how many transaction IDs startNewTransaction leases from the server at a time (1 means no leasing)
+	private volatile int xidLeaseSize = 1;
+	// the unused part of the current lease: [nextLeasedXid, leasedXidEnd)
+	private long nextLeasedXid;
+	private long leasedXidEnd;
+	private final Object xidLeaseLock = new Object();
 
 	private int localPort;
 	private Registry rmiRegistry;
+	private NioRpcServer replicaServer;
+
+	// counters and latency histograms for this client, as seen from its side of each call
+	protected final MetricsRegistry metrics = new MetricsRegistry("kvstore_client");
+	private final Histogram setNanos = metrics.histogram("set_nanos");
+	private final Histogram lockKeyNanos = metrics.histogram("lock_key_nanos");
+	private final Histogram setInTransactionNanos = metrics.histogram("set_in_transaction_nanos");
+	private final LongAdder optimisticCommits = metrics.counter("optimistic_commits");
+	private final LongAdder optimisticConflicts = metrics.counter("optimistic_conflicts");
 
 	protected AbstractKeyValueClient(String host, int port) {
+		this(host, port, Transport.fromSystemProperty());
+	}
+
+	protected AbstractKeyValueClient(String host, int port, Transport transport) {
+		this.transport = transport;
+		if (transport == Transport.BINARY) {
+			keyValueServer = new BinaryKeyValueServerStub(host, port);
+			return;
+		}
 		try {
 			Registry registry = LocateRegistry.getRegistry(host, port);
 			keyValueServer = (IKeyValueServer) registry.lookup(IKeyValueServer.RMI_NAME);
@@ -29,34 +74,112 @@ public abstract class AbstractKeyValueClient implements IKeyValueReplica {
 	}
 
 	protected AbstractKeyValueClient(IKeyValueServer server) {
+		this(server, Transport.RMI);
+	}
+
+	/**
+	 * @param server    the server, e.g. a ShardedKeyValueServer routing to several shards, or a FailoverKeyValueServer
+	 *                  in front of a replicated group (in which case the replica is started over from the new leader
+	 *                  whenever the leader changes)
+	 * @param transport how the server should reach this client's replica
+	 */
+	protected AbstractKeyValueClient(IKeyValueServer server, Transport transport) {
 		this.keyValueServer = server;
+		this.transport = transport;
+		if (server instanceof ShardedKeyValueServer)
+			shardedServer = (ShardedKeyValueServer) server;
+		if (server instanceof FailoverKeyValueServer) {
+			resyncExecutor = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "kvstore-replica-resync");
+				t.setDaemon(true);
+				return t;
+			});
+			((FailoverKeyValueServer) server).setLeaderChangeListener(() -> resyncExecutor.execute(this::resync));
+		}
 	}
 
 	protected void startReplica() {
 		try {
-			try (ServerSocket socket = new ServerSocket(0)) {
-				socket.setReuseAddress(true);
-				localPort = socket.getLocalPort();
+			if (transport == Transport.BINARY) {
+				replicaServer = new NioRpcServer(0, new BinaryReplicaEndpoint(this));
+				localPort = replicaServer.getPort();
+			} else {
+				try (ServerSocket socket = new ServerSocket(0)) {
+					socket.setReuseAddress(true);
+					localPort = socket.getLocalPort();
+				}
+				rmiRegistry = LocateRegistry.createRegistry(localPort);
+				IKeyValueReplica replica = (IKeyValueReplica) UnicastRemoteObject.exportObject(this, 0);
+				rmiRegistry.rebind(IKeyValueReplica.RMI_NAME, replica);
 			}
-			rmiRegistry = LocateRegistry.createRegistry(localPort);
-			IKeyValueReplica replica = (IKeyValueReplica) UnicastRemoteObject.exportObject(this, 0);
-			rmiRegistry.rebind(IKeyValueReplica.RMI_NAME, replica);
 			System.out.println("Bound replica to " + localPort);
-			initReplica(keyValueServer.registerClient("localhost", localPort));
+			bootstrap();
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		}
 	}
 
+	/**
+	 * Registers the replica with the server and pulls the existing keys
+	 */
+	private void bootstrap() throws RemoteException {
+		if (!bootstrapsFullCopy()) { // only needs to be sent writes from now on
+			bootstrapped(keyValueServer.registerClientStreaming("localhost", localPort, 1));
+			return;
+		}
+		BootstrapChunk chunk = keyValueServer.registerClientStreaming("localhost", localPort, BOOTSTRAP_CHUNK_ENTRIES);
+		initReplica(chunk.getEntries());
+		while (!chunk.isLast()) {
+			chunk = keyValueServer.getBootstrapChunk(chunk.getVersion(), chunk.getLastKey(), BOOTSTRAP_CHUNK_ENTRIES);
+			initReplica(chunk.getEntries());
+		}
+		bootstrapped(chunk);
+	}
+
+	/**
+	 * Starts the replica over from the new leader of a replicated server group, which it isn't registered with (the
+	 * old leader dropped it when it stopped leading)
+	 */
+	private void resync() {
+		if (localPort == 0)
+			return; // not started yet; startReplica registers with whichever member is leading
+		replicaReset();
+		try {
+			bootstrap();
+		} catch (RemoteException e) {
+			// keeps serving reads from the server; the next leader change tries again
+			System.err.println("Could not re-register the replica with the new leader: " + e);
+		}
+	}
+
+	private void bootstrapped(BootstrapChunk last) {
+		if (shardedServer == null) {
+			replicaBootstrapped(last.getVersion());
+			return;
+		}
+		for (long version : shardedServer.getBootstrapVersions()) // each shard took its own snapshot
+			replicaBootstrapped(version);
+	}
+
 	/**
 	 * Cleans up the RMI sever that's running the cache client
 	 */
 	public final void cleanup() {
+		if (resyncExecutor != null)
+			resyncExecutor.shutdownNow();
 		try {
 			keyValueServer.cacheDisconnect("localhost", localPort);
+			if (asyncServer instanceof AsyncKeyValueServerAdapter)
+				((AsyncKeyValueServerAdapter) asyncServer).close();
+			if (keyValueServer instanceof Closeable)
+				((Closeable) keyValueServer).close();
+			if (replicaServer != null) {
+				replicaServer.close();
+				return;
+			}
 			UnicastRemoteObject.unexportObject(this, true);
 			rmiRegistry.unbind(IKeyValueReplica.RMI_NAME);
-		} catch (RemoteException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (NotBoundException e) {
 			e.printStackTrace();
@@ -64,23 +187,58 @@ public abstract class AbstractKeyValueClient implements IKeyValueReplica {
 	}
 
 	/**
-	 * Initialzes this read-only replica with the current set of keys and values
+	 * Initialzes this read-only replica with the current set of keys and values.
+	 * <p>
+	 * Called once per bootstrap chunk, while the replica may already be receiving writes. A key that has already been
+	 * written (through innerWriteKey/commitTransaction) is newer than the value in the chunk, and must be kept.
 	 *
 	 * @param keysAndValues A map from keys to values
 	 */
 	protected abstract void initReplica(HashMap<String, String> keysAndValues);
 
+	/**
+	 * @return false for a partial replica, which registers for writes but doesn't pull the existing keys
+	 */
+	protected boolean bootstrapsFullCopy() {
+		return true;
+	}
+
+	/**
+	 * Called once every bootstrap chunk has been passed to initReplica. The replica now holds every commit that
+	 * finished before transaction bootstrapVersion started, plus every commit it has been sent since. With several
+	 * shards, called once for each shard's bootstrap version.
+	 *
+	 * @param bootstrapVersion the bootstrap's version (see BootstrapChunk)
+	 */
+	protected void replicaBootstrapped(long bootstrapVersion) {
+	}
+
+	/**
+	 * Called when the leader of a replicated server group changes, before the replica registers with the new leader
+	 * and bootstraps again: the replica must forget everything it holds (it may have missed commits), and until
+	 * replicaBootstrapped is called should read from the server instead.
+	 */
+	protected void replicaReset() {
+	}
+
 	public abstract String get(String key);
 
 	public abstract Set<String> listDirectory(String directory);
 	public abstract Set<String> listKeys();
 
 	public void set(String key, String value) throws IOException, RemoteException {
-		keyValueServer.set(key, value);
+		long start = System.nanoTime();
+		try {
+			keyValueServer.set(key, value);
+		} finally {
+			setNanos.recordSince(start);
+		}
 	}
 
 	public long lockKey(String name) throws RemoteException {
+		long start = System.nanoTime();
 		long stamp = keyValueServer.lockKey(name);
+		lockKeyNanos.recordSince(start); // round trip plus however long the key was held by someone else
 		return stamp;
 	}
 
@@ -88,20 +246,132 @@ public abstract class AbstractKeyValueClient implements IKeyValueReplica {
 		keyValueServer.unLockKey(name, stamp);
 	}
 
+	public long lockKeys(SortedSet<String> names) throws RemoteException {
+		return keyValueServer.lockKeys(names);
+	}
+
+	public void unlockKeys(long lease) throws RemoteException {
+		keyValueServer.unlockKeys(lease);
+	}
+
 	public boolean setInTransaction(String key, String value, long xid) throws RemoteException {
-		return keyValueServer.setInTransaction(key, value, xid);
+		long start = System.nanoTime();
+		try {
+			return keyValueServer.setInTransaction(key, value, xid);
+		} finally {
+			setInTransactionNanos.recordSince(start);
+		}
+	}
+
+	public boolean setManyInTransaction(HashMap<String, String> values, long xid) throws RemoteException {
+		return keyValueServer.setManyInTransaction(values, xid);
 	}
 
 	public HashMap<String, String> registerClient(String hostname, int portNumber) throws RemoteException {
 		return keyValueServer.registerClient(hostname, portNumber);
 	}
 
+	public BootstrapChunk registerClientStreaming(String hostname, int portNumber, int maxEntries) throws RemoteException {
+		return keyValueServer.registerClientStreaming(hostname, portNumber, maxEntries);
+	}
+
+	public BootstrapChunk getBootstrapChunk(long version, String afterKey, int maxEntries) throws RemoteException {
+		return keyValueServer.getBootstrapChunk(version, afterKey, maxEntries);
+	}
+
 	public void cacheDisconnect(String hostname, int portNumber) throws RemoteException {
 		keyValueServer.cacheDisconnect(hostname, portNumber);
 	}
 
+	/**
+	 * Gets a new transaction ID: from the server, or (if leasing is turned on) from the block of IDs leased from it
+	 */
 	public long startNewTransaction() throws RemoteException {
-		return keyValueServer.startNewTransaction();
+		if (xidLeaseSize == 1)
+			return keyValueServer.startNewTransaction();
+		synchronized (xidLeaseLock) {
+			if (nextLeasedXid == leasedXidEnd) {
+				nextLeasedXid = keyValueServer.leaseTransactionIds(xidLeaseSize);
+				leasedXidEnd = nextLeasedXid + xidLeaseSize;
+			}
+			return nextLeasedXid++;
+		}
+	}
+
+	/**
+	 * Has startNewTransaction lease transaction IDs from the server in blocks, so that only one in every leaseSize
+	 * transactions needs a round trip for its ID. IDs left in a lease when the client exits are never used.
+	 *
+	 * @param leaseSize how many IDs to lease at a time, or 1 to ask the server for every ID
+	 */
+	public void setTransactionIdLeaseSize(int leaseSize) {
+		if (leaseSize < 1)
+			throw new IllegalArgumentException();
+		synchronized (xidLeaseLock) {
+			xidLeaseSize = leaseSize;
+			leasedXidEnd = nextLeasedXid; // start a new lease of the new size
+		}
+	}
+
+	public long leaseTransactionIds(int count) throws RemoteException {
+		return keyValueServer.leaseTransactionIds(count);
+	}
+
+	public long getLastCommittedXid() throws RemoteException {
+		return keyValueServer.getLastCommittedXid();
+	}
+
+	/**
+	 * @return the largest version committed on the server owning key (with a single server, on that server)
+	 */
+	protected long getLastCommittedXid(String key) throws RemoteException {
+		if (shardedServer != null)
+			return shardedServer.getLastCommittedXid(key);
+		return keyValueServer.getLastCommittedXid();
+	}
+
+	/**
+	 * @return the server's metrics, in the Prometheus text exposition format
+	 */
+	public String getServerMetrics() throws RemoteException {
+		return keyValueServer.getMetrics();
+	}
+
+	public void setContentionProfiling(int sampleEvery) throws RemoteException {
+		keyValueServer.setContentionProfiling(sampleEvery);
+	}
+
+	public String getContentionProfile() throws RemoteException {
+		return keyValueServer.getContentionProfile();
+	}
+
+	/**
+	 * @return this client's metrics, in the Prometheus text exposition format
+	 */
+	public String getMetrics() {
+		return metrics.toText();
+	}
+
+	/**
+	 * @return this client's metrics, e.g. to register them with JMX
+	 */
+	public MetricsRegistry getMetricsRegistry() {
+		return metrics;
+	}
+
+	/**
+	 * Reads a key from the server instead of the local replica
+	 */
+	protected String getFromServer(String key) throws RemoteException {
+		return keyValueServer.get(key);
+	}
+
+	protected Set<String> listKeysFromServer() throws RemoteException {
+		return keyValueServer.listKeys();
+	}
+
+	protected Set<String> listDirectoryFromServer(String directory) throws RemoteException {
+		return keyValueServer.listDirectory(directory);
 	}
 
 	public void issueCommitTransaction(long xid) throws RemoteException{
@@ -112,6 +382,121 @@ public abstract class AbstractKeyValueClient implements IKeyValueReplica {
 		keyValueServer.issueAbortTransaction(xid);
 	}
 
+	public VersionedValue getVersioned(String key) throws RemoteException {
+		return keyValueServer.getVersioned(key);
+	}
+
+	public boolean compareAndSet(String key, long expectedVersion, String value) throws RemoteException {
+		return keyValueServer.compareAndSet(key, expectedVersion, value);
+	}
+
+	public boolean commitOptimisticTransaction(HashMap<String, String> writes, HashMap<String, Long> readVersions) throws RemoteException {
+		return keyValueServer.commitOptimisticTransaction(writes, readVersions);
+	}
+
+	/**
+	 * Reads a key and its version for an optimistic transaction. Asks the server; a replica can override this to read
+	 * locally.
+	 */
+	protected VersionedValue readVersioned(String key) throws RemoteException {
+		return keyValueServer.getVersioned(key);
+	}
+
+	/**
+	 * Runs body as an optimistic transaction: no locks are taken, and the whole transaction commits in a single call
+	 * to the server. If another transaction wrote a key that body read, body is run again (after a random wait of up
+	 * to a few times as long as the failed attempt took, doubling with each conflict, so that transactions conflicting
+	 * with each other don't keep colliding however slow a commit is), up to MAX_OPTIMISTIC_ATTEMPTS times.
+	 * Attempts after a conflict read from the server rather than readVersioned, so a replica that hasn't yet applied
+	 * the conflicting commit can't make every retry fail on the same stale version.
+	 * <p>
+	 * Best for transactions that mostly read, or that write keys few others write; under heavy contention on the
+	 * same keys, the locking scheme putAll uses wastes less work.
+	 *
+	 * @param body the transaction's reads and writes
+	 * @return true if the transaction committed, false if it conflicted on every attempt (or was interrupted)
+	 * @throws RemoteException if any RemoteException occurs in the underlying RMI operation
+	 */
+	public boolean runTransaction(OptimisticTransaction.Body body) throws RemoteException {
+		for (int attempt = 0; attempt < MAX_OPTIMISTIC_ATTEMPTS; attempt++) {
+			long started = System.nanoTime();
+			OptimisticTransaction txn = new OptimisticTransaction(this, attempt > 0);
+			body.run(txn);
+			if (txn.commit()) {
+				optimisticCommits.increment();
+				return true;
+			}
+			optimisticConflicts.increment();
+			long took = Math.max(System.nanoTime() - started, TimeUnit.MICROSECONDS.toNanos(100));
+			try {
+				TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(took << Math.min(attempt + 1, 6)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the server's asynchronous API: pipelined over one connection for the binary transport, or made on a
+	 * thread pool for RMI (and for in-process servers)
+	 */
+	private synchronized IAsyncKeyValueServer async() {
+		if (asyncServer == null) {
+			if (keyValueServer instanceof IAsyncKeyValueServer)
+				asyncServer = (IAsyncKeyValueServer) keyValueServer;
+			else
+				asyncServer = new AsyncKeyValueServerAdapter(keyValueServer);
+		}
+		return asyncServer;
+	}
+
+	/*
+	 * Asynchronous versions of the calls above. Each returns as soon as the request is sent; calls in flight at the same
+	 * time may take effect in any order (see IAsyncKeyValueServer).
+	 */
+
+	public CompletableFuture<Void> setAsync(String key, String value) {
+		return async().setAsync(key, value);
+	}
+
+	public CompletableFuture<Long> lockKeyAsync(String name) {
+		return async().lockKeyAsync(name);
+	}
+
+	public CompletableFuture<Void> unLockKeyAsync(String name, long stamp) {
+		return async().unLockKeyAsync(name, stamp);
+	}
+
+	public CompletableFuture<Long> lockKeysAsync(SortedSet<String> names) {
+		return async().lockKeysAsync(names);
+	}
+
+	public CompletableFuture<Void> unlockKeysAsync(long lease) {
+		return async().unlockKeysAsync(lease);
+	}
+
+	public CompletableFuture<Boolean> setInTransactionAsync(String key, String value, long xid) {
+		return async().setInTransactionAsync(key, value, xid);
+	}
+
+	public CompletableFuture<Boolean> setManyInTransactionAsync(HashMap<String, String> values, long xid) {
+		return async().setManyInTransactionAsync(values, xid);
+	}
+
+	public CompletableFuture<Long> startNewTransactionAsync() {
+		return async().startNewTransactionAsync();
+	}
+
+	public CompletableFuture<Void> issueCommitTransactionAsync(long xid) {
+		return async().issueCommitTransactionAsync(xid);
+	}
+
+	public CompletableFuture<Void> issueAbortTransactionAsync(long xid) {
+		return async().issueAbortTransactionAsync(xid);
+	}
+
 	/**
 	 * Sets the content for all keys that are directly contained by the given directory.
 	 * Must internally synchronize to guarantee that the list of files in the given directory does
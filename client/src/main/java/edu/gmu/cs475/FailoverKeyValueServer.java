@@ -0,0 +1,523 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes a replicated group of KeyValueServers (see KeyValueServer.replicateWith) look like one server to a client, by
+ * sending every call to the group's current leader and finding the new leader when it changes.
+ * <p>
+ * The leader is whichever member says it is (IKeyValueServer.getLeader returning its own index), so a single server
+ * that isn't in a group also works, as member 0. When a call to the leader fails, every member is asked until one is
+ * leading, for up to the failover timeout. If the same member is still leading over the same connection, the call's
+ * own failure is thrown. Otherwise:
+ * <ul>
+ * <li>Calls that can safely be made again are retried on the new leader: reads, set, locking, starting transactions and
+ * registering. A set that failed this way may have committed anyway, and is then written twice.</li>
+ * <li>Calls that belong to a transaction started on the old leader fail with a RemoteException, since it died with
+ * that leader: writing in, committing and aborting a transaction. So do compareAndSet and optimistic commits, which
+ * may or may not have taken effect.</li>
+ * </ul>
+ * Lock stamps and leases handed out here stand for those of the leader that was current at the time, and are released
+ * there: a lock whose leader is gone died with it, so releasing it succeeds. (Transaction IDs need no such mapping, as a
+ * new leader never hands out one its predecessor did.)
+ * <p>
+ * The old leader drops its replicas when it stops leading, so a client's replica must register with the new leader
+ * (and catch up on everything it missed): see {@link #setLeaderChangeListener(Runnable)}.
+ */
+public class FailoverKeyValueServer implements IKeyValueServer, Closeable {
+
+	// how long a call waits for the group to elect a new leader before giving up
+	static final long DEFAULT_FAILOVER_TIMEOUT_MILLIS = 10000;
+
+	// longest wait between asking around for a leader
+	static final long MAX_BACKOFF_MILLIS = 500;
+
+	// how often the leader is checked while a listener is set, so that a client that only reads locally still notices
+	// a new leader; well under an election timeout, so a leader that steps down and is elected again is noticed too
+	static final long LEADER_CHECK_INTERVAL_MILLIS = 200;
+
+	// null if the members were given as servers, which are then never reconnected
+	private final List<String> addresses;
+	private final Transport transport;
+	// guarded by this; a member whose connection failed is null until reconnected
+	private final IKeyValueServer[] members;
+
+	private volatile Leader current;
+	private volatile long failoverTimeoutMillis = DEFAULT_FAILOVER_TIMEOUT_MILLIS;
+	private volatile Runnable leaderChangeListener;
+	private ScheduledExecutorService leaderCheck;
+
+	// handed out by lockKey and lockKeys, standing for a stamp or lease from the leader of the time; never 0
+	private final AtomicLong nextLock = new AtomicLong(1);
+	private final ConcurrentHashMap<Long, HeldLock> locks = new ConcurrentHashMap<>();
+
+	/**
+	 * @param members every member of the group, in member order
+	 * @throws IllegalArgumentException if there are no members
+	 */
+	public FailoverKeyValueServer(List<? extends IKeyValueServer> members) {
+		if (members.isEmpty())
+			throw new IllegalArgumentException("No members");
+		this.addresses = null;
+		this.transport = null;
+		this.members = members.toArray(new IKeyValueServer[0]);
+	}
+
+	private FailoverKeyValueServer(List<String> addresses, Transport transport) {
+		if (addresses.isEmpty())
+			throw new IllegalArgumentException("No members");
+		this.addresses = addresses;
+		this.transport = transport;
+		this.members = new IKeyValueServer[addresses.size()];
+	}
+
+	/**
+	 * Connects to a group; members are looked up when first needed, and again after their connection fails (so a
+	 * member that restarts is found again)
+	 *
+	 * @param addresses host:port each member serves clients on, in member order (the same order as kvstore.group)
+	 * @param transport how to reach them
+	 */
+	public static FailoverKeyValueServer connect(List<String> addresses, Transport transport) {
+		return new FailoverKeyValueServer(addresses, transport);
+	}
+
+	/**
+	 * @param timeout how long a call waits for the group to elect a new leader before failing
+	 */
+	public void setFailoverTimeout(long timeout, TimeUnit unit) {
+		failoverTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Sets what to do when the leader changes (after the first one is found), and from then on checks the leader every
+	 * LEADER_CHECK_INTERVAL_MILLIS even if no calls are made. Run on the thread that noticed the change, so it must not
+	 * block.
+	 */
+	public synchronized void setLeaderChangeListener(Runnable listener) {
+		leaderChangeListener = listener;
+		if (leaderCheck == null) {
+			leaderCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "kvstore-leader-check");
+				t.setDaemon(true);
+				return t;
+			});
+			leaderCheck.scheduleWithFixedDelay(this::checkLeader, LEADER_CHECK_INTERVAL_MILLIS, LEADER_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return index of the member currently leading, finding it first if necessary
+	 * @throws RemoteException if no leader was found within the failover timeout
+	 */
+	@Override
+	public int getLeader() throws RemoteException {
+		return leader().member;
+	}
+
+	@Override
+	public String get(String key) throws RemoteException {
+		return call(server -> server.get(key), true);
+	}
+
+	@Override
+	public Set<String> listKeys() throws RemoteException {
+		return call(server -> server.listKeys(), true);
+	}
+
+	@Override
+	public void set(String key, String value) throws IOException {
+		while (true) {
+			Leader leader = leader();
+			try {
+				leader.server.set(key, value);
+				return;
+			} catch (RemoteException e) {
+				if (failover(leader, e) == false)
+					throw e;
+			}
+		}
+	}
+
+	@Override
+	public Set<String> listDirectory(String directory) throws RemoteException {
+		return call(server -> server.listDirectory(directory), true);
+	}
+
+	@Override
+	public long lockKey(String name) throws RemoteException {
+		return lock(server -> server.lockKey(name));
+	}
+
+	@Override
+	public void unLockKey(String name, long stamp) throws RemoteException {
+		unlock(stamp, (server, serverStamp) -> server.unLockKey(name, serverStamp));
+	}
+
+	@Override
+	public long lockKeys(SortedSet<String> names) throws RemoteException {
+		return lock(server -> server.lockKeys(names));
+	}
+
+	@Override
+	public void unlockKeys(long lease) throws RemoteException {
+		unlock(lease, (server, serverLease) -> server.unlockKeys(serverLease));
+	}
+
+	@Override
+	public boolean setInTransaction(String key, String value, long xid) throws RemoteException {
+		return call(server -> server.setInTransaction(key, value, xid), false);
+	}
+
+	@Override
+	public boolean setManyInTransaction(HashMap<String, String> values, long xid) throws RemoteException {
+		return call(server -> server.setManyInTransaction(values, xid), false);
+	}
+
+	@Override
+	public HashMap<String, String> registerClient(String hostname, int portNumber) throws RemoteException {
+		return call(server -> server.registerClient(hostname, portNumber), true);
+	}
+
+	@Override
+	public BootstrapChunk registerClientStreaming(String hostname, int portNumber, int maxEntries) throws RemoteException {
+		return call(server -> server.registerClientStreaming(hostname, portNumber, maxEntries), true);
+	}
+
+	/**
+	 * Not retried: the bootstrap belongs to the leader it was started on, and has to start over on the new one
+	 */
+	@Override
+	public BootstrapChunk getBootstrapChunk(long version, String afterKey, int maxEntries) throws RemoteException {
+		return call(server -> server.getBootstrapChunk(version, afterKey, maxEntries), false);
+	}
+
+	@Override
+	public void cacheDisconnect(String hostname, int portNumber) throws RemoteException {
+		call(server -> {
+			server.cacheDisconnect(hostname, portNumber);
+			return null;
+		}, true);
+	}
+
+	@Override
+	public long startNewTransaction() throws RemoteException {
+		return call(server -> server.startNewTransaction(), true);
+	}
+
+	@Override
+	public long leaseTransactionIds(int count) throws RemoteException {
+		return call(server -> server.leaseTransactionIds(count), true);
+	}
+
+	@Override
+	public long getLastCommittedXid() throws RemoteException {
+		return call(server -> server.getLastCommittedXid(), true);
+	}
+
+	@Override
+	public String getMetrics() throws RemoteException {
+		return call(server -> server.getMetrics(), true);
+	}
+
+	@Override
+	public void setContentionProfiling(int sampleEvery) throws RemoteException {
+		call(server -> {
+			server.setContentionProfiling(sampleEvery);
+			return null;
+		}, true);
+	}
+
+	@Override
+	public String getContentionProfile() throws RemoteException {
+		return call(server -> server.getContentionProfile(), true);
+	}
+
+	@Override
+	public boolean prepareTransaction(long xid) throws RemoteException {
+		return call(server -> server.prepareTransaction(xid), false);
+	}
+
+	@Override
+	public void issueCommitTransaction(long xid) throws RemoteException {
+		call(server -> {
+			server.issueCommitTransaction(xid);
+			return null;
+		}, false);
+	}
+
+	@Override
+	public void issueAbortTransaction(long xid) throws RemoteException {
+		call(server -> {
+			server.issueAbortTransaction(xid);
+			return null;
+		}, false);
+	}
+
+	@Override
+	public VersionedValue getVersioned(String key) throws RemoteException {
+		return call(server -> server.getVersioned(key), true);
+	}
+
+	@Override
+	public boolean compareAndSet(String key, long expectedVersion, String value) throws RemoteException {
+		return call(server -> server.compareAndSet(key, expectedVersion, value), false);
+	}
+
+	@Override
+	public boolean commitOptimisticTransaction(HashMap<String, String> writes, HashMap<String, Long> readVersions) throws RemoteException {
+		return call(server -> server.commitOptimisticTransaction(writes, readVersions), false);
+	}
+
+	/**
+	 * Stops checking the leader, and closes the connections to members reached over the binary transport
+	 */
+	@Override
+	public synchronized void close() {
+		if (leaderCheck != null)
+			leaderCheck.shutdownNow();
+		for (IKeyValueServer member : members)
+			closeQuietly(member);
+	}
+
+	@FunctionalInterface
+	private interface Call<T> {
+		T call(IKeyValueServer server) throws RemoteException;
+	}
+
+	/**
+	 * Makes a call on the leader, failing over if it fails
+	 *
+	 * @param retry whether to make the call again on a new leader, or throw
+	 */
+	private <T> T call(Call<T> call, boolean retry) throws RemoteException {
+		while (true) {
+			Leader leader = leader();
+			try {
+				return call.call(leader.server);
+			} catch (RemoteException e) {
+				if (failover(leader, e) == false)
+					throw e;
+				if (retry == false)
+					throw new RemoteException("The leader changed during the call, which may or may not have taken effect; "
+							+ "locks and transactions from the old leader are lost", e);
+			}
+		}
+	}
+
+	/**
+	 * Takes a lock on the leader (retrying on a new one), remembering which leader holds it
+	 */
+	private long lock(Call<Long> lock) throws RemoteException {
+		while (true) {
+			Leader leader = leader();
+			try {
+				long serverLock = lock.call(leader.server);
+				long ret = nextLock.getAndIncrement();
+				locks.put(ret, new HeldLock(leader, serverLock));
+				return ret;
+			} catch (RemoteException e) {
+				if (failover(leader, e) == false)
+					throw e;
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface Unlock {
+		void unlock(IKeyValueServer server, long serverLock) throws RemoteException;
+	}
+
+	/**
+	 * Releases a lock on the leader that holds it. A lock whose leader has failed over died with it, so failing to
+	 * release it there isn't an error.
+	 *
+	 * @throws IllegalMonitorStateException if there is no such lock (or it was already released)
+	 */
+	private void unlock(long lock, Unlock unlock) throws RemoteException {
+		HeldLock held = locks.remove(lock);
+		if (held == null)
+			throw new IllegalMonitorStateException("No lock " + lock);
+		try {
+			unlock.unlock(held.leader.server, held.serverLock);
+		} catch (RemoteException e) {
+			if (failover(held.leader, e) == false)
+				throw e;
+		} catch (IllegalMonitorStateException e) {
+			if (held.leader == current)
+				throw e;
+		}
+	}
+
+	private Leader leader() throws RemoteException {
+		Leader leader = current;
+		if (leader != null)
+			return leader;
+		synchronized (this) {
+			if (current == null)
+				current = findLeader();
+			return current;
+		}
+	}
+
+	/**
+	 * Finds the leader after a call to failed did
+	 *
+	 * @param cause why the call failed
+	 * @return false if failed is still the leader, over the same connection, and didn't stop leading in between
+	 * @throws RemoteException if no leader was found within the failover timeout
+	 */
+	private synchronized boolean failover(Leader failed, RemoteException cause) throws RemoteException {
+		if (current != failed)
+			return true; // another call already failed over
+		Leader found = findLeader();
+		if (found.member == failed.member && found.server == failed.server && isNotLeader(cause) == false)
+			return false;
+		current = found;
+		Runnable listener = leaderChangeListener;
+		if (listener != null)
+			listener.run();
+		return true;
+	}
+
+	/**
+	 * Asks every member in turn whether it is leading, until one is or the failover timeout passes. Callers must hold
+	 * the lock.
+	 */
+	private Leader findLeader() throws RemoteException {
+		long deadline = System.currentTimeMillis() + failoverTimeoutMillis;
+		long backoff = 10;
+		RemoteException lastFailure = null;
+		while (true) {
+			for (int member = 0; member < members.length; member++) {
+				try {
+					IKeyValueServer server = member(member);
+					if (server.getLeader() == member)
+						return new Leader(member, server);
+				} catch (RemoteException e) {
+					lastFailure = e;
+					disconnect(member);
+				}
+			}
+			if (System.currentTimeMillis() >= deadline)
+				throw new RemoteException("No leader among " + members.length + " members after " + failoverTimeoutMillis + "ms", lastFailure);
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted looking for a leader", e);
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+		}
+	}
+
+	/**
+	 * @return the connection to a member, looking it up if it has none. Callers must hold the lock.
+	 */
+	private IKeyValueServer member(int member) throws RemoteException {
+		if (members[member] != null)
+			return members[member];
+		String address = addresses.get(member);
+		int colon = address.lastIndexOf(':');
+		String host = address.substring(0, colon);
+		int port = Integer.parseInt(address.substring(colon + 1));
+		if (transport == Transport.BINARY) {
+			members[member] = new BinaryKeyValueServerStub(host, port);
+		} else {
+			try {
+				members[member] = (IKeyValueServer) LocateRegistry.getRegistry(host, port).lookup(IKeyValueServer.RMI_NAME);
+			} catch (Exception e) {
+				throw new RemoteException("Can't reach member " + member + " at " + address, e);
+			}
+		}
+		return members[member];
+	}
+
+	/**
+	 * Drops the connection to a member (unless the members were given as servers). Callers must hold the lock.
+	 */
+	private void disconnect(int member) {
+		if (addresses == null)
+			return;
+		closeQuietly(members[member]);
+		members[member] = null;
+	}
+
+	/**
+	 * Checks that the leader still is, failing over if not
+	 */
+	private void checkLeader() {
+		Leader leader = current;
+		if (leader == null)
+			return;
+		RemoteException cause;
+		try {
+			if (leader.server.getLeader() == leader.member)
+				return;
+			cause = new NotLeaderException("Member " + leader.member + " stopped leading");
+		} catch (RemoteException e) {
+			cause = e;
+		}
+		try {
+			failover(leader, cause);
+		} catch (RemoteException e) {
+			// no leader yet; the next check or call tries again
+		}
+	}
+
+	/**
+	 * @return true if e says the member wasn't leading (over RMI, a NotLeaderException arrives wrapped in a
+	 * ServerException)
+	 */
+	private static boolean isNotLeader(RemoteException e) {
+		return e instanceof NotLeaderException || e.getCause() instanceof NotLeaderException;
+	}
+
+	private static void closeQuietly(IKeyValueServer server) {
+		if (server instanceof Closeable) {
+			try {
+				((Closeable) server).close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A lock stamp or lease, and the leader that handed it out
+	 */
+	private static final class HeldLock {
+		final Leader leader;
+		final long serverLock;
+
+		HeldLock(Leader leader, long serverLock) {
+			this.leader = leader;
+			this.serverLock = serverLock;
+		}
+	}
+
+	/**
+	 * A member found leading, and the connection it was found on
+	 */
+	private static final class Leader {
+		final int member;
+		final IKeyValueServer server;
+
+		Leader(int member, IKeyValueServer server) {
+			this.member = member;
+			this.server = server;
+		}
+	}
+}
@@ -1,238 +1,671 @@
-package edu.gmu.cs475;
-
-
-import java.io.IOException;
-import java.rmi.RemoteException;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-public class KeyValueClient extends AbstractKeyValueClient {
-	
-	private ReentrantReadWriteLock ReadWriteLock = new ReentrantReadWriteLock();
-	
-	private ConcurrentHashMap<String, String> localMap = new ConcurrentHashMap<>();
-	
-	//a separate cache to store transaction writes that were not committed yet 
-	private ConcurrentHashMap<Long, ArrayList<String>> separateCache = new ConcurrentHashMap<>();
-
-	public KeyValueClient(String host, int port) {
-		super(host, port);
-		startReplica();
-	}
-
-	public KeyValueClient(IKeyValueServer server) {
-		super(server);
-		startReplica();
-	}
-
-	/**
-	 * Initializes the replica with the current set of keys and their vlaues
-	 *
-	 * @param keysAndValues A map from keys to values
-	 */
-	@Override
-	protected void initReplica(HashMap<String, String> keysAndValues) {
-		localMap.putAll(keysAndValues);
-	}
-
-	/**
-	 * Returns the value of the given key (or null if the key doesn't exist).
-	 *
-	 * Does NOT use the server - reads locally from localMap
-	 * @param key
-	 * @return
-	 */
-	@Override
-	public String get(String key) {
-		return localMap.get(key);
-	}
-
-	/**
-	 * Lists all of the keys
-	 *
-	 * Does NOT use the server - reads locally from localMap
-	 * @return
-	 */
-	@Override
-	public Set<String> listKeys() {
-		return localMap.keySet();
-	}
-
-	/**
-	 * Lists all of the keys that have the given prefix (e.g. are in the same directory)
-	 *
-	 * Does NOT use the server - reads locally from localMap
-	 * @param directory
-	 * @return
-	 */
-	@Override
-	public Set<String> listDirectory(String directory) {
-		Set<String> keys = localMap.keySet();
-		HashSet<String> ret = new HashSet<>();
-		for (String s : keys) {
-			if (s.startsWith(directory))
-				ret.add(s);
-		}
-		return ret;
-	}
-
-	/**
-	 * Write a key in our *local* map
-	 *
-	 * @param key     Key to set
-	 * @param content String representing the content desired
-	 * @param xid     Transaction ID, if this write is associated with any transaction, or 0 if it is not associated with a transaction
-	 *                If it is associated with a transaction, then this write must not be visible until the replicant receives a commit message for the associated transaction ID; if it is aborted, then it is discarded.
-	 * @return true always, indicating that your client succeeded in making the update. Your server, however, must not assume that all clients return true (perhaps some other clients will return false if they have some error)
-	 * @return true if the write was successful and we are voting to commit
-	 */
-	@Override
-	public boolean innerWriteKey(String key, String content, long xid) {
-		//TODO
-				
-		ReadWriteLock.writeLock().lock();
-		try {
-			if(xid == 0) { // 0 if it is not associated with a transaction
-				localMap.put(key, content);
-			}
-			
-			// stores transaction writes into a separate cache
-			ArrayList<String> keyContent = new ArrayList<String>();
-			keyContent.add(key);
-			keyContent.add(content);
-			separateCache.put(xid, keyContent);
-						
-		}
-		finally {
-			ReadWriteLock.writeLock().unlock();
-		}
-		
-		return true;
-	}
-
-	/**
-	 * Commit a transaction, making any pending writes immediately visible.
-	 *
-	 * If the specified transaction doesn't exist then does nothing
-	 *
-	 * @param id transaction id
-	 */
-	@Override
-	public void commitTransaction(long id) {
-		//TODO
-		
-		if(separateCache.containsKey(id)) { // if the specified transaction exists
-			ArrayList<String> keyContent = separateCache.get(id);
-			String key = keyContent.get(0);
-			String value = keyContent.get(1);
-			localMap.put(key, value); // making any pending writes immediately visible.
-		}
-		
-	}
-
-	/**
-	 * Abort a transaction, discarding any pending writes that are associated with it
-	 *
-	 * If the specified transaction doesn't exist then does nothing
-	 *
-	 * @param id transaction id
-	 */
-	@Override
-	public void abortTransaction(long id) {
-		//TODO
-		
-		if(separateCache.containsKey(id)) { // if the specified transaction exists
-			separateCache.remove(id); // discarding any pending writes that are associated with it
-		}
-	}
-
-	/**
-	 * Sets the content for all keys that are directly contained by the given directory.
-	 * Must acquire locks on each key such that each key being set can not be modified by another concurrent
-	 * putAll.
-	 *
-	 * Given two concurrent calls to putAll, it will be indeterminite
-	 * which call happens first and which happens last. But what you can (and
-	 * must) guarantee is that all keys affected will have the *same* value (and not
-	 * some the result of the first, and some the result of the second). Your
-	 * code should not deadlock while waiting to acquire locks.
-	 *
-	 * Your implementation must follow exactly this scheme:
-	 * 1. Acquire all locks
-	 * 2. Start a transaction
-	 * 3. Write all values
-	 * 4. Commit the transaction if all writes succeeded
-	 * 5. Release all locks
-	 *
-	 * @param directory Directory to do updates within
-	 * @param content   The content to write out to each key
-	 * @throws IllegalArgumentException if the key does not represent a directory (does not end in a /)
-	 * @throws IllegalArgumentException if the key does not start with a /
-	 * @throws RemoteException          if any RemoteException occurs in the underlying RMI operation
-	 */
-	public void putAll(String directory, String content) throws RemoteException, IllegalArgumentException {
-		//TODO
-		
-		if(!(directory.charAt(directory.length() - 1) == '/') || !(directory.charAt(0) == '/')) {
-			throw new IllegalArgumentException();
-		}
-
-		Set<String> contents = listDirectory(directory); //unsorted HaskSet
-
-		//To avoid deadlocks, make sure that in each call to getAll/putAll, you lock keys in the same order. 
-		//Note that listDirectory returns an un-ordered set, so you will need to sort it.
-		List<String> contentsList = new ArrayList<String>(contents);
-		Collections.sort(contentsList);
-
-		List<Long> stampsList = new ArrayList<Long>();
-		
-		long transactionID = 0;
-
-		long stamp = 0;		
-		
-		boolean succeed = false;
-		
-		try {
-			//1. Acquire all locks
-			for(int i = 0; i < contentsList.size(); i++) {
-				String key = contentsList.get(i);
-				stamp = lockKey(key); 
-				stampsList.add(stamp);
-			}
-			
-			//2. Start a transaction
-			//3. Write all values	
-			transactionID = startNewTransaction();
-			
-			for(int i = 0; i < contentsList.size(); i++) {
-				String key = contentsList.get(i);
-				succeed = setInTransaction(key, content, transactionID); //Update each key by telling the server to, passing that transaction ID
-				
-				//If one write failed, abort that transaction
-				if(succeed == false){
-					issueAbortTransaction(transactionID);
-					break;
-				}
-			}
-			
-			//4. Commit the transaction if all writes succeeded
-			if(succeed == true) {
-				issueCommitTransaction(transactionID);
-			}
-			
-		}
-		catch(RemoteException e){
-			issueAbortTransaction(transactionID); //If one throw a RemoteException (vote no), abort that transaction
-		}
-		finally{
-			//5. Release all locks
-			for(int i = 0; i < contentsList.size(); i++) {
-				String key = contentsList.get(i);
-				stamp = stampsList.get(i);
-				unLockKey(key, stamp); 
-			}
-		}	
-	}
-}
-
+package edu.gmu.cs475;
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class KeyValueClient extends AbstractKeyValueClient {
+	
+	// how long a read that needs a newer replica waits for it to catch up before asking the server instead
+	static final long CATCH_UP_WAIT_MILLIS = 20;
+	
+	private ReentrantReadWriteLock ReadWriteLock = new ReentrantReadWriteLock();
+	
+	private ConcurrentHashMap<String, String> localMap = new ConcurrentHashMap<>();
+	
+	//sorted index of the keys in localMap, for listing directories without scanning every key
+	private PrefixIndex keyIndex = new PrefixIndex();
+	
+	//ID of the transaction that wrote each key in localMap; keys that came from the bootstrap have none
+	private ConcurrentHashMap<String, Long> localVersions = new ConcurrentHashMap<>();
+	
+	//largest version this replica has committed (or that its bootstrap covered), for each shard that hands out
+	//versions (only shard 0 without sharding). Every commit that finished before it is applied too (see
+	//IKeyValueServer.getLastCommittedXid); guarded by appliedMonitor
+	private HashMap<Integer, Long> appliedXids = new HashMap<>();
+	private final Object appliedMonitor = new Object();
+	
+	//when this replica was last known to have every commit the server had finished, from System.nanoTime
+	private volatile long lastSyncNanos;
+	private volatile boolean synced;
+	
+	//set from when the replica is emptied after a leader change until it has bootstrapped from the new leader; reads
+	//go to the server meanwhile
+	private volatile boolean resyncing;
+	
+	//writes made by each transaction that is not committed yet, by xid
+	private ConcurrentHashMap<Long, WriteSet> pendingWrites = new ConcurrentHashMap<>();
+	
+	//in partial mode, the only keys held locally (localMap, keyIndex and localVersions stay empty); null otherwise
+	private ReplicaCache cache;
+	
+	//keys being fetched from the server after a cache miss; a write to one removes it, so the fetch isn't cached.
+	//Writes and fetches update the cache while synchronized on it
+	private ConcurrentHashMap<String, Object> fetching = new ConcurrentHashMap<>();
+
+	// latency of reads served by this replica (including fetches on a cache miss), and of putAll
+	private final Histogram getNanos = metrics.histogram("get_nanos");
+	private final Histogram putAllNanos = metrics.histogram("put_all_nanos");
+
+	// messages received from the server as a replica
+	private final LongAdder replicaWrites = metrics.counter("replica_writes_received");
+	private final LongAdder replicaCommits = metrics.counter("replica_commits");
+	private final LongAdder replicaAborts = metrics.counter("replica_aborts");
+
+	{
+		metrics.gauge("applied_xid", this::getAppliedXid);
+		metrics.gauge("pending_transactions", () -> pendingWrites.size());
+		metrics.gauge("cache_hits", () -> cache == null ? 0 : cache.getHitCount());
+		metrics.gauge("cache_misses", () -> cache == null ? 0 : cache.getMissCount());
+		metrics.gauge("cache_evictions", () -> cache == null ? 0 : cache.getEvictionCount());
+	}
+
+	public KeyValueClient(String host, int port) {
+		super(host, port);
+		startReplica();
+	}
+
+	public KeyValueClient(String host, int port, Transport transport) {
+		super(host, port, transport);
+		startReplica();
+	}
+
+	public KeyValueClient(IKeyValueServer server) {
+		super(server);
+		startReplica();
+	}
+
+	/**
+	 * Creates a replica of the given server, which the server reaches over the given transport (e.g. through a
+	 * FailoverKeyValueServer in front of a replicated server group)
+	 */
+	public KeyValueClient(IKeyValueServer server, Transport transport) {
+		super(server, transport);
+		startReplica();
+	}
+
+	/**
+	 * Creates a replica of a store split over several servers (see ShardedKeyValueServer); each server must have
+	 * been started with -Dkvstore.shard set to its place in the list
+	 *
+	 * @param shardAddresses host:port of each shard, in shard number order
+	 */
+	public KeyValueClient(List<String> shardAddresses, Transport transport) {
+		super(ShardedKeyValueServer.connect(shardAddresses, transport), transport);
+		startReplica();
+	}
+
+	/**
+	 * Creates a partial replica, which holds only the keys in the given cache instead of a copy of the whole store.
+	 * Keys that aren't cached are read from the server; listKeys and listDirectory always ask the server.
+	 *
+	 * @param cache where to keep the most read keys
+	 */
+	public KeyValueClient(String host, int port, Transport transport, ReplicaCache cache) {
+		super(host, port, transport);
+		this.cache = cache;
+		startReplica();
+	}
+
+	/**
+	 * Creates a partial replica of the given server (see KeyValueClient(String, int, Transport, ReplicaCache))
+	 *
+	 * @param cache where to keep the most read keys
+	 */
+	public KeyValueClient(IKeyValueServer server, ReplicaCache cache) {
+		super(server);
+		this.cache = cache;
+		startReplica();
+	}
+
+	/**
+	 * @return the cache holding this partial replica's keys (for its hit rate and eviction counts), or null if this
+	 * replica holds every key
+	 */
+	public ReplicaCache getCache() {
+		return cache;
+	}
+
+	@Override
+	protected boolean bootstrapsFullCopy() {
+		return cache == null;
+	}
+
+	/**
+	 * Initializes the replica with the current set of keys and their vlaues
+	 *
+	 * Called once per bootstrap chunk; any key that was already written since we registered keeps its newer value
+	 *
+	 * @param keysAndValues A map from keys to values
+	 */
+	@Override
+	protected void initReplica(HashMap<String, String> keysAndValues) {
+		for(Map.Entry<String, String> e : keysAndValues.entrySet()) {
+			localMap.putIfAbsent(e.getKey(), e.getValue());
+			keyIndex.add(e.getKey());
+		}
+	}
+
+	/**
+	 * Returns the value of the given key (or null if the key doesn't exist).
+	 *
+	 * Does NOT use the server - reads locally from localMap
+	 * @param key
+	 * @return
+	 */
+	@Override
+	public String get(String key) {
+		long start = System.nanoTime();
+		if(cache != null) {
+			try {
+				return getCached(key).getValue();
+			}
+			catch (RemoteException e) {
+				throw new UncheckedIOException(e);
+			}
+			finally {
+				getNanos.recordSince(start);
+			}
+		}
+		if(resyncing) {
+			try {
+				return getFromServer(key);
+			}
+			catch (RemoteException e) {
+				throw new UncheckedIOException(e);
+			}
+			finally {
+				getNanos.recordSince(start);
+			}
+		}
+		ReadWriteLock.readLock().lock(); // so we never see part of a transaction's writes
+		try {
+			return localMap.get(key);
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+			getNanos.recordSince(start);
+		}
+	}
+
+	/**
+	 * Lists all of the keys
+	 *
+	 * Does NOT use the server - reads locally from localMap
+	 * @return
+	 */
+	@Override
+	public Set<String> listKeys() {
+		if(cache != null || resyncing) {
+			try {
+				return listKeysFromServer();
+			}
+			catch (RemoteException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		ReadWriteLock.readLock().lock(); // so we never see part of a transaction's writes
+		try {
+			return new HashSet<>(localMap.keySet());
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Lists all of the keys that have the given prefix (e.g. are in the same directory)
+	 *
+	 * Does NOT use the server - reads locally from localMap
+	 * @param directory
+	 * @return
+	 */
+	@Override
+	public Set<String> listDirectory(String directory) {
+		if(cache != null || resyncing) {
+			try {
+				return listDirectoryFromServer(directory);
+			}
+			catch (RemoteException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		ReadWriteLock.readLock().lock();
+		try {
+			return keyIndex.withPrefix(directory);
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Write a key in our *local* map
+	 *
+	 * @param key     Key to set
+	 * @param content String representing the content desired
+	 * @param xid     Transaction ID, if this write is associated with any transaction, or 0 if it is not associated with a transaction
+	 *                If it is associated with a transaction, then this write must not be visible until the replicant receives a commit message for the associated transaction ID; if it is aborted, then it is discarded.
+	 * @return true always, indicating that your client succeeded in making the update. Your server, however, must not assume that all clients return true (perhaps some other clients will return false if they have some error)
+	 * @return true if the write was successful and we are voting to commit
+	 */
+	@Override
+	public boolean innerWriteKey(String key, String content, long xid) {
+		replicaWrites.increment();
+		if(xid == 0) { // 0 if it is not associated with a transaction
+			ReadWriteLock.writeLock().lock();
+			try {
+				putLocal(key, content, 0); // not written by a transaction, so the version is unknown
+			}
+			finally {
+				ReadWriteLock.writeLock().unlock();
+			}
+			return true;
+		}
+		
+		// stages the write in the transaction's write set until it commits
+		pendingWrites.computeIfAbsent(xid, id -> new WriteSet()).add(key, content);
+		return true;
+	}
+
+	/**
+	 * Stages a whole batch of writes for one transaction at once
+	 *
+	 * @param keysAndContent map from each key to write to its content
+	 * @param xid            Transaction ID, with the same meaning as for innerWriteKey
+	 * @return true always
+	 */
+	@Override
+	public boolean innerWriteKeys(HashMap<String, String> keysAndContent, long xid) {
+		replicaWrites.add(keysAndContent.size());
+		if(xid == 0) {
+			ReadWriteLock.writeLock().lock();
+			try {
+				keysAndContent.forEach((key, value) -> putLocal(key, value, 0));
+			}
+			finally {
+				ReadWriteLock.writeLock().unlock();
+			}
+			return true;
+		}
+		WriteSet writes = pendingWrites.get(xid);
+		if(writes == null) {
+			writes = pendingWrites.computeIfAbsent(xid, id -> new WriteSet(keysAndContent.size()));
+		}
+		writes.addAll(keysAndContent);
+		return true;
+	}
+
+	/**
+	 * Commit a transaction, making any pending writes immediately visible. The server didn't say which version it
+	 * committed them at, so reading their versions goes to the server, and the replica's position (see getAppliedXid)
+	 * stays where it is.
+	 *
+	 * If the specified transaction doesn't exist then does nothing
+	 *
+	 * @param id transaction id
+	 */
+	@Override
+	public void commitTransaction(long id) {
+		commitTransaction(id, 0);
+	}
+
+	/**
+	 * Commit a transaction, making any pending writes immediately visible at the version the server committed them at.
+	 *
+	 * If the specified transaction doesn't exist then does nothing
+	 *
+	 * @param id      transaction id
+	 * @param version version of every key the transaction wrote, or 0 if not known
+	 */
+	@Override
+	public void commitTransaction(long id, long version) {
+		replicaCommits.increment();
+		WriteSet writes = pendingWrites.remove(id);
+		if(writes == null) { // the specified transaction doesn't exist
+			markApplied(version);
+			return;
+		}
+		// making all of the pending writes visible in one step
+		ReadWriteLock.writeLock().lock();
+		try {
+			writes.forEach((key, value) -> putLocal(key, value, version));
+		}
+		finally {
+			ReadWriteLock.writeLock().unlock();
+		}
+		markApplied(version);
+	}
+
+	/**
+	 * Abort a transaction, discarding any pending writes that are associated with it
+	 *
+	 * If the specified transaction doesn't exist then does nothing
+	 *
+	 * @param id transaction id
+	 */
+	@Override
+	public void abortTransaction(long id) {
+		replicaAborts.increment();
+		pendingWrites.remove(id); // discarding any pending writes that are associated with it
+	}
+
+	/**
+	 * Returns the value of the given key, as of a state that includes at least the commit at version minXid
+	 *
+	 * Reads locally if this replica has applied that version (so also every commit that finished before it). In ALL mode
+	 * that is almost always the case, since the server doesn't finish a commit until every replica has it; in QUORUM or
+	 * SYNCHRONOUS mode this replica may not have been one the commit waited for. Otherwise waits up to
+	 * CATCH_UP_WAIT_MILLIS for the commit to arrive, then reads from the server. minXid is a position in commit order: a
+	 * version from getVersioned, or getLastCommittedXid after a commit returns (to read this client's own writes). A
+	 * transaction ID from startNewTransaction is not one, since the transaction's commit gets a larger version. With
+	 * several shards, minXid must come from the key's shard.
+	 *
+	 * @param key    the key to read
+	 * @param minXid version the read must reflect
+	 * @return the value mapped to this key, if one exists, otherwise null
+	 * @throws RemoteException if the replica is behind and the server can't be reached
+	 */
+	public String get(String key, long minXid) throws RemoteException {
+		if(awaitApplied(minXid, CATCH_UP_WAIT_MILLIS)) {
+			return get(key);
+		}
+		return getFromServer(key);
+	}
+
+	/**
+	 * Returns the value of the given key, as of a state no older than maxStaleness
+	 *
+	 * Reads locally if this replica was known to be up to date within the last maxStaleness. Otherwise asks the server
+	 * for its latest commit (one round trip), and reads locally if the replica has applied it within
+	 * CATCH_UP_WAIT_MILLIS, or from the server if not.
+	 *
+	 * @param key          the key to read
+	 * @param maxStaleness how out of date the value may be
+	 * @param unit         unit of maxStaleness
+	 * @return the value mapped to this key, if one exists, otherwise null
+	 * @throws RemoteException if the replica needs checking and the server can't be reached
+	 */
+	public String get(String key, long maxStaleness, TimeUnit unit) throws RemoteException {
+		if(synced && System.nanoTime() - lastSyncNanos <= unit.toNanos(maxStaleness)) {
+			return get(key);
+		}
+		long start = System.nanoTime();
+		if(awaitApplied(getLastCommittedXid(key), CATCH_UP_WAIT_MILLIS)) {
+			lastSyncNanos = start;
+			synced = true;
+			return get(key);
+		}
+		return getFromServer(key);
+	}
+
+	/**
+	 * @return the largest version this replica has committed or received through its bootstrap; with several shards,
+	 * the largest from any shard
+	 */
+	public long getAppliedXid() {
+		synchronized(appliedMonitor) {
+			long ret = 0;
+			for(long xid : appliedXids.values()) {
+				ret = Math.max(ret, xid);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Everything committed before the bootstrap's version was handed out is in the bootstrap
+	 */
+	@Override
+	protected void replicaBootstrapped(long bootstrapVersion) {
+		markApplied(bootstrapVersion - 1);
+		resyncing = false;
+	}
+
+	/**
+	 * Empties the replica before it bootstraps again from a new leader, reading from the server until then
+	 */
+	@Override
+	protected void replicaReset() {
+		resyncing = true;
+		synced = false;
+		ReadWriteLock.writeLock().lock();
+		try {
+			localMap.clear();
+			keyIndex = new PrefixIndex();
+			localVersions.clear();
+			pendingWrites.clear();
+			if(cache != null) {
+				cache.clear();
+			}
+		}
+		finally {
+			ReadWriteLock.writeLock().unlock();
+		}
+		synchronized(appliedMonitor) {
+			appliedXids.clear();
+		}
+	}
+
+	private void markApplied(long xid) {
+		synchronized(appliedMonitor) {
+			if(xid > applied(xid)) {
+				appliedXids.put(ShardMap.shardOf(xid), xid);
+				appliedMonitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the largest transaction ID applied from the shard that handed out xid; the caller holds appliedMonitor
+	 */
+	private long applied(long xid) {
+		Long ret = appliedXids.get(ShardMap.shardOf(xid));
+		return ret == null ? 0 : ret;
+	}
+
+	/**
+	 * Waits until this replica has applied transaction xid, for at most timeoutMillis
+	 *
+	 * @return true if it has
+	 */
+	private boolean awaitApplied(long xid, long timeoutMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		synchronized(appliedMonitor) {
+			while(applied(xid) < xid) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					return false;
+				}
+				try {
+					TimeUnit.NANOSECONDS.timedWait(appliedMonitor, remaining);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Reads a key and its version from localMap, without asking the server. Keys this replica hasn't seen a
+	 * transaction write (those from the bootstrap) are read from the server instead.
+	 */
+	@Override
+	protected VersionedValue readVersioned(String key) throws RemoteException {
+		if(cache != null) {
+			return getCached(key);
+		}
+		ReadWriteLock.readLock().lock(); // so the value and version come from the same commit
+		try {
+			Long version = localVersions.get(key);
+			if(version != null) {
+				return new VersionedValue(localMap.get(key), version);
+			}
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+		}
+		return super.readVersioned(key);
+	}
+
+	/**
+	 * Makes a write visible in localMap, keeping keyIndex and localVersions in sync. In partial mode, only updates the
+	 * key if it is cached. A write older than the key's known version (from a commit the server sent out of order) is
+	 * dropped, the same as on the server.
+	 *
+	 * @param version version the server committed the key at, or 0 if not known
+	 */
+	private void putLocal(String key, String value, long version) {
+		if(cache != null) {
+			synchronized(fetching) {
+				fetching.remove(key); // a fetch that started before this write may have read the old value
+				if(version == 0) {
+					cache.remove(key);
+				}
+				else {
+					cache.replace(key, new VersionedValue(value, version));
+				}
+			}
+			return;
+		}
+		Long current = localVersions.get(key);
+		if(version != 0 && current != null && current >= version) {
+			return;
+		}
+		localMap.put(key, value);
+		keyIndex.add(key);
+		if(version == 0) {
+			localVersions.remove(key);
+		}
+		else {
+			localVersions.put(key, version);
+		}
+	}
+
+	/**
+	 * Reads a key in partial mode: from the cache if it is there, otherwise from the server, offering what was read to
+	 * the cache. The server makes every commit visible before sending it to replicas, so what it returns is never older
+	 * than a write this replica has already applied; a write that arrives while the fetch is in flight keeps the
+	 * (possibly older) fetched value out of the cache.
+	 */
+	private VersionedValue getCached(String key) throws RemoteException {
+		ReadWriteLock.readLock().lock(); // so we never see part of a transaction's writes
+		try {
+			VersionedValue cached = cache.get(key);
+			if(cached != null) {
+				return cached;
+			}
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+		}
+		Object token = new Object();
+		fetching.put(key, token);
+		VersionedValue fetched;
+		try {
+			fetched = getVersioned(key);
+		}
+		catch (RemoteException e) {
+			fetching.remove(key, token);
+			throw e;
+		}
+		synchronized(fetching) { // so a write can't land between the check and the put
+			if(fetching.remove(key, token) && fetched.getValue() != null) {
+				cache.put(key, fetched);
+			}
+		}
+		return fetched;
+	}
+
+	/**
+	 * Sets the content for all keys that are directly contained by the given directory.
+	 * Must acquire locks on each key such that each key being set can not be modified by another concurrent
+	 * putAll.
+	 *
+	 * Given two concurrent calls to putAll, it will be indeterminite
+	 * which call happens first and which happens last. But what you can (and
+	 * must) guarantee is that all keys affected will have the *same* value (and not
+	 * some the result of the first, and some the result of the second). Your
+	 * code should not deadlock while waiting to acquire locks.
+	 *
+	 * Your implementation must follow exactly this scheme:
+	 * 1. Acquire all locks
+	 * 2. Start a transaction
+	 * 3. Write all values
+	 * 4. Commit the transaction if all writes succeeded
+	 * 5. Release all locks
+	 *
+	 * @param directory Directory to do updates within
+	 * @param content   The content to write out to each key
+	 * @throws IllegalArgumentException if the key does not represent a directory (does not end in a /)
+	 * @throws IllegalArgumentException if the key does not start with a /
+	 * @throws RemoteException          if any RemoteException occurs in the underlying RMI operation
+	 */
+	public void putAll(String directory, String content) throws RemoteException, IllegalArgumentException {
+		//TODO
+		
+		if(!(directory.charAt(directory.length() - 1) == '/') || !(directory.charAt(0) == '/')) {
+			throw new IllegalArgumentException();
+		}
+
+		Set<String> contents = listDirectory(directory); //unsorted HaskSet
+
+		//To avoid deadlocks, make sure that in each call to getAll/putAll, you lock keys in the same order. 
+		//Note that listDirectory returns an un-ordered set, so you will need to sort it.
+		SortedSet<String> contentsList = new TreeSet<String>(contents);
+
+		long start = System.nanoTime();
+		long lease = 0; // lockKeys never hands out 0
+		
+		long transactionID = 0;
+		
+		boolean succeed = false;
+		
+		try {
+			//1. Acquire all locks, in a single call to the server
+			lease = lockKeys(contentsList);
+			
+			//2. Start a transaction
+			//3. Write all values	
+			transactionID = startNewTransaction();
+			
+			//Update every key in one batch, so the server sends each replica a single message for the whole directory
+			HashMap<String, String> writes = new HashMap<String, String>();
+			for(String key : contentsList) {
+				writes.put(key, content);
+			}
+			succeed = setManyInTransaction(writes, transactionID);
+			
+			//If one write failed, abort that transaction
+			if(succeed == false){
+				issueAbortTransaction(transactionID);
+			}
+			
+			//4. Commit the transaction if all writes succeeded
+			if(succeed == true) {
+				issueCommitTransaction(transactionID);
+			}
+			
+		}
+		catch(RemoteException e){
+			issueAbortTransaction(transactionID); //If one throw a RemoteException (vote no), abort that transaction
+		}
+		finally{
+			//5. Release all locks
+			if(lease != 0) {
+				unlockKeys(lease);
+			}
+			putAllNanos.recordSince(start);
+		}	
+	}
+}
+
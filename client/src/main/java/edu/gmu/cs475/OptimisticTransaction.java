@@ -0,0 +1,75 @@
+package edu.gmu.cs475;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+
+/**
+ * A transaction that takes no locks while it runs: reads remember the version of each key they saw, writes are kept
+ * here until commit, and the server only commits if none of the keys that were read have been written since.
+ * <p>
+ * Reads are not guaranteed to be consistent with each other while the transaction runs (another commit may land
+ * between two reads), but a transaction that saw such a mix never commits. Run one with
+ * {@link AbstractKeyValueClient#runTransaction(Body)}, which retries it on conflicts.
+ */
+public class OptimisticTransaction {
+
+	/**
+	 * The reads and writes of a transaction. May be run more than once, so it should have no other side effects.
+	 */
+	@FunctionalInterface
+	public interface Body {
+		void run(OptimisticTransaction txn) throws RemoteException;
+	}
+
+	private final AbstractKeyValueClient client;
+
+	// read from the server instead of the client's replica (after a conflict, the replica may still be behind)
+	private final boolean readFromServer;
+
+	// version of each key when this transaction first read it
+	private final HashMap<String, Long> readVersions = new HashMap<>();
+
+	// writes to send at commit, by key
+	private final HashMap<String, String> writes = new HashMap<>();
+
+	OptimisticTransaction(AbstractKeyValueClient client, boolean readFromServer) {
+		this.client = client;
+		this.readFromServer = readFromServer;
+	}
+
+	/**
+	 * Reads a key, seeing this transaction's own writes
+	 *
+	 * @param key the key to read
+	 * @return the key's value, or null if it doesn't exist
+	 */
+	public String get(String key) throws RemoteException {
+		if (writes.containsKey(key))
+			return writes.get(key);
+		VersionedValue read = readFromServer ? client.getVersioned(key) : client.readVersioned(key);
+		readVersions.putIfAbsent(key, read.getVersion());
+		return read.getValue();
+	}
+
+	/**
+	 * Sets a key when the transaction commits
+	 *
+	 * @param key   key to set
+	 * @param value value to store
+	 * @throws NullPointerException if key or value is null
+	 */
+	public void set(String key, String value) {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		writes.put(key, value);
+	}
+
+	/**
+	 * @return true if the transaction committed, false if a key it read was written by someone else first
+	 */
+	boolean commit() throws RemoteException {
+		if (writes.isEmpty() && readVersions.isEmpty())
+			return true;
+		return client.commitOptimisticTransaction(writes, readVersions);
+	}
+}
@@ -0,0 +1,259 @@
+package edu.gmu.cs475;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded map of keys to values (with their versions) for a partial replica, holding only the keys that are read
+ * most often.
+ * <p>
+ * Entries are kept in least-recently-used order, and a key only gets in by evicting the least recently used entry if
+ * it has been asked for more often than that entry (TinyLFU admission). Frequencies are counted approximately, in a
+ * small sketch that is halved periodically so that keys that were popular a long time ago fade out. This keeps one-off
+ * reads (e.g. a scan) from flushing out the keys that are read over and over.
+ * <p>
+ * The cache can be bounded by number of entries, by (estimated) bytes, or both.
+ */
+public class ReplicaCache {
+
+	// rough cost of an entry beyond its characters: map node, VersionedValue and the two String objects
+	static final int ENTRY_OVERHEAD_BYTES = 96;
+
+	private final long maxEntries;
+	private final long maxBytes;
+
+	// access-ordered, so the eldest entry is the least recently used
+	private final LinkedHashMap<String, VersionedValue> entries = new LinkedHashMap<>(16, .75f, true);
+	private final FrequencySketch sketch;
+	private long bytes;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long rejections;
+
+	/**
+	 * @param maxEntries most entries to hold, or 0 for no limit on the number of entries
+	 * @param maxBytes   most (estimated) bytes of keys and values to hold, or 0 for no limit on size
+	 * @throws IllegalArgumentException if either bound is negative, or both are 0
+	 */
+	public ReplicaCache(long maxEntries, long maxBytes) {
+		if (maxEntries < 0 || maxBytes < 0 || (maxEntries == 0 && maxBytes == 0))
+			throw new IllegalArgumentException();
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		long expectedEntries = maxEntries > 0 ? maxEntries : maxBytes / ENTRY_OVERHEAD_BYTES;
+		this.sketch = new FrequencySketch(expectedEntries);
+	}
+
+	/**
+	 * Looks up a key, counting the lookup as a hit or miss and towards the key's frequency
+	 *
+	 * @return the cached value and version, or null if the key isn't cached
+	 */
+	public synchronized VersionedValue get(String key) {
+		sketch.increment(key);
+		VersionedValue v = entries.get(key);
+		if (v == null)
+			misses++;
+		else
+			hits++;
+		return v;
+	}
+
+	/**
+	 * Offers a key fetched from the server to the cache. If the cache is full, the key is only added if it is asked for
+	 * more often than the entry it would evict.
+	 *
+	 * @return true if the key is now cached
+	 */
+	public synchronized boolean put(String key, VersionedValue value) {
+		long weight = weigh(key, value);
+		if (maxBytes > 0 && weight > maxBytes)
+			return false;
+		VersionedValue old = entries.get(key);
+		if (old != null) {
+			entries.put(key, value);
+			bytes += weight - weigh(key, old);
+		} else {
+			if (isFullFor(weight)) {
+				Map.Entry<String, VersionedValue> victim = entries.entrySet().iterator().next();
+				if (sketch.frequency(key) <= sketch.frequency(victim.getKey())) {
+					rejections++;
+					return false;
+				}
+			}
+			entries.put(key, value);
+			bytes += weight;
+		}
+		evictWhileOver(key);
+		return true;
+	}
+
+	/**
+	 * Updates a key only if it is already cached (e.g. when a write to it commits) at an older version
+	 *
+	 * @return true if the key was cached
+	 */
+	public synchronized boolean replace(String key, VersionedValue value) {
+		VersionedValue old = entries.get(key);
+		if (old == null)
+			return false;
+		if (old.getVersion() >= value.getVersion()) // a later commit of the key is already cached
+			return true;
+		if (maxBytes > 0 && weigh(key, value) > maxBytes) { // too big to keep at all
+			remove(key);
+			return false;
+		}
+		entries.replace(key, value);
+		bytes += weigh(key, value) - weigh(key, old);
+		evictWhileOver(key);
+		return true;
+	}
+
+	/**
+	 * Drops a key from the cache, if it is there
+	 */
+	public synchronized void remove(String key) {
+		VersionedValue old = entries.remove(key);
+		if (old != null)
+			bytes -= weigh(key, old);
+	}
+
+	/**
+	 * Drops every key (the frequencies seen so far are kept)
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * @return number of keys cached
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return estimated bytes used by the cached keys and values
+	 */
+	public synchronized long getWeightBytes() {
+		return bytes;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return fraction of lookups that were hits, or 0 if there haven't been any
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * @return number of entries evicted to make room for others
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @return number of keys not admitted because they were asked for less often than the entry they would evict
+	 */
+	public synchronized long getRejectionCount() {
+		return rejections;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ReplicaCache{size=" + entries.size() + ", bytes=" + bytes + ", hits=" + hits + ", misses=" + misses +
+				", evictions=" + evictions + ", rejections=" + rejections + '}';
+	}
+
+	private boolean isFullFor(long weight) {
+		return (maxEntries > 0 && entries.size() >= maxEntries) || (maxBytes > 0 && bytes + weight > maxBytes);
+	}
+
+	/**
+	 * Evicts least recently used entries (never keep) until the cache is within its bounds
+	 */
+	private void evictWhileOver(String keep) {
+		Iterator<Map.Entry<String, VersionedValue>> it = entries.entrySet().iterator();
+		while ((maxEntries > 0 && entries.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes)) {
+			Map.Entry<String, VersionedValue> victim = it.next();
+			if (victim.getKey().equals(keep))
+				continue;
+			bytes -= weigh(victim.getKey(), victim.getValue());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	private static long weigh(String key, VersionedValue value) {
+		String v = value.getValue();
+		return ENTRY_OVERHEAD_BYTES + 2L * (key.length() + (v == null ? 0 : v.length()));
+	}
+
+	/**
+	 * Count-min sketch of how often each key has been looked up, with 4-bit counters. Every counter is halved once the
+	 * sketch has counted ten times as many lookups as it has counters per row, so frequencies reflect recent lookups.
+	 */
+	static final class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+		private final byte[][] counters;
+		private final int mask;
+		private final int resetAt;
+		private int additions;
+
+		FrequencySketch(long expectedEntries) {
+			int width = Integer.highestOneBit((int) Math.max(16, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+			counters = new byte[DEPTH][width];
+			mask = width - 1;
+			resetAt = 10 * width;
+		}
+
+		void increment(String key) {
+			int h = key.hashCode();
+			for (int i = 0; i < DEPTH; i++) {
+				byte[] row = counters[i];
+				int slot = index(h, i);
+				if (row[slot] < MAX_COUNT)
+					row[slot]++;
+			}
+			if (++additions >= resetAt)
+				halve();
+		}
+
+		int frequency(String key) {
+			int h = key.hashCode();
+			int min = MAX_COUNT;
+			for (int i = 0; i < DEPTH; i++)
+				min = Math.min(min, counters[i][index(h, i)]);
+			return min;
+		}
+
+		private int index(int hash, int row) {
+			int h = hash * SEEDS[row];
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		private void halve() {
+			for (byte[] row : counters)
+				for (int i = 0; i < row.length; i++)
+					row[i] >>= 1;
+			additions /= 2;
+		}
+	}
+}
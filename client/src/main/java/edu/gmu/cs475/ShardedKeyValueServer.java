@@ -0,0 +1,583 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes several KeyValueServers, each owning part of the keyspace (see {@link ShardMap}), look like one server to a
+ * client.
+ * <p>
+ * Calls about one key go to the shard that owns it, listKeys and listDirectory("/") ask every shard, and every other
+ * listDirectory only asks the shard owning that directory. Locks and transactions that span shards are coordinated
+ * here:
+ * <ul>
+ * <li>lockKeys locks each shard's keys in one call per shard, always in shard order, so concurrent callers can't
+ * deadlock; the lease it returns stands for the leases from every shard.</li>
+ * <li>Transaction IDs handed out here stand for a transaction on each shard it writes to, started on first use.
+ * issueCommitTransaction runs a two-phase commit over them, with the router as coordinator: first every shard
+ * prepares its part (prepareTransaction), which has its replicas vote in any commit mode and keeps the reaper from
+ * aborting it. If every shard votes yes, the transaction is committed, and the router sends the commit to each shard
+ * until it has been applied there, retrying a shard that fails (its log failed, or its leader is down) until it
+ * succeeds; otherwise it is aborted on every shard the same way. Either way, no shard is left with a different
+ * outcome than the others. A shard that is a replicated group loses the transactions in flight on it, prepared ones
+ * included, when its leader changes, so a decision can't reach one that was prepared there.</li>
+ * </ul>
+ * Each shard must have been started with its own shard number (KeyValueServer.setShard), so that transaction IDs from
+ * different shards never collide at the client's replica; registering checks this.
+ * <p>
+ * A router belongs to a single client (it keeps that client's bootstrap state). Asynchronous calls are run on a
+ * thread pool, like for any other server that isn't reached over the binary transport.
+ */
+public class ShardedKeyValueServer implements IKeyValueServer, Closeable {
+
+	private final IKeyValueServer[] shards;
+	private final ShardMap shardMap;
+
+	// handed out by lockKeys, standing for one lease per shard (0 where the shard had no keys); never 0
+	private final AtomicLong nextLease = new AtomicLong(1);
+	private final ConcurrentHashMap<Long, long[]> leases = new ConcurrentHashMap<>();
+
+	// handed out by startNewTransaction, standing for one transaction per shard written to
+	private final AtomicLong nextTransaction = new AtomicLong(1);
+	private final ConcurrentHashMap<Long, CrossShardTransaction> transactions = new ConcurrentHashMap<>();
+
+	// how long to wait before sending a commit or abort again to a shard that failed to apply it, doubling each time
+	static final long DECISION_RETRY_MIN_MILLIS = 10;
+	static final long DECISION_RETRY_MAX_MILLIS = 1000;
+
+	// first chunk from each shard, kept until the bootstrap reaches that shard, and each shard's bootstrap version
+	private BootstrapChunk[] pendingChunks;
+	private long[] bootstrapVersions;
+
+	/**
+	 * @param shards one server per shard, in shard number order
+	 * @throws IllegalArgumentException if there are no shards
+	 */
+	public ShardedKeyValueServer(List<? extends IKeyValueServer> shards) {
+		if (shards.isEmpty())
+			throw new IllegalArgumentException("No shards");
+		this.shards = shards.toArray(new IKeyValueServer[0]);
+		this.shardMap = new ShardMap(shards.size());
+	}
+
+	/**
+	 * Connects to every shard
+	 *
+	 * @param addresses host:port of each shard, in shard number order
+	 * @param transport how to reach them
+	 * @throws UncheckedIOException if a shard can't be found
+	 */
+	public static ShardedKeyValueServer connect(List<String> addresses, Transport transport) {
+		List<IKeyValueServer> servers = new ArrayList<>();
+		for (String address : addresses) {
+			int colon = address.lastIndexOf(':');
+			String host = address.substring(0, colon);
+			int port = Integer.parseInt(address.substring(colon + 1));
+			if (transport == Transport.BINARY) {
+				servers.add(new BinaryKeyValueServerStub(host, port));
+				continue;
+			}
+			try {
+				servers.add((IKeyValueServer) LocateRegistry.getRegistry(host, port).lookup(IKeyValueServer.RMI_NAME));
+			} catch (Exception e) {
+				throw new UncheckedIOException(new RemoteException("Can't reach shard at " + address, e));
+			}
+		}
+		return new ShardedKeyValueServer(servers);
+	}
+
+	/**
+	 * @return the server owning key (or a directory other than /)
+	 */
+	public IKeyValueServer shardFor(String key) {
+		return shards[shardMap.shardFor(key)];
+	}
+
+	/**
+	 * @return number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * @return the largest version committed on the shard owning key (see IKeyValueServer.getLastCommittedXid)
+	 */
+	public long getLastCommittedXid(String key) throws RemoteException {
+		return shardFor(key).getLastCommittedXid();
+	}
+
+	/**
+	 * @return the largest version committed on each shard, by shard number (0 for a shard with no commits yet)
+	 */
+	public long[] getLastCommittedXids() throws RemoteException {
+		long[] ret = new long[shards.length];
+		for (int shard = 0; shard < shards.length; shard++)
+			ret[shard] = shards[shard].getLastCommittedXid();
+		return ret;
+	}
+
+	/**
+	 * @return the version each shard's bootstrap was taken at, by shard, or null if registerClientStreaming hasn't
+	 * been called
+	 */
+	public synchronized long[] getBootstrapVersions() {
+		return bootstrapVersions == null ? null : bootstrapVersions.clone();
+	}
+
+	@Override
+	public String get(String key) throws RemoteException {
+		return shardFor(key).get(key);
+	}
+
+	@Override
+	public Set<String> listKeys() throws RemoteException {
+		Set<String> ret = new HashSet<>();
+		for (IKeyValueServer shard : shards)
+			ret.addAll(shard.listKeys());
+		return ret;
+	}
+
+	@Override
+	public void set(String key, String value) throws IOException {
+		shardFor(key).set(key, value);
+	}
+
+	@Override
+	public Set<String> listDirectory(String directory) throws RemoteException {
+		if (ShardMap.routingKey(directory) != null)
+			return shardFor(directory).listDirectory(directory);
+		Set<String> ret = new HashSet<>();
+		for (IKeyValueServer shard : shards)
+			ret.addAll(shard.listDirectory(directory));
+		return ret;
+	}
+
+	@Override
+	public long lockKey(String name) throws RemoteException {
+		return shardFor(name).lockKey(name);
+	}
+
+	@Override
+	public void unLockKey(String name, long stamp) throws RemoteException {
+		shardFor(name).unLockKey(name, stamp);
+	}
+
+	@Override
+	public long lockKeys(SortedSet<String> names) throws RemoteException {
+		Map<Integer, TreeSet<String>> byShard = partition(names);
+		long[] shardLeases = new long[shards.length];
+		try {
+			for (int shard = 0; shard < shards.length; shard++) {
+				TreeSet<String> keys = byShard.get(shard);
+				if (keys != null)
+					shardLeases[shard] = shards[shard].lockKeys(keys);
+			}
+		} catch (RemoteException | RuntimeException e) {
+			unlockAll(shardLeases);
+			throw e;
+		}
+		long lease = nextLease.getAndIncrement();
+		leases.put(lease, shardLeases);
+		return lease;
+	}
+
+	@Override
+	public void unlockKeys(long lease) throws RemoteException {
+		long[] shardLeases = leases.remove(lease);
+		if (shardLeases == null)
+			throw new IllegalMonitorStateException("No lease " + lease);
+		unlockAll(shardLeases);
+	}
+
+	private void unlockAll(long[] shardLeases) throws RemoteException {
+		RemoteException failure = null;
+		for (int shard = shards.length - 1; shard >= 0; shard--) {
+			if (shardLeases[shard] == 0)
+				continue;
+			try {
+				shards[shard].unlockKeys(shardLeases[shard]);
+			} catch (RemoteException e) {
+				failure = e; // still release the other shards' locks
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Hands out an ID standing for a transaction on each shard it will write to; nothing is sent to the shards yet
+	 */
+	@Override
+	public long startNewTransaction() {
+		return nextTransaction.getAndIncrement();
+	}
+
+	/**
+	 * Like startNewTransaction, with no round trip at all
+	 */
+	@Override
+	public long leaseTransactionIds(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("Can't lease " + count + " transaction IDs");
+		return nextTransaction.getAndAdd(count);
+	}
+
+	@Override
+	public boolean setInTransaction(String key, String value, long xid) throws RemoteException {
+		CrossShardTransaction txn = transaction(xid);
+		int shard = shardMap.shardFor(key);
+		return txn.vote(shards[shard].setInTransaction(key, value, txn.xidOn(shard)));
+	}
+
+	@Override
+	public boolean setManyInTransaction(HashMap<String, String> values, long xid) throws RemoteException {
+		CrossShardTransaction txn = transaction(xid);
+		Map<Integer, HashMap<String, String>> byShard = new HashMap<>();
+		for (Map.Entry<String, String> e : values.entrySet())
+			byShard.computeIfAbsent(shardMap.shardFor(e.getKey()), s -> new HashMap<>()).put(e.getKey(), e.getValue());
+		for (Map.Entry<Integer, HashMap<String, String>> part : byShard.entrySet()) {
+			int shard = part.getKey();
+			if (txn.vote(shards[shard].setManyInTransaction(part.getValue(), txn.xidOn(shard))) == false)
+				return false; // one no is enough to abort
+		}
+		return true;
+	}
+
+	/**
+	 * First phase of the commit: prepares the transaction on every shard it wrote to, in shard order, stopping at the
+	 * first that votes no (see KeyValueServer.prepareTransaction). issueCommitTransaction calls this itself.
+	 *
+	 * @return true if every shard voted yes; false if one refused (now or when it was written to), in which case the
+	 * transaction should be aborted
+	 * @throws RemoteException if a shard failed to vote, which counts as a no
+	 */
+	@Override
+	public boolean prepareTransaction(long xid) throws RemoteException {
+		CrossShardTransaction txn = transactions.get(xid);
+		return txn != null && prepare(txn);
+	}
+
+	private boolean prepare(CrossShardTransaction txn) throws RemoteException {
+		if (txn.refused)
+			return false;
+		for (int shard = 0; shard < shards.length; shard++) {
+			long shardXid = txn.started(shard);
+			if (shardXid != 0 && txn.vote(shards[shard].prepareTransaction(shardXid)) == false)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Prepares the transaction on every shard it wrote to, then commits it on all of them if they all voted yes, or
+	 * aborts it on all of them if not. Returns (or throws) only once every shard has applied the decision.
+	 *
+	 * @throws RemoteException if a shard voted no or failed to vote (the transaction is aborted everywhere), or if
+	 *                         interrupted before every shard had the decision (the message says which don't)
+	 */
+	@Override
+	public void issueCommitTransaction(long xid) throws RemoteException {
+		CrossShardTransaction txn = transactions.remove(xid);
+		if (txn == null)
+			return; // never wrote anything
+		boolean prepared;
+		try {
+			prepared = prepare(txn);
+		} catch (RemoteException | RuntimeException e) {
+			decide(xid, txn, false);
+			throw new RemoteException("A shard failed to prepare transaction " + xid + "; aborted on every shard", e);
+		}
+		if (prepared == false) {
+			decide(xid, txn, false);
+			throw new RemoteException("A shard refused transaction " + xid + "; aborted on every shard");
+		}
+		decide(xid, txn, true);
+	}
+
+	/**
+	 * Aborts on every shard the transaction wrote to, retrying those that fail until they have
+	 */
+	@Override
+	public void issueAbortTransaction(long xid) throws RemoteException {
+		CrossShardTransaction txn = transactions.remove(xid);
+		if (txn != null)
+			decide(xid, txn, false);
+	}
+
+	/**
+	 * Sends the decision to every shard the transaction wrote to, then again to those that failed, backing off between
+	 * rounds, until each has applied it. Committing or aborting a transaction a shard already finished does nothing
+	 * there, so a shard that applied a decision but failed to answer is safe to ask again.
+	 *
+	 * @throws RemoteException if interrupted before every shard had the decision
+	 */
+	private void decide(long xid, CrossShardTransaction txn, boolean commit) throws RemoteException {
+		List<Integer> pending = new ArrayList<>();
+		for (int shard = 0; shard < shards.length; shard++)
+			if (txn.started(shard) != 0)
+				pending.add(shard);
+		String decision = commit ? "commit" : "abort";
+		long backoff = DECISION_RETRY_MIN_MILLIS;
+		while (true) {
+			RemoteException failure = null;
+			for (Iterator<Integer> it = pending.iterator(); it.hasNext(); ) {
+				int shard = it.next();
+				try {
+					if (commit)
+						shards[shard].issueCommitTransaction(txn.started(shard));
+					else
+						shards[shard].issueAbortTransaction(txn.started(shard));
+					it.remove();
+				} catch (RemoteException e) {
+					failure = e;
+				}
+			}
+			if (pending.isEmpty())
+				return;
+			System.err.println("Retrying " + decision + " of transaction " + xid + " on shards " + pending + ": " + failure);
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted with transaction " + xid + " still to " + decision + " on shards " + pending, failure);
+			}
+			backoff = Math.min(backoff * 2, DECISION_RETRY_MAX_MILLIS);
+		}
+	}
+
+	private CrossShardTransaction transaction(long xid) {
+		CrossShardTransaction txn = transactions.get(xid);
+		if (txn == null)
+			txn = transactions.computeIfAbsent(xid, id -> new CrossShardTransaction());
+		return txn;
+	}
+
+	@Override
+	public VersionedValue getVersioned(String key) throws RemoteException {
+		return shardFor(key).getVersioned(key);
+	}
+
+	@Override
+	public boolean compareAndSet(String key, long expectedVersion, String value) throws RemoteException {
+		return shardFor(key).compareAndSet(key, expectedVersion, value);
+	}
+
+	/**
+	 * Commits on the owning shard in one call if every key is on the same shard. Otherwise locks every key, checks
+	 * that none of the reads have been written since, and writes with a two-phase commit across the shards.
+	 */
+	@Override
+	public boolean commitOptimisticTransaction(HashMap<String, String> writes, HashMap<String, Long> readVersions) throws RemoteException {
+		TreeSet<String> keys = new TreeSet<>(readVersions.keySet());
+		keys.addAll(writes.keySet());
+		if (keys.isEmpty())
+			return true;
+		Map<Integer, TreeSet<String>> byShard = partition(keys);
+		if (byShard.size() == 1)
+			return shards[byShard.keySet().iterator().next()].commitOptimisticTransaction(writes, readVersions);
+
+		long lease = lockKeys(keys);
+		try {
+			for (Map.Entry<String, Long> read : readVersions.entrySet())
+				if (getVersioned(read.getKey()).getVersion() != read.getValue())
+					return false;
+			if (writes.isEmpty())
+				return true;
+			long xid = startNewTransaction();
+			boolean prepared;
+			try {
+				prepared = setManyInTransaction(writes, xid);
+			} catch (RemoteException | RuntimeException e) {
+				issueAbortTransaction(xid);
+				throw e;
+			}
+			if (prepared == false) {
+				issueAbortTransaction(xid);
+				throw new RemoteException("A replica refused the writes");
+			}
+			issueCommitTransaction(xid);
+			return true;
+		} finally {
+			unlockKeys(lease);
+		}
+	}
+
+	/**
+	 * Each shard numbers its commits separately (a version's shard is in its top bits, see ShardMap.shardOf), so there
+	 * is no single latest commit. Returns the largest of the shards' (see getLastCommittedXids), the same way a
+	 * replica's getAppliedXid reports the largest version it has from any shard; as a minXid it only orders reads of
+	 * the keys of the shard it came from. Use getLastCommittedXid(String) for the shard owning a key.
+	 */
+	@Override
+	public long getLastCommittedXid() throws RemoteException {
+		long ret = 0;
+		for (long xid : getLastCommittedXids())
+			ret = Math.max(ret, xid);
+		return ret;
+	}
+
+	/**
+	 * @return 0: the shards as a whole aren't a replicated group (though each shard may be one)
+	 */
+	@Override
+	public int getLeader() {
+		return 0;
+	}
+
+	/**
+	 * Registers with every shard, returning each one's full copy merged together
+	 */
+	@Override
+	public HashMap<String, String> registerClient(String hostname, int portNumber) throws RemoteException {
+		HashMap<String, String> ret = new HashMap<>();
+		for (IKeyValueServer shard : shards)
+			ret.putAll(shard.registerClient(hostname, portNumber));
+		return ret;
+	}
+
+	/**
+	 * Registers with every shard, then streams the shards' keys one after the other: a chunk's version says which
+	 * shard it came from, and the last chunk of one shard also carries the first chunk of the next.
+	 *
+	 * @throws RemoteException if a shard wasn't started with its shard number
+	 */
+	@Override
+	public synchronized BootstrapChunk registerClientStreaming(String hostname, int portNumber, int maxEntries) throws RemoteException {
+		BootstrapChunk[] first = new BootstrapChunk[shards.length];
+		long[] versions = new long[shards.length];
+		for (int shard = 0; shard < shards.length; shard++) {
+			first[shard] = shards[shard].registerClientStreaming(hostname, portNumber, maxEntries);
+			versions[shard] = first[shard].getVersion();
+			if (ShardMap.shardOf(versions[shard]) != shard) {
+				for (int registered = 0; registered <= shard; registered++)
+					shards[registered].cacheDisconnect(hostname, portNumber);
+				throw new RemoteException("Server " + shard + " isn't running as shard " + shard + " (see -Dkvstore.shard)");
+			}
+		}
+		pendingChunks = first;
+		bootstrapVersions = versions;
+		return continueFrom(0, first[0]);
+	}
+
+	@Override
+	public synchronized BootstrapChunk getBootstrapChunk(long version, String afterKey, int maxEntries) throws RemoteException {
+		int shard = ShardMap.shardOf(version);
+		if (shard >= shards.length)
+			throw new IllegalArgumentException("No shard for version " + version);
+		return continueFrom(shard, shards[shard].getBootstrapChunk(version, afterKey, maxEntries));
+	}
+
+	/**
+	 * If chunk is a shard's last, adds the first chunk of the next shard (and so on), so the caller only stops once
+	 * every shard is done
+	 */
+	private BootstrapChunk continueFrom(int shard, BootstrapChunk chunk) {
+		HashMap<String, String> entries = new HashMap<>(chunk.getEntries());
+		while (chunk.isLast() && shard + 1 < shards.length) {
+			shard++;
+			chunk = pendingChunks[shard];
+			pendingChunks[shard] = null;
+			entries.putAll(chunk.getEntries());
+		}
+		return new BootstrapChunk(chunk.getVersion(), entries, chunk.getLastKey());
+	}
+
+	@Override
+	public void cacheDisconnect(String hostname, int portNumber) throws RemoteException {
+		for (IKeyValueServer shard : shards)
+			shard.cacheDisconnect(hostname, portNumber);
+	}
+
+	/**
+	 * @return every shard's metrics, one after the other, each under a comment naming the shard
+	 */
+	@Override
+	public String getMetrics() throws RemoteException {
+		StringBuilder ret = new StringBuilder();
+		for (int shard = 0; shard < shards.length; shard++)
+			ret.append("# shard ").append(shard).append('\n').append(shards[shard].getMetrics());
+		return ret.toString();
+	}
+
+	@Override
+	public void setContentionProfiling(int sampleEvery) throws RemoteException {
+		for (IKeyValueServer shard : shards)
+			shard.setContentionProfiling(sampleEvery);
+	}
+
+	@Override
+	public String getContentionProfile() throws RemoteException {
+		StringBuilder ret = new StringBuilder();
+		for (int shard = 0; shard < shards.length; shard++)
+			ret.append("Shard ").append(shard).append(":\n").append(shards[shard].getContentionProfile());
+		return ret.toString();
+	}
+
+	/**
+	 * Closes the connections to shards reached over the binary transport
+	 */
+	@Override
+	public void close() {
+		for (IKeyValueServer shard : shards) {
+			if (shard instanceof Closeable) {
+				try {
+					((Closeable) shard).close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private Map<Integer, TreeSet<String>> partition(Set<String> keys) {
+		Map<Integer, TreeSet<String>> byShard = new HashMap<>();
+		for (String key : keys)
+			byShard.computeIfAbsent(shardMap.shardFor(key), s -> new TreeSet<>()).add(key);
+		return byShard;
+	}
+
+	/**
+	 * The transaction on each shard that a cross-shard transaction has written to, and whether any of them voted no
+	 */
+	private final class CrossShardTransaction {
+		private final long[] shardXids = new long[shards.length];
+		volatile boolean refused;
+
+		/**
+		 * @return the transaction on the given shard, starting it if this is its first write there
+		 */
+		synchronized long xidOn(int shard) throws RemoteException {
+			if (shardXids[shard] == 0)
+				shardXids[shard] = shards[shard].startNewTransaction();
+			return shardXids[shard];
+		}
+
+		/**
+		 * @return the transaction on the given shard, or 0 if it was never started
+		 */
+		synchronized long started(int shard) {
+			return shardXids[shard];
+		}
+
+		boolean vote(boolean yes) {
+			if (yes == false)
+				refused = true;
+			return yes;
+		}
+	}
+}
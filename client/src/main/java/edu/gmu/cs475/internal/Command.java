@@ -1,11 +1,14 @@
 package edu.gmu.cs475.internal;
 
 import edu.gmu.cs475.AbstractKeyValueClient;
+import edu.gmu.cs475.FailoverKeyValueServer;
 import edu.gmu.cs475.KeyValueClient;
+import edu.gmu.cs475.Transport;
 import org.jline.utils.AttributedString;
 import org.jline.utils.AttributedStyle;
 import org.springframework.shell.standard.ShellComponent;
 import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
 
 import java.io.IOException;
 import java.nio.file.DirectoryNotEmptyException;
@@ -18,7 +21,18 @@ public class Command {
 	static AbstractKeyValueClient service;
 
 	public Command() {
+		if (Main.shards != null) {
+			service = new KeyValueClient(Main.shards, Transport.fromSystemProperty());
+			service.getMetricsRegistry().registerMBean("edu.gmu.cs475:type=KeyValueClient,shards=" + Main.shards.size());
+			return;
+		}
+		if (Main.group != null) {
+			service = new KeyValueClient(FailoverKeyValueServer.connect(Main.group, Transport.fromSystemProperty()), Transport.fromSystemProperty());
+			service.getMetricsRegistry().registerMBean("edu.gmu.cs475:type=KeyValueClient,group=" + Main.group.size());
+			return;
+		}
 		service = new KeyValueClient("127.0.0.1", Main.port);
+		service.getMetricsRegistry().registerMBean("edu.gmu.cs475:type=KeyValueClient,server=" + Main.port);
 	}
 
 
@@ -71,6 +85,37 @@ public class Command {
 		}
 	}
 
+	@ShellMethod("Show this client's and the server's metrics")
+	public CharSequence metrics() {
+		try {
+			return service.getMetrics() + service.getServerMetrics();
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return new AttributedString("Error: " + e.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		}
+	}
+
+	@ShellMethod("Start profiling the server's hot keys and lock contention, sampling 1 in sampleEvery reads/locks (0 stops)")
+	public CharSequence profileStart(@ShellOption(defaultValue = "1") int sampleEvery) {
+		try {
+			service.setContentionProfiling(sampleEvery);
+			return null;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return new AttributedString("Error: " + e.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		}
+	}
+
+	@ShellMethod("Show the server's hottest keys and most contended locks")
+	public CharSequence profile() {
+		try {
+			return service.getContentionProfile();
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return new AttributedString("Error: " + e.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		}
+	}
+
 	@ShellMethod("Update all keys in a directory to have the given content")
 	public CharSequence putAll(String directory, String content) {
 		try {
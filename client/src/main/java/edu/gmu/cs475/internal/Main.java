@@ -7,16 +7,28 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.shell.jline.PromptProvider;
 
+import java.util.Arrays;
+import java.util.List;
+
 @SpringBootApplication
 public class Main {
 	public static int port;
+	// host:port of each shard, if the store is split over several servers; null otherwise
+	public static List<String> shards;
+	// host:port of each member, if the store is served by a replicated group of servers; null otherwise
+	public static List<String> group;
 
 	public static void main(String[] args) {
 		if (args.length != 1) {
-			System.err.println("Error: Usage: java -jar client.jar <serverport>");
+			System.err.println("Error: Usage: java [-Dkvstore.transport=rmi|binary] -jar client.jar <serverport>|<host:port>,<host:port>...|<host:port>+<host:port>...");
 			return;
 		}
-		port = Integer.valueOf(args[0]);
+		if (args[0].indexOf('+') >= 0)
+			group = Arrays.asList(args[0].split("\\+"));
+		else if (args[0].indexOf(':') >= 0)
+			shards = Arrays.asList(args[0].split(","));
+		else
+			port = Integer.valueOf(args[0]);
 		SpringApplication.run(Main.class, args);
 		Command.service.cleanup();
 	}
@@ -41,14 +41,14 @@ public class P1Tests {
 		IKeyValueServer server = mock(IKeyValueServer.class);
 		Capture<String> registeredHostName = Capture.newInstance();
 		Capture<Integer> registeredPort = Capture.newInstance();
-		expect(server.registerClient(capture(registeredHostName), captureInt(registeredPort))).andAnswer(new IAnswer<HashMap<String, String>>() {
+		expect(server.registerClientStreaming(capture(registeredHostName), captureInt(registeredPort), anyInt())).andAnswer(new IAnswer<BootstrapChunk>() {
 
 			@Override
-			public HashMap<String, String> answer() throws Throwable {
+			public BootstrapChunk answer() throws Throwable {
 				HashMap<String, String> ret = new HashMap<String, String>();
 				for (int i = 0; i < N_FILES; i++)
 					ret.put("file" + i, "Contents " + i);
-				return ret;
+				return new BootstrapChunk(1L, ret, null);
 			}
 		}).once();
 		server.cacheDisconnect(CaptureMatcher.matchesCaptured(registeredHostName), CaptureMatcher.matchesCapturedInt(registeredPort));
@@ -69,14 +69,14 @@ public class P1Tests {
 		IKeyValueServer server = mock(IKeyValueServer.class);
 		Capture<String> registeredHostName = Capture.newInstance();
 		Capture<Integer> registeredPort = Capture.newInstance();
-		expect(server.registerClient(capture(registeredHostName), captureInt(registeredPort))).andAnswer(new IAnswer<HashMap<String, String>>() {
+		expect(server.registerClientStreaming(capture(registeredHostName), captureInt(registeredPort), anyInt())).andAnswer(new IAnswer<BootstrapChunk>() {
 
 			@Override
-			public HashMap<String, String> answer() throws Throwable {
+			public BootstrapChunk answer() throws Throwable {
 				HashMap<String, String> ret = new HashMap<String, String>();
 				for (int i = 0; i < N_FILES; i++)
 					ret.put("file" + i, "Contents " + i);
-				return ret;
+				return new BootstrapChunk(1L, ret, null);
 			}
 		}).once();
 		server.cacheDisconnect(CaptureMatcher.matchesCaptured(registeredHostName), CaptureMatcher.matchesCapturedInt(registeredPort));
@@ -96,6 +96,34 @@ public class P1Tests {
 		}
 	}
 
+	@Test
+	public void testClientCommitsEveryWriteInTransaction() throws Exception {
+		IKeyValueServer server = mock(IKeyValueServer.class);
+		Capture<String> registeredHostName = Capture.newInstance();
+		Capture<Integer> registeredPort = Capture.newInstance();
+		expect(server.registerClientStreaming(capture(registeredHostName), captureInt(registeredPort), anyInt())).andReturn(new BootstrapChunk(1L, new HashMap<String, String>(), null)).once();
+		server.cacheDisconnect(CaptureMatcher.matchesCaptured(registeredHostName), CaptureMatcher.matchesCapturedInt(registeredPort));
+		expectLastCall().once();
+		replay(server);
+		AbstractKeyValueClient fileManager = new KeyValueClient(server);
+		try {
+			for (int i = 0; i < N_FILES; i++)
+				assertTrue(fileManager.innerWriteKey("file" + i, "committed " + i, 5));
+			for (int i = 0; i < N_FILES; i++)
+				assertTrue(fileManager.innerWriteKey("file" + i, "aborted " + i, 6));
+			for (int i = 0; i < N_FILES; i++)
+				assertNull(fileManager.get("file" + i));
+			fileManager.commitTransaction(5);
+			fileManager.abortTransaction(6);
+			fileManager.commitTransaction(6);
+			for (int i = 0; i < N_FILES; i++)
+				assertEquals("committed " + i, fileManager.get("file" + i));
+		} finally {
+			fileManager.cleanup();
+			verify(server);
+		}
+	}
+
 	static ArrayList<String> populateServer(KeyValueServer server)
 	{
 		ArrayList<String> ret = new ArrayList<>();
@@ -12,6 +12,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -212,4 +214,279 @@ public class P2Tests {
 			writerWhoAborts.cleanup();
 		}
 	}
+
+	@Test
+	public void testClientPipelinesAsyncWritesOverBinaryTransport() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		NioRpcServer endpoint = new NioRpcServer(0, new BinaryKeyValueServerEndpoint(server));
+		KeyValueClient client = new KeyValueClient("127.0.0.1", endpoint.getPort(), Transport.BINARY);
+		try {
+			List<CompletableFuture<Void>> writes = new ArrayList<>();
+			for (int i = 0; i < 500; i++)
+				writes.add(client.setAsync("/async/key" + i, "value" + i));
+			CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+			for (int i = 0; i < 500; i++) {
+				assertEquals("value" + i, server.get("/async/key" + i));
+				assertEquals("value" + i, client.get("/async/key" + i));
+			}
+			long xid = client.startNewTransactionAsync().get();
+			assertTrue(client.setInTransactionAsync("/async/key0", "committed", xid).get());
+			client.issueCommitTransactionAsync(xid).get();
+			assertEquals("committed", server.get("/async/key0"));
+		} finally {
+			client.cleanup();
+			endpoint.close();
+		}
+	}
+
+	@Test
+	public void testBinaryTransportKeepsServerRuntimeExceptions() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		NioRpcServer endpoint = new NioRpcServer(0, new BinaryKeyValueServerEndpoint(server));
+		BinaryKeyValueServerStub stub = new BinaryKeyValueServerStub("127.0.0.1", endpoint.getPort());
+		try {
+			try {
+				stub.get(null);
+				fail("Expected NullPointerException");
+			} catch (NullPointerException e) {
+			}
+			try {
+				stub.getAsync(null).join();
+				fail("Expected NullPointerException");
+			} catch (CompletionException e) {
+				assertTrue(e.getCause() instanceof NullPointerException);
+			}
+			long stamp = stub.lockKey("/locked");
+			try {
+				stub.unLockKey("/locked", stamp + 1);
+				fail("Expected IllegalMonitorStateException");
+			} catch (IllegalMonitorStateException e) {
+			}
+			stub.unLockKey("/locked", stamp);
+		} finally {
+			stub.close();
+			endpoint.close();
+		}
+	}
+
+	@Test
+	public void testClientOptimisticTransactionsRetryOnConflict() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		server.set("/counter", "0");
+		AbstractKeyValueClient[] clients = {new KeyValueClient(server), new KeyValueClient(server)};
+		try {
+			//Read-modify-write of the same key from both replicas at once: no increment may be lost
+			Thread[] threads = new Thread[4];
+			AtomicInteger failures = new AtomicInteger();
+			for (int i = 0; i < threads.length; i++) {
+				AbstractKeyValueClient client = clients[i % clients.length];
+				threads[i] = new Thread(() -> {
+					try {
+						for (int n = 0; n < 50; n++) {
+							boolean committed = client.runTransaction(txn ->
+									txn.set("/counter", String.valueOf(Integer.parseInt(txn.get("/counter")) + 1)));
+							if (!committed)
+								failures.incrementAndGet();
+						}
+					} catch (RemoteException e) {
+						e.printStackTrace();
+						failures.incrementAndGet();
+					}
+				});
+				threads[i].start();
+			}
+			for (Thread t : threads)
+				t.join();
+			assertEquals(0, failures.get());
+			assertEquals(String.valueOf(threads.length * 50), server.get("/counter"));
+			for (AbstractKeyValueClient client : clients)
+				assertEquals(String.valueOf(threads.length * 50), client.get("/counter"));
+
+			//A stale read makes the commit fail without applying any of its writes
+			VersionedValue stale = server.getVersioned("/counter");
+			server.set("/counter", "reset");
+			HashMap<String, String> writes = new HashMap<>();
+			writes.put("/other", "x");
+			HashMap<String, Long> reads = new HashMap<>();
+			reads.put("/counter", stale.getVersion());
+			assertFalse(server.commitOptimisticTransaction(writes, reads));
+			assertNull(server.get("/other"));
+		} finally {
+			for (AbstractKeyValueClient client : clients)
+				client.cleanup();
+		}
+	}
+
+	@Test
+	public void testClientBoundedReadsFallBackToServerWhenReplicaIsBehind() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		ArrayList<String> files = populateServer(server);
+		String file = files.get(0);
+		KeyValueClient writer = new KeyValueClient(server);
+		AtomicInteger dropCommits = new AtomicInteger();
+		KeyValueClient lagging = new KeyValueClient(server) {
+			@Override
+			public void commitTransaction(long id, long version) {
+				if (dropCommits.get() == 0)
+					super.commitTransaction(id, version);
+			}
+		};
+		try {
+			long xid = writer.startNewTransaction();
+			writer.setInTransaction(file, "first", xid);
+			writer.issueCommitTransaction(xid);
+			long committed = writer.getLastCommittedXid();
+			assertTrue("The commit's version is taken after its transaction ID", committed > xid);
+			assertEquals(committed, writer.getAppliedXid());
+			assertEquals("first", writer.get(file, committed));
+			assertEquals("first", lagging.get(file, 1, java.util.concurrent.TimeUnit.SECONDS));
+
+			//The lagging replica misses the next commit, so only the bounded reads see it
+			dropCommits.set(1);
+			xid = writer.startNewTransaction();
+			writer.setInTransaction(file, "second", xid);
+			writer.issueCommitTransaction(xid);
+			committed = writer.getLastCommittedXid();
+			assertEquals("first", lagging.get(file));
+			assertEquals("second", lagging.get(file, committed));
+			assertEquals("second", lagging.get(file, 0, java.util.concurrent.TimeUnit.MILLISECONDS));
+			assertEquals("second", writer.get(file, committed));
+		} finally {
+			writer.cleanup();
+			lagging.cleanup();
+		}
+	}
+
+	@Test
+	public void testPrefixIndexListsOnlyKeysUnderThePrefix() {
+		PrefixIndex index = new PrefixIndex();
+		for (String key : Arrays.asList("/", "/di", "/dir", "/dir/", "/dir/a", "/dir/b/c", "/dir2/x", "/dir0", "/e"))
+			index.add(key);
+		assertEquals(new HashSet<>(Arrays.asList("/dir/", "/dir/a", "/dir/b/c")), index.withPrefix("/dir/"));
+		assertEquals(Collections.singleton("/dir2/x"), index.withPrefix("/dir2/"));
+		assertEquals(new HashSet<>(Arrays.asList("/dir", "/dir/", "/dir/a", "/dir/b/c", "/dir2/x", "/dir0")), index.withPrefix("/dir"));
+		assertEquals("Listing / must return every key", 9, index.withPrefix("/").size());
+		assertEquals(9, index.withPrefix("").size());
+		assertEquals(Collections.emptySet(), index.withPrefix("/nothing/"));
+		assertEquals("/dir0", PrefixIndex.prefixEnd("/dir/"));
+
+		index.remove("/dir/a");
+		index.remove("/not-there");
+		assertEquals(new HashSet<>(Arrays.asList("/dir/", "/dir/b/c")), index.withPrefix("/dir/"));
+		try {
+			index.withPrefix(null);
+			fail("A null prefix should be rejected");
+		} catch (NullPointerException expected) {
+		}
+	}
+
+	@Test
+	public void testPrefixIndexHandlesPrefixEndingInMaxChar() {
+		String max = String.valueOf(Character.MAX_VALUE);
+		PrefixIndex index = new PrefixIndex();
+		for (String key : Arrays.asList("/a", "/a" + max, "/a" + max + "x", "/a" + max + max, "/b", max + max))
+			index.add(key);
+		assertEquals("/b", PrefixIndex.prefixEnd("/a" + max));
+		assertEquals("/b", PrefixIndex.prefixEnd("/a" + max + max));
+		assertNull("Nothing sorts after every string of only MAX_VALUE", PrefixIndex.prefixEnd(max + max));
+		assertNull(PrefixIndex.prefixEnd(""));
+		assertEquals(new HashSet<>(Arrays.asList("/a" + max, "/a" + max + "x", "/a" + max + max)), index.withPrefix("/a" + max));
+		assertEquals(Collections.singleton("/a" + max + max), index.withPrefix("/a" + max + max));
+		assertEquals(Collections.singleton(max + max), index.withPrefix(max));
+	}
+
+	@Test
+	public void testPrefixIndexPagesThroughKeysInOrder() {
+		PrefixIndex index = new PrefixIndex();
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 25; i++)
+			keys.add(String.format("/dir/file%02d", i));
+		List<String> shuffled = new ArrayList<>(keys);
+		Collections.shuffle(shuffled, new Random(475));
+		shuffled.forEach(index::add);
+
+		List<String> paged = new ArrayList<>();
+		List<Integer> pageSizes = new ArrayList<>();
+		String after = null;
+		while (true) {
+			List<String> page = index.keysAfter(after, 10);
+			if (page.isEmpty())
+				break;
+			pageSizes.add(page.size());
+			paged.addAll(page);
+			after = page.get(page.size() - 1);
+		}
+		assertEquals(keys, paged);
+		assertEquals(Arrays.asList(10, 10, 5), pageSizes);
+		assertEquals("A key that isn't there starts the page after it", Arrays.asList("/dir/file05", "/dir/file06"),
+				index.keysAfter("/dir/file04x", 2));
+		assertEquals(Collections.emptyList(), index.keysAfter(null, 0));
+	}
+
+	@Test
+	public void testReplicaDirectoryListingFollowsCommitsAndAborts() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		populateServer(server);
+		KeyValueClient replica = new KeyValueClient(server);
+		try {
+			assertEquals(server.listDirectory("/key0/"), replica.listDirectory("/key0/"));
+
+			//Pending writes aren't listed until their transaction commits
+			long xid = server.startNewTransaction();
+			HashMap<String, String> writes = new HashMap<>();
+			writes.put("/new/a", "1");
+			writes.put("/new/b", "2");
+			assertTrue(replica.innerWriteKeys(writes, xid));
+			assertEquals(Collections.emptySet(), replica.listDirectory("/new/"));
+			replica.commitTransaction(xid);
+			assertEquals(writes.keySet(), replica.listDirectory("/new/"));
+
+			//An aborted transaction's keys never appear, and overwriting a key doesn't list it twice
+			xid = server.startNewTransaction();
+			HashMap<String, String> aborted = new HashMap<>();
+			aborted.put("/new/c", "3");
+			aborted.put("/new/a", "overwritten");
+			assertTrue(replica.innerWriteKeys(aborted, xid));
+			replica.abortTransaction(xid);
+			assertEquals(writes.keySet(), replica.listDirectory("/new/"));
+			assertEquals("1", replica.get("/new/a"));
+
+			//The same through the server: a committed transaction is listed, an aborted one isn't
+			xid = server.startNewTransaction();
+			assertTrue(server.setInTransaction("/txn/committed", "x", xid));
+			server.issueCommitTransaction(xid);
+			xid = server.startNewTransaction();
+			assertTrue(server.setInTransaction("/txn/aborted", "y", xid));
+			server.issueAbortTransaction(xid);
+			assertEquals(Collections.singleton("/txn/committed"), replica.listDirectory("/txn/"));
+			assertEquals(server.listDirectory("/txn/"), replica.listDirectory("/txn/"));
+		} finally {
+			replica.cleanup();
+		}
+	}
+
+	@Test
+	public void testPartialReplicaCachesHotKeysAndStaysCurrent() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		ArrayList<String> files = populateServer(server);
+		ReplicaCache cache = new ReplicaCache(5, 0);
+		KeyValueClient partial = new KeyValueClient(server, cache);
+		try {
+			assertEquals(0, cache.size());
+			String hot = files.get(0);
+			for (int i = 0; i < 10; i++)
+				assertEquals(server.get(hot), partial.get(hot));
+			for (String file : files)
+				assertEquals(server.get(file), partial.get(file));
+			assertTrue(cache.size() <= 5);
+			assertTrue("A key read over and over should stay cached", cache.getHitCount() >= 9);
+
+			//Commits reach the cached keys through the usual replica callbacks
+			server.set(hot, "updated");
+			assertEquals("updated", partial.get(hot));
+			assertEquals(server.listDirectory("/key0/"), new HashSet<>(partial.listDirectory("/key0/")));
+		} finally {
+			partial.cleanup();
+		}
+	}
 }
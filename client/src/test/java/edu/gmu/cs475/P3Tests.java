@@ -8,18 +8,33 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.Timeout;
 
+import javax.management.ReflectionException;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static edu.gmu.cs475.P1Tests.populateServer;
 import static org.easymock.EasyMock.*;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -40,23 +55,27 @@ public class P3Tests {
 		mocker.resetToStrict();
 		IKeyValueServer server = mock(IKeyValueServer.class);
 		try {
-			expect(server.registerClient(anyString(), anyInt())).andAnswer(() -> {
+			expect(server.registerClientStreaming(anyString(), anyInt(), anyInt())).andAnswer(() -> {
 				HashMap<String, String> ret = new HashMap<String, String>();
 				for (int i = 0; i < N_FILES; i++)
 					ret.put("/dir/File" + i, "Contents " + i);
 				for (int i = 0; i < N_FILES; i++)
 					ret.put("/dir2/File" + i, "Contents " + i);
-				return ret;
+				return new BootstrapChunk(1L, ret, null);
 			}).once();
+			TreeSet<String> expectedLocks = new TreeSet<String>();
 			for (int i = 0; i < N_FILES; i++)
-				expect(server.lockKey(anyString())).andReturn(40L + i).once();
+				expectedLocks.add("/dir/File" + i);
+			expect(server.lockKeys(eq(expectedLocks))).andReturn(40L).once();
 			expect(server.startNewTransaction()).andReturn(4L).once();
+			HashMap<String, String> expectedWrites = new HashMap<String, String>();
 			for (int i = 0; i < N_FILES; i++)
-				expect(server.setInTransaction(anyString(), eq("foo"), eq(4L))).andReturn(true).once();
+				expectedWrites.put("/dir/File" + i, "foo");
+			expect(server.setManyInTransaction(eq(expectedWrites), eq(4L))).andReturn(true).once();
 			server.issueCommitTransaction(4L);
 			expectLastCall().once();
-			server.unLockKey(anyString(), anyLong());
-			expectLastCall().times(N_FILES);
+			server.unlockKeys(40L);
+			expectLastCall().once();
 
 			server.cacheDisconnect(anyString(), anyInt());
 			expectLastCall().once();
@@ -80,24 +99,21 @@ public class P3Tests {
 		mocker.resetToStrict();
 		IKeyValueServer server = mock(IKeyValueServer.class);
 		try {
-			expect(server.registerClient(anyString(), anyInt())).andAnswer(() -> {
+			expect(server.registerClientStreaming(anyString(), anyInt(), anyInt())).andAnswer(() -> {
 				HashMap<String, String> ret = new HashMap<String, String>();
 				for (int i = 0; i < N_FILES; i++)
 					ret.put("/dir/File" + i, "Contents " + i);
 				for (int i = 0; i < N_FILES; i++)
 					ret.put("/dir2/File" + i, "Contents " + i);
-				return ret;
+				return new BootstrapChunk(1L, ret, null);
 			}).once();
-			for (int i = 0; i < N_FILES; i++)
-				expect(server.lockKey(anyString())).andReturn(40L + i).once();
+			expect(server.lockKeys(anyObject())).andReturn(40L).once();
 			expect(server.startNewTransaction()).andReturn(4L).once();
-			for (int i = 0; i < N_FILES - 1; i++)
-				expect(server.setInTransaction(anyString(), eq("foo"), eq(4L))).andReturn(true).once();
-			expect(server.setInTransaction(anyString(), eq("foo"), eq(4L))).andReturn(false).once();
+			expect(server.setManyInTransaction(anyObject(), eq(4L))).andReturn(false).once();
 			server.issueAbortTransaction(4L);
 			expectLastCall().once();
-			server.unLockKey(anyString(), anyLong());
-			expectLastCall().times(N_FILES);
+			server.unlockKeys(40L);
+			expectLastCall().once();
 
 			server.cacheDisconnect(anyString(), anyInt());
 			expectLastCall().once();
@@ -186,6 +202,1218 @@ public class P3Tests {
 			verify(client);
 	}
 
+	@Test
+	public void testServerSetManySendsOneMessagePerReplicaAndCommits() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		ArrayList<String> files = populateServer(server);
+		IKeyValueReplica[] clients = new IKeyValueReplica[N_REPLICAS];
+		long xid = server.startNewTransaction();
+		String uniqueContent = "testServerSetManySendsOneMessagePerReplicaAndCommits." + System.currentTimeMillis();
+		HashMap<String, String> writes = new HashMap<>();
+		for (String file : files)
+			writes.put(file, uniqueContent + file);
+		for (int i = 0; i < N_REPLICAS; i++) {
+			clients[i] = mock(IKeyValueReplica.class);
+			expect(clients[i].innerWriteKeys(eq(writes), eq(xid))).andReturn(true).once();
+			clients[i].commitTransaction(xid);
+			expectLastCall().once();
+			replay(clients[i]);
+			server.registerClient("foo", 9000 + i, clients[i]);
+		}
+
+		assertTrue(server.setManyInTransaction(writes, xid));
+		server.issueCommitTransaction(xid);
+
+		for (String file : files)
+			assertEquals(uniqueContent + file, server.get(file));
+		for (IKeyValueReplica client : clients)
+			verify(client);
+	}
+
+	@Test
+	public void testServerLockKeysHoldsEveryKeyUntilUnlocked() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		ArrayList<String> files = populateServer(server);
+		long lease = server.lockKeys(new TreeSet<>(files));
+		AtomicInteger acquired = new AtomicInteger();
+		Thread t = new Thread(() -> {
+			long stamp = server.lockKey(files.get(files.size() - 1));
+			acquired.incrementAndGet();
+			server.unLockKey(files.get(files.size() - 1), stamp);
+		});
+		t.start();
+		t.join(200);
+		assertEquals("lockKey should block while the key is held under a lockKeys lease", 0, acquired.get());
+		server.unlockKeys(lease);
+		t.join();
+		assertEquals(1, acquired.get());
+		assertEquals(0, server.getLockManager().getLiveLockCount());
+	}
+
+	@Test
+	public void testServerReclaimsSingleKeyLocksAndCountsContention() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		KeyLockManager locks = server.getLockManager();
+
+		//Uncontended: counted as acquisitions only
+		server.unLockKey("/solo", server.lockKey("/solo"));
+		assertEquals(1, locks.getAcquisitionCount());
+		assertEquals(0, locks.getContendedAcquisitionCount());
+		assertEquals(0, locks.getLiveLockCount());
+
+		//Contended: a second client waits for the key, and its acquisition is counted as contended
+		long stamp = server.lockKey("/hot");
+		Thread waiter = new Thread(() -> server.unLockKey("/hot", server.lockKey("/hot")));
+		waiter.start();
+		while (locks.getContendedAcquisitionCount() == 0 && waiter.isAlive())
+			Thread.sleep(1);
+		assertEquals(1, locks.getContendedAcquisitionCount());
+		assertEquals("The key has one lock, however many wait for it", 1, locks.getLiveLockCount());
+		server.unLockKey("/hot", stamp);
+		waiter.join();
+		assertEquals(3, locks.getAcquisitionCount());
+		assertEquals(0, locks.getLiveLockCount());
+
+		//Churn over shared and one-off keys from many threads: every lock is reclaimed once unlocked
+		Thread[] threads = new Thread[8];
+		int cycles = 5000;
+		for (int i = 0; i < threads.length; i++) {
+			int thread = i;
+			Random random = new Random(i);
+			threads[i] = new Thread(() -> {
+				for (int round = 0; round < cycles; round++) {
+					String key = round % 2 == 0 ? "/shared" + random.nextInt(8) : "/thread" + thread + "/key" + round;
+					server.unLockKey(key, server.lockKey(key));
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, locks.getLiveLockCount());
+		assertEquals(3 + threads.length * cycles, locks.getAcquisitionCount());
+		assertTrue(locks.getContendedAcquisitionCount() >= 1);
+	}
+
+	@Test
+	public void testServerCompareAndSetOnlyAppliesAtExpectedVersion() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		ArrayList<String> files = populateServer(server);
+		KeyValueClient replica = new KeyValueClient(server);
+		try {
+			VersionedValue before = server.getVersioned(files.get(0));
+			assertTrue(replica.compareAndSet(files.get(0), before.getVersion(), "swapped"));
+			VersionedValue after = server.getVersioned(files.get(0));
+			assertEquals("swapped", after.getValue());
+			assertTrue("Versions must only go up", after.getVersion() > before.getVersion());
+			assertEquals("swapped", replica.get(files.get(0)));
+
+			//The old version is stale now, so the second swap must not happen
+			assertFalse(replica.compareAndSet(files.get(0), before.getVersion(), "lost"));
+			assertEquals("swapped", server.get(files.get(0)));
+			assertEquals("swapped", replica.get(files.get(0)));
+
+			//Version 0 means "never written", so it creates a missing key exactly once
+			assertTrue(replica.compareAndSet("/cas/new", 0, "created"));
+			assertFalse(replica.compareAndSet("/cas/new", 0, "again"));
+			assertEquals("created", replica.get("/cas/new"));
+		} finally {
+			replica.cleanup();
+		}
+	}
+
+	@Test
+	public void testConcurrentStorageEngineBehavesLikeSynchronizedEngine() throws Exception {
+		KeyValueServer concurrent = new KeyValueServer(new ConcurrentStorageEngine());
+		KeyValueServer synchronizedServer = new KeyValueServer(new SynchronizedStorageEngine());
+		Random random = new Random(475);
+		long version = 0;
+		for (int i = 0; i < 2000; i++) {
+			String key = "/dir" + random.nextInt(4) + "/file" + random.nextInt(25);
+			if (random.nextInt(3) == 0) {
+				assertEquals(synchronizedServer._remove(key), concurrent._remove(key));
+			} else {
+				version++;
+				concurrent._set(key, "v" + i, version);
+				synchronizedServer._set(key, "v" + i, version);
+			}
+		}
+		assertEquals(synchronizedServer._listKeys(), concurrent._listKeys());
+		for (int dir = 0; dir < 4; dir++)
+			assertEquals(synchronizedServer._listPrefix("/dir" + dir + "/"), concurrent._listPrefix("/dir" + dir + "/"));
+
+		//Removing a key takes it out of prefix listings, and only the first remove reports it
+		String removed = concurrent._listPrefix("/dir0/").iterator().next();
+		assertTrue(concurrent._remove(removed));
+		assertTrue(synchronizedServer._remove(removed));
+		assertFalse(concurrent._remove(removed));
+		assertFalse(concurrent._listPrefix("/dir0/").contains(removed));
+		assertEquals(synchronizedServer._listPrefix("/dir0/"), concurrent._listPrefix("/dir0/"));
+		assertNull(concurrent.get(removed));
+
+		//Pages come back in sorted key order, with the same entries as the synchronized engine
+		List<String> pagedKeys = new ArrayList<>();
+		String after = null;
+		while (true) {
+			LinkedHashMap<String, String> page = concurrent._entriesAfter(after, 7);
+			if (page.isEmpty())
+				break;
+			assertEquals(synchronizedServer._entriesAfter(after, 7), page);
+			pagedKeys.addAll(page.keySet());
+			after = pagedKeys.get(pagedKeys.size() - 1);
+		}
+		assertEquals(new ArrayList<>(new TreeSet<>(synchronizedServer._listKeys())), pagedKeys);
+	}
+
+	@Test
+	public void testConcurrentStorageEngineKeepsPrefixIndexInSyncUnderRaces() throws Exception {
+		ConcurrentStorageEngine engine = new ConcurrentStorageEngine();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			Random random = new Random(i);
+			threads[i] = new Thread(() -> {
+				for (int round = 0; round < 20000; round++) {
+					String key = "/dir/file" + random.nextInt(16); // few keys, so puts and removes of one key race
+					if (random.nextBoolean())
+						engine.put(key, "v" + round);
+					else
+						engine.remove(key);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals("The index must list exactly the keys in the map", engine.keys(), engine.keysWithPrefix("/dir/"));
+		assertEquals(engine.keys(), engine.entriesAfter(null, 100).keySet());
+		for (String key : engine.keysWithPrefix("/"))
+			assertNotNull(engine.get(key));
+	}
+
+	@Test
+	public void testServerVersionsAreTakenAtCommitTime() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		KeyValueClient replica = new KeyValueClient(server);
+		try {
+			//A transaction that started before a set but commits after it must still move the key to a later version
+			long early = server.startNewTransaction();
+			assertTrue(server.setInTransaction("/v", "early", early));
+			server.set("/v", "set");
+			VersionedValue afterSet = server.getVersioned("/v");
+			server.issueCommitTransaction(early);
+			VersionedValue committed = server.getVersioned("/v");
+			assertEquals("early", committed.getValue());
+			assertTrue("Versions must only go up", committed.getVersion() > afterSet.getVersion());
+			assertFalse(server.compareAndSet("/v", afterSet.getVersion(), "stale"));
+
+			//The replica is told each commit's version, so its own reads validate against the server's
+			VersionedValue local = replica.readVersioned("/v");
+			assertEquals(committed.getValue(), local.getValue());
+			assertEquals(committed.getVersion(), local.getVersion());
+			assertTrue(replica.compareAndSet("/v", local.getVersion(), "fresh"));
+			assertEquals("fresh", replica.get("/v"));
+		} finally {
+			replica.cleanup();
+		}
+	}
+
+	@Test
+	public void testServerExportsPerOperationAndPerReplicaMetrics() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		ArrayList<String> files = populateServer(server);
+		KeyValueClient replica = mock(KeyValueClient.class);
+		expect(replica.innerWriteKey(anyString(), anyString(), anyLong())).andReturn(true).anyTimes();
+		replica.commitTransaction(anyLong());
+		expectLastCall().anyTimes();
+		replay(replica);
+		server.registerClient("fake client", 9007, replica);
+
+		server.get(files.get(0));
+		server.get(files.get(1));
+		server.set(files.get(0), "measured");
+		server.unLockKey(files.get(1), server.lockKey(files.get(1)));
+
+		String text = server.getMetrics();
+		assertTrue(text, text.contains("kvstore_server_get_nanos_count 2\n"));
+		assertTrue(text, text.contains("kvstore_server_set_nanos_count 1\n"));
+		assertTrue(text, text.contains("kvstore_server_lock_key_wait_nanos_count 1\n"));
+		assertTrue(text, text.contains("kvstore_server_commits 1\n"));
+		assertTrue(text, text.contains("kvstore_server_replica_inner_write_key_nanos_count{replica=\"9007\"} 1\n"));
+		// every message's histogram exists from registration on, even before the message is first sent
+		assertTrue(text, text.contains("kvstore_server_replica_abort_transaction_nanos_count{replica=\"9007\"} 0\n"));
+		assertTrue(text, text.contains("kvstore_server_replicas 1\n"));
+
+		Histogram.Snapshot sets = server.getMetricsRegistry().histogram("set_nanos").snapshot();
+		assertTrue(sets.getValueAtPercentile(50) > 0);
+		assertTrue(sets.getValueAtPercentile(100) <= sets.getMax());
+		try {
+			server.getMetricsRegistry().invoke("reset", new Object[0], new String[0]);
+			fail("Expected ReflectionException");
+		} catch (ReflectionException e) {
+		}
+		verify(replica);
+	}
+
+	@Test
+	public void testServerProfilerFindsHotAndContendedKeys() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		ArrayList<String> files = populateServer(server);
+		String hot = files.get(3);
+		ContentionProfiler profiler = server.startProfiling(4, 1);
+
+		//One hot key among many cold ones still makes it to the top of a 4-key summary
+		for (int i = 0; i < 200; i++) {
+			server.get(hot);
+			server.get(files.get(i % files.size()));
+		}
+		assertEquals(hot, profiler.getHottestReads().get(0).getKey());
+
+		//A client holds the hot key's lock while another one waits for it
+		long stamp = server.lockKey(hot);
+		Thread waiter = new Thread(() -> server.unLockKey(hot, server.lockKey(hot)));
+		waiter.start();
+		while (server.getLockManager().getContendedAcquisitionCount() == 0 && waiter.isAlive())
+			Thread.sleep(1);
+		assertTrue(server.getContentionProfile().contains(hot + " held "));
+		Thread.sleep(20);
+		server.unLockKey(hot, stamp);
+		waiter.join();
+
+		assertEquals(hot, profiler.getLongestWaits().get(0).getKey());
+		assertTrue(profiler.getLongestWaits().get(0).getCount() > 0);
+		assertEquals(hot, profiler.getLongestHolds().get(0).getKey());
+		assertEquals(2, profiler.getHottestLocks().get(0).getCount());
+
+		server.setContentionProfiling(0);
+		assertTrue(server.getContentionProfile().startsWith("Contention profiling is off"));
+	}
+
+	@Test
+	public void testServerReapsAbandonedTransactionsAndLocks() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		ArrayList<String> files = populateServer(server);
+		String original = server.get(files.get(0));
+		KeyValueClient replica = mock(KeyValueClient.class);
+		expect(replica.innerWriteKey(eq(files.get(0)), eq("abandoned"), anyLong())).andReturn(true);
+		replica.abortTransaction(anyLong());
+		expectLastCall().once();
+		replay(replica);
+		server.registerClient("fake client", 9006, replica);
+
+		//A client takes locks and writes, then crashes before committing
+		server.lockKeys(new TreeSet<>(files.subList(0, 2)));
+		server.lockKey(files.get(2));
+		long xid = server.startNewTransaction();
+		assertTrue(server.setInTransaction(files.get(0), "abandoned", xid));
+
+		server.setTransactionTimeout(1, java.util.concurrent.TimeUnit.MILLISECONDS);
+		Thread.sleep(10);
+		assertEquals(3, server.reapExpiredTransactions());
+		assertEquals(0, server.getLockManager().getLiveLockCount());
+		verify(replica);
+
+		//Its locks are free again and its writes are gone
+		long stamp = server.lockKey(files.get(0));
+		server.unLockKey(files.get(0), stamp);
+		try {
+			server.issueCommitTransaction(xid);
+			fail("Committing a reaped transaction should fail");
+		} catch (RemoteException expected) {
+		}
+		assertEquals(original, server.get(files.get(0)));
+	}
+
+	@Test
+	public void testServerDoesNotReapLocksStillBeingWritten() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		server.setTransactionTimeout(100, TimeUnit.MILLISECONDS);
+		long lease = server.lockKeys(new TreeSet<>(Arrays.asList("/dir/file0", "/dir/file1")));
+		long xid = server.startNewTransaction();
+		for (int i = 0; i < 5; i++) { // held for well over the timeout, but written to all along
+			Thread.sleep(40);
+			assertTrue(server.setInTransaction("/dir/file" + (i % 2), "v" + i, xid));
+			assertEquals(0, server.reapExpiredTransactions());
+		}
+		server.issueCommitTransaction(xid);
+		server.unlockKeys(lease);
+		assertEquals("v4", server.get("/dir/file0"));
+
+		server.lockKeys(new TreeSet<>(Arrays.asList("/dir/file0")));
+		Thread.sleep(150);
+		assertEquals("A lease nobody uses should still be reaped", 1, server.reapExpiredTransactions());
+		assertEquals(0, server.getLockManager().getLiveLockCount());
+	}
+
+	@Test
+	public void testServerConcurrentTransactionsOnlyCommitTheirOwnWrites() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		ArrayList<String> files = populateServer(server);
+		String original = server.get(files.get(1));
+		long first = server.startNewTransaction();
+		long second = server.startNewTransaction();
+		server.setInTransaction(files.get(0), "first", first);
+		server.setInTransaction(files.get(1), "second", second);
+		server.issueCommitTransaction(first);
+		assertEquals("first", server.get(files.get(0)));
+		assertEquals("Committing one transaction must not apply another's writes", original, server.get(files.get(1)));
+		server.issueAbortTransaction(second);
+		assertEquals(original, server.get(files.get(1)));
+
+		//Many putAll-style transactions, each on its own directory, at once
+		int nThreads = 8;
+		Thread[] threads = new Thread[nThreads];
+		AtomicInteger failures = new AtomicInteger();
+		for (int i = 0; i < nThreads; i++) {
+			String dir = "/concurrent" + i + "/";
+			threads[i] = new Thread(() -> {
+				try {
+					for (int round = 0; round < 50; round++) {
+						HashMap<String, String> writes = new HashMap<>();
+						for (int k = 0; k < 10; k++)
+							writes.put(dir + "key" + k, dir + round);
+						long lease = server.lockKeys(new TreeSet<>(writes.keySet()));
+						try {
+							long xid = server.startNewTransaction();
+							if (round % 5 == 4) {
+								server.setManyInTransaction(writes, xid);
+								server.issueAbortTransaction(xid);
+							} else if (server.setManyInTransaction(writes, xid)) {
+								server.issueCommitTransaction(xid);
+							}
+						} finally {
+							server.unlockKeys(lease);
+						}
+					}
+				} catch (Throwable t) {
+					t.printStackTrace();
+					failures.incrementAndGet();
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, failures.get());
+		for (int i = 0; i < nThreads; i++)
+			for (int k = 0; k < 10; k++)
+				assertEquals("/concurrent" + i + "/48", server.get("/concurrent" + i + "/key" + k));
+	}
+
+	@Test
+	public void testServerTransactionIdsAreUniqueAcrossLeases() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		Set<Long> seen = Collections.synchronizedSet(new HashSet<>());
+		AtomicInteger duplicates = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			boolean leasing = i % 2 == 0;
+			threads[i] = new Thread(() -> {
+				try {
+					for (int round = 0; round < 1000; round++) {
+						if (leasing) {
+							long first = server.leaseTransactionIds(10);
+							for (long xid = first; xid < first + 10; xid++)
+								if (!seen.add(xid))
+									duplicates.incrementAndGet();
+						} else if (!seen.add(server.startNewTransaction())) {
+							duplicates.incrementAndGet();
+						}
+					}
+				} catch (RemoteException e) { // only a server group's member can fail to hand out IDs
+					throw new AssertionError(e);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, duplicates.get());
+		assertEquals(4 * 1000 * 10 + 4 * 1000, seen.size());
+	}
+
+	@Test
+	public void testShardedClientRoutesByDirectoryAndCommitsAcrossShards() throws Exception {
+		KeyValueServer[] servers = new KeyValueServer[2];
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new KeyValueServer();
+			servers[i].setShard(i);
+		}
+		ShardedKeyValueServer router = new ShardedKeyValueServer(Arrays.asList(servers));
+		ShardMap shards = new ShardMap(servers.length);
+		for (int i = 0; i < N_FILES; i++) {
+			router.set("/dir" + i + "/a", "a");
+			router.set("/dir" + i + "/b", "b");
+			router.set("/file" + i, "c");
+		}
+		for (int i = 0; i < N_FILES; i++) {
+			int owner = shards.shardFor("/dir" + i + "/");
+			assertEquals("a", servers[owner].get("/dir" + i + "/a"));
+			assertEquals("b", servers[owner].get("/dir" + i + "/b"));
+			assertEquals(null, servers[1 - owner].get("/dir" + i + "/a"));
+			assertEquals(new HashSet<>(Arrays.asList("/dir" + i + "/a", "/dir" + i + "/b")), router.listDirectory("/dir" + i + "/"));
+		}
+		assertEquals(3 * N_FILES, router.listKeys().size());
+		assertTrue("Every shard should own some keys", servers[0].listKeys().size() > 0 && servers[1].listKeys().size() > 0);
+
+		KeyValueClient client = new KeyValueClient(router);
+		try {
+			assertEquals(3 * N_FILES, client.listKeys().size());
+			assertEquals("c", client.get("/file0"));
+
+			// the root directory's keys are on both shards, so this commits on both
+			client.putAll("/", "everywhere");
+			for (int i = 0; i < N_FILES; i++) {
+				assertEquals("everywhere", servers[shards.shardFor("/file" + i)].get("/file" + i));
+				assertEquals("everywhere", client.get("/file" + i));
+				assertEquals("putAll(\"/\") covers every key under the root", "everywhere", client.get("/dir" + i + "/a"));
+			}
+			VersionedValue written = client.getVersioned("/file1");
+			assertEquals(shards.shardFor("/file1"), ShardMap.shardOf(written.getVersion()));
+			assertEquals("everywhere", client.get("/file1", written.getVersion()));
+
+			long[] committed = router.getLastCommittedXids();
+			for (int i = 0; i < servers.length; i++) {
+				assertEquals(servers[i].getLastCommittedXid(), committed[i]);
+				assertEquals(i, ShardMap.shardOf(committed[i]));
+			}
+			assertEquals(committed[1], router.getLastCommittedXid());
+			assertEquals(committed[shards.shardFor("/file1")], router.getLastCommittedXid("/file1"));
+		} finally {
+			client.cleanup();
+		}
+	}
+
+	@Test
+	public void testShardedCommitAbortsOnEveryShardUnlessEveryShardPrepares() throws Exception {
+		KeyValueServer[] servers = new KeyValueServer[2];
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new KeyValueServer();
+			servers[i].setShard(i);
+		}
+		servers[1].setCommitMode(KeyValueServer.CommitMode.QUORUM);
+		servers[1].setReplicaTimeout(5, TimeUnit.SECONDS);
+		RecordingReplica replica = new RecordingReplica();
+		servers[1].registerClient("replica", 1, replica);
+		ShardedKeyValueServer router = new ShardedKeyValueServer(Arrays.asList(servers));
+		String[] keys = keysOnEachShard(servers.length);
+		for (String key : keys)
+			router.set(key, "before");
+
+		// shard 1's part expires before the commit reaches it
+		long xid = router.startNewTransaction();
+		for (String key : keys)
+			assertTrue(router.setInTransaction(key, "after", xid));
+		servers[1].setTransactionTimeout(1, TimeUnit.MILLISECONDS);
+		Thread.sleep(20);
+		assertEquals(1, servers[1].reapExpiredTransactions());
+		servers[1].setTransactionTimeout(1, TimeUnit.MINUTES);
+		try {
+			router.issueCommitTransaction(xid);
+			fail("A shard that can't prepare should fail the commit");
+		} catch (RemoteException expected) {
+		}
+		assertEquals("The other shard must abort too", "before", router.get(keys[0]));
+		assertEquals("before", router.get(keys[1]));
+
+		// shard 1's replica only votes at commit time in QUORUM mode, so prepare has to ask it
+		replica.refuse = true;
+		xid = router.startNewTransaction();
+		for (String key : keys)
+			assertTrue(router.setInTransaction(key, "after", xid));
+		try {
+			router.issueCommitTransaction(xid);
+			fail("A replica that refuses should fail the commit");
+		} catch (RemoteException expected) {
+		}
+		assertEquals("before", router.get(keys[0]));
+		assertEquals("before", router.get(keys[1]));
+
+		replica.refuse = false;
+		xid = router.startNewTransaction();
+		for (String key : keys)
+			assertTrue(router.setInTransaction(key, "after", xid));
+		router.issueCommitTransaction(xid);
+		assertEquals("after", router.get(keys[0]));
+		assertEquals("after", router.get(keys[1]));
+		assertEquals("after", replica.values.get(keys[1]));
+		assertTrue("Refused and committed writes shouldn't be left pending on the replica", replica.prepared.isEmpty());
+	}
+
+	@Test
+	public void testShardedCommitReachesEveryShardOncePrepared() throws Exception {
+		KeyValueServer[] servers = new KeyValueServer[2];
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new KeyValueServer();
+			servers[i].setShard(i);
+		}
+		// shard 1 fails the first commit sent to it, as if it was unreachable
+		AtomicInteger commitFailures = new AtomicInteger(1);
+		IKeyValueServer flaky = (IKeyValueServer) Proxy.newProxyInstance(IKeyValueServer.class.getClassLoader(),
+				new Class<?>[] { IKeyValueServer.class }, (proxy, method, args) -> {
+					if (method.getName().equals("issueCommitTransaction") && commitFailures.getAndDecrement() > 0)
+						throw new RemoteException("Shard unreachable");
+					try {
+						return method.invoke(servers[1], args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		ShardedKeyValueServer router = new ShardedKeyValueServer(Arrays.asList(servers[0], flaky));
+		String[] keys = keysOnEachShard(servers.length);
+		for (String key : keys)
+			router.set(key, "before");
+
+		long xid = router.startNewTransaction();
+		for (String key : keys)
+			assertTrue(router.setInTransaction(key, "after", xid));
+		assertTrue(router.prepareTransaction(xid));
+		servers[1].setTransactionTimeout(1, TimeUnit.MILLISECONDS);
+		Thread.sleep(20);
+		assertEquals("A prepared transaction must not be reaped", 0, servers[1].reapExpiredTransactions());
+
+		router.issueCommitTransaction(xid);
+		assertTrue("The failed commit should have been retried", commitFailures.get() < 0);
+		assertEquals("after", router.get(keys[0]));
+		assertEquals("after", router.get(keys[1]));
+	}
+
+	/**
+	 * @return a key owned by each shard, by shard number
+	 */
+	private static String[] keysOnEachShard(int shardCount) {
+		ShardMap shards = new ShardMap(shardCount);
+		String[] keys = new String[shardCount];
+		int found = 0;
+		for (int i = 0; found < shardCount; i++) {
+			int shard = shards.shardFor("/dir" + i + "/");
+			if (keys[shard] == null) {
+				keys[shard] = "/dir" + i + "/file";
+				found++;
+			}
+		}
+		return keys;
+	}
+
+	@Test
+	public void testRaftGroupKeepsCommittedWritesAcrossLeaderCrash() throws Exception {
+		RaftSimulator sim = new RaftSimulator(5, 475);
+		sim.setDelay(1, 3);
+		sim.setDropRate(0.05);
+		assertTrue("A leader should be elected", sim.runUntil(() -> sim.getLeader() >= 0, 500));
+		int leader = sim.getLeader();
+		List<CompletableFuture<Void>> commits = new ArrayList<>();
+		for (long xid = 1; xid <= N_FILES; xid++)
+			commits.add(sim.getNode(leader).propose(xid, Collections.singletonMap("/file" + xid, "v" + xid)));
+		assertTrue(sim.runUntil(() -> commits.stream().allMatch(CompletableFuture::isDone), 500));
+		for (CompletableFuture<Void> commit : commits)
+			assertFalse(commit.isCompletedExceptionally());
+
+		sim.crash(leader);
+		assertTrue("A new leader should be elected", sim.runUntil(() -> sim.getLeader() >= 0 && sim.getLeader() != leader, 1000));
+		int newLeader = sim.getLeader();
+		for (long xid = 1; xid <= N_FILES; xid++)
+			assertEquals("Committed entries must survive the leader", "v" + xid, findWrite(sim.getLog(newLeader), "/file" + xid));
+
+		CompletableFuture<Void> after = sim.getNode(newLeader).propose(N_FILES + 1, Collections.singletonMap("/after", "crash"));
+		assertTrue(sim.runUntil(after::isDone, 500));
+		assertFalse(after.isCompletedExceptionally());
+		Map<String, String> applied = new HashMap<>();
+		sim.restart(leader, node -> node.setStateMachine((index, entry) -> applied.putAll(entry.getWrites())));
+		assertTrue("The old leader should catch up", sim.runUntil(() -> applied.containsKey("/after"), 1000));
+		assertEquals("v1", applied.get("/file1"));
+	}
+
+	@Test
+	public void testRaftNewLeaderNeverReusesTransactionIds() throws Exception {
+		RaftSimulator sim = new RaftSimulator(3, 475);
+		KeyValueServer[] servers = new KeyValueServer[3];
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new KeyValueServer();
+			servers[i].replicateWith(sim.getNode(i));
+		}
+		sim.start(5);
+		try {
+			int leader = awaitLeader(sim, -1);
+			long handedOut = 0;
+			for (int i = 0; i < 20; i++) { // none of these commit, so only the log's reservations record them
+				handedOut = servers[leader].startNewTransaction();
+				handedOut = servers[leader].leaseTransactionIds(KeyValueServer.MAX_TRANSACTION_ID_LEASE) + KeyValueServer.MAX_TRANSACTION_ID_LEASE - 1;
+			}
+			try {
+				servers[(leader + 1) % servers.length].startNewTransaction();
+				fail("Followers must not hand out transaction IDs");
+			} catch (NotLeaderException expected) {
+			}
+
+			sim.crash(leader);
+			int newLeader = awaitLeader(sim, leader);
+			assertTrue("The new leader must start past every ID its predecessor handed out",
+					servers[newLeader].startNewTransaction() > handedOut);
+			servers[newLeader].set("/after", "crash");
+			assertTrue(servers[newLeader].getLastCommittedXid() > handedOut);
+		} finally {
+			sim.close();
+		}
+	}
+
+	@Test
+	public void testRaftConcurrentCommitsAreAllDurable() throws Exception {
+		Path file = Files.createTempFile("kvstore", ".raft");
+		try {
+			RaftLog log = new RaftLog(file);
+			RaftNode node = new RaftNode(0, 1, log, message -> {
+			}, new Random(475));
+			KeyValueServer server = new KeyValueServer();
+			server.replicateWith(node);
+			node.start(5);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!node.isLeader() && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue("A group of one should elect itself", node.isLeader());
+
+			// the writers' commits reach the log together, and share its forces
+			Thread[] threads = new Thread[8];
+			AtomicInteger failures = new AtomicInteger();
+			for (int i = 0; i < threads.length; i++) {
+				int writer = i;
+				threads[i] = new Thread(() -> {
+					for (int k = 0; k < N_FILES; k++) {
+						try {
+							server.set("/writer" + writer + "/file" + k, "v" + k);
+						} catch (IOException e) {
+							failures.incrementAndGet();
+						}
+					}
+				});
+				threads[i].start();
+			}
+			for (Thread t : threads)
+				t.join();
+			assertEquals(0, failures.get());
+			node.stop();
+			log.close();
+
+			RaftLog reopened = new RaftLog(file);
+			reopened.close();
+			for (int i = 0; i < threads.length; i++)
+				for (int k = 0; k < N_FILES; k++)
+					assertEquals("Every acknowledged commit must be on disk", "v" + k, findWrite(reopened, "/writer" + i + "/file" + k));
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".state"));
+		}
+	}
+
+	private static int awaitLeader(RaftSimulator sim, int not) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((sim.getLeader() < 0 || sim.getLeader() == not) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		int leader = sim.getLeader();
+		assertTrue("A leader should be elected", leader >= 0 && leader != not);
+		return leader;
+	}
+
+	private static String findWrite(RaftLog log, String key) {
+		String ret = null;
+		for (long index = 1; index <= log.lastIndex(); index++)
+			if (log.get(index).getWrites().containsKey(key))
+				ret = log.get(index).getWrites().get(key);
+		return ret;
+	}
+
+	@Test
+	public void testFailoverClientFollowsNewLeader() throws Exception {
+		RaftSimulator sim = new RaftSimulator(3, 475);
+		KeyValueServer[] servers = new KeyValueServer[3];
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new KeyValueServer();
+			servers[i].replicateWith(sim.getNode(i));
+		}
+		sim.start(5);
+		FailoverKeyValueServer router = new FailoverKeyValueServer(Arrays.asList(servers));
+		KeyValueClient client = new KeyValueClient(router, Transport.RMI);
+		try {
+			for (int i = 0; i < N_FILES; i++)
+				client.set("/dir/file" + i, "before");
+			int leader = router.getLeader();
+			try {
+				servers[(leader + 1) % servers.length].set("/dir/file0", "follower");
+				fail("Followers must refuse writes");
+			} catch (NotLeaderException expected) {
+			}
+
+			sim.crash(leader);
+			client.set("/dir/file0", "after"); // retried on the new leader
+			client.putAll("/dir/", "after");
+			int newLeader = router.getLeader();
+			assertTrue(newLeader != leader);
+			for (int i = 0; i < N_FILES; i++)
+				assertEquals("after", servers[newLeader].get("/dir/file" + i));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!"after".equals(client.get("/dir/file1")) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals("The replica should re-register with the new leader", "after", client.get("/dir/file1"));
+		} finally {
+			client.cleanup();
+			sim.close();
+		}
+	}
+
+	@Test
+	public void testQuorumCommitDoesNotWaitForSlowReplica() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		server.setCommitMode(KeyValueServer.CommitMode.QUORUM);
+		server.setReplicaTimeout(5, TimeUnit.SECONDS);
+		RecordingReplica fast1 = new RecordingReplica();
+		RecordingReplica fast2 = new RecordingReplica();
+		RecordingReplica slow = new RecordingReplica();
+		slow.gate = new CountDownLatch(1);
+		server.registerClient("fast1", 1, fast1);
+		server.registerClient("fast2", 2, fast2);
+		server.registerClient("slow", 3, slow);
+
+		for (int i = 0; i < N_FILES; i++)
+			server.set("/dir/file" + (i % 5), "v" + i); // would time out if it waited for the slow replica
+		assertEquals(N_FILES, server.getReplicaLag(3));
+		assertEquals(0, server.getReplicaLag(1));
+		assertTrue(server.getMetrics().contains("replica_lag_entries{replica=\"3\"} " + N_FILES));
+
+		slow.gate.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getReplicaLag(3) != 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("The slow replica should catch up", 0, server.getReplicaLag(3));
+		assertEquals("Replicas must apply commits in the same order", fast1.committed, slow.committed);
+		assertEquals(fast1.values, slow.values);
+
+		RecordingReplica refusing = new RecordingReplica();
+		refusing.refuse = true;
+		server.registerClient("refusing", 4, refusing);
+		server.set("/dir/file0", "after"); // 3 of 4 is still a majority
+		assertEquals("after", server.get("/dir/file0"));
+		deadline = System.currentTimeMillis() + 5000;
+		while (!server.getMetrics().contains("kvstore_server_replicas 3") && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue("A replica that refused a committed write should be evicted", server.getMetrics().contains("kvstore_server_replica_evictions 1"));
+	}
+
+	@Test
+	public void testQuorumLaggingReplicaHonoursMinXid() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		server.setCommitMode(KeyValueServer.CommitMode.QUORUM);
+		server.setReplicaTimeout(5, TimeUnit.SECONDS);
+		server.set("/dir/file0", "first");
+		CountDownLatch gate = new CountDownLatch(1);
+		KeyValueClient writer = new KeyValueClient(server);
+		KeyValueClient other = new KeyValueClient(server);
+		KeyValueClient lagging = new KeyValueClient(server) {
+			@Override
+			public boolean innerWriteKeys(HashMap<String, String> keysAndContent, long xid) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				return super.innerWriteKeys(keysAndContent, xid);
+			}
+		};
+		try {
+			writer.set("/dir/file0", "second"); // the other two are a majority, so this doesn't wait for lagging
+			long committed = writer.getLastCommittedXid();
+			assertEquals(committed, writer.getVersioned("/dir/file0").getVersion());
+			assertTrue(lagging.getAppliedXid() < committed);
+			assertEquals("first", lagging.get("/dir/file0"));
+			assertEquals("second", lagging.get("/dir/file0", committed));
+			assertEquals("second", lagging.get("/dir/file0", 0, TimeUnit.MILLISECONDS));
+
+			gate.countDown();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (lagging.getAppliedXid() < committed && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(committed, lagging.getAppliedXid());
+			assertEquals("second", lagging.get("/dir/file0"));
+			assertEquals("second", lagging.get("/dir/file0", committed));
+		} finally {
+			gate.countDown();
+			writer.cleanup();
+			other.cleanup();
+			lagging.cleanup();
+		}
+	}
+
+	@Test
+	public void testSynchronousCommitWaitsOnlyForSynchronousReplicas() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		server.setCommitMode(KeyValueServer.CommitMode.SYNCHRONOUS, 1);
+		server.setReplicaTimeout(5, TimeUnit.SECONDS);
+		RecordingReplica sync = new RecordingReplica();
+		RecordingReplica async = new RecordingReplica();
+		async.gate = new CountDownLatch(1);
+		server.registerClient("sync", 1, sync);
+		server.registerClient("async", 2, async);
+		try {
+			server.set("/dir/file0", "v");
+			assertEquals("The synchronous replica applies the commit before it finishes", "v", sync.values.get("/dir/file0"));
+			assertTrue(async.values.isEmpty());
+			assertEquals(1, server.getReplicaLag(2));
+
+			sync.refuse = true;
+			try {
+				server.set("/dir/file1", "refused");
+				fail("A synchronous replica that refuses the write should fail it");
+			} catch (IOException expected) {
+			}
+			assertEquals(null, server.get("/dir/file1"));
+			sync.refuse = false;
+
+			async.gate.countDown();
+			server.set("/dir/file2", "w");
+			long deadline = System.currentTimeMillis() + 5000;
+			while (server.getReplicaLag(2) != 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(sync.committed, async.committed);
+			assertEquals(sync.values, async.values);
+			assertFalse(async.values.containsKey("/dir/file1"));
+		} finally {
+			async.gate.countDown();
+		}
+	}
+
+	@Test
+	public void testSynchronousCommitSucceedsWhenReplicaDoesNotApplyInTime() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		server.setCommitMode(KeyValueServer.CommitMode.SYNCHRONOUS, 1);
+		server.setReplicaTimeout(200, TimeUnit.MILLISECONDS);
+		RecordingReplica stuck = new RecordingReplica();
+		stuck.commitGate = new CountDownLatch(1);
+		RecordingReplica other = new RecordingReplica();
+		server.registerClient("stuck", 1, stuck);
+		server.registerClient("other", 2, other);
+		try {
+			server.set("/dir/file0", "v"); // already committed on the server when the replica stalls, so it must succeed
+			assertEquals("v", server.get("/dir/file0"));
+			assertEquals(server.getVersioned("/dir/file0").getVersion(), server.getLastCommittedXid());
+			assertTrue("A committed write must not be aborted", server.getMetrics().contains("kvstore_server_aborts 0"));
+			assertTrue(server.getMetrics().contains("kvstore_server_commits 1"));
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!server.getMetrics().contains("kvstore_server_replicas 1") && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue("The required replica that didn't apply the commit should be evicted", server.getMetrics().contains("kvstore_server_replicas 1"));
+			assertTrue(server.getMetrics().contains("kvstore_server_replica_evictions 1"));
+
+			server.set("/dir/file1", "w");
+			deadline = System.currentTimeMillis() + 5000;
+			while (other.values.size() < 2 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals("w", other.values.get("/dir/file1"));
+		} finally {
+			stuck.commitGate.countDown();
+		}
+	}
+
+	@Test
+	public void testQuorumEvictsReplicaFurthestBehindWhenLogIsFull() throws Exception {
+		List<Integer> evicted = Collections.synchronizedList(new ArrayList<>());
+		ExecutorService executor = Executors.newCachedThreadPool();
+		QuorumReplicator replicator = new QuorumReplicator(KeyValueServer.CommitMode.QUORUM, Collections.emptySet(),
+				new MetricsRegistry("test"), executor, evicted::add, 4);
+		RecordingReplica fast1 = new RecordingReplica();
+		RecordingReplica fast2 = new RecordingReplica();
+		RecordingReplica slow = new RecordingReplica();
+		slow.gate = new CountDownLatch(1);
+		replicator.add(1, fast1, false);
+		replicator.add(2, fast2, false);
+		replicator.add(3, slow, false);
+		try {
+			AtomicInteger versions = new AtomicInteger();
+			for (int i = 0; i < 4; i++)
+				replicator.commit(i + 1, Collections.singletonMap("/dir/file" + i, "v"), versions::incrementAndGet, 5000);
+			assertEquals(4, replicator.getLagEntries(3));
+			assertTrue(evicted.isEmpty());
+
+			replicator.commit(5, Collections.singletonMap("/dir/file4", "v"), versions::incrementAndGet, 5000);
+			assertEquals("The replica holding the full log should be evicted", Collections.singletonList(3), evicted);
+			assertEquals(0, replicator.getLagEntries(3));
+			assertEquals(5, fast1.committed.size());
+			assertEquals(fast1.committed, fast2.committed);
+		} finally {
+			slow.gate.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testServerSetTimesOutOnSingleSlowReplica() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		server.setReplicaTimeout(200, TimeUnit.MILLISECONDS);
+		RecordingReplica slow = new RecordingReplica();
+		slow.gate = new CountDownLatch(1);
+		server.registerClient("slow", 1, slow);
+		try {
+			long start = System.nanoTime();
+			try {
+				server.set("/dir/file0", "v");
+				fail("A replica that doesn't answer in time should fail the write");
+			} catch (IOException expected) {
+			}
+			assertTrue("The only replica should be held to the replica timeout", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+			assertEquals(null, server.get("/dir/file0"));
+			assertTrue(server.getMetrics().contains("kvstore_server_replica_timeouts{replica=\"1\"}"));
+		} finally {
+			slow.gate.countDown();
+		}
+	}
+
+	@Test
+	public void testServerEvictsReplicaThatFailsAfterCommit() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		RecordingReplica good = new RecordingReplica();
+		RecordingReplica broken = new RecordingReplica();
+		broken.failCommit = true;
+		server.registerClient("good", 1, good);
+		server.registerClient("broken", 2, broken);
+
+		server.set("/dir/file0", "v"); // already committed on the server when the replica fails, so it must succeed
+		long xid = server.startNewTransaction();
+		assertTrue(server.setInTransaction("/dir/file1", "w", xid));
+		server.issueCommitTransaction(xid);
+		assertEquals("v", server.get("/dir/file0"));
+		assertEquals("w", server.get("/dir/file1"));
+		assertEquals("v", good.values.get("/dir/file0"));
+		assertEquals("w", good.values.get("/dir/file1"));
+		assertTrue("A committed write must not be aborted", server.getMetrics().contains("kvstore_server_aborts 0"));
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!server.getMetrics().contains("kvstore_server_replicas 1") && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue("The replica that missed the commit should be evicted", server.getMetrics().contains("kvstore_server_replicas 1"));
+		assertTrue(server.getMetrics().contains("kvstore_server_replica_evictions 1"));
+	}
+
+	@Test
+	public void testServerRecoversLogWithTornTail() throws Exception {
+		Path file = Files.createTempFile("kvstore", ".wal");
+		try {
+			KeyValueServer server = new KeyValueServer();
+			WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+			server.recoverFrom(log);
+			for (int i = 0; i < N_FILES; i++)
+				server.set("/dir/file" + i, "v" + i);
+			log.close();
+			// a crash in the middle of the next record: a length that runs past the end of the file, then part of a body
+			Files.write(file, new byte[]{0, 0, 1, 0, 1, 2, 3, 4, 5, 6}, StandardOpenOption.APPEND);
+
+			KeyValueServer recovered = new KeyValueServer();
+			log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+			recovered.recoverFrom(log);
+			for (int i = 0; i < N_FILES; i++)
+				assertEquals("v" + i, recovered.get("/dir/file" + i));
+			recovered.set("/dir/file0", "after"); // must land after the last intact record, not after the torn one
+			log.close();
+
+			KeyValueServer again = new KeyValueServer();
+			log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+			again.recoverFrom(log);
+			log.close();
+			assertEquals("after", again.get("/dir/file0"));
+			assertEquals("v1", again.get("/dir/file1"));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testServerRecoversOnlyCommittedTransactions() throws Exception {
+		Path file = Files.createTempFile("kvstore", ".wal");
+		try {
+			KeyValueServer server = new KeyValueServer();
+			WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+			server.recoverFrom(log);
+			RecordingReplica replica = new RecordingReplica();
+			server.registerClient("replica", 1, replica);
+			server.set("/dir/file0", "committed");
+
+			replica.refuse = true;
+			try {
+				server.set("/dir/file1", "aborted");
+				fail("A refused write should fail");
+			} catch (IOException expected) {
+			}
+			replica.refuse = false;
+			replica.failCommit = true; // logged before the replica fails, so it stays committed
+			server.set("/dir/file2", "committed");
+			log.close();
+
+			KeyValueServer recovered = new KeyValueServer();
+			log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+			recovered.recoverFrom(log);
+			log.close();
+			assertEquals("committed", recovered.get("/dir/file0"));
+			assertEquals("An aborted write must not come back after a restart", null, recovered.get("/dir/file1"));
+			assertEquals("committed", recovered.get("/dir/file2"));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testServerRecoversFromSnapshotAndLog() throws Exception {
+		Path dir = Files.createTempDirectory("kvstore");
+		Path snapshotFile = dir.resolve("store.snapshot");
+		Path logFile = dir.resolve("store.wal");
+		try {
+			KeyValueServer server = new KeyValueServer();
+			WriteAheadLog log = new WriteAheadLog(logFile, WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+			server.recoverFrom(new SnapshotStore(snapshotFile), log);
+			for (int i = 0; i < N_FILES; i++)
+				server.set("/dir/file" + i, "v" + i);
+			server.takeSnapshot();
+			long compacted = Files.size(logFile);
+			server.set("/dir/file0", "after snapshot");
+			server.set("/dir/new", "only in the log");
+			log.close();
+			assertEquals("The snapshot should cover the log written before it", 0, compacted);
+
+			KeyValueServer recovered = new KeyValueServer();
+			log = new WriteAheadLog(logFile, WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+			recovered.recoverFrom(new SnapshotStore(snapshotFile), log);
+			log.close();
+			assertEquals("after snapshot", recovered.get("/dir/file0"));
+			assertEquals("only in the log", recovered.get("/dir/new"));
+			for (int i = 1; i < N_FILES; i++)
+				assertEquals("v" + i, recovered.get("/dir/file" + i));
+			long xid = recovered.startNewTransaction();
+			assertTrue("Transaction IDs must continue past the recovered ones", xid > server.getVersioned("/dir/new").getVersion());
+		} finally {
+			Files.deleteIfExists(snapshotFile);
+			Files.deleteIfExists(logFile);
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	@Test
+	public void testServerRejectsSnapshotWithCorruptHeader() throws Exception {
+		Path file = Files.createTempFile("kvstore", ".snapshot");
+		try {
+			SnapshotStore snapshots = new SnapshotStore(file);
+			Map<String, String> entries = new TreeMap<>();
+			entries.put("/dir/file0", "v0");
+			snapshots.write(1234, entries.entrySet());
+			Map<String, String> loaded = new HashMap<>();
+			assertEquals(1234, snapshots.load(loaded::put));
+			assertEquals(entries, loaded);
+
+			byte[] bytes = Files.readAllBytes(file);
+			bytes[15] ^= 1; // last byte of lastXid
+			Files.write(file, bytes);
+			try {
+				snapshots.load((key, value) -> { });
+				fail("A flipped bit in lastXid should fail the checksum");
+			} catch (IOException expected) {
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testServerLoadsNothingFromSnapshotWithCorruptValue() throws Exception {
+		Path file = Files.createTempFile("kvstore", ".snapshot");
+		try {
+			SnapshotStore snapshots = new SnapshotStore(file);
+			Map<String, String> entries = new TreeMap<>();
+			for (int i = 0; i < N_FILES; i++)
+				entries.put("/dir/file" + i, "value" + i);
+			snapshots.write(1234, entries.entrySet());
+
+			byte[] bytes = Files.readAllBytes(file);
+			String contents = new String(bytes, StandardCharsets.ISO_8859_1);
+			bytes[contents.indexOf("value" + (N_FILES - 1)) + 2] ^= 1; // inside the last value, after the others were read
+			Files.write(file, bytes);
+			Map<String, String> loaded = new HashMap<>();
+			try {
+				snapshots.load(loaded::put);
+				fail("A flipped bit in a value should fail the checksum");
+			} catch (IOException expected) {
+			}
+			assertEquals("Nothing from a corrupt snapshot may reach the store", Collections.emptyMap(), loaded);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testServerReplicaJoiningMidTransactionGetsItsWrites() throws Exception {
+		KeyValueServer server = new KeyValueServer();
+		RecordingReplica early = new RecordingReplica();
+		server.registerClient("early", 1, early);
+		long xid = server.startNewTransaction();
+		assertTrue(server.setInTransaction("/dir/file0", "first", xid));
+
+		RecordingReplica late = new RecordingReplica();
+		BootstrapChunk chunk = server.registerClientStreaming("late", 2, late, 100); // joins between prepare and commit
+		assertTrue(chunk.getVersion() > xid);
+		assertTrue(server.setInTransaction("/dir/file1", "second", xid));
+		server.issueCommitTransaction(xid);
+
+		assertEquals("first", early.values.get("/dir/file0"));
+		assertEquals("second", early.values.get("/dir/file1"));
+		assertEquals("A replica that joined mid-transaction must not miss its writes", "first", late.values.get("/dir/file0"));
+		assertEquals("second", late.values.get("/dir/file1"));
+	}
+
+	private static class RecordingReplica implements IKeyValueReplica {
+		final List<Long> committed = Collections.synchronizedList(new ArrayList<>());
+		final Map<String, String> values = new ConcurrentHashMap<>();
+		final Map<Long, HashMap<String, String>> prepared = new ConcurrentHashMap<>();
+		volatile CountDownLatch gate = new CountDownLatch(0);
+		volatile CountDownLatch commitGate = new CountDownLatch(0);
+		volatile boolean refuse;
+		volatile boolean failCommit;
+
+		@Override
+		public boolean innerWriteKey(String key, String content, long xid) throws RemoteException {
+			HashMap<String, String> write = new HashMap<>();
+			write.put(key, content);
+			return innerWriteKeys(write, xid);
+		}
+
+		@Override
+		public boolean innerWriteKeys(HashMap<String, String> keysAndContent, long xid) throws RemoteException {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				throw new RemoteException("Interrupted", e);
+			}
+			if (refuse)
+				return false;
+			prepared.computeIfAbsent(xid, id -> new HashMap<>()).putAll(keysAndContent);
+			return true;
+		}
+
+		@Override
+		public void commitTransaction(long id) throws RemoteException {
+			try {
+				commitGate.await();
+			} catch (InterruptedException e) {
+				throw new RemoteException("Interrupted", e);
+			}
+			if (failCommit)
+				throw new RemoteException("Replica failed");
+			HashMap<String, String> writes = prepared.remove(id);
+			if (writes != null)
+				values.putAll(writes);
+			committed.add(id);
+		}
+
+		@Override
+		public void abortTransaction(long id) {
+			prepared.remove(id);
+		}
+	}
+
 	@Test
 	public void testServerThatClientCantRegisterDuringCommit() throws Exception {
 		err = false;
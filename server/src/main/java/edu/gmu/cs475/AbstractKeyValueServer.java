@@ -1,108 +1,217 @@
-package edu.gmu.cs475;
-
-
-import java.io.IOException;
-import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
-
-public abstract class AbstractKeyValueServer implements IKeyValueServer {
-    private final HashMap<String, String> map = new HashMap<>();
-
-
-
-    protected HashMap<String, String> copyUnderlyingMap(){
-        return new HashMap<>(map);
-    }
-
-
-    /**
-     * Registers a replica with the server, returning all of the files that currently exist.
-     *
-     * @param hostname   the hostname of the replica talking to you (passed again at disconnect)
-     * @param portNumber the port number of the replica talking to you (passed again at disconnect)
-     * @param replica    The RMI object to use to signal to the replica
-     * @return A HashMap of all of the keys that currently exist, mapping from key to its value
-     */
-    public abstract HashMap<String, String> registerClient(String hostname, int portNumber, IKeyValueReplica replica) throws IOException;
-
-    @Override
-    public HashMap<String, String> registerClient(String hostname, int portNumber) throws RemoteException {
-        try {
-            System.out.println("Looking for replica at " + hostname + " " + portNumber);
-            Registry registry = LocateRegistry.getRegistry(hostname, portNumber);
-            IKeyValueReplica replica = (IKeyValueReplica) registry.lookup(IKeyValueReplica.RMI_NAME);
-            return registerClient(hostname, portNumber, replica);
-        } catch (Exception e) {
-            System.err.println("Client exception connecting to lead server: " + e.toString());
-            e.printStackTrace();
-            throw new RemoteException();
-        }
-    }
-
-    /**
-     * Retrieve an item from the underlying store - you must call this from your KeyValueStore
-     *
-     * @param key key to retrieve
-     * @return The value stored at the given key, or null if none exists
-     * @throws NullPointerException if key is null
-     */
-    protected Object _get(String key) {
-        if (key == null)
-            throw new NullPointerException();
-        synchronized (map) {
-            return map.get(key);
-        }
-    }
-
-    /**
-     * Add an item to the underlying store - you must call this from your KeyValueStore
-     *
-     * @param key   key to set
-     * @param value value to store
-     * @throws NullPointerException if key or value is null
-     */
-    void _set(String key, String value) {
-        if (key == null || value == null) throw new NullPointerException();
-        synchronized (map) {
-            map.put(key, value);
-        }
-    }
-
-    /**
-     * Remove an item from the underlying store - you must call this from your KeyValueStore
-     *
-     * @param key key to remove
-     * @return true if the value was removed, false if not
-     * @throws NullPointerException if key is null
-     */
-    protected boolean _remove(String key) {
-        if (key == null)
-            throw new NullPointerException();
-        synchronized (map) {
-            return map.remove(key) != null;
-        }
-    }
-
-    /**
-     * Enumerates all of the keys currently in the map
-     *
-     * @return Set containing all currently valid keys
-     */
-    protected Set<String> _listKeys() {
-        synchronized (map) {
-            return new HashSet<>(map.keySet());
-        }
-    }
-
-    @Override
-    public String toString() {
-        return "KeyValueStore{" +
-                "map=" + map +
-                '}';
-    }
-
-}
+package edu.gmu.cs475;
+
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public abstract class AbstractKeyValueServer implements IKeyValueServer {
+    private final IStorageEngine map;
+
+    // version of each key: the largest version a commit has written it at; keys without one are at version 0
+    private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a server backed by the default (lock-free for readers) {@link ConcurrentStorageEngine}
+     */
+    protected AbstractKeyValueServer() {
+        this(new ConcurrentStorageEngine());
+    }
+
+    /**
+     * Creates a server backed by the given storage engine
+     *
+     * @param storageEngine engine to keep all keys and values in
+     * @throws NullPointerException if storageEngine is null
+     */
+    protected AbstractKeyValueServer(IStorageEngine storageEngine) {
+        if (storageEngine == null)
+            throw new NullPointerException();
+        this.map = storageEngine;
+    }
+
+    protected HashMap<String, String> copyUnderlyingMap(){
+        return map.copy();
+    }
+
+
+    /**
+     * Registers a replica with the server, returning all of the files that currently exist.
+     *
+     * @param hostname   the hostname of the replica talking to you (passed again at disconnect)
+     * @param portNumber the port number of the replica talking to you (passed again at disconnect)
+     * @param replica    The RMI object to use to signal to the replica
+     * @return A HashMap of all of the keys that currently exist, mapping from key to its value
+     */
+    public abstract HashMap<String, String> registerClient(String hostname, int portNumber, IKeyValueReplica replica) throws IOException;
+
+    @Override
+    public HashMap<String, String> registerClient(String hostname, int portNumber) throws RemoteException {
+        try {
+            return registerClient(hostname, portNumber, lookupReplica(hostname, portNumber));
+        } catch (Exception e) {
+            System.err.println("Client exception connecting to lead server: " + e.toString());
+            e.printStackTrace();
+            throw new RemoteException();
+        }
+    }
+
+    /**
+     * Registers a replica with the server without copying the whole store, returning only the first chunk of it.
+     * The replica fetches the rest with getBootstrapChunk.
+     *
+     * @param hostname   the hostname of the replica talking to you (passed again at disconnect)
+     * @param portNumber the port number of the replica talking to you (passed again at disconnect)
+     * @param replica    The RMI object to use to signal to the replica
+     * @param maxEntries largest number of entries to put in the first chunk
+     * @return the first chunk of keys and values
+     */
+    public abstract BootstrapChunk registerClientStreaming(String hostname, int portNumber, IKeyValueReplica replica, int maxEntries) throws IOException;
+
+    @Override
+    public BootstrapChunk registerClientStreaming(String hostname, int portNumber, int maxEntries) throws RemoteException {
+        try {
+            return registerClientStreaming(hostname, portNumber, lookupReplica(hostname, portNumber), maxEntries);
+        } catch (Exception e) {
+            System.err.println("Client exception connecting to lead server: " + e.toString());
+            e.printStackTrace();
+            throw new RemoteException();
+        }
+    }
+
+    private IKeyValueReplica lookupReplica(String hostname, int portNumber) throws Exception {
+        System.out.println("Looking for replica at " + hostname + " " + portNumber);
+        Registry registry = LocateRegistry.getRegistry(hostname, portNumber);
+        return (IKeyValueReplica) registry.lookup(IKeyValueReplica.RMI_NAME);
+    }
+
+    /**
+     * Retrieve an item from the underlying store - you must call this from your KeyValueStore
+     *
+     * @param key key to retrieve
+     * @return The value stored at the given key, or null if none exists
+     * @throws NullPointerException if key is null
+     */
+    protected Object _get(String key) {
+        if (key == null)
+            throw new NullPointerException();
+        return map.get(key);
+    }
+
+    /**
+     * Add an item to the underlying store - you must call this from your KeyValueStore
+     *
+     * @param key   key to set
+     * @param value value to store
+     * @throws NullPointerException if key or value is null
+     */
+    void _set(String key, String value) {
+        if (key == null || value == null) throw new NullPointerException();
+        map.put(key, value);
+    }
+
+    /**
+     * Add an item to the underlying store and move the key to the given version, unless the key is already at that
+     * version or a later one: then a later commit has already written it, and this write is older than its value. So
+     * a key's version never goes down, even if two commits of it are applied out of order. The version is updated
+     * after the value, so a reader that reads the version before the value never pairs a value with a newer version
+     * than its own.
+     *
+     * @param key     key to set
+     * @param value   value to store
+     * @param version the version of the commit that wrote the value
+     * @throws NullPointerException if key or value is null
+     */
+    protected void _set(String key, String value, long version) {
+        if (key == null || value == null) throw new NullPointerException();
+        versions.compute(key, (k, current) -> {
+            if (current != null && current >= version)
+                return current;
+            map.put(k, value);
+            return version;
+        });
+    }
+
+    /**
+     * Looks up a key's version
+     *
+     * @param key key to look up
+     * @return the key's version, or 0 if it has never been given one
+     * @throws NullPointerException if key is null
+     */
+    protected long _version(String key) {
+        Long version = versions.get(key);
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * Remove an item from the underlying store - you must call this from your KeyValueStore
+     *
+     * @param key key to remove
+     * @return true if the value was removed, false if not
+     * @throws NullPointerException if key is null
+     */
+    protected boolean _remove(String key) {
+        if (key == null)
+            throw new NullPointerException();
+        versions.remove(key);
+        return map.remove(key);
+    }
+
+    /**
+     * Enumerates all of the keys currently in the map
+     *
+     * @return Set containing all currently valid keys
+     */
+    protected Set<String> _listKeys() {
+        return map.keys();
+    }
+
+    /**
+     * Reads one page of the map, in key order, without blocking writers
+     *
+     * @param afterKey only keys strictly greater than this are returned, or null to start from the first key
+     * @param max      largest number of entries to return
+     * @return up to max entries, iterating in key order
+     */
+    protected LinkedHashMap<String, String> _entriesAfter(String afterKey, int max) {
+        return map.entriesAfter(afterKey, max);
+    }
+
+    /**
+     * Iterates over every key and value in the map without copying it or blocking writers; writes made while
+     * iterating may or may not be seen
+     *
+     * @return all entries currently in the map
+     */
+    protected Iterable<Map.Entry<String, String>> _entries() {
+        return map.entries();
+    }
+
+    /**
+     * Enumerates all of the keys currently in the map that start with the given prefix
+     *
+     * @param prefix prefix to look for (e.g. a directory)
+     * @return Set containing all currently valid keys that start with prefix
+     * @throws NullPointerException if prefix is null
+     */
+    protected Set<String> _listPrefix(String prefix) {
+        if (prefix == null)
+            throw new NullPointerException();
+        return map.keysWithPrefix(prefix);
+    }
+
+    @Override
+    public String toString() {
+        return "KeyValueStore{" +
+                "map=" + map +
+                '}';
+    }
+
+}
@@ -0,0 +1,125 @@
+package edu.gmu.cs475;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.TreeSet;
+
+/**
+ * Serves a key-value server's IKeyValueServer methods over the binary transport (see WireFormat).
+ * <p>
+ * Replicas that register through here are called back over the binary transport too.
+ */
+public class BinaryKeyValueServerEndpoint implements NioRpcServer.Handler {
+
+	private final AbstractKeyValueServer server;
+
+	public BinaryKeyValueServerEndpoint(AbstractKeyValueServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Reads only touch the store, which never blocks
+	 */
+	@Override
+	public boolean runsInline(byte opcode) {
+		return opcode == WireFormat.GET || opcode == WireFormat.GET_VERSIONED || opcode == WireFormat.LIST_KEYS
+				|| opcode == WireFormat.LIST_DIRECTORY || opcode == WireFormat.GET_LAST_COMMITTED_XID
+				|| opcode == WireFormat.GET_METRICS || opcode == WireFormat.GET_CONTENTION_PROFILE
+				|| opcode == WireFormat.GET_LEADER;
+	}
+
+	@Override
+	public void handle(byte opcode, ByteBuffer in, WireFormat.Writer out) throws Exception {
+		switch (opcode) {
+			case WireFormat.GET:
+				out.putString(server.get(WireFormat.getString(in)));
+				break;
+			case WireFormat.LIST_KEYS:
+				out.putStrings(server.listKeys());
+				break;
+			case WireFormat.SET:
+				server.set(WireFormat.getString(in), WireFormat.getString(in));
+				break;
+			case WireFormat.LIST_DIRECTORY:
+				out.putStrings(server.listDirectory(WireFormat.getString(in)));
+				break;
+			case WireFormat.LOCK_KEY:
+				out.putLong(server.lockKey(WireFormat.getString(in)));
+				break;
+			case WireFormat.UNLOCK_KEY:
+				server.unLockKey(WireFormat.getString(in), in.getLong());
+				break;
+			case WireFormat.LOCK_KEYS:
+				out.putLong(server.lockKeys(WireFormat.getStrings(in, new TreeSet<>())));
+				break;
+			case WireFormat.UNLOCK_KEYS:
+				server.unlockKeys(in.getLong());
+				break;
+			case WireFormat.SET_IN_TRANSACTION:
+				out.putBoolean(server.setInTransaction(WireFormat.getString(in), WireFormat.getString(in), in.getLong()));
+				break;
+			case WireFormat.SET_MANY_IN_TRANSACTION:
+				out.putBoolean(server.setManyInTransaction(WireFormat.getStringMap(in), in.getLong()));
+				break;
+			case WireFormat.REGISTER_CLIENT: {
+				String hostname = WireFormat.getString(in);
+				int port = in.getInt();
+				out.putStringMap(server.registerClient(hostname, port, new BinaryReplicaStub(hostname, port)));
+				break;
+			}
+			case WireFormat.REGISTER_CLIENT_STREAMING: {
+				String hostname = WireFormat.getString(in);
+				int port = in.getInt();
+				out.putBootstrapChunk(server.registerClientStreaming(hostname, port, new BinaryReplicaStub(hostname, port), in.getInt()));
+				break;
+			}
+			case WireFormat.GET_BOOTSTRAP_CHUNK:
+				out.putBootstrapChunk(server.getBootstrapChunk(in.getLong(), WireFormat.getString(in), in.getInt()));
+				break;
+			case WireFormat.CACHE_DISCONNECT:
+				server.cacheDisconnect(WireFormat.getString(in), in.getInt());
+				break;
+			case WireFormat.START_NEW_TRANSACTION:
+				out.putLong(server.startNewTransaction());
+				break;
+			case WireFormat.LEASE_TRANSACTION_IDS:
+				out.putLong(server.leaseTransactionIds(in.getInt()));
+				break;
+			case WireFormat.GET_LAST_COMMITTED_XID:
+				out.putLong(server.getLastCommittedXid());
+				break;
+			case WireFormat.GET_METRICS:
+				out.putString(server.getMetrics());
+				break;
+			case WireFormat.SET_CONTENTION_PROFILING:
+				server.setContentionProfiling(in.getInt());
+				break;
+			case WireFormat.GET_CONTENTION_PROFILE:
+				out.putString(server.getContentionProfile());
+				break;
+			case WireFormat.GET_LEADER:
+				out.putInt(server.getLeader());
+				break;
+			case WireFormat.PREPARE_TRANSACTION:
+				out.putBoolean(server.prepareTransaction(in.getLong()));
+				break;
+			case WireFormat.ISSUE_COMMIT_TRANSACTION:
+				server.issueCommitTransaction(in.getLong());
+				break;
+			case WireFormat.ISSUE_ABORT_TRANSACTION:
+				server.issueAbortTransaction(in.getLong());
+				break;
+			case WireFormat.GET_VERSIONED:
+				out.putVersionedValue(server.getVersioned(WireFormat.getString(in)));
+				break;
+			case WireFormat.COMPARE_AND_SET:
+				out.putBoolean(server.compareAndSet(WireFormat.getString(in), in.getLong(), WireFormat.getString(in)));
+				break;
+			case WireFormat.COMMIT_OPTIMISTIC_TRANSACTION:
+				out.putBoolean(server.commitOptimisticTransaction(WireFormat.getStringMap(in), WireFormat.getVersionMap(in)));
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown server opcode " + opcode);
+		}
+	}
+}
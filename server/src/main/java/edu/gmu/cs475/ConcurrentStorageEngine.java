@@ -0,0 +1,83 @@
+package edu.gmu.cs475;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default storage engine, backed by a {@link ConcurrentHashMap}: reads never take a lock and writes only contend
+ * with other writes to the same bin. A {@link PrefixIndex} is kept alongside the map so that directory listings
+ * don't have to scan every key.
+ * <p>
+ * {@link #keys()} and {@link #copy()} are weakly consistent: they reflect every write that completed before they were
+ * called, and may or may not reflect writes that happen concurrently.
+ */
+public class ConcurrentStorageEngine implements IStorageEngine {
+	private final ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
+	private final PrefixIndex index = new PrefixIndex();
+
+	@Override
+	public String get(String key) {
+		return map.get(key);
+	}
+
+	@Override
+	public void put(String key, String value) {
+		// the index is updated inside compute so that it can't disagree with a concurrent remove of the same key
+		map.compute(key, (k, old) -> {
+			if (old == null)
+				index.add(k);
+			return value;
+		});
+	}
+
+	@Override
+	public boolean remove(String key) {
+		boolean[] removed = new boolean[1];
+		map.computeIfPresent(key, (k, old) -> {
+			index.remove(k);
+			removed[0] = true;
+			return null;
+		});
+		return removed[0];
+	}
+
+	@Override
+	public Set<String> keys() {
+		return new HashSet<>(map.keySet());
+	}
+
+	@Override
+	public Set<String> keysWithPrefix(String prefix) {
+		return index.withPrefix(prefix);
+	}
+
+	@Override
+	public LinkedHashMap<String, String> entriesAfter(String afterKey, int max) {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<>();
+		for (String key : index.keysAfter(afterKey, max)) {
+			String value = map.get(key);
+			if (value != null) // removed since we read the index
+				ret.put(key, value);
+		}
+		return ret;
+	}
+
+	@Override
+	public HashMap<String, String> copy() {
+		return new HashMap<>(map);
+	}
+
+	@Override
+	public Iterable<Map.Entry<String, String>> entries() {
+		return map.entrySet();
+	}
+
+	@Override
+	public String toString() {
+		return map.toString();
+	}
+}
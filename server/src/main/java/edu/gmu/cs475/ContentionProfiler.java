@@ -0,0 +1,209 @@
+package edu.gmu.cs475;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the hottest keys and the keys whose locks are most contended, in bounded memory.
+ * <p>
+ * Each ranking is a Space-Saving summary of at most topK keys: a key that isn't in the summary takes the place of the
+ * one with the smallest count, inheriting that count as its possible overestimate (its error). Any key whose true
+ * share is above 1/topK is guaranteed to be in the summary, so the hot keys show up no matter how many keys there are.
+ * <p>
+ * Reads, lock acquisitions and hold times are sampled (1 in sampleEvery), and their counts scaled back up, so the
+ * profiler costs almost nothing on uncontended paths. Waits for a contended lock are always recorded, since the
+ * thread is blocked anyway and rare long waits are exactly what we are looking for.
+ */
+public class ContentionProfiler {
+
+	private final int topK;
+	private final int sampleEvery;
+	private final long startedNanos = System.nanoTime();
+
+	private final TopKeys reads;
+	private final TopKeys lockAcquisitions;
+	private final TopKeys waitNanos;
+	private final TopKeys holdNanos;
+
+	/**
+	 * @param topK        how many keys each ranking keeps
+	 * @param sampleEvery record 1 in this many reads, lock acquisitions and hold times (1 records all of them)
+	 * @throws IllegalArgumentException if either argument is less than 1
+	 */
+	public ContentionProfiler(int topK, int sampleEvery) {
+		if (topK < 1 || sampleEvery < 1)
+			throw new IllegalArgumentException();
+		this.topK = topK;
+		this.sampleEvery = sampleEvery;
+		reads = new TopKeys(topK);
+		lockAcquisitions = new TopKeys(topK);
+		waitNanos = new TopKeys(topK);
+		holdNanos = new TopKeys(topK);
+	}
+
+	/**
+	 * @return true if the current event should be recorded
+	 */
+	boolean sample() {
+		return sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+	}
+
+	/**
+	 * Counts a read of key, if it is sampled
+	 */
+	void recordRead(String key) {
+		if (sample())
+			reads.add(key, sampleEvery);
+	}
+
+	/**
+	 * Counts a sampled lock acquisition (the caller has already called sample)
+	 */
+	void recordLock(String key) {
+		lockAcquisitions.add(key, sampleEvery);
+	}
+
+	/**
+	 * Adds the time a thread spent blocked waiting for key's lock
+	 */
+	void recordWait(String key, long nanos) {
+		waitNanos.add(key, nanos);
+	}
+
+	/**
+	 * Adds how long a sampled holder kept key's lock
+	 */
+	void recordHold(String key, long nanos) {
+		holdNanos.add(key, nanos * sampleEvery);
+	}
+
+	/**
+	 * @return the most read keys, most first; counts are estimates
+	 */
+	public List<TopKeys.Entry> getHottestReads() {
+		return reads.top();
+	}
+
+	/**
+	 * @return the most locked keys, most first; counts are estimates
+	 */
+	public List<TopKeys.Entry> getHottestLocks() {
+		return lockAcquisitions.top();
+	}
+
+	/**
+	 * @return the keys threads spent the most time waiting to lock, most first, in nanoseconds
+	 */
+	public List<TopKeys.Entry> getLongestWaits() {
+		return waitNanos.top();
+	}
+
+	/**
+	 * @return the keys whose locks were held the longest in total, most first, in (estimated) nanoseconds
+	 */
+	public List<TopKeys.Entry> getLongestHolds() {
+		return holdNanos.top();
+	}
+
+	/**
+	 * @return a human-readable report of every ranking
+	 */
+	public String report() {
+		StringBuilder out = new StringBuilder();
+		out.append("Contention profile: top ").append(topK).append(" keys, 1 in ").append(sampleEvery)
+				.append(" reads/locks sampled, running for ")
+				.append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedNanos)).append("s\n");
+		section(out, "Most read keys", reads.top(), false);
+		section(out, "Most locked keys", lockAcquisitions.top(), false);
+		section(out, "Most time waited for lock (ms)", waitNanos.top(), true);
+		section(out, "Most time lock held (ms)", holdNanos.top(), true);
+		return out.toString();
+	}
+
+	private static void section(StringBuilder out, String title, List<TopKeys.Entry> entries, boolean nanos) {
+		out.append(title).append(":\n");
+		if (entries.isEmpty())
+			out.append("  (none)\n");
+		for (TopKeys.Entry e : entries) {
+			out.append("  ").append(e.getKey()).append(' ');
+			if (nanos)
+				out.append(String.format("%.3f", e.getCount() / 1e6)).append(" (+/- ").append(String.format("%.3f", e.getError() / 1e6)).append(')');
+			else
+				out.append(e.getCount()).append(" (+/- ").append(e.getError()).append(')');
+			out.append('\n');
+		}
+	}
+
+	/**
+	 * A Space-Saving summary: the (approximately) heaviest keys seen, in a fixed number of counters
+	 */
+	public static final class TopKeys {
+		private final int capacity;
+		private final HashMap<String, Entry> entries;
+
+		TopKeys(int capacity) {
+			this.capacity = capacity;
+			this.entries = new HashMap<>(capacity * 2);
+		}
+
+		synchronized void add(String key, long weight) {
+			Entry e = entries.get(key);
+			if (e != null) {
+				e.count += weight;
+				return;
+			}
+			if (entries.size() < capacity) {
+				entries.put(key, new Entry(key, weight, 0));
+				return;
+			}
+			Entry min = null;
+			for (Entry candidate : entries.values())
+				if (min == null || candidate.count < min.count)
+					min = candidate;
+			entries.remove(min.key);
+			entries.put(key, new Entry(key, min.count + weight, min.count));
+		}
+
+		/**
+		 * @return a copy of the summary, heaviest first
+		 */
+		synchronized List<Entry> top() {
+			List<Entry> ret = new ArrayList<>(entries.size());
+			for (Entry e : entries.values())
+				ret.add(new Entry(e.key, e.count, e.error));
+			Collections.sort(ret, (a, b) -> Long.compare(b.count, a.count));
+			return ret;
+		}
+
+		/**
+		 * One key in the summary: its count is at most error more than its true count
+		 */
+		public static final class Entry {
+			private final String key;
+			private long count;
+			private final long error;
+
+			Entry(String key, long count, long error) {
+				this.key = key;
+				this.count = count;
+				this.error = error;
+			}
+
+			public String getKey() {
+				return key;
+			}
+
+			public long getCount() {
+				return count;
+			}
+
+			public long getError() {
+				return error;
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package edu.gmu.cs475;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * How members of a replicated server group reach each other over RMI (see RmiRaftNetwork)
+ */
+public interface IRaftPeer extends Remote {
+	public static final String RMI_NAME = "cs475IRaftPeer";
+
+	/**
+	 * Hands a message to this member; returns without waiting for it to be handled
+	 */
+	public void deliver(RaftMessage message) throws RemoteException;
+}
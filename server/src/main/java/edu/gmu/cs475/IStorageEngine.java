@@ -0,0 +1,65 @@
+package edu.gmu.cs475;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The storage engine that backs an {@link AbstractKeyValueServer}: a plain map from keys to values.
+ * <p>
+ * Implementations must be safe to call from many threads at once. None of these methods are passed a null key or value.
+ */
+public interface IStorageEngine {
+
+	/**
+	 * @param key key to retrieve
+	 * @return The value stored at the given key, or null if none exists
+	 */
+	String get(String key);
+
+	/**
+	 * Add (or overwrite) an item
+	 *
+	 * @param key   key to set
+	 * @param value value to store
+	 */
+	void put(String key, String value);
+
+	/**
+	 * @param key key to remove
+	 * @return true if the value was removed, false if not
+	 */
+	boolean remove(String key);
+
+	/**
+	 * @return A new set containing all of the keys currently stored, which the caller is free to modify
+	 */
+	Set<String> keys();
+
+	/**
+	 * @param prefix prefix to look for (e.g. a directory path)
+	 * @return A new set containing all of the keys currently stored that start with prefix
+	 */
+	Set<String> keysWithPrefix(String prefix);
+
+	/**
+	 * Reads one page of the store, in key order
+	 *
+	 * @param afterKey only keys strictly greater than this are returned, or null to start from the first key
+	 * @param max      largest number of entries to return
+	 * @return A new map holding up to max keys (and their values), iterating in key order
+	 */
+	LinkedHashMap<String, String> entriesAfter(String afterKey, int max);
+
+	/**
+	 * @return A new map containing all of the keys and values currently stored
+	 */
+	HashMap<String, String> copy();
+
+	/**
+	 * @return Every key and value currently stored, for iterating over the whole store (e.g. to snapshot it) without
+	 * blocking writers. Writes made while iterating may or may not be seen.
+	 */
+	Iterable<Map.Entry<String, String>> entries();
+}
@@ -0,0 +1,340 @@
+package edu.gmu.cs475;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Hands out one write lock (a {@link StampedLock}) per key.
+ * <p>
+ * There is no global monitor: looking up a key's lock only synchronizes with other threads that hash to the same
+ * bin of a {@link ConcurrentHashMap}. Each lock is reference counted by the threads that are holding or waiting
+ * for it, and is dropped from the table as soon as the last of them unlocks, so the table only ever holds the keys
+ * that are currently in use.
+ * <p>
+ * Many keys can also be locked at once under a single lease token, see {@link #lockAll(Collection)}.
+ * <p>
+ * Locks taken for remote clients ({@link #lockExpiring(String)} and {@link #lockAll(Collection)}) remember when they
+ * were last used (taken, or {@link #touch(String)}ed as the client writes the key), so that {@link #reapExpired(long)}
+ * can free the ones a crashed client never unlocked without breaking a long-running client that is still writing.
+ * <p>
+ * A {@link ContentionProfiler} can be attached at runtime to find the hottest and most contended keys.
+ */
+public class KeyLockManager {
+
+	/**
+	 * A key's lock, plus the number of threads that currently hold it or are waiting for it.
+	 * users is only read or written inside ConcurrentHashMap.compute for this key.
+	 */
+	private static final class LockEntry {
+		final StampedLock lock = new StampedLock();
+		int users;
+		// when the current holder took the lock, if its hold is sampled by the profiler, otherwise 0.
+		// Only written by the holder, while it holds the lock
+		long sampledSince;
+	}
+
+	/**
+	 * The keys locked under one lease, and the stamp for each of them
+	 */
+	private static final class Lease {
+		final String[] keys;
+		final long[] stamps;
+		final long acquiredNanos = System.nanoTime();
+		volatile long lastActiveNanos = acquiredNanos;
+
+		Lease(String[] keys, long[] stamps) {
+			this.keys = keys;
+			this.stamps = stamps;
+		}
+	}
+
+	/**
+	 * One key locked by lockExpiring
+	 */
+	private static final class Hold {
+		final long stamp;
+		final long acquiredNanos = System.nanoTime();
+		volatile long lastActiveNanos = acquiredNanos;
+
+		Hold(long stamp) {
+			this.stamp = stamp;
+		}
+	}
+
+	private final ConcurrentHashMap<String, LockEntry> locks = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<Long, Lease> leases = new ConcurrentHashMap<>();
+	// the lease each leased key is locked under, for touch
+	private final ConcurrentHashMap<String, Lease> leasedKeys = new ConcurrentHashMap<>();
+	// keys locked with lockExpiring; whoever removes a key's hold is the one that unlocks it
+	private final ConcurrentHashMap<String, Hold> holds = new ConcurrentHashMap<>();
+	private final AtomicLong nextLease = new AtomicLong(1);
+
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder contendedAcquisitions = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+
+	// null unless profiling is on
+	private volatile ContentionProfiler profiler;
+
+	/**
+	 * Locks (for writing) the given key, blocking until it is available
+	 *
+	 * @param key key to lock
+	 * @return stamp that must be passed to {@link #unlock(String, long)}
+	 * @throws NullPointerException if key is null
+	 */
+	public long lock(String key) {
+		if (key == null)
+			throw new NullPointerException();
+		ContentionProfiler p = profiler;
+		LockEntry entry = retain(key);
+		long stamp = entry.lock.tryWriteLock();
+		if (stamp == 0) {
+			contendedAcquisitions.increment();
+			long start = System.nanoTime();
+			stamp = entry.lock.writeLock();
+			long waited = System.nanoTime() - start;
+			waitNanos.add(waited);
+			if (p != null)
+				p.recordWait(key, waited);
+		}
+		acquisitions.increment();
+		if (p != null && p.sample()) {
+			p.recordLock(key);
+			entry.sampledSince = System.nanoTime();
+		} else {
+			entry.sampledSince = 0;
+		}
+		return stamp;
+	}
+
+	/**
+	 * Unlocks the given key, reclaiming its lock if nobody else is holding or waiting for it
+	 *
+	 * @param key   key to unlock
+	 * @param stamp stamp returned by {@link #lock(String)}
+	 * @throws IllegalMonitorStateException if the key is not locked with this stamp
+	 */
+	public void unlock(String key, long stamp) {
+		if (key == null)
+			throw new NullPointerException();
+		LockEntry entry = locks.get(key);
+		if (entry == null)
+			throw new IllegalMonitorStateException();
+		long sampledSince = entry.sampledSince; // read while we still hold the lock
+		entry.lock.unlockWrite(stamp); // throws before we touch the count if the stamp is wrong
+		ContentionProfiler p = profiler;
+		if (sampledSince != 0 && p != null)
+			p.recordHold(key, System.nanoTime() - sampledSince);
+		release(key);
+	}
+
+	/**
+	 * Like {@link #lock(String)}, but the lock can be freed by {@link #reapExpired(long)} if it is held for too long
+	 *
+	 * @param key key to lock
+	 * @return stamp that must be passed to {@link #unlock(String, long)}
+	 */
+	public long lockExpiring(String key) {
+		long stamp = lock(key);
+		holds.put(key, new Hold(stamp));
+		return stamp;
+	}
+
+	/**
+	 * Unlocks a key locked with {@link #lockExpiring(String)}
+	 *
+	 * @param key   key to unlock
+	 * @param stamp stamp returned by lockExpiring
+	 * @throws IllegalMonitorStateException if the key is not locked with this stamp, or the lock expired
+	 */
+	public void unlockExpiring(String key, long stamp) {
+		if (key == null)
+			throw new NullPointerException();
+		Hold hold = holds.get(key);
+		if (hold == null || hold.stamp != stamp || !holds.remove(key, hold))
+			throw new IllegalMonitorStateException("Lock on " + key + " is not held with this stamp, or expired");
+		unlock(key, stamp);
+	}
+
+	/**
+	 * Records that a key is being used (e.g. written) by whoever holds it, so that its lockExpiring lock or lockAll
+	 * lease, if any, is not reaped as idle. Does nothing if the key isn't locked for a remote client.
+	 *
+	 * @param key key that was used
+	 */
+	public void touch(String key) {
+		long now = System.nanoTime();
+		Hold hold = holds.get(key);
+		if (hold != null)
+			hold.lastActiveNanos = now;
+		Lease lease = leasedKeys.get(key);
+		if (lease != null)
+			lease.lastActiveNanos = now;
+	}
+
+	/**
+	 * Frees every lease from lockAll, and every lock from lockExpiring, that has gone unused (neither taken nor
+	 * touched) for longer than the given time. The holder's later unlock fails with IllegalMonitorStateException.
+	 *
+	 * @param maxIdleNanos longest a lock may go unused
+	 * @return the number of leases and locks freed
+	 */
+	public int reapExpired(long maxIdleNanos) {
+		long now = System.nanoTime();
+		int reaped = 0;
+		for (Map.Entry<Long, Lease> e : leases.entrySet()) {
+			Lease lease = e.getValue();
+			if (now - lease.lastActiveNanos > maxIdleNanos && leases.remove(e.getKey(), lease)) {
+				unlockLease(lease);
+				reaped++;
+			}
+		}
+		for (Map.Entry<String, Hold> e : holds.entrySet()) {
+			Hold hold = e.getValue();
+			if (now - hold.lastActiveNanos > maxIdleNanos && holds.remove(e.getKey(), hold)) {
+				locks.get(e.getKey()).lock.unlockWrite(hold.stamp);
+				release(e.getKey());
+				reaped++;
+			}
+		}
+		return reaped;
+	}
+
+	/**
+	 * Locks (for writing) every given key, always in natural (sorted) order so that two callers locking overlapping
+	 * sets of keys can't deadlock
+	 *
+	 * @param keys keys to lock
+	 * @return lease token (never 0) that must be passed to {@link #unlockAll(long)}
+	 * @throws NullPointerException if keys, or any key in it, is null
+	 */
+	public long lockAll(Collection<String> keys) {
+		List<String> ordered = new ArrayList<>(keys);
+		Collections.sort(ordered);
+		String[] lockedKeys = ordered.toArray(new String[ordered.size()]);
+		long[] stamps = new long[lockedKeys.length];
+		for (int i = 0; i < lockedKeys.length; i++)
+			stamps[i] = lock(lockedKeys[i]);
+		long lease = nextLease.getAndIncrement();
+		Lease held = new Lease(lockedKeys, stamps);
+		for (String key : lockedKeys)
+			leasedKeys.put(key, held);
+		leases.put(lease, held);
+		return lease;
+	}
+
+	/**
+	 * Releases every lock held under the given lease
+	 *
+	 * @param lease lease token returned by {@link #lockAll(Collection)}
+	 * @throws IllegalMonitorStateException if there is no such lease (or it was already released)
+	 */
+	public void unlockAll(long lease) {
+		Lease held = leases.remove(lease);
+		if (held == null)
+			throw new IllegalMonitorStateException();
+		unlockLease(held);
+	}
+
+	/**
+	 * Unlocks every key of a lease that has already been taken out of the lease table
+	 */
+	private void unlockLease(Lease lease) {
+		for (int i = lease.keys.length - 1; i >= 0; i--) {
+			leasedKeys.remove(lease.keys[i], lease); // before unlocking, so we never remove the next holder's lease
+			unlock(lease.keys[i], lease.stamps[i]);
+		}
+	}
+
+	/**
+	 * Starts recording lock acquisitions, waits and hold times to the given profiler, or stops if it is null
+	 *
+	 * @param profiler profiler to record to, or null
+	 */
+	public void setProfiler(ContentionProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Lists the locks that remote clients (lockExpiring and lockAll) are holding right now, longest held first, so the
+	 * holder that is blocking everyone else stands out
+	 *
+	 * @param max most locks to list
+	 * @return one line per lock: the key (or the keys under a lease) and how long it has been held
+	 */
+	public List<String> describeLongestHeld(int max) {
+		long now = System.nanoTime();
+		List<Map.Entry<Long, String>> held = new ArrayList<>();
+		for (Map.Entry<String, Hold> e : holds.entrySet())
+			held.add(new AbstractMap.SimpleEntry<>(now - e.getValue().acquiredNanos, e.getKey()));
+		for (Map.Entry<Long, Lease> e : leases.entrySet()) {
+			Lease lease = e.getValue();
+			String keys = lease.keys.length == 0 ? "" : lease.keys[0] + (lease.keys.length > 1 ? " and " + (lease.keys.length - 1) + " more" : "");
+			held.add(new AbstractMap.SimpleEntry<>(now - lease.acquiredNanos, "lease " + e.getKey() + ": " + keys));
+		}
+		held.sort((a, b) -> Long.compare(b.getKey(), a.getKey()));
+		List<String> ret = new ArrayList<>();
+		for (Map.Entry<Long, String> e : held.subList(0, Math.min(max, held.size())))
+			ret.add(e.getValue() + " held " + TimeUnit.NANOSECONDS.toMillis(e.getKey()) + "ms");
+		return ret;
+	}
+
+	/**
+	 * @return the number of lockAll leases that are currently held
+	 */
+	public int getLeaseCount() {
+		return leases.size();
+	}
+
+	private LockEntry retain(String key) {
+		return locks.compute(key, (k, entry) -> {
+			if (entry == null)
+				entry = new LockEntry();
+			entry.users++;
+			return entry;
+		});
+	}
+
+	private void release(String key) {
+		locks.computeIfPresent(key, (k, entry) -> --entry.users == 0 ? null : entry);
+	}
+
+	/**
+	 * @return the number of keys that currently have a lock allocated (held or waited on)
+	 */
+	public int getLiveLockCount() {
+		return locks.size();
+	}
+
+	/**
+	 * @return total number of times a lock was acquired
+	 */
+	public long getAcquisitionCount() {
+		return acquisitions.sum();
+	}
+
+	/**
+	 * @return number of acquisitions that found the lock already held and had to wait
+	 */
+	public long getContendedAcquisitionCount() {
+		return contendedAcquisitions.sum();
+	}
+
+	/**
+	 * @return total time (in nanoseconds) that threads spent waiting for contended locks
+	 */
+	public long getTotalWaitNanos() {
+		return waitNanos.sum();
+	}
+}
@@ -1,364 +1,1788 @@
-package edu.gmu.cs475;
-
-
-import java.io.IOException;
-import java.rmi.RemoteException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.StampedLock;
-
-public class KeyValueServer extends AbstractKeyValueServer {
-	
-	// a map to keep track of clients & port number that have the replicas
-	private Map<Integer, IKeyValueReplica> clients = new HashMap<>();
-	
-	// a set of updates that were not committed yet
-	private Set<ArrayList<String>> notCommittedUpdates = new HashSet<>();
-	
-	// a map to keep track of stampedLocks
-	private Map<String, StampedLock> stampedLocks = new HashMap<>();
-	
-	private ReentrantReadWriteLock ReadWriteLock = new ReentrantReadWriteLock();
-	
-	private volatile long transactionID = 1;
-
-	/**
-	 * Retrieve an element from this key value store
-	 *
-	 * @param key the key to retrieve
-	 * @return The value mapped to this key, if one exists, otherwise null
-	 * @throws NullPointerException if key is null
-	 */
-	public String get(String key) {
-		
-		if(key == null) {
-			throw new NullPointerException();
-		}
-		return (String) _get(key);
-	}
-
-	/**
-	 * Lists all of the keys that are currently known to this key-value store
-	 * <p>
-	 * * @return A set containing all currently valid keys
-	 */
-	public Set<String> listKeys() {
-		return _listKeys();
-	}
-
-	/**
-	 * Lists the contents of a directory (non-recursively)
-	 *
-	 * @param directory path of the directory
-	 * @return unsorted set of the files and directories inside of this directory, or null if the directory doesn't exist.
-	 * @throws NullPointerException if key is null
-	 */
-	public Set<String> listDirectory(String directory) {
-		
-		if(directory == null) {
-			throw new NullPointerException();
-		}
-		Set<String> keys = listKeys();
-		HashSet<String> ret = new HashSet<>();
-		for (String s : keys) {
-			if (s.startsWith(directory))
-				ret.add(s);
-		}
-		return ret;
-	}
-
-	/**
-	 * Sets a key to be the given value
-	 *
-	 * Creates a transaction (for part 1, always uses 0 as transaction id), then locks the key, then calls innerWriteKey on each replica.
-	 * If all replicas succeed, commits the transaction and sets the key locally. Otherwise, aborts the transaction.
-	 *
-	 * @param key   key to set
-	 * @param value value to store
-	 * @throws NullPointerException if key or value is null
-	 * @throws IOException if write fails (also causes transaction to be aborted
-	 */
-	public void set(String key, String value) throws IOException{
-		//TODO transactions, replication!
-		if(key == null || value == null) {
-			throw new NullPointerException();
-		}
-		
-		ReadWriteLock.readLock().lock(); 
-		
-		long stamp = lockKey(key);
-		
-		// new transaction ID for each time that set is called
-		long xid = transactionID;
-		transactionID++;  
-				
-		boolean writePass = false;
-		
-		try {
-			//the server tells clients to get ready to do the update
-			Set<Integer> keySet = clients.keySet();
-			for(int i : keySet) {
-				IKeyValueReplica replica = clients.get(i);
-				writePass = replica.innerWriteKey(key, value, xid);
-				
-				if(writePass == false) { //if one write fails, or one client says no
-					throw new IOException();
-				}
-			}
-			
-			//If all replicas succeed, commits the transaction and sets the key locally
-			for(int i : keySet) {
-				IKeyValueReplica replica = clients.get(i);
-				replica.commitTransaction(xid);
-			}
-			
-			_set(key, value);
-						
-		}
-		catch (Exception e) { // if write fails or exception (client votes not to commit), aborts the transaction.
-			Set<Integer> keySet = clients.keySet();
-			
-			for(int i : keySet) {
-				IKeyValueReplica replica = clients.get(i);
-				replica.abortTransaction(xid);
-			}
-			
-			throw new IOException(); //throw an IOException if a single write failed
-			
-		}
-		finally {
-			unLockKey(key, stamp);
-			ReadWriteLock.readLock().unlock();
-		}	
-	}
-
-	/**
-	 * Sets a key to be the given value
-	 *
-	 * Does NOT create a transaction, but instead just calls innerWriteKey on each replica. No replica can join or depart
-	 * during a call to setInTransaction.
-	 * If all replicas succeed, returns true, otherwise returns false.
-	 *
-	 * @param key   key to set
-	 * @param value value to store
-	 * @throws NullPointerException if key or value is null
-	 */
-	@Override
-	public boolean setInTransaction(String key, String value, long xid) throws RemoteException {
-		//TODO
-		if(key == null || value == null) {
-			throw new NullPointerException();
-		}
-		
-		ReadWriteLock.readLock().lock();
-		
-		boolean writePass = false;
-		
-		try {
-			//reach all of the clients and tell them that they should get ready to do the update
-			Set<Integer> keySet = clients.keySet();
-			
-			for(int i : keySet) {
-				IKeyValueReplica replica = clients.get(i);
-				writePass = replica.innerWriteKey(key, value, xid);
-				
-				ArrayList<String> keyValuePair = new ArrayList<String>();
-				keyValuePair.add(key);
-				keyValuePair.add(value);
-				notCommittedUpdates.add(keyValuePair);
-				
-				//if one write fails, or one client says no
-				if(writePass == false) { 
-					break;
-				}
-			}
-		}
-		finally {
-			ReadWriteLock.readLock().unlock();
-		}
-		
-		return writePass;
-	}
-
-	/**
-	 * Locks (for writing) the given key and returns the stamp
-	 *
-	 * @param name key
-	 * @return stamp for lock
-	 */
-	@Override
-	public long lockKey(String name) {
-		//TODO
-		
-		long stamp = acquireLock(name).writeLock();
-		
-		return stamp;
-	}
-
-	/**
-	 * Unlocks the specified key, given the specified stamp
-	 *
-	 * @param name
-	 * @param stamp
-	 */
-	@Override
-	public void unLockKey(String name, long stamp) {
-		//TODO
-		
-		acquireLock(name).unlockWrite(stamp);
-	}
-
-
-	/**
-	 * Registers that a client is joining the server. Performs whatever bookkeeping is necessary, and returns a copy
-	 * of the current key/values set
-	 *
-	 * @param hostname   the hostname of the replica talking to you (passed again at disconnect)
-	 * @param portNumber the port number of the replica talking to you (passed again at disconnect)
-	 * @param replica    The RMI object to use to signal to the replica
-	 * @return
-	 */
-	@Override
-	public HashMap<String, String> registerClient(String hostname, int portNumber, IKeyValueReplica replica) {
-		//TODO - ensure no clients are able to receive a copy of the underlying map until any pending commit/abort's are finished
-		
-		ReadWriteLock.writeLock().lock();
-		try {
-			
-			clients.put(portNumber, replica); //registers that a client is joining the server
-			
-			return copyUnderlyingMap(); //returns a copy of the current key/values set
-		}
-		finally {
-			ReadWriteLock.writeLock().unlock();
-		}
-		
-	}
-
-	/**
-	 * Request a new transaction ID to represent a new, client-managed transaction
-	 *
-	 * @return Server-provided ID that will be used in the future to commit or abort this transaction
-	 */
-	@Override
-	public long startNewTransaction() {
-		//TODO
-		
-		long xid = transactionID;
-		transactionID++; //a new transaction ID to represent a new, client-managed transaction
-		
-		return xid;
-	}
-
-	/**
-	 * Broadcast to all replicas (and make updates locally as necessary on the server) that a transaction should be committed
-	 *
-	 * You must not allow a client to register or depart during a commit.
-	 *
-	 * @param xid transaction ID to be committed (from startNewTransaction)
-	 * @throws RemoteException if any RemoteException occurs in the process of committing
-	 */
-	@Override
-	public void issueCommitTransaction(long xid) throws RemoteException {
-		//TODO
-		ReadWriteLock.readLock().lock();
-		try {
-			//Broadcast to all replicas that a transaction should be committed
-			Set<Integer> keySet = clients.keySet();
-			for(int i : keySet) {
-				IKeyValueReplica replica = clients.get(i);
-				replica.commitTransaction(xid);
-			}
-			
-			for(ArrayList<String> keyValuePair : notCommittedUpdates){
-				String key = keyValuePair.get(0);
-				String value = keyValuePair.get(1);
-				
-				_set(key, value); //make updates locally as necessary on the server
-			}
-			
-			notCommittedUpdates.clear(); //clear the updates after committing
-
-		}
-		finally {
-			ReadWriteLock.readLock().unlock();
-		}
-		
-	}
-
-	/**
-	 * Broadcast to all replicas (and make updates locally as necessary on the server) that a transaction should be aborted
-	 *
-	 * You must not allow a client to register or depart during a commit.
-	 *
-	 * @param xid transaction ID to be committed (from startNewTransaction)
-	 * @throws RemoteException if any RemoteException occurs in the process of committing
-	 */
-	@Override
-	public void issueAbortTransaction(long xid) throws RemoteException {
-		//TODO
-		
-		ReadWriteLock.readLock().lock();
-		try {
-			//Broadcast to all replicas that a transaction should be aborted
-			Set<Integer> keySet = clients.keySet();
-			for(int i : keySet) {
-				IKeyValueReplica replica = clients.get(i);
-				replica.abortTransaction(xid);
-			}
-			
-			notCommittedUpdates.clear(); //clear the updates after the abortion
-
-		}
-		finally {
-			ReadWriteLock.readLock().unlock();
-		}
-	}
-
-
-	/**
-	 * Notifies the server that a cache client is shutting down (and hence no longer will be involved in writes)
-	 *
-	 * @param hostname   The hostname of the client that is disconnecting (same hostname specified when it registered)
-	 * @param portNumber The port number of the client that is disconnecting (same port number specified when it registered)
-	 */
-	@Override
-	public void cacheDisconnect(String hostname, int portNumber) {
-		//TODO - ensure no clients are able to complete this method until any pending commits/abort's are finished
-		
-		ReadWriteLock.writeLock().lock();
-		try {
-			clients.remove(portNumber); //disconnecting a client with the specified port number
-		}
-		finally {
-			ReadWriteLock.writeLock().unlock();
-		}
-	}
-	
-	/**
-	 * helper method to acquire a stampedLock
-	 * @param key
-	 * @return
-	 */
-	synchronized protected StampedLock acquireLock(String key){
-
-		if(stampedLocks.containsKey(key) == false) {
-
-			StampedLock lock = new StampedLock();
-			stampedLocks.put(key, lock);
-
-			return lock;
-
-		}
-		else{
-
-			return stampedLocks.get(key);
-
-		}
-	}
-}
+package edu.gmu.cs475;
+
+
+import edu.gmu.cs475.ReplicaHistograms.Operation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class KeyValueServer extends AbstractKeyValueServer {
+
+	// upper bound on the number of replica calls that are in flight at once
+	static final int REPLICA_FANOUT_THREADS = 64;
+
+	// most transaction IDs one call to leaseTransactionIds can hand out
+	static final int MAX_TRANSACTION_ID_LEASE = 1 << 20;
+
+	// how long each prepare/commit/abort phase may wait for the slowest replica by default
+	static final long DEFAULT_REPLICA_TIMEOUT_MILLIS = 10000;
+
+	// how long a transaction (or a lock from lockKey/lockKeys) may sit idle before the reaper aborts it by default;
+	// well above the three replica phases a live transaction can spend waiting
+	static final long DEFAULT_TRANSACTION_TIMEOUT_MILLIS = 60000;
+
+	// how many timeouts an aborted transaction is remembered for, so its late commit is refused
+	static final int EXPIRED_TRANSACTION_RETENTION = 10;
+
+	// how many keys each ranking of the contention profiler keeps
+	static final int PROFILER_TOP_KEYS = 20;
+
+	// how many currently held locks the contention profile lists
+	static final int PROFILER_HELD_LOCKS = 10;
+
+	// how many transaction IDs the leader of a server group reserves through the group's log at a time, beyond the ones
+	// it needs right away
+	static final long TRANSACTION_ID_RESERVATION = 1L << 16;
+
+	/**
+	 * How many replicas must have a commit before it finishes
+	 */
+	public enum CommitMode {
+		/** every replica, in one broadcast per phase (the default) */
+		ALL,
+		/** a majority of the replicas; the others catch up from the replication log */
+		QUORUM,
+		/** every synchronous replica (named by port); the others catch up from the replication log */
+		SYNCHRONOUS
+	}
+	
+	// a map to keep track of clients & port number that have the replicas
+	private Map<Integer, IKeyValueReplica> clients = new HashMap<>();
+
+	// how many registrations there have been, and which of them each replica joined with (both under the write lock),
+	// so a commit can tell which replicas joined after its transaction's writes were sent
+	private long registrations;
+	private final Map<Integer, Long> joinedAt = new HashMap<>();
+
+	// replicas that registered with registerClientStreaming, which are told each commit's version (under the write lock)
+	private final Set<IKeyValueReplica> versionedReplicas = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	// each replica port's round trip histograms; kept after the replica leaves, like the metrics themselves
+	private final ConcurrentHashMap<Integer, ReplicaHistograms> replicaHistograms = new ConcurrentHashMap<>();
+	
+	// the updates that were not committed yet, by transaction ID, so concurrent transactions don't see each other's writes
+	private final ConcurrentHashMap<Long, PendingTransaction> transactions = new ConcurrentHashMap<>();
+
+	// transactions the reaper aborted, with when it did, so a late commit fails instead of silently committing nothing
+	private final ConcurrentHashMap<Long, Long> expiredTransactions = new ConcurrentHashMap<>();
+	
+	// per-key write locks, reclaimed once nobody holds or waits for them
+	private final KeyLockManager lockManager = new KeyLockManager();
+	
+	private ReentrantReadWriteLock ReadWriteLock = new ReentrantReadWriteLock();
+	
+	// next transaction ID to hand out
+	private final AtomicLong transactionID = new AtomicLong(1);
+
+	// largest version whose commit has finished: a position in commit order, which replicas compare theirs to
+	private final AtomicLong lastCommittedXid = new AtomicLong();
+
+	// deadline (in ms) for each phase of a broadcast to the replicas
+	private volatile long replicaTimeoutMillis = DEFAULT_REPLICA_TIMEOUT_MILLIS;
+
+	// sends the prepare/commit/abort messages to all replicas at the same time
+	private final ExecutorService replicaExecutor = newReplicaExecutor();
+
+	// disconnects evicted or dropped replicas, one at a time; kept off replicaExecutor because a disconnect waits for the
+	// write lock, and queued behind it, the broadcasts of commits holding the read lock would time out
+	private final ExecutorService disconnectExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "kvstore-replica-disconnect");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// if set, every commit is logged here before it is made visible
+	private volatile WriteAheadLog writeAheadLog;
+
+	// if set, this server is one member of a replicated group, and commits go through the group's log
+	private volatile RaftNode raft;
+
+	// whether this server is currently serving as its group's leader
+	private volatile boolean leading;
+
+	// while leading a server group, the end of the transaction IDs reserved through the group's log: the group has
+	// committed every ID below it as taken, so the next leader starts past it. Only written under xidReservationLock
+	private volatile long reservedXidEnd;
+	private final Object xidReservationLock = new Object();
+
+	// sends commits to the replicas in QUORUM or SYNCHRONOUS mode, null in ALL mode
+	private volatile QuorumReplicator replicator;
+
+	// if set, compacted snapshots of the whole store are written here
+	private volatile SnapshotStore snapshotStore;
+
+	// last transaction ID covered by the latest snapshot, so unchanged stores aren't snapshotted again
+	private volatile long lastSnapshotXid;
+
+	// only one snapshot is taken at a time
+	private final Object snapshotLock = new Object();
+
+	private ScheduledExecutorService snapshotScheduler;
+
+	// transactions and locks idle for longer than this are aborted/freed by reapExpiredTransactions
+	private volatile long transactionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TRANSACTION_TIMEOUT_MILLIS);
+
+	private ScheduledExecutorService reaperScheduler;
+
+	// counters and latency histograms, read through JMX or getMetrics
+	private final MetricsRegistry metrics = newMetrics();
+	private final Histogram getNanos = metrics.histogram("get_nanos");
+	private final Histogram setNanos = metrics.histogram("set_nanos");
+	private final Histogram setInTransactionNanos = metrics.histogram("set_in_transaction_nanos");
+	private final Histogram setManyInTransactionNanos = metrics.histogram("set_many_in_transaction_nanos");
+	private final Histogram lockKeyWaitNanos = metrics.histogram("lock_key_wait_nanos");
+	private final Histogram lockKeysWaitNanos = metrics.histogram("lock_keys_wait_nanos");
+	private final LongAdder commits = metrics.counter("commits");
+	private final LongAdder replicaEvictions = metrics.counter("replica_evictions");
+	private final LongAdder aborts = metrics.counter("aborts");
+	private final LongAdder optimisticConflicts = metrics.counter("optimistic_conflicts");
+	private final LongAdder expiredTransactionCount = metrics.counter("expired_transactions");
+
+	// records hot and contended keys while profiling is on, otherwise null
+	private volatile ContentionProfiler profiler;
+
+	public KeyValueServer() {
+		super();
+	}
+
+	/**
+	 * Creates a server that keeps its keys and values in the given storage engine
+	 *
+	 * @param storageEngine engine to store keys and values in
+	 */
+	public KeyValueServer(IStorageEngine storageEngine) {
+		super(storageEngine);
+	}
+
+	/**
+	 * Retrieve an element from this key value store
+	 *
+	 * @param key the key to retrieve
+	 * @return The value mapped to this key, if one exists, otherwise null
+	 * @throws NullPointerException if key is null
+	 */
+	public String get(String key) {
+		
+		if(key == null) {
+			throw new NullPointerException();
+		}
+		long start = System.nanoTime();
+		String value = (String) _get(key);
+		getNanos.recordSince(start);
+		ContentionProfiler p = profiler;
+		if(p != null) {
+			p.recordRead(key);
+		}
+		return value;
+	}
+
+	/**
+	 * Lists all of the keys that are currently known to this key-value store
+	 * <p>
+	 * * @return A set containing all currently valid keys
+	 */
+	public Set<String> listKeys() {
+		return _listKeys();
+	}
+
+	/**
+	 * Lists the contents of a directory (non-recursively)
+	 *
+	 * @param directory path of the directory
+	 * @return unsorted set of the files and directories inside of this directory, or null if the directory doesn't exist.
+	 * @throws NullPointerException if key is null
+	 */
+	public Set<String> listDirectory(String directory) {
+		
+		if(directory == null) {
+			throw new NullPointerException();
+		}
+		return _listPrefix(directory);
+	}
+
+	/**
+	 * Sets a key to be the given value
+	 *
+	 * Creates a transaction (for part 1, always uses 0 as transaction id), then locks the key, then calls innerWriteKey on all replicas
+	 * concurrently. If all replicas succeed, commits the transaction (again on all replicas at once) and sets the key locally.
+	 * Otherwise, aborts the transaction.
+	 *
+	 * @param key   key to set
+	 * @param value value to store
+	 * @throws NullPointerException if key or value is null
+	 * @throws IOException if write fails (also causes transaction to be aborted
+	 */
+	public void set(String key, String value) throws IOException{
+		//TODO transactions, replication!
+		if(key == null || value == null) {
+			throw new NullPointerException();
+		}
+		
+		checkLeader();
+		long start = System.nanoTime();
+		ReadWriteLock.readLock().lock(); 
+		
+		long stamp = lockManager.lock(key);
+		
+		try {
+			// new transaction ID for each time that set is called
+			long xid = takeTransactionIds(1);
+			
+			//the server tells all clients at once to get ready to do the update, and commits it if they all agree
+			commit(xid, Collections.singletonMap(key, value), Operation.INNER_WRITE_KEY, replica -> replica.innerWriteKey(key, value, xid), clients.entrySet());
+		}
+		catch (NotLeaderException e) { // lost leadership mid-write: tell the client to find the new leader
+			throw e;
+		}
+		catch (RemoteException e) { // a write failed or a client voted not to commit, so the transaction was aborted
+			throw new IOException(e); //throw an IOException if a single write failed
+		}
+		finally {
+			lockManager.unlock(key, stamp);
+			ReadWriteLock.readLock().unlock();
+			setNanos.recordSince(start);
+		}	
+	}
+
+	/**
+	 * Sets a key to be the given value
+	 *
+	 * Does NOT create a transaction, but instead just calls innerWriteKey on all replicas concurrently. No replica can join or depart
+	 * during a call to setInTransaction.
+	 * If all replicas succeed, returns true, otherwise returns false.
+	 *
+	 * @param key   key to set
+	 * @param value value to store
+	 * @throws NullPointerException if key or value is null
+	 */
+	@Override
+	public boolean setInTransaction(String key, String value, long xid) throws RemoteException {
+		//TODO
+		if(key == null || value == null) {
+			throw new NullPointerException();
+		}
+		
+		checkLeader();
+		long start = System.nanoTime();
+		ReadWriteLock.readLock().lock();
+		
+		try {
+			if(expiredTransactions.containsKey(xid)) {
+				return false;
+			}
+			PendingTransaction txn = transactions.computeIfAbsent(xid, id -> new PendingTransaction(new WriteSet(), registrations));
+			synchronized(txn) {
+				if(txn.prepared) { //its replicas have voted on its writes already
+					return false;
+				}
+				txn.writes.add(key, value);
+			}
+			txn.touch();
+			lockManager.touch(key); // a client still writing a key it locked isn't idle
+			if(replicator != null) { //the replicas get the writes with the commit
+				return true;
+			}
+			
+			//reach all of the clients at once and tell them that they should get ready to do the update
+			//if one write fails, or one client says no, this is false
+			return broadcast(Operation.INNER_WRITE_KEY, replica -> replica.innerWriteKey(key, value, xid));
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+			setInTransactionNanos.recordSince(start);
+		}
+	}
+
+	/**
+	 * Sets many keys as part of the same transaction
+	 *
+	 * Like setInTransaction, but sends every key/value pair to each replica in one innerWriteKeys message, so a
+	 * transaction costs one round trip per replica instead of one per key per replica. No replica can join or depart
+	 * during a call to setManyInTransaction.
+	 *
+	 * @param values map from each key to set to the value to store
+	 * @param xid    transaction ID (from startNewTransaction)
+	 * @return true if all replicas succeed, otherwise false
+	 * @throws NullPointerException if values, or any key or value in it, is null
+	 */
+	@Override
+	public boolean setManyInTransaction(HashMap<String, String> values, long xid) throws RemoteException {
+		if(values == null) {
+			throw new NullPointerException();
+		}
+		for(Map.Entry<String, String> e : values.entrySet()) {
+			if(e.getKey() == null || e.getValue() == null) {
+				throw new NullPointerException();
+			}
+		}
+		
+		checkLeader();
+		long start = System.nanoTime();
+		ReadWriteLock.readLock().lock();
+		
+		try {
+			if(expiredTransactions.containsKey(xid)) {
+				return false;
+			}
+			PendingTransaction txn = transactions.get(xid);
+			if(txn == null) {
+				txn = transactions.computeIfAbsent(xid, id -> new PendingTransaction(new WriteSet(values.size()), registrations));
+			}
+			synchronized(txn) {
+				if(txn.prepared) {
+					return false;
+				}
+				txn.writes.addAll(values);
+			}
+			txn.touch();
+			for(String key : values.keySet()) {
+				lockManager.touch(key);
+			}
+			if(replicator != null) { //the replicas get the writes with the commit
+				return true;
+			}
+			
+			//one message per replica carrying the whole batch, sent to all replicas at once
+			return broadcast(Operation.INNER_WRITE_KEYS, replica -> replica.innerWriteKeys(values, xid));
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+			setManyInTransactionNanos.recordSince(start);
+		}
+	}
+
+	/**
+	 * Locks (for writing) the given key and returns the stamp
+	 *
+	 * @param name key
+	 * @return stamp for lock
+	 */
+	@Override
+	public long lockKey(String name) {
+		//TODO
+		
+		long start = System.nanoTime();
+		long stamp = lockManager.lockExpiring(name); // freed by the transaction reaper if the client never unlocks it
+		lockKeyWaitNanos.recordSince(start);
+		return stamp;
+	}
+
+	/**
+	 * Unlocks the specified key, given the specified stamp
+	 *
+	 * @param name
+	 * @param stamp
+	 */
+	@Override
+	public void unLockKey(String name, long stamp) {
+		//TODO
+		
+		lockManager.unlockExpiring(name, stamp);
+	}
+
+	/**
+	 * Locks (for writing) all of the given keys, in sorted order, and returns a lease covering all of them
+	 *
+	 * @param names keys to lock
+	 * @return lease token for unlockKeys
+	 * @throws NullPointerException if names, or any key in it, is null
+	 */
+	@Override
+	public long lockKeys(SortedSet<String> names) {
+		if(names == null) {
+			throw new NullPointerException();
+		}
+		long start = System.nanoTime();
+		long lease = lockManager.lockAll(names);
+		lockKeysWaitNanos.recordSince(start);
+		return lease;
+	}
+
+	/**
+	 * Unlocks every key held under the given lease
+	 *
+	 * @param lease lease token from lockKeys
+	 */
+	@Override
+	public void unlockKeys(long lease) {
+		lockManager.unlockAll(lease);
+	}
+
+
+	/**
+	 * Registers that a client is joining the server. Performs whatever bookkeeping is necessary, and returns a copy
+	 * of the current key/values set
+	 *
+	 * @param hostname   the hostname of the replica talking to you (passed again at disconnect)
+	 * @param portNumber the port number of the replica talking to you (passed again at disconnect)
+	 * @param replica    The RMI object to use to signal to the replica
+	 * @return
+	 */
+	@Override
+	public HashMap<String, String> registerClient(String hostname, int portNumber, IKeyValueReplica replica) {
+		//TODO - ensure no clients are able to receive a copy of the underlying map until any pending commit/abort's are finished
+		
+		ReadWriteLock.writeLock().lock();
+		try {
+			
+			replicaHistograms(portNumber);
+			clients.put(portNumber, replica); //registers that a client is joining the server
+			joinedAt.put(portNumber, ++registrations);
+			if(replicator != null) {
+				replicator.add(portNumber, replica, false);
+			}
+			
+			return copyUnderlyingMap(); //returns a copy of the current key/values set
+		}
+		finally {
+			ReadWriteLock.writeLock().unlock();
+		}
+		
+	}
+
+	/**
+	 * Registers a replica (looked up over RMI) with this server; in a server group, only the leader accepts replicas
+	 *
+	 * @throws NotLeaderException if this server is a group member but not its leader
+	 */
+	@Override
+	public HashMap<String, String> registerClient(String hostname, int portNumber) throws RemoteException {
+		checkLeader();
+		return super.registerClient(hostname, portNumber);
+	}
+
+	/**
+	 * Registers a replica (looked up over RMI) with this server, streaming; in a server group, only the leader accepts
+	 * replicas
+	 *
+	 * @throws NotLeaderException if this server is a group member but not its leader
+	 */
+	@Override
+	public BootstrapChunk registerClientStreaming(String hostname, int portNumber, int maxEntries) throws RemoteException {
+		checkLeader();
+		return super.registerClientStreaming(hostname, portNumber, maxEntries);
+	}
+
+	/**
+	 * Registers that a client is joining the server, without copying the whole store.
+	 *
+	 * Only adding the replica to the set of clients waits for pending commits/aborts to finish; from then on the replica
+	 * receives every write (a transaction that sent its writes to the replicas before this one joined sends them to it
+	 * again when it commits, so no commit finishing after the registration is missed), and the existing keys are read from the store a chunk at a time while writes continue.
+	 * Every value in the store was committed to all registered replicas before it became visible, so a chunk can never
+	 * hold a value newer than one the replica already got directly. In QUORUM or SYNCHRONOUS mode a value can become
+	 * visible before this replica has it, but the replica then gets that write (and every later one) in commit order.
+	 *
+	 * @param hostname   the hostname of the replica talking to you (passed again at disconnect)
+	 * @param portNumber the port number of the replica talking to you (passed again at disconnect)
+	 * @param replica    The RMI object to use to signal to the replica
+	 * @param maxEntries largest number of entries to put in the first chunk
+	 * @return the first chunk of keys and values
+	 */
+	@Override
+	public BootstrapChunk registerClientStreaming(String hostname, int portNumber, IKeyValueReplica replica, int maxEntries) {
+		long version;
+		ReadWriteLock.writeLock().lock();
+		try {
+			replicaHistograms(portNumber);
+			clients.put(portNumber, replica); //registers that a client is joining the server
+			joinedAt.put(portNumber, ++registrations);
+			versionedReplicas.add(replica);
+			if(replicator != null) {
+				replicator.add(portNumber, replica, true);
+			}
+			version = transactionID.get();
+		}
+		finally {
+			ReadWriteLock.writeLock().unlock();
+		}
+		return getBootstrapChunk(version, null, maxEntries);
+	}
+
+	/**
+	 * Reads the next chunk of keys and values (in key order) for a joining replica. Does not block writers.
+	 *
+	 * @param version    version from the previous chunk
+	 * @param afterKey   lastKey from the previous chunk, or null for the first chunk
+	 * @param maxEntries largest number of entries to put in the chunk
+	 * @return the next chunk
+	 */
+	@Override
+	public BootstrapChunk getBootstrapChunk(long version, String afterKey, int maxEntries) {
+		if(maxEntries <= 0) {
+			throw new IllegalArgumentException();
+		}
+		LinkedHashMap<String, String> page = _entriesAfter(afterKey, maxEntries);
+		String lastKey = null;
+		if(page.size() == maxEntries) { // there may be more
+			for(String key : page.keySet()) {
+				lastKey = key;
+			}
+		}
+		return new BootstrapChunk(version, new HashMap<>(page), lastKey);
+	}
+
+	/**
+	 * Request a new transaction ID to represent a new, client-managed transaction
+	 *
+	 * @return Server-provided ID that will be used in the future to commit or abort this transaction
+	 */
+	@Override
+	public long startNewTransaction() throws RemoteException {
+		//TODO
+		
+		return takeTransactionIds(1); //a new transaction ID to represent a new, client-managed transaction
+	}
+
+	/**
+	 * Hands out a block of consecutive transaction IDs in one call, so that a client running many transactions doesn't
+	 * need a round trip to startNewTransaction for each one
+	 *
+	 * @param count how many IDs to lease
+	 * @return the first ID in the block; the block is [first, first + count)
+	 * @throws IllegalArgumentException if count is less than 1 or more than MAX_TRANSACTION_ID_LEASE
+	 * @throws RemoteException          in a server group, if this member isn't the leader (see takeTransactionIds)
+	 */
+	@Override
+	public long leaseTransactionIds(int count) throws RemoteException {
+		if(count < 1 || count > MAX_TRANSACTION_ID_LEASE) {
+			throw new IllegalArgumentException("Can't lease " + count + " transaction IDs");
+		}
+		return takeTransactionIds(count);
+	}
+
+	/**
+	 * Takes count consecutive transaction IDs (which also number commits, see commitLocally). In a server group, the
+	 * IDs must first be reserved through the group's log, unless an earlier reservation of this leader covers them: a
+	 * reservation is an entry with no writes whose xid is the end of the reserved range, and applying it moves every
+	 * member's transaction IDs past that end. The next leader applies every committed entry before it serves anything,
+	 * so it never hands out an ID (or commits at a version) its predecessor may have used. Each reservation takes
+	 * TRANSACTION_ID_RESERVATION more IDs than needed, so only one request in many waits for one.
+	 *
+	 * @return the first of the IDs
+	 * @throws RemoteException if the IDs can't be reserved: NotLeaderException if this member isn't the leader
+	 */
+	private long takeTransactionIds(int count) throws RemoteException {
+		long first = transactionID.getAndAdd(count);
+		RaftNode node = raft;
+		if(node != null && first + count > reservedXidEnd) {
+			synchronized(xidReservationLock) {
+				if(first + count > reservedXidEnd) {
+					long end = Math.max(first + count, transactionID.get()) + TRANSACTION_ID_RESERVATION;
+					node.replicate(end, Collections.emptyMap());
+					reservedXidEnd = end;
+				}
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Makes this server one shard of a sharded deployment: from now on it hands out transaction IDs (and so key
+	 * versions) from the shard's own range, so they never collide with another shard's at a replica that receives
+	 * writes from every shard. Must be called before the server handles any transactions.
+	 *
+	 * @param shard this server's shard number, from 0
+	 * @throws IllegalArgumentException if shard is negative
+	 * @throws IllegalStateException    if transaction IDs past the shard's range have already been handed out
+	 */
+	public void setShard(int shard) {
+		if(shard < 0) {
+			throw new IllegalArgumentException();
+		}
+		long first = ShardMap.firstTransactionId(shard);
+		if(ShardMap.shardOf(transactionID.accumulateAndGet(first, Math::max)) != shard) {
+			throw new IllegalStateException("Transaction IDs already past shard " + shard);
+		}
+	}
+
+	/**
+	 * Makes this server one member of a replicated server group: from now on every commit is appended to the group's
+	 * log (instead of the write-ahead log) and only finishes once a majority of the group has it, and only the group's
+	 * leader accepts writes and replicas. The other members apply each commit as it is committed, so any of them can
+	 * take over as leader with every committed write.
+	 *
+	 * Must be called before the node is started and before the server handles any requests. Locks and transactions
+	 * are not replicated: they are only handed out by whichever member clients find leading, and are lost (along with
+	 * its replicas, which re-register with the new leader) when it stops leading. The transaction IDs a leader hands
+	 * out are reserved through the group's log (see takeTransactionIds), so a new leader never reuses one.
+	 *
+	 * @param node this server's member of the group
+	 */
+	public void replicateWith(RaftNode node) {
+		node.setStateMachine(new RaftNode.StateMachine() {
+			@Override
+			public void apply(long index, RaftLog.Entry entry) {
+				long version = entry.getXid(); // commitLocally logs each commit under its version
+				if(version == 0) { // the empty entry a leader starts its term with
+					return;
+				}
+				if(entry.getWrites().isEmpty()) { // a leader reserved the transaction IDs below version
+					if(leading == false) { // the leader itself hands them out
+						transactionID.accumulateAndGet(version, Math::max);
+					}
+					return;
+				}
+				for(Map.Entry<String, String> write : entry.getWrites().entrySet()) {
+					_set(write.getKey(), write.getValue(), version);
+				}
+				transactionID.accumulateAndGet(version + 1, Math::max);
+				if(leading == false) { // the leader records its own commits once its replicas have them
+					lastCommittedXid.accumulateAndGet(version, Math::max);
+				}
+			}
+
+			@Override
+			public void leadershipChanged(boolean nowLeading) {
+				reservedXidEnd = 0; // a new term's leader reserves its own IDs
+				if(nowLeading) {
+					leading = true;
+					return;
+				}
+				leading = false;
+				// replicas registered here would miss every commit from the new leader; dropping them makes them
+				// re-register there. Done on another thread, since commits in progress hold the read lock.
+				disconnectExecutor.execute(() -> dropReplicas());
+			}
+		});
+		raft = node;
+	}
+
+	/**
+	 * @return this server's member index in its group if it is the leader, the leader's index if known, -1 during an
+	 * election, or 0 if the server isn't in a group
+	 */
+	@Override
+	public int getLeader() {
+		RaftNode node = raft;
+		return node == null ? 0 : node.getLeader();
+	}
+
+	/**
+	 * @return the largest version whose commit has finished, or 0 if nothing has committed yet. A replica that has
+	 * applied this version has every commit that finished before the call: in ALL mode every replica has a commit
+	 * before it finishes, and in QUORUM or SYNCHRONOUS mode replicas apply commits in the replication log's order, in
+	 * which versions go up, so even one that a commit didn't wait for has every smaller version
+	 */
+	@Override
+	public long getLastCommittedXid() {
+		return lastCommittedXid.get();
+	}
+
+	/**
+	 * Broadcast to all replicas (and make updates locally as necessary on the server) that a transaction should be committed
+	 *
+	 * You must not allow a client to register or depart during a commit. Only this transaction's writes are applied;
+	 * other transactions can prepare and commit at the same time.
+	 *
+	 * A transaction prepareTransaction prepared is committed whatever its replicas say now (see commitPrepared). If it
+	 * can't be committed here, it stays prepared and this can be called again; once it has been, calling it again
+	 * commits nothing more and succeeds, so a coordinator can retry it until it does.
+	 *
+	 * @param xid transaction ID to be committed (from startNewTransaction)
+	 * @throws RemoteException if any RemoteException occurs in the process of committing, or if the transaction
+	 *                         was idle for too long and has already been aborted by the reaper
+	 */
+	@Override
+	public void issueCommitTransaction(long xid) throws RemoteException {
+		//TODO
+		checkLeader();
+		ReadWriteLock.readLock().lock();
+		try {
+			PendingTransaction pending = transactions.remove(xid);
+			// checked after taking the transaction out of the table, so the reaper can't abort it behind our back
+			if(expiredTransactions.remove(xid) != null) {
+				broadcastAbort(xid);
+				throw new RemoteException("Transaction " + xid + " expired and was aborted");
+			}
+			if(pending == null) { // nothing was written
+				commit(xid, Collections.<String, String>emptyMap(), null, null, null);
+				return;
+			}
+			if(pending.prepared) {
+				commitPrepared(xid, pending);
+				return;
+			}
+			//the replicas got the writes from setInTransaction, except for any that registered since the first of them
+			//was sent: those get all of them now, as their prepare
+			HashMap<String, String> writes = pending.writes.toMap();
+			for(String key : writes.keySet()) {
+				lockManager.touch(key);
+			}
+			List<Map.Entry<Integer, IKeyValueReplica>> joinedSince = new ArrayList<>();
+			for(Map.Entry<Integer, IKeyValueReplica> replica : clients.entrySet()) {
+				if(joinedAt.get(replica.getKey()) > pending.registrations) {
+					joinedSince.add(replica);
+				}
+			}
+			commit(xid, writes, Operation.INNER_WRITE_KEYS, replica -> replica.innerWriteKeys(writes, xid), joinedSince);
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+		}
+		
+	}
+
+	/**
+	 * Has the replicas vote on a transaction's writes ahead of its commit: the first phase of a commit whose
+	 * coordinator (see ShardedKeyValueServer) needs every participant's vote before it decides. In ALL mode every
+	 * replica is sent all of the writes again; in QUORUM or SYNCHRONOUS mode, where setInTransaction contacts no
+	 * replica, the replicas the mode requires vote on them (see QuorumReplicator.prepare).
+	 *
+	 * Once prepared, the transaction takes no more writes, and the reaper leaves it alone until it is committed or
+	 * aborted. No replica can refuse its commit afterwards, so issueCommitTransaction then only fails if the commit
+	 * can't be logged here, and can be retried until it succeeds.
+	 *
+	 * @param xid transaction ID (from startNewTransaction)
+	 * @return true if the transaction is prepared; false if a replica refused it, or it has no writes here (none were
+	 * made, or it expired or was aborted), in which case it should be aborted
+	 * @throws RemoteException if a replica failed or didn't answer in time; that counts as a refusal
+	 */
+	@Override
+	public boolean prepareTransaction(long xid) throws RemoteException {
+		checkLeader();
+		ReadWriteLock.readLock().lock();
+		try {
+			PendingTransaction txn = transactions.get(xid);
+			if(txn == null) {
+				return false;
+			}
+			HashMap<String, String> writes;
+			synchronized(txn) {
+				if(transactions.get(xid) != txn) { //reaped, committed or aborted since
+					return false;
+				}
+				if(txn.prepared) {
+					return true;
+				}
+				txn.prepared = true;
+				writes = txn.writes.toMap();
+			}
+			
+			boolean prepared = false;
+			try {
+				if(replicator != null) {
+					prepared = replicator.prepare(xid, writes, replicaTimeoutMillis);
+				}
+				else {
+					long voters = registrations; //no replica can register while we hold the read lock
+					prepared = broadcast(Operation.INNER_WRITE_KEYS, replica -> replica.innerWriteKeys(writes, xid));
+					txn.registrations = voters;
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted while waiting for replicas", e);
+			}
+			finally {
+				if(prepared == false) {
+					txn.prepared = false;
+					txn.touch();
+				}
+			}
+			return prepared;
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Broadcast to all replicas (and make updates locally as necessary on the server) that a transaction should be aborted
+	 *
+	 * You must not allow a client to register or depart during a commit. A replica that fails to abort is evicted
+	 * rather than failing the abort (see broadcastAbort), so aborting again is never needed.
+	 *
+	 * @param xid transaction ID to be committed (from startNewTransaction)
+	 */
+	@Override
+	public void issueAbortTransaction(long xid) throws RemoteException {
+		//TODO
+		
+		ReadWriteLock.readLock().lock();
+		try {
+			PendingTransaction txn = transactions.remove(xid); //discard this transaction's updates
+			expiredTransactions.remove(xid);
+			
+			if(txn != null && txn.prepared && replicator != null) { //the vote sent its writes outside the replication log
+				replicator.abortPrepared(xid);
+			}
+			broadcastAbort(xid);
+		}
+		finally {
+			ReadWriteLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads a key together with its version. Takes no locks: the version is read before the value and a write updates
+	 * the version after the value, so a value is never paired with a version newer than it; at worst it is paired with
+	 * an older one, and the commit that validates it fails and is retried.
+	 *
+	 * @param key the key to read
+	 * @return the key's value (null if it doesn't exist) and version
+	 * @throws NullPointerException if key is null
+	 */
+	@Override
+	public VersionedValue getVersioned(String key) {
+		if(key == null) {
+			throw new NullPointerException();
+		}
+		long version = _version(key);
+		return new VersionedValue(get(key), version);
+	}
+
+	/**
+	 * Sets a key only if it is still at the given version, going through the same prepare/commit path as a
+	 * transaction. The key is locked on the server for the duration, so the client pays a single round trip instead of
+	 * lockKey, get, set and unLockKey.
+	 *
+	 * @param key             key to set
+	 * @param expectedVersion version the key must be at (from getVersioned), or 0 for a key that was never written
+	 * @param value           value to store
+	 * @return true if the key was set, false if its version didn't match
+	 * @throws NullPointerException if key or value is null
+	 * @throws RemoteException      if a replica fails or refuses the write; the write is aborted
+	 */
+	@Override
+	public boolean compareAndSet(String key, long expectedVersion, String value) throws RemoteException {
+		if(key == null || value == null) {
+			throw new NullPointerException();
+		}
+		HashMap<String, String> writes = new HashMap<>();
+		writes.put(key, value);
+		HashMap<String, Long> readVersions = new HashMap<>();
+		readVersions.put(key, expectedVersion);
+		return commitOptimisticTransaction(writes, readVersions);
+	}
+
+	/**
+	 * Validates and commits an optimistic transaction. Every key that was read or is being written is locked (in
+	 * sorted order, on the server only, so the client pays no lock round trips) while the versions are checked and the
+	 * writes are sent to the replicas, so no other commit can slip in between the check and the writes.
+	 *
+	 * @param writes       map from each key to write to its new value
+	 * @param readVersions map from each key the transaction read to the version it read
+	 * @return true if committed, false if one of the keys that were read has been written since
+	 * @throws NullPointerException if either map, or any key or value in them, is null
+	 * @throws RemoteException      if a replica fails or refuses the writes; the transaction is aborted
+	 */
+	@Override
+	public boolean commitOptimisticTransaction(HashMap<String, String> writes, HashMap<String, Long> readVersions) throws RemoteException {
+		if(writes == null || readVersions == null) {
+			throw new NullPointerException();
+		}
+		SortedSet<String> keys = new TreeSet<>(readVersions.keySet());
+		for(Map.Entry<String, String> e : writes.entrySet()) {
+			if(e.getKey() == null || e.getValue() == null) {
+				throw new NullPointerException();
+			}
+			keys.add(e.getKey());
+		}
+		
+		checkLeader();
+		ReadWriteLock.readLock().lock(); // same order as set: replicas first, then keys
+		long lease = keys.isEmpty() ? 0 : lockManager.lockAll(keys);
+		try {
+			for(Map.Entry<String, Long> read : readVersions.entrySet()) {
+				if(_version(read.getKey()) != read.getValue()) { // written since it was read
+					optimisticConflicts.increment();
+					return false;
+				}
+			}
+			if(writes.isEmpty()) { // read-only, and everything it read is still current
+				return true;
+			}
+			
+			long xid = takeTransactionIds(1);
+			commit(xid, writes, Operation.INNER_WRITE_KEYS, replica -> replica.innerWriteKeys(writes, xid), clients.entrySet());
+			return true;
+		}
+		finally {
+			if(lease != 0) {
+				lockManager.unlockAll(lease);
+			}
+			ReadWriteLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Aborts every transaction that hasn't had a write for longer than the transaction timeout, on the server and on
+	 * every replica, except those prepareTransaction prepared, and frees any lock from lockKey/lockKeys whose keys haven't been locked or written for longer than
+	 * the timeout. A client that later
+	 * tries to commit an aborted transaction gets a RemoteException.
+	 *
+	 * @return number of transactions aborted plus number of locks freed
+	 */
+	public int reapExpiredTransactions() {
+		long timeout = transactionTimeoutNanos;
+		long now = System.nanoTime();
+		int reaped = lockManager.reapExpired(timeout);
+		
+		for(Map.Entry<Long, PendingTransaction> e : transactions.entrySet()) {
+			Long xid = e.getKey();
+			PendingTransaction txn = e.getValue();
+			if(now - txn.lastActiveNanos < timeout) {
+				continue;
+			}
+			// marked before it leaves the table, so a commit racing with us either sees the mark or wins the remove
+			Long mark = now;
+			synchronized(txn) { // a prepare racing with us either sees it gone or is seen
+				if(txn.prepared) { // only its coordinator decides what happens to it now
+					continue;
+				}
+				expiredTransactions.put(xid, mark);
+				if(transactions.remove(xid, txn) == false) { // committed, aborted or written to in the meantime
+					expiredTransactions.remove(xid, mark);
+					continue;
+				}
+			}
+			reaped++;
+			expiredTransactionCount.increment();
+			ReadWriteLock.readLock().lock();
+			try {
+				broadcastAbort(xid);
+			}
+			finally {
+				ReadWriteLock.readLock().unlock();
+			}
+		}
+		
+		// a client that hasn't come back to commit by now isn't coming back
+		long retention = timeout * EXPIRED_TRANSACTION_RETENTION;
+		expiredTransactions.values().removeIf(expiredAt -> now - expiredAt > retention);
+		return reaped;
+	}
+
+	/**
+	 * Sets how long a transaction may go without a write (and a lock may go without being locked or written) before
+	 * reapExpiredTransactions aborts it
+	 *
+	 * @param timeout idle time allowed
+	 * @param unit    unit of timeout
+	 */
+	public void setTransactionTimeout(long timeout, TimeUnit unit) {
+		if(timeout <= 0) {
+			throw new IllegalArgumentException();
+		}
+		transactionTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Sets the transaction timeout and runs reapExpiredTransactions in the background twice per timeout
+	 *
+	 * @param timeout idle time allowed
+	 * @param unit    unit of timeout
+	 */
+	public synchronized void scheduleTransactionReaper(long timeout, TimeUnit unit) {
+		setTransactionTimeout(timeout, unit);
+		if(reaperScheduler != null) {
+			reaperScheduler.shutdown();
+		}
+		reaperScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "kvstore-transaction-reaper");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1, unit.toMillis(timeout) / 2);
+		reaperScheduler.scheduleWithFixedDelay(() -> {
+			try {
+				reapExpiredTransactions();
+			}
+			catch (Exception e) {
+				System.err.println("Error reaping transactions: " + e.toString());
+				e.printStackTrace();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Notifies the server that a cache client is shutting down (and hence no longer will be involved in writes)
+	 *
+	 * @param hostname   The hostname of the client that is disconnecting (same hostname specified when it registered)
+	 * @param portNumber The port number of the client that is disconnecting (same port number specified when it registered)
+	 */
+	@Override
+	public void cacheDisconnect(String hostname, int portNumber) {
+		//TODO - ensure no clients are able to complete this method until any pending commits/abort's are finished
+		
+		disconnect(portNumber, null);
+	}
+
+	/**
+	 * Removes the replica on a port, once any pending commits/aborts are finished
+	 *
+	 * @param portNumber port the replica registered with
+	 * @param expected   only remove the replica if it is this one, or null to remove whichever is registered
+	 */
+	private void disconnect(int portNumber, IKeyValueReplica expected) {
+		IKeyValueReplica replica;
+		ReadWriteLock.writeLock().lock();
+		try {
+			replica = clients.get(portNumber);
+			if(replica == null || (expected != null && replica != expected)) {
+				return;
+			}
+			clients.remove(portNumber); //disconnecting a client with the specified port number
+			joinedAt.remove(portNumber);
+			versionedReplicas.remove(replica);
+			if(replicator != null) {
+				replicator.remove(portNumber);
+			}
+		}
+		finally {
+			ReadWriteLock.writeLock().unlock();
+		}
+		if(replica instanceof Closeable) { // a binary transport stub holds open connections to the replica
+			try {
+				((Closeable) replica).close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Restores the store from a write-ahead log, then logs every later commit to it.
+	 *
+	 * Must be called before the server accepts any requests. Transaction IDs continue after the largest one in the log.
+	 *
+	 * @param log log to replay and then append to
+	 * @throws IOException if the log can't be read
+	 */
+	public void recoverFrom(WriteAheadLog log) throws IOException {
+		recoverFrom(null, log);
+	}
+
+	/**
+	 * Restores the store from the latest snapshot (if any) and then the write-ahead log written since, then logs every
+	 * later commit to the log and allows takeSnapshot.
+	 *
+	 * Must be called before the server accepts any requests. Transaction IDs continue after the largest one recovered,
+	 * which is also the version every recovered key starts at.
+	 *
+	 * @param snapshots where snapshots are kept, or null for none
+	 * @param log       log to replay and then append to, or null for none
+	 * @throws IOException if the snapshot or log can't be read
+	 */
+	public void recoverFrom(SnapshotStore snapshots, WriteAheadLog log) throws IOException {
+		long maxXid = 0;
+		if(snapshots != null) {
+			maxXid = snapshots.load(this::_set);
+			lastSnapshotXid = maxXid;
+			snapshotStore = snapshots;
+		}
+		if(log != null) {
+			// every logged write is a plain overwrite, so replaying records the snapshot already reflects is harmless
+			maxXid = Math.max(maxXid, log.replay(this::_set));
+			writeAheadLog = log;
+		}
+		// the log doesn't say which commit wrote which key, so give every recovered key the newest recovered version (or
+		// xid); that is never older than its real version, so versions still only go up across restarts
+		if(maxXid > 0) {
+			for(Map.Entry<String, String> e : _entries()) {
+				_set(e.getKey(), e.getValue(), maxXid);
+			}
+		}
+		long next = maxXid + 1;
+		transactionID.accumulateAndGet(next, Math::max);
+	}
+
+	/**
+	 * Writes a snapshot of the whole store, then drops the part of the write-ahead log that it covers.
+	 *
+	 * Writers are only held up while commits already in progress finish (the same as for registerClient), so that the
+	 * point where the log is cut is consistent with the store; the store itself is streamed to disk while writes
+	 * continue. Does nothing if no transaction has started since the last snapshot.
+	 *
+	 * @throws IOException if the snapshot can't be written
+	 * @throws IllegalStateException if the server wasn't recovered with a SnapshotStore
+	 */
+	public void takeSnapshot() throws IOException {
+		SnapshotStore snapshots = snapshotStore;
+		if(snapshots == null) {
+			throw new IllegalStateException("No snapshot store configured");
+		}
+		synchronized (snapshotLock) {
+			WriteAheadLog log = writeAheadLog;
+			long lastXid;
+			long marker = 0;
+			ReadWriteLock.writeLock().lock();
+			try {
+				lastXid = transactionID.get() - 1;
+				if(log != null) {
+					marker = log.position(); // everything before this is already in the store
+				}
+			}
+			finally {
+				ReadWriteLock.writeLock().unlock();
+			}
+			if(lastXid == lastSnapshotXid) {
+				return;
+			}
+			long start = System.nanoTime();
+			long entries = snapshots.write(lastXid, _entries());
+			metrics.histogram("snapshot_nanos").recordSince(start);
+			metrics.histogram("snapshot_entries").record(entries);
+			metrics.histogram("snapshot_bytes").record(Files.size(snapshots.getPath()));
+			lastSnapshotXid = lastXid;
+			if(log != null) {
+				log.discardBefore(marker);
+			}
+		}
+	}
+
+	/**
+	 * Takes a snapshot in the background every intervalMillis
+	 *
+	 * @param intervalMillis time between snapshots
+	 */
+	public synchronized void scheduleSnapshots(long intervalMillis) {
+		if(snapshotScheduler != null) {
+			snapshotScheduler.shutdown();
+		}
+		snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "kvstore-snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		snapshotScheduler.scheduleWithFixedDelay(() -> {
+			try {
+				takeSnapshot();
+			}
+			catch (Exception e) {
+				System.err.println("Error taking snapshot: " + e.toString());
+				e.printStackTrace();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns every counter, gauge and latency histogram of this server, e.g. for a Prometheus scrape
+	 *
+	 * @return the metrics in the Prometheus text exposition format
+	 */
+	@Override
+	public String getMetrics() {
+		return metrics.toText();
+	}
+
+	/**
+	 * Starts (or restarts, discarding what was recorded) profiling which keys are read and locked the most, and which
+	 * keys' locks are waited for and held the longest
+	 *
+	 * @param topKeys     how many keys each ranking keeps
+	 * @param sampleEvery record 1 in this many reads, lock acquisitions and hold times
+	 * @return the new profiler
+	 */
+	public ContentionProfiler startProfiling(int topKeys, int sampleEvery) {
+		ContentionProfiler p = new ContentionProfiler(topKeys, sampleEvery);
+		profiler = p;
+		lockManager.setProfiler(p);
+		return p;
+	}
+
+	/**
+	 * Stops profiling and discards what was recorded
+	 */
+	public void stopProfiling() {
+		profiler = null;
+		lockManager.setProfiler(null);
+	}
+
+	/**
+	 * @return the running profiler, or null if profiling is off
+	 */
+	public ContentionProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Starts or stops the contention profiler
+	 *
+	 * @param sampleEvery record 1 in this many reads and lock acquisitions, or 0 to stop profiling
+	 */
+	@Override
+	public void setContentionProfiling(int sampleEvery) {
+		if(sampleEvery < 0) {
+			throw new IllegalArgumentException();
+		}
+		if(sampleEvery == 0) {
+			stopProfiling();
+		}
+		else {
+			startProfiling(PROFILER_TOP_KEYS, sampleEvery);
+		}
+	}
+
+	/**
+	 * Reports the hottest keys and the most contended locks, plus the locks clients are holding right now
+	 *
+	 * @return a human-readable report
+	 */
+	@Override
+	public String getContentionProfile() {
+		StringBuilder out = new StringBuilder();
+		ContentionProfiler p = profiler;
+		if(p == null) {
+			out.append("Contention profiling is off\n");
+		}
+		else {
+			out.append(p.report());
+		}
+		out.append("Locks held by clients right now:\n");
+		List<String> held = lockManager.describeLongestHeld(PROFILER_HELD_LOCKS);
+		if(held.isEmpty()) {
+			out.append("  (none)\n");
+		}
+		for(String h : held) {
+			out.append("  ").append(h).append('\n');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return this server's metrics, e.g. to register them with JMX
+	 */
+	public MetricsRegistry getMetricsRegistry() {
+		return metrics;
+	}
+
+	/**
+	 * @return the table of per-key locks handed out by lockKey, for inspecting lock count and contention
+	 */
+	public KeyLockManager getLockManager() {
+		return lockManager;
+	}
+
+	/**
+	 * Sets how long each phase of a replica broadcast (prepare, commit or abort) may take before the
+	 * replicas that have not answered yet are treated as failed
+	 *
+	 * @param timeout deadline for a single phase
+	 * @param unit    unit of timeout
+	 */
+	public void setReplicaTimeout(long timeout, TimeUnit unit) {
+		if(timeout <= 0) {
+			throw new IllegalArgumentException();
+		}
+		replicaTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Sets how many replicas must have a commit before it finishes. In QUORUM and SYNCHRONOUS mode, a commit is sent
+	 * to the other replicas in the background, in commit order, so one slow replica no longer slows down every write.
+	 * Each replica's lag is exported as the replica_lag_entries and replica_lag_millis gauges. A replica that refuses a
+	 * commit the required replicas took, or that falls too far behind, is disconnected.
+	 *
+	 * Must be called before any replica registers.
+	 *
+	 * @param mode                how many replicas must have a commit
+	 * @param synchronousReplicas port numbers of the replicas every commit waits for, in SYNCHRONOUS mode
+	 * @throws IllegalStateException if a replica has already registered
+	 */
+	public void setCommitMode(CommitMode mode, int... synchronousReplicas) {
+		if(mode == null) {
+			throw new NullPointerException();
+		}
+		List<Integer> ports = new ArrayList<>();
+		for(int port : synchronousReplicas) {
+			ports.add(port);
+		}
+		ReadWriteLock.writeLock().lock();
+		try {
+			if(clients.isEmpty() == false) {
+				throw new IllegalStateException("Commit mode must be set before replicas register");
+			}
+			replicator = mode == CommitMode.ALL ? null : new QuorumReplicator(mode, ports, metrics, replicaExecutor,
+					port -> disconnectExecutor.execute(() -> cacheDisconnect(null, port)), QuorumReplicator.MAX_LOG_ENTRIES);
+		}
+		finally {
+			ReadWriteLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return how many commits the replica on the given port hasn't applied yet (0 in ALL mode, where every commit
+	 * waits for every replica)
+	 */
+	public long getReplicaLag(int portNumber) {
+		QuorumReplicator quorum = replicator;
+		return quorum == null ? 0 : quorum.getLagEntries(portNumber);
+	}
+
+	/**
+	 * Writes buffered for a transaction that hasn't committed yet, and when it was last written to
+	 */
+	private static final class PendingTransaction {
+		final WriteSet writes;
+		// registrations there had been when the first write was sent to the replicas, or when they voted on all of them
+		volatile long registrations;
+		volatile long lastActiveNanos = System.nanoTime();
+		// set (holding the transaction's monitor) once prepareTransaction starts a vote on it, and cleared if the vote is
+		// no; a prepared transaction takes no more writes and isn't reaped
+		volatile boolean prepared;
+
+		PendingTransaction(WriteSet writes, long registrations) {
+			this.writes = writes;
+			this.registrations = registrations;
+		}
+
+		void touch() {
+			lastActiveNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @throws NotLeaderException if this server is in a group but can't serve writes as its leader
+	 */
+	private void checkLeader() throws NotLeaderException {
+		RaftNode node = raft;
+		if(node != null && node.isLeader() == false) {
+			throw new NotLeaderException("Not the leader; try member " + node.getLeader());
+		}
+	}
+
+	/**
+	 * Commits a transaction on the server and every replica, and aborts it everywhere if it can't. This is the one
+	 * commit path behind set, issueCommitTransaction and commitOptimisticTransaction.
+	 *
+	 * In ALL mode, first has the given replicas prepare the writes (the others already have them from setInTransaction),
+	 * then logs and applies them here, then tells every replica to commit. The commit is durable once it is
+	 * in the log, so it is logged before anyone can see it; the server has the writes before any replica does, so a
+	 * partial replica that fetches a key it doesn't hold never gets a value older than a commit it has already applied.
+	 * Once the commit is logged it is never aborted: a replica that then fails to commit it is evicted instead.
+	 * In QUORUM or SYNCHRONOUS mode, the writes go through the replication log instead. Callers must hold the read lock.
+	 *
+	 * @param xid              transaction to commit
+	 * @param writes           every key/value the transaction wrote
+	 * @param prepareOperation the prepare message, for the per-replica metrics
+	 * @param prepare          sends the writes to one replica, or null if every replica already has them
+	 * @param prepareTo        replicas to send prepare to
+	 * @throws RemoteException if a replica refused or failed to prepare, or the commit couldn't be logged; the
+	 *                         transaction is aborted
+	 */
+	private void commit(long xid, Map<String, String> writes, Operation prepareOperation, ReplicaCall prepare,
+			Collection<Map.Entry<Integer, IKeyValueReplica>> prepareTo) throws RemoteException {
+		if(replicator != null) { //only the required replicas hold up the write, the others get it from the replication log
+			try {
+				replicateCommit(xid, writes);
+			}
+			catch (RemoteException e) {
+				broadcastAbort(xid);
+				throw e;
+			}
+			return;
+		}
+		
+		long version = 0;
+		try {
+			if(prepare != null && broadcast(prepareOperation, prepareTo, prepare, null) == false) { //one client said no
+				throw new RemoteException("A replica refused transaction " + xid);
+			}
+			if(writes.isEmpty() == false) {
+				version = commitLocally(xid, writes);
+			}
+		}
+		catch (IOException e) {
+			broadcastAbort(xid);
+			if(e instanceof RemoteException) {
+				throw (RemoteException) e;
+			}
+			throw new RemoteException("Could not log commit of transaction " + xid, e);
+		}
+		
+		//Broadcast to all replicas that a transaction should be committed
+		broadcastCommit(xid, version);
+	}
+
+	/**
+	 * Makes a commit durable and applies it to this server's store: through the group's log if in a group (applying it
+	 * once a majority has it), otherwise logged to the write-ahead log, if any, then applied.
+	 *
+	 * The commit's version is taken from the transaction ID counter here, at commit time, while the writer holds the
+	 * keys' locks (set and compareAndSet lock them on the server, a client's transaction holds its own lockKeys lease),
+	 * so the next commit of a key gets a larger version than this one. The log records the commit under its version,
+	 * which (like an xid) recovery moves the counter past.
+	 *
+	 * @return the version every written key is now at
+	 */
+	private long commitLocally(long xid, Map<String, String> writes) throws IOException {
+		long version = takeTransactionIds(1);
+		RaftNode node = raft;
+		if(node != null) {
+			node.replicate(version, writes);
+			return version;
+		}
+		WriteAheadLog log = writeAheadLog;
+		if(log != null) {
+			log.append(version, writes);
+		}
+		for(Map.Entry<String, String> write : writes.entrySet()) {
+			_set(write.getKey(), write.getValue(), version); //make updates locally as necessary on the server
+		}
+		return version;
+	}
+
+	/**
+	 * Commits a transaction in QUORUM or SYNCHRONOUS mode: once the replicas the mode requires have prepared its
+	 * writes, commits it here, then waits for those replicas to apply it (evicting any that don't in time). The others
+	 * get it from the replication log. Callers must hold the read lock.
+	 *
+	 * @throws RemoteException if the required replicas refused or failed, or the commit couldn't be logged
+	 */
+	private void replicateCommit(long xid, Map<String, String> writes) throws RemoteException {
+		long version = 0;
+		if(writes.isEmpty() == false) {
+			try {
+				version = replicator.commit(xid, writes, () -> commitLocally(xid, writes), replicaTimeoutMillis);
+			}
+			catch (IOException e) {
+				if(e instanceof RemoteException) { // refused, timed out, or no longer the leader
+					throw (RemoteException) e;
+				}
+				throw new RemoteException("Could not log commit of transaction " + xid, e);
+			}
+		}
+		lastCommittedXid.accumulateAndGet(version, Math::max);
+		commits.increment();
+	}
+
+	/**
+	 * Commits a transaction prepareTransaction prepared. Its replicas have voted yes already, so no replica can abort
+	 * it any more: in ALL mode, replicas that registered since the vote get its writes now, and any of them that
+	 * refuses or fails is evicted; in QUORUM or SYNCHRONOUS mode, the replication log evicts them (see
+	 * QuorumReplicator.commitPrepared). If the commit can't be logged here, the transaction goes back in the table
+	 * still prepared, and isn't aborted on the replicas, so its coordinator can try again. Callers must hold the read
+	 * lock.
+	 *
+	 * @throws RemoteException if the commit couldn't be logged
+	 */
+	private void commitPrepared(long xid, PendingTransaction pending) throws RemoteException {
+		HashMap<String, String> writes = pending.writes.toMap();
+		for(String key : writes.keySet()) {
+			lockManager.touch(key);
+		}
+		try {
+			if(replicator != null) {
+				long version = replicator.commitPrepared(xid, writes, () -> commitLocally(xid, writes), replicaTimeoutMillis);
+				lastCommittedXid.accumulateAndGet(version, Math::max);
+				commits.increment();
+				return;
+			}
+			
+			List<Map.Entry<Integer, IKeyValueReplica>> joinedSince = new ArrayList<>();
+			for(Map.Entry<Integer, IKeyValueReplica> replica : clients.entrySet()) {
+				if(joinedAt.get(replica.getKey()) > pending.registrations) {
+					joinedSince.add(replica);
+				}
+			}
+			Map<Integer, IKeyValueReplica> failed = new HashMap<>();
+			broadcast(Operation.INNER_WRITE_KEYS, joinedSince, replica -> {
+				if(replica.innerWriteKeys(writes, xid) == false) {
+					throw new RemoteException("Refused prepared transaction " + xid);
+				}
+				return true;
+			}, failed);
+			for(Map.Entry<Integer, IKeyValueReplica> replica : failed.entrySet()) {
+				evictReplica(replica.getKey(), replica.getValue(), "missed the writes of prepared transaction " + xid);
+			}
+			long version = commitLocally(xid, writes);
+			broadcastCommit(xid, version);
+		}
+		catch (IOException e) {
+			transactions.put(xid, pending);
+			if(e instanceof RemoteException) {
+				throw (RemoteException) e;
+			}
+			throw new RemoteException("Could not log commit of transaction " + xid, e);
+		}
+	}
+
+	/**
+	 * Disconnects every registered replica, after the commits in progress finish
+	 */
+	private void dropReplicas() {
+		List<IKeyValueReplica> dropped;
+		ReadWriteLock.writeLock().lock();
+		try {
+			dropped = new ArrayList<>(clients.values());
+			if(replicator != null) {
+				for(int port : clients.keySet()) {
+					replicator.remove(port);
+				}
+			}
+			clients.clear();
+			joinedAt.clear();
+			versionedReplicas.clear();
+		}
+		finally {
+			ReadWriteLock.writeLock().unlock();
+		}
+		for(IKeyValueReplica replica : dropped) {
+			if(replica instanceof Closeable) {
+				try {
+					((Closeable) replica).close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells every replica to make a transaction's writes visible, then records it as the latest finished commit.
+	 * The transaction has already committed on the server, so it can't be aborted any more: a replica that fails or
+	 * doesn't answer in time is evicted, since it can't become consistent again. Callers must hold the read lock.
+	 *
+	 * @param version the commit's version, or 0 if it wrote nothing
+	 */
+	private void broadcastCommit(long xid, long version) {
+		Map<Integer, IKeyValueReplica> failed = new HashMap<>();
+		try {
+			broadcast(Operation.COMMIT_TRANSACTION, clients.entrySet(), replica -> {
+				if(version != 0 && versionedReplicas.contains(replica)) {
+					replica.commitTransaction(xid, version);
+				}
+				else {
+					replica.commitTransaction(xid);
+				}
+				return true;
+			}, failed);
+		}
+		catch (RemoteException e) { // interrupted before every answer was in; failed has the ones that weren't
+			Thread.currentThread().interrupt();
+		}
+		for(Map.Entry<Integer, IKeyValueReplica> replica : failed.entrySet()) {
+			evictReplica(replica.getKey(), replica.getValue(), "missed the commit of transaction " + xid);
+		}
+		lastCommittedXid.accumulateAndGet(version, Math::max);
+		commits.increment();
+	}
+
+	/**
+	 * Disconnects a replica from another thread, since the caller holds the read lock. Does nothing if the replica
+	 * has left (or another replica has registered on its port) by then.
+	 */
+	private void evictReplica(int port, IKeyValueReplica replica, String reason) {
+		replicaEvictions.increment();
+		System.err.println("Evicting replica " + port + ": " + reason);
+		disconnectExecutor.execute(() -> disconnect(port, replica));
+	}
+
+	/**
+	 * Tells every replica to drop a transaction's writes (in ALL mode). The server has dropped them already, so the
+	 * abort can't fail any more: a replica that fails or doesn't answer in time is evicted, since it may go on holding
+	 * writes that will never commit. Callers must hold the read lock.
+	 */
+	private void broadcastAbort(long xid) {
+		aborts.increment();
+		if(replicator != null) { // the replication log already told any replica that got the writes
+			return;
+		}
+		Map<Integer, IKeyValueReplica> failed = new HashMap<>();
+		try {
+			broadcast(Operation.ABORT_TRANSACTION, clients.entrySet(), replica -> {
+				replica.abortTransaction(xid);
+				return true;
+			}, failed);
+		}
+		catch (RemoteException e) { // interrupted before every answer was in; failed has the ones that weren't
+			Thread.currentThread().interrupt();
+		}
+		for(Map.Entry<Integer, IKeyValueReplica> replica : failed.entrySet()) {
+			evictReplica(replica.getKey(), replica.getValue(), "missed the abort of transaction " + xid);
+		}
+	}
+
+	/**
+	 * A single message sent to one replica as part of a broadcast
+	 */
+	@FunctionalInterface
+	private interface ReplicaCall {
+		boolean call(IKeyValueReplica replica) throws RemoteException;
+	}
+
+	/**
+	 * Sends the same message to every registered replica concurrently and waits (up to the replica timeout)
+	 * for all of them to answer, so that the slowest replica only adds its own latency once.
+	 *
+	 * Callers must hold the read lock so that no replica can join or depart during the broadcast.
+	 *
+	 * @param operation message sent, for the per-replica round trip histograms
+	 * @param call      message to send to each replica
+	 * @return true if every replica returned true
+	 * @throws RemoteException if any replica threw, or did not answer before the deadline
+	 */
+	private boolean broadcast(Operation operation, ReplicaCall call) throws RemoteException {
+		return broadcast(operation, clients.entrySet(), call, null);
+	}
+
+	/**
+	 * Like broadcast(operation, call), but only to the given replicas, and if failed isn't null, the replicas that
+	 * threw or didn't answer in time are put in it instead of failing the broadcast
+	 *
+	 * @throws RemoteException if interrupted (every replica that hadn't answered yet is then put in failed), or if
+	 *                         failed is null and any replica threw or didn't answer in time
+	 */
+	private boolean broadcast(Operation operation, Collection<Map.Entry<Integer, IKeyValueReplica>> replicas, ReplicaCall call,
+			Map<Integer, IKeyValueReplica> failed) throws RemoteException {
+		if(replicas.isEmpty()) {
+			return true;
+		}
+		
+		// even a single replica goes through the executor, so that it is held to the same deadline
+		List<Map.Entry<Integer, IKeyValueReplica>> targets = new ArrayList<>(replicas);
+		List<Callable<Boolean>> tasks = new ArrayList<>(replicas.size());
+		for(Map.Entry<Integer, IKeyValueReplica> replica : targets) {
+			tasks.add(() -> timedCall(operation, replica.getKey(), replica.getValue(), call));
+		}
+		
+		List<Future<Boolean>> results;
+		try {
+			results = replicaExecutor.invokeAll(tasks, replicaTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if(failed != null) {
+				for(Map.Entry<Integer, IKeyValueReplica> replica : targets) {
+					failed.put(replica.getKey(), replica.getValue());
+				}
+			}
+			throw new RemoteException("Interrupted while waiting for replicas", e);
+		}
+		
+		// report only once every replica has answered or run out of time. A replica that ran out of time may still be
+		// working on this message, so whatever the caller sends next (e.g. an abort) can reach it first: replicas
+		// ignore an abort or commit for a transaction they hold no writes for, and a prepare that lands after its
+		// abort leaves writes at that replica that are never committed
+		boolean allPassed = true;
+		RemoteException failure = null;
+		for(int i = 0; i < results.size(); i++) {
+			Future<Boolean> result = results.get(i);
+			Map.Entry<Integer, IKeyValueReplica> replica = targets.get(i);
+			try {
+				if(result.get() == false) {
+					allPassed = false;
+				}
+				continue;
+			}
+			catch (CancellationException e) {
+				metrics.counter("replica_timeouts", "replica", String.valueOf(replica.getKey())).increment();
+				failure = new RemoteException("Replica did not respond within " + replicaTimeoutMillis + "ms");
+			}
+			catch (ExecutionException e) {
+				metrics.counter("replica_failures", "replica", String.valueOf(replica.getKey())).increment();
+				if(e.getCause() instanceof RemoteException) {
+					failure = (RemoteException) e.getCause();
+				}
+				else {
+					failure = new RemoteException("Replica call failed", e.getCause());
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if(failed != null) {
+					for(Map.Entry<Integer, IKeyValueReplica> unanswered : targets.subList(i, targets.size())) {
+						failed.put(unanswered.getKey(), unanswered.getValue());
+					}
+				}
+				throw new RemoteException("Interrupted while waiting for replicas", e);
+			}
+			if(failed != null) {
+				failed.put(replica.getKey(), replica.getValue());
+			}
+		}
+		if(failure != null && failed == null) {
+			throw failure;
+		}
+		return allPassed;
+	}
+
+	/**
+	 * Sends one message to one replica, recording how long it took to answer (or fail) in that replica's histogram
+	 */
+	private boolean timedCall(Operation operation, int port, IKeyValueReplica replica, ReplicaCall call) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			return call.call(replica);
+		}
+		finally {
+			replicaHistograms(port).get(operation).recordSince(start);
+		}
+	}
+
+	/**
+	 * @return the round trip histograms of the replica on a port, which are looked up when it registers
+	 */
+	private ReplicaHistograms replicaHistograms(int port) {
+		ReplicaHistograms histograms = replicaHistograms.get(port);
+		if(histograms == null) {
+			histograms = replicaHistograms.computeIfAbsent(port, p -> new ReplicaHistograms(metrics, p));
+		}
+		return histograms;
+	}
+
+	/**
+	 * Creates the registry for this server's metrics, with gauges for state that is cheaper to read on demand than to
+	 * count as it changes
+	 */
+	private MetricsRegistry newMetrics() {
+		MetricsRegistry registry = new MetricsRegistry("kvstore_server");
+		registry.gauge("replicas", () -> clients.size());
+		registry.gauge("pending_transactions", () -> transactions.size());
+		registry.gauge("last_committed_xid", () -> lastCommittedXid.get());
+		registry.gauge("key_locks_live", () -> lockManager.getLiveLockCount());
+		registry.gauge("key_lock_acquisitions", () -> lockManager.getAcquisitionCount());
+		registry.gauge("key_lock_contended_acquisitions", () -> lockManager.getContendedAcquisitionCount());
+		registry.gauge("key_lock_wait_nanos_total", () -> lockManager.getTotalWaitNanos());
+		registry.gauge("raft_term", () -> raft == null ? 0 : raft.getTerm());
+		registry.gauge("raft_commit_index", () -> raft == null ? 0 : raft.getCommitIndex());
+		registry.gauge("raft_leader", () -> getLeader());
+		return registry;
+	}
+
+	/**
+	 * Creates the bounded pool of daemon threads used to talk to replicas
+	 */
+	private static ExecutorService newReplicaExecutor() {
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(REPLICA_FANOUT_THREADS, REPLICA_FANOUT_THREADS,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(r, "kvstore-replica-fanout-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
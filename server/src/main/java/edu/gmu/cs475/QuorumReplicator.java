@@ -0,0 +1,656 @@
+package edu.gmu.cs475;
+
+import edu.gmu.cs475.ReplicaHistograms.Operation;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Sends a server's commits to its replicas without waiting for the slowest one. A commit finishes once the replicas
+ * its {@link KeyValueServer.CommitMode} requires have acknowledged it (a majority of them, or every synchronous
+ * replica), and the other replicas catch up from the replication log in the background.
+ * <p>
+ * Every commit is appended to the log in the order the server commits it. Each replica has a feed that sends it the
+ * log in that order, one message at a time. For each entry the feed sends innerWriteKeys, and the replica's vote
+ * counts as its acknowledgement. Once the entry is decided, the feed sends commitTransaction or abortTransaction.
+ * Prepares run ahead of decisions, so a replica that keeps up gets each entry as soon as it is appended. A replica that
+ * falls behind works through the log at its own pace, and still never applies entries out of order. An entry is
+ * dropped from the log once every replica has it.
+ * <p>
+ * Entries commit on the server in log order too: an entry's local commit waits until every earlier entry is decided.
+ * The server takes each commit's version when it commits, so versions go up along the log, and a replica that has
+ * applied a version has applied every commit with a smaller one.
+ * <p>
+ * A transaction whose coordinator needs every vote before it decides (see KeyValueServer.prepareTransaction) is voted
+ * on ahead of time, by sending it to the replicas directly, outside the log, so an entry waiting for a decision never
+ * holds up the commits after it. Once it is decided, its commit is appended to the log like any other, but no
+ * longer waits for votes, and is never aborted on a replica's account.
+ * <p>
+ * Some replicas are evicted, which disconnects them from the server:
+ * <ul>
+ * <li>a replica that refuses (or fails on) an entry that committed anyway, since it can't become consistent again
+ * (for a prepared transaction, this includes one that joined after the vote);</li>
+ * <li>a replica the commit mode required that didn't apply a commit in time, since the commit finished without it;</li>
+ * <li>the replica furthest behind, when keeping its entries would grow the log past MAX_LOG_ENTRIES.</li>
+ * </ul>
+ */
+public class QuorumReplicator {
+
+	// most entries the log holds; past this, the replica furthest behind is evicted so its entries can be dropped
+	static final int MAX_LOG_ENTRIES = 1 << 16;
+
+	/**
+	 * How far a replica has got with one entry
+	 */
+	private enum Ack {
+		NONE, PREPARED, REFUSED, APPLIED
+	}
+
+	private enum State {
+		PENDING, COMMITTED, ABORTED
+	}
+
+	/**
+	 * Runs once enough replicas have prepared a commit, before any of them is told to commit it
+	 */
+	@FunctionalInterface
+	public interface LocalCommit {
+		/**
+		 * @return the version the server committed the writes at
+		 */
+		long commit() throws IOException;
+	}
+
+	private final KeyValueServer.CommitMode mode;
+	private final Set<Integer> synchronousReplicas;
+	private final MetricsRegistry metrics;
+	private final Executor executor;
+	private final IntConsumer evict;
+	private final int maxLogEntries;
+	private final LongAdder evictions;
+
+	// guards everything below; committers wait on it for acknowledgements
+	private final Object lock = new Object();
+	// entries that some replica doesn't have yet (or that are undecided), by sequence number, oldest first
+	private final LinkedHashMap<Long, Entry> log = new LinkedHashMap<>();
+	// sequence numbers of the entries not decided yet, so each local commit can wait for the ones before it
+	private final TreeSet<Long> undecided = new TreeSet<>();
+	private long lastSeq;
+	private final Map<Integer, Feed> feeds = new HashMap<>();
+
+	/**
+	 * @param mode                QUORUM or SYNCHRONOUS
+	 * @param synchronousReplicas ports of the replicas that must apply every commit before it finishes, for SYNCHRONOUS
+	 * @param metrics             where to record per-replica round trips, lag and evictions
+	 * @param executor            runs the feeds; each feed uses at most one thread at a time
+	 * @param evict               disconnects a replica from the server (called without any lock held)
+	 * @param maxLogEntries       most entries the log holds before the replica furthest behind is evicted
+	 */
+	public QuorumReplicator(KeyValueServer.CommitMode mode, Collection<Integer> synchronousReplicas, MetricsRegistry metrics,
+			Executor executor, IntConsumer evict, int maxLogEntries) {
+		if (mode == KeyValueServer.CommitMode.ALL)
+			throw new IllegalArgumentException("ALL mode broadcasts to every replica directly");
+		this.mode = mode;
+		this.synchronousReplicas = new HashSet<>(synchronousReplicas);
+		this.metrics = metrics;
+		this.executor = executor;
+		this.evict = evict;
+		this.maxLogEntries = maxLogEntries;
+		this.evictions = metrics.counter("replica_evictions");
+		metrics.gauge("replication_log_entries", () -> {
+			synchronized (lock) {
+				return log.size();
+			}
+		});
+	}
+
+	/**
+	 * Starts sending a replica every commit from now on. The caller makes sure no commit is in progress, so that the
+	 * replica's bootstrap holds everything before.
+	 *
+	 * @param versioned whether to tell the replica each commit's version (see IKeyValueReplica.commitTransaction)
+	 */
+	public void add(int port, IKeyValueReplica replica, boolean versioned) {
+		Feed feed = new Feed(port, replica, versioned);
+		Feed old;
+		synchronized (lock) {
+			feed.nextPrepare = feed.nextFinish = lastSeq + 1;
+			old = feeds.put(port, feed);
+			if (old != null)
+				close(old);
+		}
+		String label = String.valueOf(port);
+		metrics.gauge("replica_lag_entries", "replica", label, () -> getLagEntries(port));
+		metrics.gauge("replica_lag_millis", "replica", label, () -> getLagMillis(port));
+	}
+
+	/**
+	 * Stops sending commits to a replica; commits waiting for its acknowledgement count it as failed
+	 */
+	public void remove(int port) {
+		synchronized (lock) {
+			Feed feed = feeds.remove(port);
+			if (feed != null)
+				close(feed);
+		}
+	}
+
+	/**
+	 * Commits writes on the replicas:
+	 * <ol>
+	 * <li>appends them to the log;</li>
+	 * <li>waits until the required replicas have prepared them;</li>
+	 * <li>waits until every earlier entry is committed or aborted, then runs local;</li>
+	 * <li>waits until the required replicas have applied them.</li>
+	 * </ol>
+	 * Replicas that weren't required get the commit later, in log order. A required replica that doesn't apply the
+	 * commit in time is evicted, and the commit still succeeds: it has already committed on the server.
+	 *
+	 * @param xid     transaction that made the writes
+	 * @param writes  every key/value it wrote
+	 * @param local   makes the commit durable and visible on the server
+	 * @param timeout how long to wait for each of the two rounds of acknowledgements, in ms
+	 * @return the version local committed the writes at
+	 * @throws RemoteException if the required replicas didn't prepare in time, or refused or failed; the commit is
+	 *                         aborted
+	 * @throws IOException     if local fails; the commit is aborted
+	 */
+	public long commit(long xid, Map<String, String> writes, LocalCommit local, long timeout) throws IOException {
+		Entry entry = append(xid, writes);
+		boolean prepared;
+		try {
+			prepared = await(entry, false, timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			decide(entry, State.ABORTED);
+			throw new RemoteException("Interrupted while waiting for replicas", e);
+		}
+		if (prepared == false) {
+			decide(entry, State.ABORTED);
+			throw new RemoteException("Replicas did not acknowledge transaction " + xid + " (" + entry.describe() + ") within " + timeout + "ms");
+		}
+		return finish(entry, local, timeout);
+	}
+
+	/**
+	 * Has the replicas vote on a transaction's writes ahead of its commit. Sends them to every replica directly, outside
+	 * the log, and waits until the replicas the mode requires have voted yes, as commit does. The writes stay pending
+	 * on the replicas until commitPrepared sends them again, in log order, with the commit, or abortPrepared drops
+	 * them; if the vote fails, they are dropped here.
+	 *
+	 * @param xid     transaction that made the writes
+	 * @param writes  every key/value it wrote
+	 * @param timeout how long to wait for the votes, in ms
+	 * @return true if the required replicas voted yes in time
+	 * @throws InterruptedException if interrupted while waiting; the writes are dropped
+	 */
+	public boolean prepare(long xid, Map<String, String> writes, long timeout) throws InterruptedException {
+		Entry votes;
+		List<Feed> voters;
+		synchronized (lock) {
+			votes = newEntry(0, xid, writes);
+			voters = new ArrayList<>(feeds.values());
+		}
+		for (Feed feed : voters) {
+			executor.execute(() -> {
+				Ack ack;
+				try {
+					ack = feed.timedCall(Operation.INNER_WRITE_KEYS, () -> feed.replica.innerWriteKeys(votes.writes, xid)) ? Ack.PREPARED : Ack.REFUSED;
+				} catch (RemoteException | RuntimeException e) { // its feed finds out for itself
+					metrics.counter("replica_failures", "replica", String.valueOf(feed.port)).increment();
+					ack = Ack.REFUSED;
+				}
+				synchronized (lock) {
+					votes.acks.put(feed.port, ack);
+					lock.notifyAll();
+				}
+			});
+		}
+		boolean prepared = false;
+		try {
+			prepared = await(votes, false, timeout);
+		} finally {
+			if (prepared == false)
+				abortPrepared(xid);
+		}
+		return prepared;
+	}
+
+	/**
+	 * Commits a transaction that prepare has had the replicas vote yes on. Like commit, except that it doesn't wait for
+	 * the replicas to prepare the entry again before committing it locally: a replica that refuses or fails on it now
+	 * is evicted rather than aborting it.
+	 *
+	 * @throws IOException if local fails; this attempt is aborted (dropping the writes from the replicas' log order
+	 *                     only), and the transaction can be committed again
+	 */
+	public long commitPrepared(long xid, Map<String, String> writes, LocalCommit local, long timeout) throws IOException {
+		return finish(append(xid, writes), local, timeout);
+	}
+
+	/**
+	 * Drops the writes prepare sent to the replicas, without waiting for them; replicas ignore an abort of a
+	 * transaction they hold no writes for
+	 */
+	public void abortPrepared(long xid) {
+		List<Feed> targets;
+		synchronized (lock) {
+			targets = new ArrayList<>(feeds.values());
+		}
+		for (Feed feed : targets) {
+			executor.execute(() -> {
+				try {
+					feed.timedCall(Operation.ABORT_TRANSACTION, () -> {
+						feed.replica.abortTransaction(xid);
+						return true;
+					});
+				} catch (RemoteException | RuntimeException e) { // its feed finds out for itself
+					metrics.counter("replica_failures", "replica", String.valueOf(feed.port)).increment();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Commits an appended entry on the server once every earlier entry is decided, then waits for the required
+	 * replicas to apply it, evicting those that don't in time
+	 */
+	private long finish(Entry entry, LocalCommit local, long timeout) throws IOException {
+		long xid = entry.xid;
+		long version;
+		try {
+			awaitTurn(entry);
+			version = local.commit();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			decide(entry, State.ABORTED);
+			throw new RemoteException("Interrupted while waiting for earlier commits", e);
+		} catch (IOException | RuntimeException e) {
+			decide(entry, State.ABORTED);
+			throw e;
+		}
+		entry.version = version; // read by the feeds only once they see the decision
+		decide(entry, State.COMMITTED);
+		try {
+			if (await(entry, true, timeout) == false)
+				evictUnapplied(entry, "did not apply transaction " + xid + " within " + timeout + "ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return version;
+	}
+
+	/**
+	 * @return how many entries the replica hasn't applied yet, or 0 if it isn't registered
+	 */
+	public long getLagEntries(int port) {
+		synchronized (lock) {
+			Feed feed = feeds.get(port);
+			return feed == null ? 0 : lastSeq - (feed.nextFinish - 1);
+		}
+	}
+
+	/**
+	 * @return how long ago the oldest entry the replica hasn't applied was appended, in ms, or 0 if it is up to date (or
+	 * isn't registered)
+	 */
+	public long getLagMillis(int port) {
+		synchronized (lock) {
+			Feed feed = feeds.get(port);
+			Entry oldest = feed == null ? null : log.get(feed.nextFinish);
+			return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.appendedNanos);
+		}
+	}
+
+	private Entry append(long xid, Map<String, String> writes) {
+		Entry entry;
+		List<Feed> evicted = new ArrayList<>();
+		synchronized (lock) {
+			while (log.size() >= maxLogEntries && feeds.isEmpty() == false) {
+				Feed furthestBehind = null;
+				for (Feed feed : feeds.values())
+					if (furthestBehind == null || feed.nextFinish < furthestBehind.nextFinish)
+						furthestBehind = feed;
+				feeds.remove(furthestBehind.port);
+				close(furthestBehind);
+				evicted.add(furthestBehind);
+			}
+			entry = newEntry(++lastSeq, xid, writes);
+			log.put(entry.seq, entry);
+			undecided.add(entry.seq);
+			for (Feed feed : feeds.values())
+				schedule(feed);
+		}
+		for (Feed feed : evicted)
+			evicted(feed, "more than " + maxLogEntries + " entries behind");
+		return entry;
+	}
+
+	/**
+	 * Creates an entry that needs the acknowledgements the mode requires from the replicas registered now. Callers
+	 * must hold the lock.
+	 */
+	private Entry newEntry(long seq, long xid, Map<String, String> writes) {
+		Set<Integer> sync = new HashSet<>();
+		if (mode == KeyValueServer.CommitMode.SYNCHRONOUS)
+			for (int port : feeds.keySet())
+				if (synchronousReplicas.contains(port))
+					sync.add(port);
+		int required = mode == KeyValueServer.CommitMode.QUORUM ? feeds.size() / 2 + 1 : 0;
+		return new Entry(seq, xid, new HashMap<>(writes), feeds.keySet(), Math.min(required, feeds.size()), sync);
+	}
+
+	/**
+	 * Waits until the required replicas have prepared (or applied) an entry, or can't any more
+	 *
+	 * @return true if they have
+	 */
+	private boolean await(Entry entry, boolean applied, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		synchronized (lock) {
+			while (true) {
+				Boolean done = entry.acknowledged(applied);
+				if (done != null)
+					return done;
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+			}
+		}
+	}
+
+	/**
+	 * Waits until every entry before this one is decided. Each is decided by its own committer within its timeout
+	 * (plus its local commit), so this doesn't need one of its own.
+	 */
+	private void awaitTurn(Entry entry) throws InterruptedException {
+		synchronized (lock) {
+			while (undecided.first() != entry.seq)
+				lock.wait();
+		}
+	}
+
+	private void decide(Entry entry, State state) {
+		synchronized (lock) {
+			entry.state = state;
+			undecided.remove(entry.seq);
+			for (Feed feed : feeds.values())
+				schedule(feed);
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Evicts the replicas an entry's commit needed that haven't applied it: in SYNCHRONOUS mode, the synchronous
+	 * replicas; in QUORUM mode, those that prepared it, and so counted towards its quorum.
+	 */
+	private void evictUnapplied(Entry entry, String reason) {
+		List<Feed> evicted = new ArrayList<>();
+		synchronized (lock) {
+			for (Map.Entry<Integer, Ack> e : entry.acks.entrySet()) {
+				Ack ack = e.getValue();
+				boolean required = mode == KeyValueServer.CommitMode.QUORUM ? ack == Ack.PREPARED
+						: entry.synchronous.contains(e.getKey()) && (ack == Ack.PREPARED || ack == Ack.NONE);
+				Feed feed = feeds.get(e.getKey());
+				if (required && feed != null) { // still the feed the entry was sent to: a new one would have closed it
+					feeds.remove(feed.port);
+					close(feed);
+					evicted.add(feed);
+				}
+			}
+		}
+		for (Feed feed : evicted)
+			evicted(feed, reason);
+	}
+
+	/**
+	 * Runs a feed if it isn't running. Callers must hold the lock.
+	 */
+	private void schedule(Feed feed) {
+		if (feed.scheduled || feed.closed)
+			return;
+		feed.scheduled = true;
+		executor.execute(feed);
+	}
+
+	/**
+	 * Stops a feed, failing its part in every entry it hasn't applied. Callers must hold the lock.
+	 */
+	private void close(Feed feed) {
+		feed.closed = true;
+		for (Entry entry : log.values()) {
+			Ack ack = entry.acks.get(feed.port);
+			if (ack != null && ack != Ack.APPLIED)
+				entry.acks.put(feed.port, Ack.REFUSED);
+		}
+		trim();
+		lock.notifyAll();
+	}
+
+	private void evicted(Feed feed, String reason) {
+		evictions.increment();
+		System.err.println("Evicting replica " + feed.port + ": " + reason);
+		evict.accept(feed.port);
+	}
+
+	/**
+	 * Drops entries, oldest first, that are decided and that every replica is done with. Callers must hold the lock.
+	 */
+	private void trim() {
+		long done = lastSeq + 1;
+		for (Feed feed : feeds.values())
+			done = Math.min(done, feed.nextFinish);
+		Iterator<Entry> it = log.values().iterator();
+		while (it.hasNext()) {
+			Entry oldest = it.next();
+			if (oldest.seq >= done || oldest.state == State.PENDING)
+				break;
+			it.remove();
+		}
+	}
+
+	/**
+	 * One commit, and how far each replica that was registered when it was appended has got with it
+	 */
+	private static final class Entry {
+		final long seq;
+		final long xid;
+		final HashMap<String, String> writes;
+		final long appendedNanos = System.nanoTime();
+		final Map<Integer, Ack> acks = new HashMap<>();
+		// acknowledgements needed from any replicas, and which replicas must acknowledge whatever the count
+		final int required;
+		final Set<Integer> synchronous;
+		State state = State.PENDING;
+		// the version the server committed it at, once it is COMMITTED
+		long version;
+
+		Entry(long seq, long xid, HashMap<String, String> writes, Set<Integer> replicas, int required, Set<Integer> synchronous) {
+			this.seq = seq;
+			this.xid = xid;
+			this.writes = writes;
+			for (int port : replicas)
+				acks.put(port, Ack.NONE);
+			this.required = required;
+			this.synchronous = synchronous;
+		}
+
+		/**
+		 * @param applied whether to count replicas that applied the entry, or that prepared (or applied) it
+		 * @return true if enough replicas have, false if they no longer can, null if not known yet
+		 */
+		Boolean acknowledged(boolean applied) {
+			int done = 0;
+			int possible = 0;
+			boolean synchronousDone = true;
+			for (Map.Entry<Integer, Ack> e : acks.entrySet()) {
+				Ack ack = e.getValue();
+				boolean isDone = ack == Ack.APPLIED || (applied == false && ack == Ack.PREPARED);
+				boolean isPossible = isDone || ack == Ack.NONE || (applied && ack == Ack.PREPARED);
+				if (isDone)
+					done++;
+				if (isPossible)
+					possible++;
+				if (synchronous.contains(e.getKey())) {
+					if (isPossible == false)
+						return false;
+					synchronousDone &= isDone;
+				}
+			}
+			if (done >= required && synchronousDone)
+				return true;
+			if (possible < required)
+				return false;
+			return null;
+		}
+
+		String describe() {
+			return acks.toString();
+		}
+	}
+
+	/**
+	 * Sends the log to one replica, in order. Runs on the executor whenever there is something to send, one message
+	 * at a time.
+	 */
+	private final class Feed implements Runnable {
+		final int port;
+		final IKeyValueReplica replica;
+		final boolean versioned;
+		final ReplicaHistograms histograms;
+		// next entry to prepare, and next entry to commit or abort (never past nextPrepare); guarded by lock
+		long nextPrepare;
+		long nextFinish;
+		boolean scheduled;
+		boolean closed;
+
+		Feed(int port, IKeyValueReplica replica, boolean versioned) {
+			this.port = port;
+			this.replica = replica;
+			this.versioned = versioned;
+			this.histograms = new ReplicaHistograms(metrics, port);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Entry entry;
+				boolean prepare;
+				Ack ack;
+				State state;
+				synchronized (lock) {
+					Entry finish = nextFinish < nextPrepare ? log.get(nextFinish) : null;
+					if (closed) {
+						scheduled = false;
+						return;
+					}
+					if (finish != null && finish.state != State.PENDING) {
+						entry = finish;
+						prepare = false;
+					} else if (nextPrepare <= lastSeq) {
+						entry = log.get(nextPrepare);
+						prepare = true;
+						if (entry.state == State.ABORTED) { // decided before we got to it, so nothing to prepare
+							nextPrepare++;
+							continue;
+						}
+					} else {
+						scheduled = false;
+						return;
+					}
+					ack = entry.acks.get(port);
+					state = entry.state;
+				}
+
+				Ack result;
+				try {
+					if (prepare) {
+						result = timedCall(Operation.INNER_WRITE_KEYS, () -> replica.innerWriteKeys(entry.writes, entry.xid)) ? Ack.PREPARED : Ack.REFUSED;
+					} else if (state == State.COMMITTED && ack == Ack.PREPARED) {
+						timedCall(Operation.COMMIT_TRANSACTION, () -> {
+							if (versioned)
+								replica.commitTransaction(entry.xid, entry.version);
+							else
+								replica.commitTransaction(entry.xid);
+							return true;
+						});
+						result = Ack.APPLIED;
+					} else if (state == State.COMMITTED) { // refused a write that committed anyway
+						fail("refused transaction " + entry.xid + ", which committed");
+						return;
+					} else {
+						if (ack != Ack.NONE) {
+							timedCall(Operation.ABORT_TRANSACTION, () -> {
+								replica.abortTransaction(entry.xid);
+								return true;
+							});
+						}
+						result = ack;
+					}
+				} catch (RemoteException | RuntimeException e) {
+					metrics.counter("replica_failures", "replica", String.valueOf(port)).increment();
+					fail(e.toString());
+					return;
+				}
+
+				synchronized (lock) {
+					if (closed) {
+						scheduled = false;
+						return;
+					}
+					entry.acks.put(port, result);
+					if (prepare) {
+						nextPrepare++;
+					} else {
+						nextFinish++;
+						trim();
+					}
+					lock.notifyAll();
+				}
+			}
+		}
+
+		private void fail(String reason) {
+			boolean removed;
+			synchronized (lock) {
+				scheduled = false;
+				removed = feeds.get(port) == this;
+				if (removed) {
+					feeds.remove(port);
+					close(this);
+				}
+			}
+			if (removed)
+				evicted(this, reason);
+		}
+
+		private boolean timedCall(Operation operation, ReplicaCall call) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return call.call();
+			} finally {
+				histograms.get(operation).recordSince(start);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface ReplicaCall {
+		boolean call() throws RemoteException;
+	}
+}
@@ -0,0 +1,325 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The replicated log of a server group member (see {@link RaftNode}), plus the term and vote it must remember across
+ * restarts.
+ * <p>
+ * Entries are numbered from 1; each is one committed transaction (or plain set), as in the {@link WriteAheadLog}, tagged
+ * with the term of the leader that created it. Kept in memory, and if opened on a file also written there, and forced
+ * to disk before any call but {@link #write(List)} returns, so a member never forgets an entry it acknowledged or a
+ * vote it cast. On disk a record is
+ * <pre>
+ *     int payloadLength | int crc32(payload) | long term | long xid | int nWrites | (int keyLength | key | int valueLength | value)*
+ * </pre>
+ * and a record whose length or checksum doesn't match (a write torn by a crash) ends the log. The term and vote are in
+ * a small file next to the log, replaced atomically on every change.
+ * <p>
+ * Not thread safe: the RaftNode that owns it serializes all access, except for {@link #force()}.
+ */
+public class RaftLog implements Closeable {
+
+	private static final int HEADER_BYTES = 8;
+
+	/**
+	 * One entry of the log
+	 */
+	public static final class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long term;
+		private final long xid;
+		private final Map<String, String> writes;
+
+		/**
+		 * @param term   term of the leader that created the entry
+		 * @param xid    version the transaction's writes were committed at; with no writes, the end of a range of
+		 *               transaction IDs the leader reserved; 0 for the empty entry a new leader starts its term with
+		 * @param writes every key/value the transaction wrote
+		 */
+		public Entry(long term, long xid, Map<String, String> writes) {
+			this.term = term;
+			this.xid = xid;
+			this.writes = writes;
+		}
+
+		public long getTerm() {
+			return term;
+		}
+
+		public long getXid() {
+			return xid;
+		}
+
+		public Map<String, String> getWrites() {
+			return writes;
+		}
+	}
+
+	private final List<Entry> entries = new ArrayList<>();
+	private long currentTerm;
+	private int votedFor = -1;
+
+	// null for a log kept only in memory
+	private final Path path;
+	private final Path statePath;
+	private FileChannel channel;
+	// file offset where each entry's record starts, for truncating
+	private final List<Long> offsets = new ArrayList<>();
+
+	/**
+	 * Creates an empty log kept only in memory (a member that restarts with it starts over empty, so it must not
+	 * rejoin its old group)
+	 */
+	public RaftLog() {
+		this.path = null;
+		this.statePath = null;
+	}
+
+	/**
+	 * Opens (creating if necessary) the log at the given path, reading back every intact entry and the term and vote
+	 *
+	 * @param path file to keep the entries in; the term and vote go in path + ".state"
+	 * @throws IOException if the files can't be read
+	 */
+	public RaftLog(Path path) throws IOException {
+		this.path = path;
+		this.statePath = path.resolveSibling(path.getFileName() + ".state");
+		if (Files.exists(statePath)) {
+			ByteBuffer state = ByteBuffer.wrap(Files.readAllBytes(statePath));
+			currentTerm = state.getLong();
+			votedFor = state.getInt();
+		}
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		readEntries();
+	}
+
+	/**
+	 * @return path of the file the entries are kept in, or null if only in memory
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	public long getCurrentTerm() {
+		return currentTerm;
+	}
+
+	/**
+	 * @return the member voted for in the current term, or -1 if none
+	 */
+	public int getVotedFor() {
+		return votedFor;
+	}
+
+	/**
+	 * Moves to a new term and/or records a vote, durably before returning
+	 */
+	void setTermAndVote(long term, int vote) throws IOException {
+		if (term == currentTerm && vote == votedFor)
+			return;
+		if (statePath != null) {
+			ByteBuffer state = ByteBuffer.allocate(12);
+			state.putLong(term).putInt(vote);
+			Path tmp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+			try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				out.write((ByteBuffer) state.flip());
+				out.force(true);
+			}
+			Files.move(tmp, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		currentTerm = term;
+		votedFor = vote;
+	}
+
+	/**
+	 * @return index of the last entry, or 0 if the log is empty
+	 */
+	public long lastIndex() {
+		return entries.size();
+	}
+
+	/**
+	 * @return term of the last entry, or 0 if the log is empty
+	 */
+	public long lastTerm() {
+		return termAt(entries.size());
+	}
+
+	/**
+	 * @return term of the entry at index, or 0 for index 0
+	 * @throws IndexOutOfBoundsException if there is no such entry
+	 */
+	public long termAt(long index) {
+		return index == 0 ? 0 : entries.get((int) index - 1).term;
+	}
+
+	/**
+	 * @throws IndexOutOfBoundsException if there is no such entry
+	 */
+	public Entry get(long index) {
+		return entries.get((int) index - 1);
+	}
+
+	/**
+	 * @return up to max entries, starting at index (an empty list if index is past the end)
+	 */
+	public List<Entry> entriesFrom(long index, int max) {
+		if (index > entries.size())
+			return Collections.emptyList();
+		int from = (int) index - 1;
+		return new ArrayList<>(entries.subList(from, Math.min(entries.size(), from + max)));
+	}
+
+	/**
+	 * Adds entries at the end of the log, durably before returning
+	 */
+	void append(List<Entry> newEntries) throws IOException {
+		write(newEntries);
+		force();
+	}
+
+	/**
+	 * Adds entries at the end of the log, without waiting for them to reach the disk; they are durable once a later
+	 * {@link #force()} (or append or truncateFrom) returns
+	 */
+	void write(List<Entry> newEntries) throws IOException {
+		if (newEntries.isEmpty())
+			return;
+		if (channel != null) {
+			long position = channel.size();
+			ByteBuffer[] records = new ByteBuffer[newEntries.size()];
+			long remaining = 0;
+			for (int i = 0; i < records.length; i++) {
+				records[i] = encode(newEntries.get(i));
+				offsets.add(position + remaining);
+				remaining += records[i].remaining();
+			}
+			channel.position(position);
+			while (remaining > 0)
+				remaining -= channel.write(records);
+		}
+		entries.addAll(newEntries);
+	}
+
+	/**
+	 * Waits until every entry written so far is on disk. May be called while another thread writes, so the owner can
+	 * force without holding its lock, and one force covers every entry written before it started
+	 */
+	void force() throws IOException {
+		if (channel != null)
+			channel.force(false);
+	}
+
+	/**
+	 * Drops every entry from index on (entries a deposed leader never got committed)
+	 */
+	void truncateFrom(long index) throws IOException {
+		if (index > entries.size())
+			return;
+		if (channel != null) {
+			channel.truncate(offsets.get((int) index - 1));
+			channel.force(false);
+			offsets.subList((int) index - 1, offsets.size()).clear();
+		}
+		entries.subList((int) index - 1, entries.size()).clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+
+	private void readEntries() throws IOException {
+		long position = 0;
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		while (position + HEADER_BYTES <= size) {
+			header.clear();
+			readFully(header, position);
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if (length < 20 || position + HEADER_BYTES + length > size)
+				break;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(payload, position + HEADER_BYTES);
+			CRC32 crc = new CRC32();
+			crc.update(payload.array(), 0, length);
+			if ((int) crc.getValue() != checksum)
+				break;
+			payload.flip();
+			long term = payload.getLong();
+			long xid = payload.getLong();
+			int nWrites = payload.getInt();
+			Map<String, String> writes = new LinkedHashMap<>(nWrites * 2);
+			for (int i = 0; i < nWrites; i++)
+				writes.put(readString(payload), readString(payload));
+			entries.add(new Entry(term, xid, writes));
+			offsets.add(position);
+			position += HEADER_BYTES + length;
+		}
+		if (position < size)
+			channel.truncate(position);
+	}
+
+	private static ByteBuffer encode(Entry entry) {
+		List<byte[]> strings = new ArrayList<>(entry.writes.size() * 2);
+		int length = 20;
+		for (Map.Entry<String, String> e : entry.writes.entrySet()) {
+			byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+			byte[] value = e.getValue().getBytes(StandardCharsets.UTF_8);
+			strings.add(key);
+			strings.add(value);
+			length += 8 + key.length + value.length;
+		}
+		ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+		record.position(HEADER_BYTES);
+		record.putLong(entry.term);
+		record.putLong(entry.xid);
+		record.putInt(entry.writes.size());
+		for (byte[] s : strings) {
+			record.putInt(s.length);
+			record.put(s);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER_BYTES, length);
+		record.putInt(0, length);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return s;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new IOException("Unexpected end of log");
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package edu.gmu.cs475;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A message between two members of a replicated server group (see {@link RaftNode}). Messages are one-way: an answer
+ * is another message, and any message may be lost, delayed or reordered.
+ */
+public class RaftMessage implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		/**
+		 * A candidate asking for a vote; logIndex/logTerm describe its last entry
+		 */
+		REQUEST_VOTE,
+		/**
+		 * Answer to REQUEST_VOTE; success if the vote was granted
+		 */
+		VOTE,
+		/**
+		 * The leader's new entries (none for a heartbeat), following the entry at logIndex/logTerm
+		 */
+		APPEND_ENTRIES,
+		/**
+		 * Answer to APPEND_ENTRIES: on success, matchIndex is the follower's last entry known to match the leader's;
+		 * otherwise it is where the leader should look for a match next
+		 */
+		APPEND_RESULT
+	}
+
+	private final Type type;
+	private final int from;
+	private final int to;
+	private final long term;
+	private final long logIndex;
+	private final long logTerm;
+	private final List<RaftLog.Entry> entries;
+	private final long commitIndex;
+	private final boolean success;
+	private final long matchIndex;
+
+	private RaftMessage(Type type, int from, int to, long term, long logIndex, long logTerm, List<RaftLog.Entry> entries,
+			long commitIndex, boolean success, long matchIndex) {
+		this.type = type;
+		this.from = from;
+		this.to = to;
+		this.term = term;
+		this.logIndex = logIndex;
+		this.logTerm = logTerm;
+		this.entries = entries;
+		this.commitIndex = commitIndex;
+		this.success = success;
+		this.matchIndex = matchIndex;
+	}
+
+	static RaftMessage requestVote(int from, int to, long term, long lastIndex, long lastTerm) {
+		return new RaftMessage(Type.REQUEST_VOTE, from, to, term, lastIndex, lastTerm, Collections.emptyList(), 0, false, 0);
+	}
+
+	static RaftMessage vote(int from, int to, long term, boolean granted) {
+		return new RaftMessage(Type.VOTE, from, to, term, 0, 0, Collections.emptyList(), 0, granted, 0);
+	}
+
+	static RaftMessage appendEntries(int from, int to, long term, long prevIndex, long prevTerm, List<RaftLog.Entry> entries, long commitIndex) {
+		return new RaftMessage(Type.APPEND_ENTRIES, from, to, term, prevIndex, prevTerm, entries, commitIndex, false, 0);
+	}
+
+	static RaftMessage appendResult(int from, int to, long term, boolean success, long matchIndex) {
+		return new RaftMessage(Type.APPEND_RESULT, from, to, term, 0, 0, Collections.emptyList(), 0, success, matchIndex);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public int getFrom() {
+		return from;
+	}
+
+	public int getTo() {
+		return to;
+	}
+
+	public long getTerm() {
+		return term;
+	}
+
+	public long getLogIndex() {
+		return logIndex;
+	}
+
+	public long getLogTerm() {
+		return logTerm;
+	}
+
+	public List<RaftLog.Entry> getEntries() {
+		return entries;
+	}
+
+	public long getCommitIndex() {
+		return commitIndex;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	public long getMatchIndex() {
+		return matchIndex;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + from + "->" + to + " term " + term + (entries.isEmpty() ? "" : " (" + entries.size() + " entries)");
+	}
+}
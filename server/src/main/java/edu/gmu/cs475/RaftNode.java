@@ -0,0 +1,594 @@
+package edu.gmu.cs475;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One member of a group of servers that agree on a single log of commits, using the Raft consensus algorithm.
+ * <p>
+ * One member is elected leader and is the only one that accepts writes. Each commit is appended to the leader's
+ * {@link RaftLog} and sent to the others, and only counts as committed once a majority of the group has it in their
+ * logs; so any majority that elects the next leader includes a member with every committed write, and Raft's voting
+ * rules make sure that member is the one elected. Committed entries are applied, in log order, to each member's
+ * {@link StateMachine} (its KeyValueServer's store).
+ * <p>
+ * Time is counted in ticks and messages go through a {@link Network}, so a node has no threads of its own: in a real
+ * deployment {@link #start(long)} ticks it on a timer and the network is {@link RmiRaftNetwork}, while tests drive
+ * every member from one thread with {@link RaftSimulator}, which makes runs repeatable.
+ * <p>
+ * The leader writes each proposed entry to its log while holding the node's lock, but forces the log to disk outside
+ * it, once for every entry written by then (group commit): commits arriving together share one force, and the node
+ * keeps handling messages meanwhile. The leader only counts itself toward a majority for entries it has forced.
+ * <p>
+ * Leaders give up leadership if a majority hasn't answered them for an election timeout, so a leader cut off from the
+ * group stops accepting writes (which it couldn't commit anyway) instead of blocking them forever. Not implemented:
+ * log compaction (the log grows with every commit, and a new member catches up from its start), membership changes,
+ * and pre-vote (a member returning from a partition with a higher term forces one extra election).
+ */
+public class RaftNode implements IRaftPeer {
+
+	public enum Role {
+		FOLLOWER, CANDIDATE, LEADER
+	}
+
+	/**
+	 * Sends messages to the other members; must not block, and may lose messages
+	 */
+	@FunctionalInterface
+	public interface Network {
+		void send(RaftMessage message);
+	}
+
+	/**
+	 * What the log is replicated for. Called with the node's lock held, so must not call back into other members.
+	 */
+	@FunctionalInterface
+	public interface StateMachine {
+		/**
+		 * Applies a committed entry; called for every entry, once, in log order
+		 */
+		void apply(long index, RaftLog.Entry entry);
+
+		/**
+		 * Called when this member starts serving as leader (once every entry committed before its term is applied),
+		 * and when it stops
+		 */
+		default void leadershipChanged(boolean leading) {
+		}
+	}
+
+	// ticks between the leader's heartbeats
+	static final int HEARTBEAT_TICKS = 1;
+
+	// a follower that hears nothing from a leader for between this and twice this many ticks starts an election; a
+	// leader that hears from no majority for this many ticks steps down
+	static final int ELECTION_TICKS = 10;
+
+	// most entries sent in one APPEND_ENTRIES, so a member catching up gets the log in pieces
+	static final int MAX_ENTRIES_PER_MESSAGE = 512;
+
+	private final int id;
+	private final int members;
+	private final RaftLog log;
+	private final Network network;
+	private final Random random;
+	private StateMachine stateMachine = (index, entry) -> {
+	};
+
+	private Role role = Role.FOLLOWER;
+	private int leader = -1;
+	private long commitIndex;
+	private long lastApplied;
+	// last entry known to be on this member's disk; the leader writes entries before forcing them (see forceLog)
+	private long durableIndex;
+	// index of the empty entry this member started its term as leader with; it serves requests once that is applied
+	private long termStartIndex;
+	// whether the state machine was last told it is leading
+	private boolean leading;
+	private boolean stopped;
+
+	private int electionElapsed;
+	private int electionTimeout;
+	private int heartbeatElapsed;
+
+	// while a candidate, who voted for it
+	private final Set<Integer> votes = new HashSet<>();
+
+	// while leader, the next entry to send each member, the last entry known to match its log, and whether it has
+	// answered since the last check that a majority is still there
+	private final long[] nextIndex;
+	private final long[] matchIndex;
+	private final boolean[] recentlyHeard;
+
+	// commits waiting for their entry to be applied, by log index
+	private final TreeMap<Long, CompletableFuture<Void>> waiting = new TreeMap<>();
+
+	private ScheduledExecutorService ticker;
+
+	// held while forcing the log, so one force at a time runs and the ones queued behind it find their entries forced
+	private final Object forceLock = new Object();
+
+	/**
+	 * @param id      this member's index in the group, from 0
+	 * @param members number of members in the group
+	 * @param log     this member's log (with the term and vote it last recorded)
+	 * @param network how to reach the other members
+	 * @param random  source of election timeouts; seeded, for repeatable tests
+	 */
+	public RaftNode(int id, int members, RaftLog log, Network network, Random random) {
+		if (members < 1 || id < 0 || id >= members)
+			throw new IllegalArgumentException("Bad member " + id + " of " + members);
+		this.id = id;
+		this.members = members;
+		this.log = log;
+		this.network = network;
+		this.random = random;
+		this.nextIndex = new long[members];
+		this.matchIndex = new long[members];
+		this.recentlyHeard = new boolean[members];
+		this.durableIndex = log.lastIndex();
+		resetElectionTimer();
+	}
+
+	/**
+	 * @param stateMachine where committed entries are applied; set before the node is first ticked
+	 */
+	public synchronized void setStateMachine(StateMachine stateMachine) {
+		this.stateMachine = stateMachine;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getMembers() {
+		return members;
+	}
+
+	public synchronized Role getRole() {
+		return role;
+	}
+
+	public synchronized long getTerm() {
+		return log.getCurrentTerm();
+	}
+
+	public synchronized long getCommitIndex() {
+		return commitIndex;
+	}
+
+	public synchronized long getLastApplied() {
+		return lastApplied;
+	}
+
+	/**
+	 * @return true if this member is the leader and has applied every entry committed before its term, so it can serve
+	 * writes
+	 */
+	public synchronized boolean isLeader() {
+		return role == Role.LEADER && lastApplied >= termStartIndex && stopped == false;
+	}
+
+	/**
+	 * @return the member this one believes is the leader (itself once it can serve writes), or -1 if it doesn't know
+	 * or is stopped
+	 */
+	public synchronized int getLeader() {
+		if (stopped)
+			return -1;
+		if (role == Role.LEADER)
+			return isLeader() ? id : -1;
+		return leader;
+	}
+
+	/**
+	 * Ticks this node every tickMillis on a background thread, until {@link #stop()}
+	 */
+	public synchronized void start(long tickMillis) {
+		if (ticker != null)
+			throw new IllegalStateException("Already started");
+		ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "kvstore-raft-" + id);
+			t.setDaemon(true);
+			return t;
+		});
+		ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops taking part in the group, as if crashed: ticks and messages are ignored from now on, and commits waiting
+	 * on this member fail
+	 */
+	public synchronized void stop() {
+		if (ticker != null)
+			ticker.shutdown();
+		stopLeading("Member " + id + " stopped");
+		role = Role.FOLLOWER;
+		leader = -1;
+		stopped = true;
+	}
+
+	/**
+	 * Appends a commit to the log and waits until it is committed and applied to this member's state machine. The
+	 * caller forces the log itself, together with every other commit written by then (see forceLog)
+	 *
+	 * @param xid    transaction that made the writes
+	 * @param writes every key/value it wrote
+	 * @throws NotLeaderException if this member isn't the leader, or stopped being the leader before the entry was
+	 *                            committed (it may still be committed by the next leader)
+	 * @throws RemoteException    if the entry can't be logged
+	 */
+	public void replicate(long xid, Map<String, String> writes) throws RemoteException {
+		CompletableFuture<Void> committed = propose(xid, writes);
+		try {
+			forceLog();
+			committed.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted waiting for transaction " + xid + " to commit", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RemoteException)
+				throw (RemoteException) e.getCause();
+			throw new RemoteException("Could not commit transaction " + xid, e.getCause());
+		}
+	}
+
+	/**
+	 * Appends a commit to the log without waiting for it. Unless the log is only in memory, the entry doesn't count
+	 * toward a majority here until the log is forced: by replicate, or otherwise at the next tick
+	 *
+	 * @return completes once the entry is committed and applied here, or fails as described for replicate
+	 */
+	public synchronized CompletableFuture<Void> propose(long xid, Map<String, String> writes) {
+		CompletableFuture<Void> ret = new CompletableFuture<>();
+		if (isLeader() == false) {
+			ret.completeExceptionally(new NotLeaderException("Member " + id + " is not the leader (leader: " + getLeader() + ")"));
+			return ret;
+		}
+		long index = log.lastIndex() + 1;
+		try {
+			log.write(Collections.singletonList(new RaftLog.Entry(log.getCurrentTerm(), xid, writes)));
+		} catch (IOException e) {
+			ret.completeExceptionally(new RemoteException("Could not log transaction " + xid, e));
+			return ret;
+		}
+		if (log.getPath() == null) // nothing to force
+			durableIndex = index;
+		waiting.put(index, ret);
+		for (int peer = 0; peer < members; peer++) {
+			if (peer != id && nextIndex[peer] == index) // up to date, so send it now rather than at the next heartbeat
+				sendAppend(peer);
+		}
+		advanceCommitIndex();
+		return ret;
+	}
+
+	/**
+	 * Forces every entry written to the log so far to disk, without holding the node's lock, and counts them toward a
+	 * majority. Callers that arrive while another force is running wait for it, and then usually find their entries
+	 * already forced by it.
+	 *
+	 * @throws RemoteException if the log can't be forced; this member then stops
+	 */
+	private void forceLog() throws RemoteException {
+		synchronized (forceLock) {
+			long target;
+			synchronized (this) {
+				if (stopped || durableIndex >= log.lastIndex())
+					return;
+				target = log.lastIndex();
+			}
+			try {
+				log.force();
+			} catch (IOException e) {
+				System.err.println("Raft member " + id + " can't write its log, stopping: " + e);
+				stop();
+				throw new RemoteException("Could not log to member " + id, e);
+			}
+			synchronized (this) {
+				// entries after target may have been replaced meanwhile, but only by a forced append
+				durableIndex = Math.max(durableIndex, Math.min(target, log.lastIndex()));
+				if (role == Role.LEADER)
+					advanceCommitIndex();
+			}
+		}
+	}
+
+	/**
+	 * Advances time by one tick: the leader sends heartbeats and checks it still has a majority, others start an
+	 * election if they haven't heard from a leader for too long
+	 */
+	public synchronized void tick() {
+		if (stopped)
+			return;
+		if (role == Role.LEADER) {
+			if (durableIndex < log.lastIndex()) { // proposed without replicate, so nobody is forcing them
+				try {
+					log.force();
+				} catch (IOException e) {
+					System.err.println("Raft member " + id + " can't write its log, stopping: " + e);
+					stop();
+					return;
+				}
+				durableIndex = log.lastIndex();
+				advanceCommitIndex();
+			}
+			if (++heartbeatElapsed >= HEARTBEAT_TICKS) {
+				heartbeatElapsed = 0;
+				for (int peer = 0; peer < members; peer++)
+					if (peer != id)
+						sendAppend(peer);
+			}
+			if (++electionElapsed >= ELECTION_TICKS) {
+				electionElapsed = 0;
+				int heard = 1;
+				for (int peer = 0; peer < members; peer++) {
+					if (peer != id && recentlyHeard[peer])
+						heard++;
+					recentlyHeard[peer] = false;
+				}
+				if (heard * 2 <= members) { // cut off from the group; another leader may already be committing
+					try {
+						becomeFollower(log.getCurrentTerm(), -1);
+					} catch (IOException e) {
+						stop(); // the term doesn't change, so only forcing the entries it wrote can fail
+					}
+				}
+			}
+			return;
+		}
+		if (++electionElapsed >= electionTimeout)
+			startElection();
+	}
+
+	@Override
+	public void deliver(RaftMessage message) {
+		receive(message);
+	}
+
+	/**
+	 * Handles a message from another member
+	 */
+	public synchronized void receive(RaftMessage m) {
+		if (stopped)
+			return;
+		try {
+			if (m.getTerm() > log.getCurrentTerm())
+				becomeFollower(m.getTerm(), -1);
+			switch (m.getType()) {
+				case REQUEST_VOTE:
+					handleRequestVote(m);
+					break;
+				case VOTE:
+					if (role == Role.CANDIDATE && m.getTerm() == log.getCurrentTerm() && m.isSuccess()) {
+						votes.add(m.getFrom());
+						if (votes.size() * 2 > members)
+							becomeLeader();
+					}
+					break;
+				case APPEND_ENTRIES:
+					handleAppendEntries(m);
+					break;
+				case APPEND_RESULT:
+					if (role == Role.LEADER && m.getTerm() == log.getCurrentTerm())
+						handleAppendResult(m);
+					break;
+			}
+		} catch (IOException e) {
+			// a member that can't keep its log or vote must not take part any more
+			System.err.println("Raft member " + id + " can't write its log, stopping: " + e);
+			e.printStackTrace();
+			stop();
+		}
+	}
+
+	private void handleRequestVote(RaftMessage m) throws IOException {
+		long term = log.getCurrentTerm();
+		boolean upToDate = m.getLogTerm() > log.lastTerm()
+				|| (m.getLogTerm() == log.lastTerm() && m.getLogIndex() >= log.lastIndex());
+		boolean grant = m.getTerm() == term && upToDate && (log.getVotedFor() == -1 || log.getVotedFor() == m.getFrom());
+		if (grant) {
+			log.setTermAndVote(term, m.getFrom());
+			electionElapsed = 0;
+		}
+		network.send(RaftMessage.vote(id, m.getFrom(), term, grant));
+	}
+
+	private void handleAppendEntries(RaftMessage m) throws IOException {
+		long term = log.getCurrentTerm();
+		if (m.getTerm() < term) { // from a deposed leader; the answer tells it so
+			network.send(RaftMessage.appendResult(id, m.getFrom(), term, false, log.lastIndex()));
+			return;
+		}
+		if (role != Role.FOLLOWER)
+			becomeFollower(term, m.getFrom());
+		leader = m.getFrom();
+		electionElapsed = 0;
+
+		long prevIndex = m.getLogIndex();
+		if (prevIndex > log.lastIndex()) {
+			network.send(RaftMessage.appendResult(id, m.getFrom(), term, false, log.lastIndex()));
+			return;
+		}
+		if (log.termAt(prevIndex) != m.getLogTerm()) {
+			network.send(RaftMessage.appendResult(id, m.getFrom(), term, false, prevIndex - 1));
+			return;
+		}
+		// skip the entries we already have; the first one that differs, and everything after it, is replaced
+		List<RaftLog.Entry> entries = m.getEntries();
+		int skip = 0;
+		while (skip < entries.size() && prevIndex + skip + 1 <= log.lastIndex()
+				&& log.termAt(prevIndex + skip + 1) == entries.get(skip).getTerm())
+			skip++;
+		if (skip < entries.size()) {
+			log.truncateFrom(prevIndex + skip + 1);
+			log.append(entries.subList(skip, entries.size()));
+			durableIndex = log.lastIndex();
+		}
+		long lastNew = prevIndex + entries.size();
+		if (m.getCommitIndex() > commitIndex) {
+			commitIndex = Math.min(m.getCommitIndex(), lastNew);
+			applyCommitted();
+		}
+		network.send(RaftMessage.appendResult(id, m.getFrom(), term, true, lastNew));
+	}
+
+	private void handleAppendResult(RaftMessage m) {
+		int peer = m.getFrom();
+		recentlyHeard[peer] = true;
+		if (m.isSuccess() == false) {
+			// look further back for where our logs match, never before what is known to match
+			nextIndex[peer] = Math.max(matchIndex[peer] + 1, Math.min(nextIndex[peer], m.getMatchIndex() + 1));
+			sendAppend(peer);
+			return;
+		}
+		if (m.getMatchIndex() > matchIndex[peer]) {
+			matchIndex[peer] = m.getMatchIndex();
+			advanceCommitIndex();
+		}
+		nextIndex[peer] = Math.max(nextIndex[peer], matchIndex[peer] + 1);
+		if (matchIndex[peer] + 1 == nextIndex[peer] && nextIndex[peer] <= log.lastIndex()) // nothing in flight, more to send
+			sendAppend(peer);
+	}
+
+	/**
+	 * Sends a member every entry from its nextIndex on (up to MAX_ENTRIES_PER_MESSAGE), and assumes they will arrive
+	 */
+	private void sendAppend(int peer) {
+		long prev = nextIndex[peer] - 1;
+		List<RaftLog.Entry> entries = log.entriesFrom(nextIndex[peer], MAX_ENTRIES_PER_MESSAGE);
+		network.send(RaftMessage.appendEntries(id, peer, log.getCurrentTerm(), prev, log.termAt(prev), entries, commitIndex));
+		nextIndex[peer] += entries.size();
+	}
+
+	/**
+	 * Commits the newest entry of this term that a majority has, and everything before it
+	 */
+	private void advanceCommitIndex() {
+		for (long n = log.lastIndex(); n > commitIndex; n--) {
+			if (log.termAt(n) != log.getCurrentTerm())
+				break; // an older leader's entries only count as committed once one of ours after them is
+			int replicas = durableIndex >= n ? 1 : 0;
+			for (int peer = 0; peer < members; peer++)
+				if (peer != id && matchIndex[peer] >= n)
+					replicas++;
+			if (replicas * 2 > members) {
+				commitIndex = n;
+				applyCommitted();
+				return;
+			}
+		}
+	}
+
+	private void applyCommitted() {
+		while (lastApplied < commitIndex) {
+			lastApplied++;
+			stateMachine.apply(lastApplied, log.get(lastApplied));
+			CompletableFuture<Void> done = waiting.remove(lastApplied);
+			if (done != null)
+				done.complete(null);
+		}
+		if (role == Role.LEADER && leading == false && isLeader()) {
+			leading = true;
+			stateMachine.leadershipChanged(true);
+		}
+	}
+
+	private void startElection() {
+		try {
+			log.setTermAndVote(log.getCurrentTerm() + 1, id);
+		} catch (IOException e) {
+			System.err.println("Raft member " + id + " can't write its vote, stopping: " + e);
+			stop();
+			return;
+		}
+		role = Role.CANDIDATE;
+		leader = -1;
+		votes.clear();
+		votes.add(id);
+		resetElectionTimer();
+		if (votes.size() * 2 > members) { // a group of one
+			becomeLeader();
+			return;
+		}
+		for (int peer = 0; peer < members; peer++)
+			if (peer != id)
+				network.send(RaftMessage.requestVote(id, peer, log.getCurrentTerm(), log.lastIndex(), log.lastTerm()));
+	}
+
+	private void becomeLeader() {
+		role = Role.LEADER;
+		leader = id;
+		heartbeatElapsed = 0;
+		electionElapsed = 0;
+		for (int peer = 0; peer < members; peer++) {
+			nextIndex[peer] = log.lastIndex() + 1;
+			matchIndex[peer] = 0;
+			recentlyHeard[peer] = false;
+		}
+		// committing an entry of our own term also commits everything before it (see advanceCommitIndex)
+		try {
+			log.append(Collections.singletonList(new RaftLog.Entry(log.getCurrentTerm(), 0, Collections.emptyMap())));
+		} catch (IOException e) {
+			System.err.println("Raft member " + id + " can't write its log, stopping: " + e);
+			stop();
+			return;
+		}
+		durableIndex = log.lastIndex();
+		termStartIndex = log.lastIndex();
+		for (int peer = 0; peer < members; peer++)
+			if (peer != id)
+				sendAppend(peer);
+		advanceCommitIndex();
+	}
+
+	private void becomeFollower(long term, int leader) throws IOException {
+		if (term > log.getCurrentTerm())
+			log.setTermAndVote(term, -1);
+		stopLeading("Member " + id + " lost leadership before the write committed; it may still commit");
+		if (durableIndex < log.lastIndex()) { // a follower acknowledges the entries it has, so they must be on disk
+			log.force();
+			durableIndex = log.lastIndex();
+		}
+		role = Role.FOLLOWER;
+		this.leader = leader;
+		resetElectionTimer();
+	}
+
+	private void stopLeading(String reason) {
+		if (role != Role.LEADER)
+			return;
+		List<CompletableFuture<Void>> failed = new ArrayList<>(waiting.values());
+		waiting.clear();
+		for (CompletableFuture<Void> f : failed)
+			f.completeExceptionally(new NotLeaderException(reason));
+		if (leading) {
+			leading = false;
+			stateMachine.leadershipChanged(false);
+		}
+	}
+
+	private void resetElectionTimer() {
+		electionElapsed = 0;
+		electionTimeout = ELECTION_TICKS + random.nextInt(ELECTION_TICKS);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RaftNode{" + id + "/" + members + " " + role + " term " + log.getCurrentTerm() + ", leader " + leader
+				+ ", " + log.lastIndex() + " entries, " + commitIndex + " committed}";
+	}
+}
@@ -0,0 +1,291 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Runs every member of a replicated server group in one process, over a simulated network that can delay, drop and
+ * partition messages, and crash and restart members. For tests.
+ * <p>
+ * Driven from one thread with {@link #step()}, a run is fully repeatable: message delays, drops and election
+ * timeouts all come from one seeded random generator, so a failing seed fails the same way every time. Servers can
+ * also be run on the simulator in real time with {@link #start(long)}, in which case requests arriving from other
+ * threads make the order of events vary.
+ * <p>
+ * A crashed member keeps its {@link RaftLog} (as if it were on disk), and gets it back when restarted.
+ */
+public class RaftSimulator implements Closeable {
+
+	private final int members;
+	private final Random random;
+	private final RaftLog[] logs;
+	private final RaftNode[] nodes;
+
+	// guards everything below, and random
+	private final Object lock = new Object();
+	// messages only reach members on the same side of a partition
+	private final int[] side;
+	private final PriorityQueue<InFlight> inFlight = new PriorityQueue<>();
+	private long now;
+	private long sent;
+	private double dropRate;
+	private int minDelayTicks = 1;
+	private int maxDelayTicks = 1;
+
+	private ScheduledExecutorService clock;
+
+	/**
+	 * Creates a group whose members all start as followers with empty logs
+	 *
+	 * @param members number of members
+	 * @param seed    seed for every random choice the simulation makes
+	 */
+	public RaftSimulator(int members, long seed) {
+		this.members = members;
+		this.random = new Random(seed);
+		this.logs = new RaftLog[members];
+		this.nodes = new RaftNode[members];
+		this.side = new int[members];
+		for (int i = 0; i < members; i++) {
+			logs[i] = new RaftLog();
+			nodes[i] = newNode(i);
+		}
+	}
+
+	/**
+	 * @return the member, or null while it is crashed
+	 */
+	public RaftNode getNode(int member) {
+		synchronized (lock) {
+			return nodes[member];
+		}
+	}
+
+	/**
+	 * @return the member's log, which survives crashes
+	 */
+	public RaftLog getLog(int member) {
+		return logs[member];
+	}
+
+	/**
+	 * @return ticks since the simulation started
+	 */
+	public long now() {
+		synchronized (lock) {
+			return now;
+		}
+	}
+
+	/**
+	 * @param dropRate fraction of messages lost, from 0 to 1
+	 */
+	public void setDropRate(double dropRate) {
+		synchronized (lock) {
+			this.dropRate = dropRate;
+		}
+	}
+
+	/**
+	 * Each message arrives between min and max ticks after it is sent (so messages can overtake each other)
+	 */
+	public void setDelay(int minTicks, int maxTicks) {
+		if (minTicks < 1 || maxTicks < minTicks)
+			throw new IllegalArgumentException();
+		synchronized (lock) {
+			minDelayTicks = minTicks;
+			maxDelayTicks = maxTicks;
+		}
+	}
+
+	/**
+	 * Cuts the given members off from the others: messages between the two sides are lost until {@link #heal()}
+	 */
+	public void partition(int... group) {
+		synchronized (lock) {
+			Arrays.fill(side, 0);
+			for (int member : group)
+				side[member] = 1;
+		}
+	}
+
+	/**
+	 * Ends any partition
+	 */
+	public void heal() {
+		synchronized (lock) {
+			Arrays.fill(side, 0);
+		}
+	}
+
+	/**
+	 * Crashes a member: it stops, and messages to it are lost until it is restarted
+	 */
+	public void crash(int member) {
+		RaftNode node;
+		synchronized (lock) {
+			node = nodes[member];
+			nodes[member] = null;
+		}
+		if (node != null)
+			node.stop();
+	}
+
+	/**
+	 * Restarts a crashed member with the log it had, as a follower that has applied nothing yet
+	 *
+	 * @param init sets up the new node before it takes part (e.g. KeyValueServer::replicateWith, to set its state
+	 *             machine)
+	 * @return the new node
+	 */
+	public RaftNode restart(int member, Consumer<RaftNode> init) {
+		RaftNode node = newNode(member);
+		init.accept(node);
+		synchronized (lock) {
+			if (nodes[member] != null)
+				throw new IllegalStateException("Member " + member + " is running");
+			nodes[member] = node;
+			return node;
+		}
+	}
+
+	/**
+	 * @return the running member that can serve writes as leader in the highest term, or -1 if there is none
+	 */
+	public int getLeader() {
+		int ret = -1;
+		long term = -1;
+		for (int i = 0; i < members; i++) {
+			RaftNode node = getNode(i);
+			if (node != null && node.isLeader() && node.getTerm() > term) {
+				ret = i;
+				term = node.getTerm();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Advances time by one tick: ticks every running member, then delivers every message due by now
+	 */
+	public void step() {
+		RaftNode[] running;
+		synchronized (lock) {
+			now++;
+			running = nodes.clone();
+		}
+		for (RaftNode node : running)
+			if (node != null)
+				node.tick();
+		List<RaftMessage> due = new ArrayList<>();
+		synchronized (lock) {
+			while (inFlight.isEmpty() == false && inFlight.peek().deliverAt <= now)
+				due.add(inFlight.poll().message);
+		}
+		// delivered without holding the lock, since members send their answers while handling a message
+		for (RaftMessage m : due) {
+			RaftNode target;
+			synchronized (lock) {
+				target = side[m.getFrom()] == side[m.getTo()] ? nodes[m.getTo()] : null;
+			}
+			if (target != null)
+				target.receive(m);
+		}
+	}
+
+	/**
+	 * Steps ticks times
+	 */
+	public void runFor(int ticks) {
+		for (int i = 0; i < ticks; i++)
+			step();
+	}
+
+	/**
+	 * Steps until condition holds, for at most maxTicks
+	 *
+	 * @return true if the condition was met
+	 */
+	public boolean runUntil(BooleanSupplier condition, int maxTicks) {
+		for (int i = 0; i < maxTicks; i++) {
+			if (condition.getAsBoolean())
+				return true;
+			step();
+		}
+		return condition.getAsBoolean();
+	}
+
+	/**
+	 * Steps every tickMillis on a background thread, until {@link #close()}
+	 */
+	public synchronized void start(long tickMillis) {
+		if (clock != null)
+			throw new IllegalStateException("Already started");
+		clock = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "kvstore-raft-simulator");
+			t.setDaemon(true);
+			return t;
+		});
+		clock.scheduleAtFixedRate(this::step, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background clock, if started
+	 */
+	@Override
+	public synchronized void close() {
+		if (clock != null) {
+			clock.shutdown();
+			try {
+				clock.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private RaftNode newNode(int member) {
+		long seed;
+		synchronized (lock) {
+			seed = random.nextLong();
+		}
+		return new RaftNode(member, members, logs[member], this::send, new Random(seed));
+	}
+
+	private void send(RaftMessage m) {
+		synchronized (lock) {
+			if (side[m.getFrom()] != side[m.getTo()] || (dropRate > 0 && random.nextDouble() < dropRate))
+				return;
+			long delay = minDelayTicks + random.nextInt(maxDelayTicks - minDelayTicks + 1);
+			inFlight.add(new InFlight(now + delay, sent++, m));
+		}
+	}
+
+	private static final class InFlight implements Comparable<InFlight> {
+		final long deliverAt;
+		final long order;
+		final RaftMessage message;
+
+		InFlight(long deliverAt, long order, RaftMessage message) {
+			this.deliverAt = deliverAt;
+			this.order = order;
+			this.message = message;
+		}
+
+		@Override
+		public int compareTo(InFlight o) {
+			if (deliverAt != o.deliverAt)
+				return Long.compare(deliverAt, o.deliverAt);
+			return Long.compare(order, o.order);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package edu.gmu.cs475;
+
+/**
+ * One replica's round-trip histograms, one for each message a server sends to its replicas.
+ * <p>
+ * They are looked up in the {@link MetricsRegistry} once, when the replica registers, so timing a call to a replica
+ * doesn't build a metric name and search the registry for it every time.
+ */
+final class ReplicaHistograms {
+
+	/**
+	 * The messages a server sends to its replicas
+	 */
+	enum Operation {
+		INNER_WRITE_KEY, INNER_WRITE_KEYS, COMMIT_TRANSACTION, ABORT_TRANSACTION;
+
+		/**
+		 * @return the name of this message's histogram, e.g. replica_commit_transaction_nanos
+		 */
+		String metricName() {
+			return "replica_" + name().toLowerCase() + "_nanos";
+		}
+	}
+
+	private final Histogram[] histograms = new Histogram[Operation.values().length];
+
+	/**
+	 * @param metrics registry the histograms are in
+	 * @param port    port of the replica, which labels its histograms
+	 */
+	ReplicaHistograms(MetricsRegistry metrics, int port) {
+		String label = String.valueOf(port);
+		for (Operation op : Operation.values())
+			histograms[op.ordinal()] = metrics.histogram(op.metricName(), "replica", label);
+	}
+
+	/**
+	 * @param operation message sent
+	 * @return the histogram of the replica's round trips for that message
+	 */
+	Histogram get(Operation operation) {
+		return histograms[operation.ordinal()];
+	}
+}
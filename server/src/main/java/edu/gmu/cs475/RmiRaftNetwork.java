@@ -0,0 +1,73 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.rmi.registry.LocateRegistry;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries messages between the members of a replicated server group over RMI. Each member is looked up (as an
+ * {@link IRaftPeer}) in the RMI registry at its address.
+ * <p>
+ * Each member gets its own sending thread and queue, so a member that is down or slow only delays messages to itself.
+ * If its queue fills up the oldest messages are dropped: Raft resends whatever still matters with the next heartbeat.
+ */
+public class RmiRaftNetwork implements RaftNode.Network, Closeable {
+
+	// messages queued for one member before the oldest are dropped
+	static final int MAX_QUEUED_MESSAGES = 1024;
+
+	private final String[] addresses;
+	private final ThreadPoolExecutor[] senders;
+	// each only touched by that member's sending thread; null until looked up, or after a failed call
+	private final IRaftPeer[] peers;
+
+	/**
+	 * @param addresses host:port of each member's RMI registry, in member order
+	 * @param self      this member's index, which is never sent to
+	 */
+	public RmiRaftNetwork(List<String> addresses, int self) {
+		this.addresses = addresses.toArray(new String[0]);
+		this.senders = new ThreadPoolExecutor[this.addresses.length];
+		this.peers = new IRaftPeer[this.addresses.length];
+		for (int i = 0; i < senders.length; i++) {
+			if (i == self)
+				continue;
+			int member = i;
+			senders[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_MESSAGES), r -> {
+				Thread t = new Thread(r, "kvstore-raft-send-" + member);
+				t.setDaemon(true);
+				return t;
+			}, new ThreadPoolExecutor.DiscardOldestPolicy());
+		}
+	}
+
+	@Override
+	public void send(RaftMessage message) {
+		senders[message.getTo()].execute(() -> deliver(message));
+	}
+
+	private void deliver(RaftMessage message) {
+		int to = message.getTo();
+		try {
+			if (peers[to] == null) {
+				String address = addresses[to];
+				int colon = address.lastIndexOf(':');
+				peers[to] = (IRaftPeer) LocateRegistry.getRegistry(address.substring(0, colon),
+						Integer.parseInt(address.substring(colon + 1))).lookup(IRaftPeer.RMI_NAME);
+			}
+			peers[to].deliver(message);
+		} catch (Exception e) {
+			peers[to] = null; // lost, like any message; look the member up again next time
+		}
+	}
+
+	@Override
+	public void close() {
+		for (ThreadPoolExecutor sender : senders)
+			if (sender != null)
+				sender.shutdownNow();
+	}
+}
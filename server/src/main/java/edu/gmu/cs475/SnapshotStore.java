@@ -0,0 +1,198 @@
+package edu.gmu.cs475;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps a compact binary snapshot of the whole store in a single file, so that a restart only has to load the
+ * snapshot and replay the (short) write-ahead log written since, instead of the full history.
+ * <p>
+ * File layout:
+ * <pre>
+ *     int MAGIC | int VERSION | long lastXid | (int keyLength | key | int valueLength | value)* | int -1 | int crc32
+ * </pre>
+ * where the checksum covers everything before it, header included. Entries are streamed straight from the store, so taking a
+ * snapshot never needs a second copy of the data in memory. A new snapshot is written to a temporary file and atomically renamed over
+ * the old one, so there is always exactly one complete snapshot (or none). Snapshots are loaded through memory-mapped
+ * windows of the file rather than read through a stream: one pass checks the checksum, and only then a second pass
+ * hands the entries over, so a corrupt snapshot never reaches the store.
+ */
+public class SnapshotStore {
+
+	static final int MAGIC = 0x4B56534E; // "KVSN"
+	static final int VERSION = 2; // 1 didn't checksum the header
+	private static final int HEADER_BYTES = 16;
+
+	// how much of the snapshot is mapped at a time when loading (a single mapping can't exceed 2GB)
+	static final int MAP_WINDOW_BYTES = 64 * 1024 * 1024;
+
+	private final Path file;
+
+	/**
+	 * @param file where the snapshot is kept
+	 */
+	public SnapshotStore(Path file) {
+		if (file == null)
+			throw new NullPointerException();
+		this.file = file;
+	}
+
+	/**
+	 * @return the file the snapshot is kept in
+	 */
+	public Path getPath() {
+		return file;
+	}
+
+	/**
+	 * Writes a new snapshot, replacing the previous one once it is completely on disk
+	 *
+	 * @param lastXid largest transaction ID that the snapshot may reflect
+	 * @param entries every key and value in the store
+	 * @return the number of entries written
+	 * @throws IOException if the snapshot can't be written; the previous snapshot is left in place
+	 */
+	public long write(long lastXid, Iterable<Map.Entry<String, String>> entries) throws IOException {
+		long count = 0;
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream fileOut = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(lastXid);
+			for (Map.Entry<String, String> e : entries) {
+				writeString(out, e.getKey());
+				writeString(out, e.getValue());
+				count++;
+			}
+			out.writeInt(-1);
+			out.flush();
+			new DataOutputStream(fileOut).writeInt((int) crc.getValue());
+		}
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+			ch.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return count;
+	}
+
+	/**
+	 * Loads the snapshot, if there is one
+	 *
+	 * @param replayer receives every key and value in the snapshot, once the whole snapshot is known to be intact
+	 * @return the snapshot's lastXid, or 0 if there is no snapshot
+	 * @throws IOException if the snapshot exists but can't be read or is corrupt; replayer has then received nothing
+	 */
+	public long load(WriteAheadLog.Replayer replayer) throws IOException {
+		if (!Files.exists(file))
+			return 0;
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			verifyChecksum(ch);
+			MappedReader in = new MappedReader(ch);
+			if (in.getInt() != MAGIC)
+				throw new IOException("Not a snapshot file: " + file);
+			int version = in.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version + ": " + file);
+			long lastXid = in.getLong();
+			while (true) {
+				int keyLength = in.getInt();
+				if (keyLength == -1)
+					break;
+				String key = in.getString(keyLength);
+				String value = in.getString(in.getInt());
+				replayer.apply(key, value);
+			}
+			return lastXid;
+		}
+	}
+
+	/**
+	 * Checks the trailing checksum against everything before it, a window at a time
+	 *
+	 * @throws IOException if the snapshot is truncated or the checksum doesn't match
+	 */
+	private void verifyChecksum(FileChannel ch) throws IOException {
+		long size = ch.size();
+		if (size < HEADER_BYTES + 8)
+			throw new IOException("Snapshot is truncated: " + file);
+		long end = size - 4;
+		CRC32 crc = new CRC32();
+		for (long position = 0; position < end; position += MAP_WINDOW_BYTES)
+			crc.update(ch.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_BYTES, end - position)));
+		ByteBuffer stored = ByteBuffer.allocate(4);
+		while (stored.hasRemaining())
+			if (ch.read(stored, end + stored.position()) < 0)
+				throw new IOException("Snapshot is truncated: " + file);
+		if (stored.getInt(0) != (int) crc.getValue())
+			throw new IOException("Snapshot checksum mismatch: " + file);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a file through a sliding memory-mapped window
+	 */
+	private static final class MappedReader {
+		final FileChannel channel;
+		final long size;
+		MappedByteBuffer window;
+		long windowStart;
+
+		MappedReader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			if (size < HEADER_BYTES)
+				throw new IOException("Snapshot is truncated");
+			map(0, 0);
+		}
+
+		private void map(long position, int atLeast) throws IOException {
+			long length = Math.min(Math.max(MAP_WINDOW_BYTES, atLeast), size - position);
+			if (length < atLeast)
+				throw new IOException("Snapshot is truncated");
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			windowStart = position;
+		}
+
+		private ByteBuffer ensure(int n) throws IOException {
+			if (window.remaining() < n)
+				map(windowStart + window.position(), n);
+			return window;
+		}
+
+		int getInt() throws IOException {
+			return ensure(4).getInt();
+		}
+
+		long getLong() throws IOException {
+			return ensure(8).getLong();
+		}
+
+		String getString(int length) throws IOException {
+			if (length < 0)
+				throw new IOException("Snapshot is corrupt");
+			byte[] bytes = new byte[length];
+			ensure(length).get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
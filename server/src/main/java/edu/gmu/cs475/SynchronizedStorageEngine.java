@@ -0,0 +1,90 @@
+package edu.gmu.cs475;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Storage engine that guards a single {@link HashMap} with its monitor, so every read and write is serialized.
+ * This is how the server stored its data originally; it is kept as a baseline to compare other engines against.
+ */
+public class SynchronizedStorageEngine implements IStorageEngine {
+	private final HashMap<String, String> map = new HashMap<>();
+
+	@Override
+	public String get(String key) {
+		synchronized (map) {
+			return map.get(key);
+		}
+	}
+
+	@Override
+	public void put(String key, String value) {
+		synchronized (map) {
+			map.put(key, value);
+		}
+	}
+
+	@Override
+	public boolean remove(String key) {
+		synchronized (map) {
+			return map.remove(key) != null;
+		}
+	}
+
+	@Override
+	public Set<String> keys() {
+		synchronized (map) {
+			return new HashSet<>(map.keySet());
+		}
+	}
+
+	@Override
+	public Set<String> keysWithPrefix(String prefix) {
+		synchronized (map) {
+			HashSet<String> ret = new HashSet<>();
+			for (String key : map.keySet()) {
+				if (key.startsWith(prefix))
+					ret.add(key);
+			}
+			return ret;
+		}
+	}
+
+	@Override
+	public LinkedHashMap<String, String> entriesAfter(String afterKey, int max) {
+		TreeMap<String, String> sorted;
+		synchronized (map) {
+			sorted = new TreeMap<>(map);
+		}
+		LinkedHashMap<String, String> ret = new LinkedHashMap<>();
+		for (Map.Entry<String, String> e : (afterKey == null ? sorted : sorted.tailMap(afterKey, false)).entrySet()) {
+			if (ret.size() >= max)
+				break;
+			ret.put(e.getKey(), e.getValue());
+		}
+		return ret;
+	}
+
+	@Override
+	public HashMap<String, String> copy() {
+		synchronized (map) {
+			return new HashMap<>(map);
+		}
+	}
+
+	@Override
+	public Iterable<Map.Entry<String, String>> entries() {
+		return copy().entrySet();
+	}
+
+	@Override
+	public String toString() {
+		synchronized (map) {
+			return map.toString();
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of committed writes, so that the server's store survives a restart.
+ * <p>
+ * Each record is one committed transaction (or plain set): its xid and every key/value it wrote. On disk a record is
+ * <pre>
+ *     int payloadLength | int crc32(payload) | long xid | int nWrites | (int keyLength | key | int valueLength | value)*
+ * </pre>
+ * with strings in UTF-8. A record whose length or checksum doesn't match (a write torn by a crash) ends the log.
+ * <p>
+ * Appends use group commit: while one thread is writing (and, depending on the {@link FsyncPolicy}, forcing) a batch
+ * to the {@link FileChannel}, other appenders queue up behind it and are all written together by the next one.
+ * <p>
+ * A record in the log means its transaction committed, since it is replayed as committed. So an append that fails
+ * truncates the file back to where its batch started before reporting the failure, and the server only aborts a
+ * transaction whose append failed.
+ * <p>
+ * Once a snapshot covers everything up to some {@link #position()}, {@link #discardBefore(long)} drops that prefix
+ * so the log doesn't grow forever.
+ */
+public class WriteAheadLog implements Closeable {
+
+	/**
+	 * When appended records are forced to stable storage
+	 */
+	public enum FsyncPolicy {
+		/**
+		 * Every append waits for an fsync that covers it; concurrent appends share one fsync
+		 */
+		ALWAYS,
+		/**
+		 * Appends return once written to the OS, and a background thread fsyncs on a fixed interval; a crash can lose
+		 * up to one interval of commits
+		 */
+		PERIODIC,
+		/**
+		 * Never fsync explicitly, leave it to the OS
+		 */
+		NEVER
+	}
+
+	private static final int HEADER_BYTES = 8;
+
+	/**
+	 * Called once for every write in the log, in the order they were committed
+	 */
+	@FunctionalInterface
+	public interface Replayer {
+		void apply(String key, String value);
+	}
+
+	private final Path path;
+	private final FsyncPolicy policy;
+	private final ScheduledExecutorService syncer;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition batchWritten = lock.newCondition();
+	// all guarded by lock
+	private FileChannel channel;
+	private List<ByteBuffer> pending = new ArrayList<>();
+	private long appendedSeq;
+	private long writtenSeq;
+	private boolean writing;
+	private boolean replayed;
+	private IOException failure;
+
+	/**
+	 * Opens (creating if necessary) the log at the given path. {@link #replay(Replayer)} must be called before the
+	 * first append.
+	 *
+	 * @param path               file to log to
+	 * @param policy             when to fsync
+	 * @param syncIntervalMillis for {@link FsyncPolicy#PERIODIC}, how often to fsync; ignored otherwise
+	 * @throws IOException if the file can't be opened
+	 */
+	public WriteAheadLog(Path path, FsyncPolicy policy, long syncIntervalMillis) throws IOException {
+		if (policy == null)
+			throw new NullPointerException();
+		this.path = path;
+		this.policy = policy;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (policy == FsyncPolicy.PERIODIC) {
+			if (syncIntervalMillis <= 0)
+				throw new IllegalArgumentException();
+			syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "kvstore-wal-sync");
+				t.setDaemon(true);
+				return t;
+			});
+			syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			syncer = null;
+		}
+	}
+
+	/**
+	 * @return the file this log is written to
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the fsync policy this log was opened with
+	 */
+	public FsyncPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Reads every intact record from the start of the log, passing each write to the replayer, then truncates any torn
+	 * record at the end so that new appends follow the last good one.
+	 *
+	 * @param replayer receives every logged write, oldest first
+	 * @return the largest xid found in the log, or 0 if it is empty
+	 * @throws IOException if the log can't be read
+	 */
+	public long replay(Replayer replayer) throws IOException {
+		lock.lock();
+		try {
+			if (replayed)
+				throw new IllegalStateException("Log was already replayed");
+			long maxXid = 0;
+			long position = 0;
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (position + HEADER_BYTES <= size) {
+				header.clear();
+				readFully(header, position);
+				header.flip();
+				int length = header.getInt();
+				int checksum = header.getInt();
+				if (length < 12 || position + HEADER_BYTES + length > size)
+					break;
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				readFully(payload, position + HEADER_BYTES);
+				CRC32 crc = new CRC32();
+				crc.update(payload.array(), 0, length);
+				if ((int) crc.getValue() != checksum)
+					break;
+				payload.flip();
+				long xid = payload.getLong();
+				int nWrites = payload.getInt();
+				for (int i = 0; i < nWrites; i++) {
+					String key = readString(payload);
+					String value = readString(payload);
+					replayer.apply(key, value);
+				}
+				maxXid = Math.max(maxXid, xid);
+				position += HEADER_BYTES + length;
+			}
+			if (position < size)
+				channel.truncate(position);
+			channel.position(position);
+			replayed = true;
+			return maxXid;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Logs a single committed write
+	 *
+	 * @see #append(long, Map)
+	 */
+	public void append(long xid, String key, String value) throws IOException {
+		Map<String, String> writes = new LinkedHashMap<>(2);
+		writes.put(key, value);
+		append(xid, writes);
+	}
+
+	/**
+	 * Logs a committed transaction. Returns once the record is written to the file, and, with
+	 * {@link FsyncPolicy#ALWAYS}, forced to disk.
+	 *
+	 * @param xid    transaction id
+	 * @param writes every key/value the transaction wrote
+	 * @throws IOException if the record (or an earlier one) could not be written; the log is unusable after this. The
+	 *                     record is not in the log, unless even truncating it away failed (see the exception's message)
+	 */
+	public void append(long xid, Map<String, String> writes) throws IOException {
+		ByteBuffer record = encode(xid, writes);
+		lock.lock();
+		try {
+			if (!replayed)
+				throw new IllegalStateException("Log must be replayed before it is appended to");
+			checkFailure();
+			pending.add(record);
+			long mySeq = ++appendedSeq;
+			while (writtenSeq < mySeq) {
+				checkFailure();
+				if (writing) {
+					batchWritten.awaitUninterruptibly();
+					continue;
+				}
+				// become the writer for everything queued so far, including our own record
+				writing = true;
+				List<ByteBuffer> batch = pending;
+				pending = new ArrayList<>();
+				long batchSeq = appendedSeq;
+				FileChannel ch = channel;
+				lock.unlock();
+				IOException error = null;
+				try {
+					long start = ch.position();
+					try {
+						writeBatch(ch, batch);
+					} catch (IOException e) {
+						error = rollBack(ch, start, e);
+					}
+				} catch (IOException e) {
+					error = e;
+				} finally {
+					lock.lock();
+				}
+				writing = false;
+				if (error != null)
+					failure = error;
+				else
+					writtenSeq = batchSeq;
+				batchWritten.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the offset just past the last record written, for use with {@link #discardBefore(long)}. Records from
+	 * appends that are still in progress may or may not be included.
+	 * @throws IOException if the log can't be read
+	 */
+	public long position() throws IOException {
+		lock.lock();
+		try {
+			while (writing)
+				batchWritten.awaitUninterruptibly();
+			return channel.position();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops every record before the given position (which must have come from {@link #position()} since the last
+	 * discard), by copying the rest of the log to a new file and atomically replacing the old one. Appends wait while
+	 * the remainder is copied.
+	 *
+	 * @param marker position from {@link #position()}; everything before it must already be reflected in a snapshot
+	 * @throws IOException if the log can't be rewritten; the old log is left in place
+	 */
+	public void discardBefore(long marker) throws IOException {
+		lock.lock();
+		try {
+			while (writing)
+				batchWritten.awaitUninterruptibly();
+			checkFailure();
+			long end = channel.position();
+			if (marker <= 0 || marker > end)
+				return;
+			Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				long copied = 0;
+				while (copied < end - marker)
+					copied += channel.transferTo(marker + copied, end - marker - copied, out);
+				out.force(true);
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			FileChannel old = channel;
+			channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel.position(channel.size());
+			old.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void writeBatch(FileChannel channel, List<ByteBuffer> batch) throws IOException {
+		ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+		long remaining = 0;
+		for (ByteBuffer b : buffers)
+			remaining += b.remaining();
+		while (remaining > 0)
+			remaining -= channel.write(buffers);
+		if (policy == FsyncPolicy.ALWAYS)
+			channel.force(false);
+	}
+
+	/**
+	 * Cuts a batch that failed part way back out of the log, so none of its records are replayed as committed
+	 *
+	 * @param start where the batch started
+	 * @param cause why the batch failed
+	 * @return the failure to report to the batch's appenders
+	 */
+	private static IOException rollBack(FileChannel channel, long start, IOException cause) {
+		try {
+			channel.truncate(start);
+			channel.position(start);
+			channel.force(false);
+			return cause;
+		} catch (IOException e) {
+			IOException inDoubt = new IOException("Write-ahead log append failed and could not be rolled back; its records may be replayed as committed", cause);
+			inDoubt.addSuppressed(e);
+			return inDoubt;
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null)
+			throw new IOException("Write-ahead log failed earlier", failure);
+	}
+
+	private void syncQuietly() {
+		FileChannel ch;
+		lock.lock();
+		try {
+			ch = channel;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			ch.force(false);
+		} catch (IOException e) {
+			lock.lock();
+			try {
+				if (e instanceof ClosedChannelException && ch != channel)
+					return; // the log was rewritten by discardBefore, which forced the new file itself
+				failure = e;
+				batchWritten.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Forces everything written so far to disk, then closes the log
+	 */
+	@Override
+	public void close() throws IOException {
+		if (syncer != null) {
+			// not shutdownNow: interrupting a thread inside force() would close the channel under us
+			syncer.shutdown();
+			try {
+				syncer.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		lock.lock();
+		try {
+			while (writing)
+				batchWritten.awaitUninterruptibly();
+			if (channel.isOpen()) {
+				channel.force(false);
+				channel.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	static ByteBuffer encode(long xid, Map<String, String> writes) {
+		List<byte[]> strings = new ArrayList<>(writes.size() * 2);
+		int length = 12;
+		for (Map.Entry<String, String> e : writes.entrySet()) {
+			byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+			byte[] value = e.getValue().getBytes(StandardCharsets.UTF_8);
+			strings.add(key);
+			strings.add(value);
+			length += 8 + key.length + value.length;
+		}
+		ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+		record.position(HEADER_BYTES);
+		record.putLong(xid);
+		record.putInt(writes.size());
+		for (byte[] s : strings) {
+			record.putInt(s.length);
+			record.put(s);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER_BYTES, length);
+		record.putInt(0, length);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return s;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new IOException("Unexpected end of log");
+			position += n;
+		}
+	}
+}
@@ -1,7 +1,17 @@
 package edu.gmu.cs475.internal;
 
+import edu.gmu.cs475.BinaryKeyValueServerEndpoint;
 import edu.gmu.cs475.IKeyValueServer;
+import edu.gmu.cs475.IRaftPeer;
 import edu.gmu.cs475.KeyValueServer;
+import edu.gmu.cs475.MetricsHttpEndpoint;
+import edu.gmu.cs475.NioRpcServer;
+import edu.gmu.cs475.RaftLog;
+import edu.gmu.cs475.RaftNode;
+import edu.gmu.cs475.RmiRaftNetwork;
+import edu.gmu.cs475.SnapshotStore;
+import edu.gmu.cs475.Transport;
+import edu.gmu.cs475.WriteAheadLog;
 
 import java.io.IOException;
 import java.nio.file.Path;
@@ -9,18 +19,118 @@ import java.nio.file.Paths;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 public class ServerMain {
 
+	// how often the log is fsynced under the periodic policy
+	static final long WAL_SYNC_INTERVAL_MILLIS = 100;
+
+	// how often a snapshot of the store is written next to the log (which is then truncated)
+	static final long SNAPSHOT_INTERVAL_MILLIS = 60000;
+
+	// how long a client may leave a transaction or a key lock idle before the server aborts/frees it
+	static final long TRANSACTION_TIMEOUT_MILLIS = 60000;
+
+	// system property giving this server's shard number, when it is one shard of a sharded deployment
+	static final String SHARD_PROPERTY = "kvstore.shard";
+
+	// system property that turns on the contention profiler at startup, sampling 1 in this many reads/locks
+	static final String PROFILE_PROPERTY = "kvstore.profile.sampleEvery";
+
+	// system property listing host:port of the RMI registry every member of a replicated server group serves its
+	// group traffic on, comma separated, in member order (the same on every member)
+	static final String GROUP_PROPERTY = "kvstore.group";
+
+	// system property giving this server's index in kvstore.group
+	static final String GROUP_MEMBER_PROPERTY = "kvstore.group.member";
+
+	// system property choosing how many replicas a commit waits for: all (the default), quorum or synchronous
+	static final String COMMIT_MODE_PROPERTY = "kvstore.commit";
+
+	// system property listing the port numbers of the replicas every commit waits for in synchronous mode, comma
+	// separated
+	static final String SYNCHRONOUS_REPLICAS_PROPERTY = "kvstore.commit.synchronous";
+
+	// how often a group member ticks (sends heartbeats, checks for a missing leader)
+	static final long RAFT_TICK_MILLIS = 50;
+
 	public static Path BASEDIR = Paths.get(System.getProperty("user.dir").replace("client","server"), "testdir");;
 	public static void main(String[] args) throws IOException {
-		if(args.length != 1)
+		if(args.length < 1 || args.length > 3)
 		{
-			System.err.println("Error: expected usage: java -jar server.jar <portnumber>");
+			System.err.println("Error: expected usage: java [-Dkvstore.transport=rmi|binary] [-Dkvstore.metrics.port=<port>] [-Dkvstore.profile.sampleEvery=<n>] [-Dkvstore.shard=<n>] [-Dkvstore.commit=all|quorum|synchronous [-Dkvstore.commit.synchronous=<port>,<port>,...]] [-Dkvstore.group=<host:port>,<host:port>,... -Dkvstore.group.member=<n>] -jar server.jar <portnumber> [<logfile> [always|periodic|never]]");
 			return;
 		}
 		int port = Integer.valueOf(args[0]);
 		KeyValueServer keyValueServer = new KeyValueServer();
+		Integer shard = Integer.getInteger(SHARD_PROPERTY);
+		if(shard != null)
+		{
+			keyValueServer.setShard(shard);
+		}
+		keyValueServer.scheduleTransactionReaper(TRANSACTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		String commitMode = System.getProperty(COMMIT_MODE_PROPERTY);
+		if(commitMode != null)
+		{
+			int[] synchronousReplicas = Arrays.stream(System.getProperty(SYNCHRONOUS_REPLICAS_PROPERTY, "").split(","))
+					.filter(p -> p.isEmpty() == false).mapToInt(Integer::parseInt).toArray();
+			keyValueServer.setCommitMode(KeyValueServer.CommitMode.valueOf(commitMode.toUpperCase()), synchronousReplicas);
+		}
+		String group = System.getProperty(GROUP_PROPERTY);
+		if(group != null)
+		{
+			// the group's log replaces the write-ahead log: every member has every commit, so there is nothing to recover
+			List<String> members = Arrays.asList(group.split(","));
+			int member = Integer.getInteger(GROUP_MEMBER_PROPERTY, -1);
+			RaftLog raftLog = args.length >= 2 ? new RaftLog(Paths.get(args[1])) : new RaftLog();
+			RaftNode node = new RaftNode(member, members.size(), raftLog, new RmiRaftNetwork(members, member), new Random());
+			keyValueServer.replicateWith(node);
+			String self = members.get(member);
+			LocateRegistry.createRegistry(Integer.parseInt(self.substring(self.lastIndexOf(':') + 1)))
+					.rebind(IRaftPeer.RMI_NAME, UnicastRemoteObject.exportObject(node, 0));
+			node.start(RAFT_TICK_MILLIS);
+			System.out.println("Member " + member + " of group " + group + ", with " + raftLog.lastIndex() + " log entries"
+					+ (raftLog.getPath() == null ? " (log kept in memory only)" : " in " + raftLog.getPath()));
+		}
+		else if(args.length >= 2)
+		{
+			WriteAheadLog.FsyncPolicy policy = WriteAheadLog.FsyncPolicy.ALWAYS;
+			if(args.length == 3)
+				policy = WriteAheadLog.FsyncPolicy.valueOf(args[2].toUpperCase());
+			Path logFile = Paths.get(args[1]);
+			SnapshotStore snapshots = new SnapshotStore(logFile.resolveSibling(logFile.getFileName() + ".snapshot"));
+			WriteAheadLog log = new WriteAheadLog(logFile, policy, WAL_SYNC_INTERVAL_MILLIS);
+			keyValueServer.recoverFrom(snapshots, log);
+			keyValueServer.scheduleSnapshots(SNAPSHOT_INTERVAL_MILLIS);
+			System.out.println("Recovered " + keyValueServer.listKeys().size() + " keys from " + snapshots.getPath() + " and " + logFile);
+		}
+		Integer profileSampleEvery = Integer.getInteger(PROFILE_PROPERTY);
+		if(profileSampleEvery != null)
+		{
+			keyValueServer.setContentionProfiling(profileSampleEvery);
+		}
+		keyValueServer.getMetricsRegistry().registerMBean("edu.gmu.cs475:type=KeyValueServer,port=" + port);
+		Integer metricsPort = Integer.getInteger(MetricsHttpEndpoint.PORT_PROPERTY);
+		if(metricsPort != null)
+		{
+			MetricsHttpEndpoint endpoint = new MetricsHttpEndpoint(metricsPort, keyValueServer.getMetricsRegistry());
+			System.out.println("Serving metrics at http://localhost:" + endpoint.getPort() + "/metrics");
+		}
+		if(Transport.fromSystemProperty() == Transport.BINARY)
+		{
+			new NioRpcServer(port, new BinaryKeyValueServerEndpoint(keyValueServer));
+			System.out.println("Server bound to port " + port + " (binary transport)");
+			// the selector thread is a daemon, so keep the JVM alive
+			try {
+				Thread.currentThread().join();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
 		IKeyValueServer stub = (IKeyValueServer) UnicastRemoteObject.exportObject(keyValueServer, 0);
 		Registry registry = LocateRegistry.createRegistry(port);
 		registry.rebind(IKeyValueServer.RMI_NAME, stub);
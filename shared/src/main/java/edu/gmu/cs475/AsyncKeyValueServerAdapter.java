@@ -0,0 +1,129 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives a server that only has blocking calls (an RMI stub, or an in-process server) the IAsyncKeyValueServer API, by
+ * making each call on a pool thread. RMI can't pipeline, so at most ASYNC_THREADS calls are in flight at once; the
+ * rest wait in the pool's queue.
+ */
+public class AsyncKeyValueServerAdapter implements IAsyncKeyValueServer, Closeable {
+
+	// most blocking calls made at once
+	public static final int ASYNC_THREADS = 64;
+
+	private interface BlockingCall<T> {
+		T call() throws Exception;
+	}
+
+	private final IKeyValueServer server;
+	private final ThreadPoolExecutor executor;
+
+	public AsyncKeyValueServerAdapter(IKeyValueServer server) {
+		this.server = server;
+		AtomicInteger n = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(r, "kvstore-async-" + n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private <T> CompletableFuture<T> submit(BlockingCall<T> call) {
+		CompletableFuture<T> ret = new CompletableFuture<>();
+		executor.execute(() -> {
+			try {
+				ret.complete(call.call());
+			} catch (Throwable t) {
+				ret.completeExceptionally(t);
+			}
+		});
+		return ret;
+	}
+
+	@Override
+	public CompletableFuture<String> getAsync(String key) {
+		return submit(() -> server.get(key));
+	}
+
+	@Override
+	public CompletableFuture<Void> setAsync(String key, String value) {
+		return submit(() -> {
+			server.set(key, value);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Long> lockKeyAsync(String name) {
+		return submit(() -> server.lockKey(name));
+	}
+
+	@Override
+	public CompletableFuture<Void> unLockKeyAsync(String name, long stamp) {
+		return submit(() -> {
+			server.unLockKey(name, stamp);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Long> lockKeysAsync(SortedSet<String> names) {
+		return submit(() -> server.lockKeys(names));
+	}
+
+	@Override
+	public CompletableFuture<Void> unlockKeysAsync(long lease) {
+		return submit(() -> {
+			server.unlockKeys(lease);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Boolean> setInTransactionAsync(String key, String value, long xid) {
+		return submit(() -> server.setInTransaction(key, value, xid));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> setManyInTransactionAsync(HashMap<String, String> values, long xid) {
+		return submit(() -> server.setManyInTransaction(values, xid));
+	}
+
+	@Override
+	public CompletableFuture<Long> startNewTransactionAsync() {
+		return submit(server::startNewTransaction);
+	}
+
+	@Override
+	public CompletableFuture<Void> issueCommitTransactionAsync(long xid) {
+		return submit(() -> {
+			server.issueCommitTransaction(xid);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> issueAbortTransactionAsync(long xid) {
+		return submit(() -> {
+			server.issueAbortTransaction(xid);
+			return null;
+		});
+	}
+
+	/**
+	 * Stops the pool threads once the calls already submitted are done
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,236 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Calls a KeyValueServer over the binary transport (see WireFormat) instead of RMI.
+ * <p>
+ * The asynchronous calls are all pipelined over a single connection.
+ */
+public class BinaryKeyValueServerStub implements IKeyValueServer, IAsyncKeyValueServer, Closeable {
+
+	private final NioRpcClient rpc;
+
+	public BinaryKeyValueServerStub(String host, int port) {
+		this.rpc = new NioRpcClient(host, port);
+	}
+
+	private <T> T call(byte opcode, NioRpcClient.Encoder request, NioRpcClient.Decoder<T> response) throws RemoteException {
+		try {
+			return rpc.call(opcode, request, response);
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RemoteException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public String get(String key) throws RemoteException {
+		return call(WireFormat.GET, out -> out.putString(key), WireFormat::getString);
+	}
+
+	@Override
+	public Set<String> listKeys() throws RemoteException {
+		return call(WireFormat.LIST_KEYS, out -> {
+		}, in -> WireFormat.getStrings(in, new HashSet<>()));
+	}
+
+	@Override
+	public void set(String key, String value) throws IOException {
+		rpc.call(WireFormat.SET, out -> out.putString(key).putString(value), in -> null);
+	}
+
+	@Override
+	public Set<String> listDirectory(String directory) throws RemoteException {
+		return call(WireFormat.LIST_DIRECTORY, out -> out.putString(directory), in -> WireFormat.getStrings(in, new HashSet<>()));
+	}
+
+	@Override
+	public long lockKey(String name) throws RemoteException {
+		return call(WireFormat.LOCK_KEY, out -> out.putString(name), in -> in.getLong());
+	}
+
+	@Override
+	public void unLockKey(String name, long stamp) throws RemoteException {
+		call(WireFormat.UNLOCK_KEY, out -> out.putString(name).putLong(stamp), in -> null);
+	}
+
+	@Override
+	public long lockKeys(SortedSet<String> names) throws RemoteException {
+		return call(WireFormat.LOCK_KEYS, out -> out.putStrings(names), in -> in.getLong());
+	}
+
+	@Override
+	public void unlockKeys(long lease) throws RemoteException {
+		call(WireFormat.UNLOCK_KEYS, out -> out.putLong(lease), in -> null);
+	}
+
+	@Override
+	public boolean setInTransaction(String key, String value, long xid) throws RemoteException {
+		return call(WireFormat.SET_IN_TRANSACTION, out -> out.putString(key).putString(value).putLong(xid), WireFormat::getBoolean);
+	}
+
+	@Override
+	public boolean setManyInTransaction(HashMap<String, String> values, long xid) throws RemoteException {
+		return call(WireFormat.SET_MANY_IN_TRANSACTION, out -> out.putStringMap(values).putLong(xid), WireFormat::getBoolean);
+	}
+
+	@Override
+	public HashMap<String, String> registerClient(String hostname, int portNumber) throws RemoteException {
+		return call(WireFormat.REGISTER_CLIENT, out -> out.putString(hostname).putInt(portNumber), WireFormat::getStringMap);
+	}
+
+	@Override
+	public BootstrapChunk registerClientStreaming(String hostname, int portNumber, int maxEntries) throws RemoteException {
+		return call(WireFormat.REGISTER_CLIENT_STREAMING, out -> out.putString(hostname).putInt(portNumber).putInt(maxEntries), WireFormat::getBootstrapChunk);
+	}
+
+	@Override
+	public BootstrapChunk getBootstrapChunk(long version, String afterKey, int maxEntries) throws RemoteException {
+		return call(WireFormat.GET_BOOTSTRAP_CHUNK, out -> out.putLong(version).putString(afterKey).putInt(maxEntries), WireFormat::getBootstrapChunk);
+	}
+
+	@Override
+	public void cacheDisconnect(String hostname, int portNumber) throws RemoteException {
+		call(WireFormat.CACHE_DISCONNECT, out -> out.putString(hostname).putInt(portNumber), in -> null);
+	}
+
+	@Override
+	public long startNewTransaction() throws RemoteException {
+		return call(WireFormat.START_NEW_TRANSACTION, out -> {
+		}, in -> in.getLong());
+	}
+
+	@Override
+	public long leaseTransactionIds(int count) throws RemoteException {
+		return call(WireFormat.LEASE_TRANSACTION_IDS, out -> out.putInt(count), in -> in.getLong());
+	}
+
+	@Override
+	public long getLastCommittedXid() throws RemoteException {
+		return call(WireFormat.GET_LAST_COMMITTED_XID, out -> {
+		}, in -> in.getLong());
+	}
+
+	@Override
+	public String getMetrics() throws RemoteException {
+		return call(WireFormat.GET_METRICS, out -> {
+		}, WireFormat::getString);
+	}
+
+	@Override
+	public void setContentionProfiling(int sampleEvery) throws RemoteException {
+		call(WireFormat.SET_CONTENTION_PROFILING, out -> out.putInt(sampleEvery), in -> null);
+	}
+
+	@Override
+	public String getContentionProfile() throws RemoteException {
+		return call(WireFormat.GET_CONTENTION_PROFILE, out -> {
+		}, WireFormat::getString);
+	}
+
+	@Override
+	public int getLeader() throws RemoteException {
+		return call(WireFormat.GET_LEADER, out -> {
+		}, in -> in.getInt());
+	}
+
+	@Override
+	public boolean prepareTransaction(long xid) throws RemoteException {
+		return call(WireFormat.PREPARE_TRANSACTION, out -> out.putLong(xid), WireFormat::getBoolean);
+	}
+
+	@Override
+	public void issueCommitTransaction(long xid) throws RemoteException {
+		call(WireFormat.ISSUE_COMMIT_TRANSACTION, out -> out.putLong(xid), in -> null);
+	}
+
+	@Override
+	public void issueAbortTransaction(long xid) throws RemoteException {
+		call(WireFormat.ISSUE_ABORT_TRANSACTION, out -> out.putLong(xid), in -> null);
+	}
+
+	@Override
+	public VersionedValue getVersioned(String key) throws RemoteException {
+		return call(WireFormat.GET_VERSIONED, out -> out.putString(key), WireFormat::getVersionedValue);
+	}
+
+	@Override
+	public boolean compareAndSet(String key, long expectedVersion, String value) throws RemoteException {
+		return call(WireFormat.COMPARE_AND_SET, out -> out.putString(key).putLong(expectedVersion).putString(value), WireFormat::getBoolean);
+	}
+
+	@Override
+	public boolean commitOptimisticTransaction(HashMap<String, String> writes, HashMap<String, Long> readVersions) throws RemoteException {
+		return call(WireFormat.COMMIT_OPTIMISTIC_TRANSACTION, out -> out.putStringMap(writes).putVersionMap(readVersions), WireFormat::getBoolean);
+	}
+
+	@Override
+	public CompletableFuture<String> getAsync(String key) {
+		return rpc.callAsync(WireFormat.GET, out -> out.putString(key), WireFormat::getString);
+	}
+
+	@Override
+	public CompletableFuture<Void> setAsync(String key, String value) {
+		return rpc.callAsync(WireFormat.SET, out -> out.putString(key).putString(value), in -> null);
+	}
+
+	@Override
+	public CompletableFuture<Long> lockKeyAsync(String name) {
+		return rpc.callAsync(WireFormat.LOCK_KEY, out -> out.putString(name), in -> in.getLong());
+	}
+
+	@Override
+	public CompletableFuture<Void> unLockKeyAsync(String name, long stamp) {
+		return rpc.callAsync(WireFormat.UNLOCK_KEY, out -> out.putString(name).putLong(stamp), in -> null);
+	}
+
+	@Override
+	public CompletableFuture<Long> lockKeysAsync(SortedSet<String> names) {
+		return rpc.callAsync(WireFormat.LOCK_KEYS, out -> out.putStrings(names), in -> in.getLong());
+	}
+
+	@Override
+	public CompletableFuture<Void> unlockKeysAsync(long lease) {
+		return rpc.callAsync(WireFormat.UNLOCK_KEYS, out -> out.putLong(lease), in -> null);
+	}
+
+	@Override
+	public CompletableFuture<Boolean> setInTransactionAsync(String key, String value, long xid) {
+		return rpc.callAsync(WireFormat.SET_IN_TRANSACTION, out -> out.putString(key).putString(value).putLong(xid), WireFormat::getBoolean);
+	}
+
+	@Override
+	public CompletableFuture<Boolean> setManyInTransactionAsync(HashMap<String, String> values, long xid) {
+		return rpc.callAsync(WireFormat.SET_MANY_IN_TRANSACTION, out -> out.putStringMap(values).putLong(xid), WireFormat::getBoolean);
+	}
+
+	@Override
+	public CompletableFuture<Long> startNewTransactionAsync() {
+		return rpc.callAsync(WireFormat.START_NEW_TRANSACTION, out -> {
+		}, in -> in.getLong());
+	}
+
+	@Override
+	public CompletableFuture<Void> issueCommitTransactionAsync(long xid) {
+		return rpc.callAsync(WireFormat.ISSUE_COMMIT_TRANSACTION, out -> out.putLong(xid), in -> null);
+	}
+
+	@Override
+	public CompletableFuture<Void> issueAbortTransactionAsync(long xid) {
+		return rpc.callAsync(WireFormat.ISSUE_ABORT_TRANSACTION, out -> out.putLong(xid), in -> null);
+	}
+
+	@Override
+	public void close() {
+		rpc.close();
+	}
+}
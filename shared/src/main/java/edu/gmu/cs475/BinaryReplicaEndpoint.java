@@ -0,0 +1,39 @@
+package edu.gmu.cs475;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serves a replica's IKeyValueReplica methods over the binary transport (see WireFormat)
+ */
+public class BinaryReplicaEndpoint implements NioRpcServer.Handler {
+
+	private final IKeyValueReplica replica;
+
+	public BinaryReplicaEndpoint(IKeyValueReplica replica) {
+		this.replica = replica;
+	}
+
+	@Override
+	public void handle(byte opcode, ByteBuffer in, WireFormat.Writer out) throws Exception {
+		switch (opcode) {
+			case WireFormat.INNER_WRITE_KEY:
+				out.putBoolean(replica.innerWriteKey(WireFormat.getString(in), WireFormat.getString(in), in.getLong()));
+				break;
+			case WireFormat.INNER_WRITE_KEYS:
+				out.putBoolean(replica.innerWriteKeys(WireFormat.getStringMap(in), in.getLong()));
+				break;
+			case WireFormat.COMMIT_TRANSACTION:
+				replica.commitTransaction(in.getLong());
+				break;
+			case WireFormat.COMMIT_TRANSACTION_AT_VERSION:
+				replica.commitTransaction(in.getLong(), in.getLong());
+				break;
+			case WireFormat.ABORT_TRANSACTION:
+				replica.abortTransaction(in.getLong());
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown replica opcode " + opcode);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+
+/**
+ * Calls a replica over the binary transport (see WireFormat) instead of RMI
+ */
+public class BinaryReplicaStub implements IKeyValueReplica, Closeable {
+
+	private final NioRpcClient rpc;
+
+	public BinaryReplicaStub(String host, int port) {
+		this.rpc = new NioRpcClient(host, port);
+	}
+
+	private <T> T call(byte opcode, NioRpcClient.Encoder request, NioRpcClient.Decoder<T> response) throws RemoteException {
+		try {
+			return rpc.call(opcode, request, response);
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RemoteException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public boolean innerWriteKey(String key, String content, long xid) throws RemoteException {
+		return call(WireFormat.INNER_WRITE_KEY, out -> out.putString(key).putString(content).putLong(xid), WireFormat::getBoolean);
+	}
+
+	@Override
+	public boolean innerWriteKeys(HashMap<String, String> keysAndContent, long xid) throws RemoteException {
+		return call(WireFormat.INNER_WRITE_KEYS, out -> out.putStringMap(keysAndContent).putLong(xid), WireFormat::getBoolean);
+	}
+
+	@Override
+	public void commitTransaction(long id) throws RemoteException {
+		call(WireFormat.COMMIT_TRANSACTION, out -> out.putLong(id), in -> null);
+	}
+
+	@Override
+	public void commitTransaction(long id, long version) throws RemoteException {
+		call(WireFormat.COMMIT_TRANSACTION_AT_VERSION, out -> out.putLong(id).putLong(version), in -> null);
+	}
+
+	@Override
+	public void abortTransaction(long id) throws RemoteException {
+		call(WireFormat.ABORT_TRANSACTION, out -> out.putLong(id), in -> null);
+	}
+
+	@Override
+	public void close() {
+		rpc.close();
+	}
+}
@@ -0,0 +1,57 @@
+package edu.gmu.cs475;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * One page of the server's keys and values, sent to a replica that is joining.
+ * <p>
+ * Pages are handed out in key order. Every chunk of one bootstrap carries the same version, which is the first
+ * transaction ID whose writes the replica receives through innerWriteKey/commitTransaction instead of through chunks.
+ */
+public class BootstrapChunk implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final long version;
+	private final HashMap<String, String> entries;
+	private final String lastKey;
+
+	/**
+	 * @param version the bootstrap's snapshot version
+	 * @param entries keys and values in this chunk
+	 * @param lastKey key to continue after when asking for the next chunk, or null if this is the last chunk
+	 */
+	public BootstrapChunk(long version, HashMap<String, String> entries, String lastKey) {
+		this.version = version;
+		this.entries = entries;
+		this.lastKey = lastKey;
+	}
+
+	/**
+	 * @return the bootstrap's snapshot version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return keys and values in this chunk
+	 */
+	public HashMap<String, String> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return key to pass to getBootstrapChunk for the next chunk, or null if this is the last chunk
+	 */
+	public String getLastKey() {
+		return lastKey;
+	}
+
+	/**
+	 * @return true if there are no more chunks after this one
+	 */
+	public boolean isLast() {
+		return lastKey == null;
+	}
+}
@@ -0,0 +1,68 @@
+package edu.gmu.cs475;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of same-sized direct buffers, so that the binary transport doesn't allocate (and later have to free) a direct
+ * buffer for every message it sends or receives.
+ * <p>
+ * Asking for more than the pool's buffer size gets a one-off heap buffer; releasing one of those is a no-op.
+ */
+public class BufferPool {
+	// size of each pooled buffer; large enough for everything but big batches and bootstrap chunks
+	public static final int BUFFER_BYTES = 64 * 1024;
+
+	// most buffers kept around while idle
+	public static final int MAX_POOLED = 256;
+
+	public static final BufferPool SHARED = new BufferPool(BUFFER_BYTES, MAX_POOLED);
+
+	private final int bufferBytes;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger freeCount = new AtomicInteger();
+
+	public BufferPool(int bufferBytes, int maxPooled) {
+		this.bufferBytes = bufferBytes;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @param minCapacity smallest capacity needed
+	 * @return a cleared buffer with at least minCapacity bytes of room
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		if (minCapacity > bufferBytes)
+			return ByteBuffer.allocate(minCapacity);
+		ByteBuffer ret = free.poll();
+		if (ret == null)
+			return ByteBuffer.allocateDirect(bufferBytes);
+		freeCount.decrementAndGet();
+		ret.clear();
+		return ret;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not touch it again.
+	 *
+	 * @param buf buffer from acquire
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null || !buf.isDirect() || buf.capacity() != bufferBytes)
+			return;
+		if (freeCount.incrementAndGet() > maxPooled) {
+			freeCount.decrementAndGet();
+			return;
+		}
+		free.offer(buf);
+	}
+
+	/**
+	 * @return size of each pooled buffer
+	 */
+	public int getBufferBytes() {
+		return bufferBytes;
+	}
+}
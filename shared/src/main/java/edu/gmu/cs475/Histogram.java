@@ -0,0 +1,145 @@
+package edu.gmu.cs475;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size histogram of non-negative values (usually latencies in nanoseconds), in the style of HdrHistogram.
+ * <p>
+ * Buckets are log-linear: each power of two is split into 64 equal sub-buckets, so any recorded value is reported with
+ * under 1.6% error, and the whole range up to 2^40 (about 18 minutes in nanoseconds) fits in a few thousand counters.
+ * Larger values are counted in the top bucket. Recording is a couple of atomic increments, with no locks and no
+ * allocation, so it is cheap enough for every call on the hot path.
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	private static final int MAX_VALUE_BITS = 40;
+	static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1;
+	private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder totalCount = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records one value
+	 *
+	 * @param value value to record; negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(indexOf(Math.min(value, MAX_TRACKABLE_VALUE)));
+		totalCount.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Records the time since startNanos (from System.nanoTime)
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return a consistent-enough copy of the counts to compute percentiles from; values recorded while the copy is
+	 * taken may or may not be included
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			copy[i] = counts.get(i);
+			count += copy[i];
+		}
+		return new Snapshot(copy, count, sum.sum(), max.get());
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int bucket = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // >= 1
+		int subBucket = (int) (value >>> bucket); // in [HALF_SUB_BUCKETS, SUB_BUCKETS)
+		return SUB_BUCKETS + (bucket - 1) * HALF_SUB_BUCKETS + (subBucket - HALF_SUB_BUCKETS);
+	}
+
+	/**
+	 * @return the largest value that is counted in the bucket at index
+	 */
+	static long highestValueAt(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int bucket = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+		long subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+		return ((subBucket + 1) << bucket) - 1;
+	}
+
+	/**
+	 * The counts of a histogram at one point in time
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * @return number of values recorded
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return sum of all values recorded
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * @return largest value recorded, or 0 if none were
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @return mean of the values recorded, or 0 if none were
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return a value that at least percentile% of recorded values are less than or equal to (rounded up to the
+		 * end of its bucket, and never more than the largest value recorded), or 0 if nothing was recorded
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (count == 0)
+				return 0;
+			long target = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target)
+					return Math.min(highestValueAt(i), max);
+			}
+			return max;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package edu.gmu.cs475;
+
+import java.util.HashMap;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking versions of the IKeyValueServer calls a client makes while writing.
+ * <p>
+ * Each method sends its request and returns right away; the future completes with the result, or exceptionally
+ * with whatever the blocking call would have thrown. Calls that are in flight at the same time may take effect in any
+ * order, so chain dependent calls (e.g. commit after every setInTransaction) with thenCompose.
+ */
+public interface IAsyncKeyValueServer {
+
+	CompletableFuture<String> getAsync(String key);
+
+	CompletableFuture<Void> setAsync(String key, String value);
+
+	CompletableFuture<Long> lockKeyAsync(String name);
+
+	CompletableFuture<Void> unLockKeyAsync(String name, long stamp);
+
+	CompletableFuture<Long> lockKeysAsync(SortedSet<String> names);
+
+	CompletableFuture<Void> unlockKeysAsync(long lease);
+
+	CompletableFuture<Boolean> setInTransactionAsync(String key, String value, long xid);
+
+	CompletableFuture<Boolean> setManyInTransactionAsync(HashMap<String, String> values, long xid);
+
+	CompletableFuture<Long> startNewTransactionAsync();
+
+	CompletableFuture<Void> issueCommitTransactionAsync(long xid);
+
+	CompletableFuture<Void> issueAbortTransactionAsync(long xid);
+}
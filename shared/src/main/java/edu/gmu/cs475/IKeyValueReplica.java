@@ -3,6 +3,8 @@ package edu.gmu.cs475;
 import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
 
 public interface IKeyValueReplica extends Remote {
 	public static final String RMI_NAME = "cs475IKVStoreReplica";
@@ -18,6 +20,23 @@ public interface IKeyValueReplica extends Remote {
 	 */
 	public boolean innerWriteKey(String key, String content, long xid) throws RemoteException;
 
+	/**
+	 * Write (or overwrite) many keys at once, all as part of the same transaction
+	 *
+	 * By default this just calls innerWriteKey for each key; replicas that can stage a whole batch at once should override it.
+	 *
+	 * @param keysAndContent map from each key to write to its content
+	 * @param xid            Transaction ID, with the same meaning as for innerWriteKey
+	 * @return true if every write was successful and we are voting to commit
+	 */
+	public default boolean innerWriteKeys(HashMap<String, String> keysAndContent, long xid) throws RemoteException {
+		for (Map.Entry<String, String> e : keysAndContent.entrySet()) {
+			if (!innerWriteKey(e.getKey(), e.getValue(), xid))
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Commit a transaction, making any pending writes immediately visible
 	 *
@@ -26,6 +45,21 @@ public interface IKeyValueReplica extends Remote {
 	 */
 	public void commitTransaction(long id) throws RemoteException;
 
+	/**
+	 * Commit a transaction, making any pending writes immediately visible at the version the server committed them at
+	 *
+	 * The server only sends this to replicas that registered with registerClientStreaming, and sends
+	 * commitTransaction(id) to the others. By default this just calls commitTransaction(id), for replicas that don't
+	 * keep versions.
+	 *
+	 * @param id      transaction id
+	 * @param version version the server gave every key the transaction wrote
+	 * @throws RemoteException
+	 */
+	public default void commitTransaction(long id, long version) throws RemoteException {
+		commitTransaction(id);
+	}
+
 
 	/**
 	 * Abort a transaction, discarding any pending writes that are associated with it
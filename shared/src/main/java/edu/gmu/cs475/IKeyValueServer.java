@@ -1,60 +1,185 @@
-package edu.gmu.cs475;
-
-import java.io.IOException;
-import java.nio.file.DirectoryNotEmptyException;
-import java.rmi.Remote;
-import java.rmi.RemoteException;
-import java.util.HashMap;
-import java.util.Set;
-
-public interface IKeyValueServer extends Remote {
-	public static final String RMI_NAME = "cs475IKeyValueStore";
-
-	String get(String key) throws RemoteException;
-
-	Set<String> listKeys() throws RemoteException;
-
-	void set(String key, String value) throws RemoteException, IOException;
-
-	Set<String> listDirectory(String directory) throws RemoteException;
-
-	long lockKey(String name) throws RemoteException;
-
-	void unLockKey(String name, long stamp) throws RemoteException;
-
-	boolean setInTransaction(String key, String value, long xid) throws RemoteException;
-
-	public HashMap<String, String> registerClient(String hostname, int portNumber) throws RemoteException;
-
-	/**
-	 * Notifies the server that a cache client is shutting down (and hence no longer will be involved in writes)
-	 *
-	 * @param hostname   The hostname of the client that is disconnecting (same hostname specified when it registered)
-	 * @param portNumber The port number of the client that is disconnecting (same port number specified when it registered)
-	 * @throws RemoteException
-	 */
-	public void cacheDisconnect(String hostname, int portNumber) throws RemoteException;
-
-	/**
-	 * Request a new transaction ID to represent a new, client-managed transaction
-	 *
-	 * @return Transaction organizer-provided ID that will be used in the future to commit or abort this transaction
-	 */
-	public long startNewTransaction() throws RemoteException;
-
-	/**
-	 * Broadcast to all replicas (and make updates locally as necessary on the server) that a transaction should be committed
-	 * You must not allow a client to register or depart during a commit.
-	 *
-	 * @param xid transaction ID to be committed (from startNewTransaction)
-	 */
-	public void issueCommitTransaction(long xid) throws RemoteException;
-
-	/**
-	 * Broadcast to all replicas (and make updates locally as necessary on the server) that a transaction should be aborted
-	 * You must not allow a client to register or depart during an abort.
-	 *
-	 * @param xid transaction ID to be committed (from startNewTransaction)
-	 */
-	public void issueAbortTransaction(long xid) throws RemoteException;
-}
+package edu.gmu.cs475;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.SortedSet;
+
+public interface IKeyValueServer extends Remote {
+	public static final String RMI_NAME = "cs475IKeyValueStore";
+
+	String get(String key) throws RemoteException;
+
+	Set<String> listKeys() throws RemoteException;
+
+	void set(String key, String value) throws RemoteException, IOException;
+
+	Set<String> listDirectory(String directory) throws RemoteException;
+
+	long lockKey(String name) throws RemoteException;
+
+	void unLockKey(String name, long stamp) throws RemoteException;
+
+	/**
+	 * Locks (for writing) every one of the given keys in a single call. The server always takes the locks in the
+	 * keys' natural order, so concurrent callers can't deadlock against each other.
+	 *
+	 * @param names keys to lock
+	 * @return a lease token, to be passed to unlockKeys to release all of the locks at once
+	 */
+	long lockKeys(SortedSet<String> names) throws RemoteException;
+
+	/**
+	 * Releases every lock held under a lease from lockKeys
+	 *
+	 * @param lease lease token returned by lockKeys
+	 */
+	void unlockKeys(long lease) throws RemoteException;
+
+	boolean setInTransaction(String key, String value, long xid) throws RemoteException;
+
+	/**
+	 * Writes many keys as part of one transaction, sending all of them to each replica in a single message
+	 *
+	 * @param values map from each key to write to its new value
+	 * @param xid    transaction ID (from startNewTransaction)
+	 * @return true if every replica accepted every write
+	 */
+	boolean setManyInTransaction(HashMap<String, String> values, long xid) throws RemoteException;
+
+	public HashMap<String, String> registerClient(String hostname, int portNumber) throws RemoteException;
+
+	/**
+	 * Registers a replica without sending it the whole store at once. The replica starts receiving writes immediately,
+	 * and pulls the existing keys and values a chunk at a time with getBootstrapChunk; a key it has already received a
+	 * write for is newer than the same key in any chunk.
+	 *
+	 * @param hostname   The hostname of the replica
+	 * @param portNumber The port number of the replica
+	 * @param maxEntries largest number of entries to put in the first chunk
+	 * @return the first chunk of keys and values
+	 */
+	public BootstrapChunk registerClientStreaming(String hostname, int portNumber, int maxEntries) throws RemoteException;
+
+	/**
+	 * Fetches the next chunk of keys and values for a replica that registered with registerClientStreaming
+	 *
+	 * @param version    version from the previous chunk
+	 * @param afterKey   lastKey from the previous chunk
+	 * @param maxEntries largest number of entries to put in the chunk
+	 * @return the next chunk of keys and values
+	 */
+	public BootstrapChunk getBootstrapChunk(long version, String afterKey, int maxEntries) throws RemoteException;
+
+	/**
+	 * Notifies the server that a cache client is shutting down (and hence no longer will be involved in writes)
+	 *
+	 * @param hostname   The hostname of the client that is disconnecting (same hostname specified when it registered)
+	 * @param portNumber The port number of the client that is disconnecting (same port number specified when it registered)
+	 * @throws RemoteException
+	 */
+	public void cacheDisconnect(String hostname, int portNumber) throws RemoteException;
+
+	/**
+	 * Request a new transaction ID to represent a new, client-managed transaction
+	 *
+	 * @return Transaction organizer-provided ID that will be used in the future to commit or abort this transaction
+	 */
+	public long startNewTransaction() throws RemoteException;
+
+	/**
+	 * Request a block of new transaction IDs at once, for a client that will run many transactions
+	 *
+	 * @param count how many IDs to lease
+	 * @return the first ID in the block; the client may use every ID in [first, first + count)
+	 */
+	public long leaseTransactionIds(int count) throws RemoteException;
+
+	/**
+	 * Returns the largest version whose commit has finished: a position in commit order. A replica that has applied
+	 * this version has every commit that finished before the call, even if it lags behind the replicas a commit waits
+	 * for.
+	 * @return the largest committed version, or 0 if nothing has committed yet
+	 */
+	public long getLastCommittedXid() throws RemoteException;
+
+	/**
+	 * Returns the server's counters and latency histograms (per operation, and per replica for replica round trips)
+	 * @return the metrics in the Prometheus text exposition format
+	 */
+	public String getMetrics() throws RemoteException;
+
+	/**
+	 * Starts or stops profiling which keys are hottest and which keys' locks are most contended
+	 * @param sampleEvery record 1 in this many reads and lock acquisitions, or 0 to stop profiling
+	 */
+	public void setContentionProfiling(int sampleEvery) throws RemoteException;
+
+	/**
+	 * Returns the hottest keys, the most contended locks and the locks clients are holding right now
+	 * @return a human-readable report
+	 */
+	public String getContentionProfile() throws RemoteException;
+
+	/**
+	 * Tells a client which member of a replicated server group to send its calls to
+	 * @return the index of the group member this server believes is the leader (its own index if it is), or -1 if an
+	 * election is in progress; a server that isn't part of a group always returns 0
+	 */
+	public int getLeader() throws RemoteException;
+
+	/**
+	 * Prepares a transaction for a commit that a coordinator decides: has the replicas vote on its writes now, in any
+	 * commit mode, and keeps it from being aborted for idleness until it is committed or aborted. After a yes, it
+	 * takes no more writes, and issueCommitTransaction can only fail if the server couldn't log the commit, so it can
+	 * be retried until it succeeds.
+	 *
+	 * @param xid transaction ID (from startNewTransaction)
+	 * @return true if the transaction is prepared, false if it should be aborted
+	 */
+	public boolean prepareTransaction(long xid) throws RemoteException;
+
+	/**
+	 * Broadcast to all replicas (and make updates locally as necessary on the server) that a transaction should be committed
+	 * You must not allow a client to register or depart during a commit.
+	 *
+	 * @param xid transaction ID to be committed (from startNewTransaction)
+	 */
+	public void issueCommitTransaction(long xid) throws RemoteException;
+
+	/**
+	 * Broadcast to all replicas (and make updates locally as necessary on the server) that a transaction should be aborted
+	 * You must not allow a client to register or depart during an abort.
+	 *
+	 * @param xid transaction ID to be committed (from startNewTransaction)
+	 */
+	public void issueAbortTransaction(long xid) throws RemoteException;
+
+	/**
+	 * Reads a key together with its version, without taking any locks
+	 * @param key the key to read
+	 * @return the key's value (null if it doesn't exist) and version
+	 */
+	public VersionedValue getVersioned(String key) throws RemoteException;
+
+	/**
+	 * Atomically sets a key if it is still at the expected version, replicating the write like a transaction
+	 * @param key             key to set
+	 * @param expectedVersion version the key must be at (from getVersioned), or 0 for a key that was never written
+	 * @param value           value to store
+	 * @return true if the key was set, false if another write got there first
+	 */
+	public boolean compareAndSet(String key, long expectedVersion, String value) throws RemoteException;
+
+	/**
+	 * Commits an optimistic transaction in one call: if every key in readVersions still has the version it was read
+	 * at, applies all of the writes on the server and every replica as one new transaction; otherwise changes nothing.
+	 * @param writes       map from each key to write to its new value
+	 * @param readVersions map from each key the transaction read to the version it read (from getVersioned)
+	 * @return true if the transaction committed, false if another transaction wrote one of the keys that were read
+	 */
+	public boolean commitOptimisticTransaction(HashMap<String, String> writes, HashMap<String, Long> readVersions) throws RemoteException;
+}
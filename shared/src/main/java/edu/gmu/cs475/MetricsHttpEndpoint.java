@@ -0,0 +1,52 @@
+package edu.gmu.cs475;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves a MetricsRegistry over HTTP at /metrics, in the Prometheus text exposition format, so a scraper can pull it
+ * without speaking RMI or the binary protocol. Runs on a single daemon thread.
+ */
+public class MetricsHttpEndpoint implements Closeable {
+
+	// system property naming the port to serve metrics on; unset means no HTTP endpoint
+	public static final String PORT_PROPERTY = "kvstore.metrics.port";
+
+	private final HttpServer server;
+
+	/**
+	 * @param port    port to listen on, or 0 for any free port
+	 * @param metrics metrics to serve
+	 * @throws IOException if the port can't be bound
+	 */
+	public MetricsHttpEndpoint(int port, MetricsRegistry metrics) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.setExecutor(null); // the server's own dispatcher thread handles each scrape
+		server.start();
+	}
+
+	/**
+	 * @return the port metrics are served on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+}
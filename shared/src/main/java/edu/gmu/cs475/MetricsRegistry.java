@@ -0,0 +1,323 @@
+package edu.gmu.cs475;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and histograms for one process (a server or a client), readable while it runs.
+ * <p>
+ * Metrics are created on first use and never removed, and can carry one label (e.g. which replica a round trip went
+ * to). Everything can be read in two ways: as attributes of a JMX MBean (see {@link #registerMBean(String)}), or as
+ * text in the Prometheus exposition format (see {@link #toText()}), which is what the getMetrics RPC and the HTTP
+ * endpoint return.
+ */
+public class MetricsRegistry implements DynamicMBean {
+
+	// percentiles reported for every histogram
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+	private final String prefix;
+
+	// sorted so the output groups each metric's labels together
+	private final ConcurrentSkipListMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+	private final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+	private final ConcurrentSkipListMap<String, LabeledHistogram> histograms = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @param prefix prepended (with an underscore) to every metric name in the text output, e.g. kvstore_server
+	 */
+	public MetricsRegistry(String prefix) {
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @param name name of the counter, e.g. commits
+	 * @return the counter, created at 0 if it didn't exist yet
+	 */
+	public LongAdder counter(String name) {
+		return counter(name, null, null);
+	}
+
+	/**
+	 * @param name       name of the counter
+	 * @param labelName  name of the label, e.g. replica
+	 * @param labelValue value of the label, e.g. a port number
+	 * @return the counter, created at 0 if it didn't exist yet
+	 */
+	public LongAdder counter(String name, String labelName, String labelValue) {
+		String id = id(name, labelName, labelValue);
+		Counter c = counters.get(id);
+		if (c == null)
+			c = counters.computeIfAbsent(id, k -> new Counter(name, labelName, labelValue));
+		return c.adder;
+	}
+
+	/**
+	 * Reports a value that is computed whenever metrics are read, e.g. the number of registered replicas
+	 *
+	 * @param name  name of the gauge
+	 * @param value reads the current value
+	 */
+	public void gauge(String name, LongSupplier value) {
+		gauge(name, null, null, value);
+	}
+
+	/**
+	 * Reports a value that is computed whenever metrics are read, e.g. how far one replica is behind; replaces any
+	 * gauge with the same name and label
+	 *
+	 * @param name       name of the gauge
+	 * @param labelName  name of the label, e.g. replica
+	 * @param labelValue value of the label, e.g. a port number
+	 * @param value      reads the current value
+	 */
+	public void gauge(String name, String labelName, String labelValue, LongSupplier value) {
+		gauges.put(id(name, labelName, labelValue), new Gauge(name, labelName, labelValue, value));
+	}
+
+	/**
+	 * @param name name of the histogram; latencies are in nanoseconds and their names should end in _nanos
+	 * @return the histogram, created empty if it didn't exist yet
+	 */
+	public Histogram histogram(String name) {
+		return histogram(name, null, null);
+	}
+
+	/**
+	 * @param name       name of the histogram
+	 * @param labelName  name of the label, e.g. replica
+	 * @param labelValue value of the label, e.g. a port number
+	 * @return the histogram, created empty if it didn't exist yet
+	 */
+	public Histogram histogram(String name, String labelName, String labelValue) {
+		String id = id(name, labelName, labelValue);
+		LabeledHistogram h = histograms.get(id);
+		if (h == null)
+			h = histograms.computeIfAbsent(id, k -> new LabeledHistogram(name, labelName, labelValue));
+		return h.histogram;
+	}
+
+	/**
+	 * Renders every metric in the Prometheus text exposition format. Counters and gauges are one sample each;
+	 * histograms are summaries with the 50th, 90th, 99th and 99.9th percentiles, plus _max, _sum and _count.
+	 *
+	 * @return the current value of every metric
+	 */
+	public String toText() {
+		StringBuilder out = new StringBuilder();
+		String lastName = null;
+		for (Counter c : counters.values()) {
+			if (c.name.equals(lastName) == false)
+				out.append("# TYPE ").append(prefix).append('_').append(c.name).append(" counter\n");
+			lastName = c.name;
+			sample(out, c.name, "", c.labelName, c.labelValue, null, c.adder.sum());
+		}
+		lastName = null;
+		for (Gauge g : gauges.values()) {
+			if (g.name.equals(lastName) == false)
+				out.append("# TYPE ").append(prefix).append('_').append(g.name).append(" gauge\n");
+			lastName = g.name;
+			sample(out, g.name, "", g.labelName, g.labelValue, null, g.value.getAsLong());
+		}
+		lastName = null;
+		for (LabeledHistogram h : histograms.values()) {
+			if (h.name.equals(lastName) == false)
+				out.append("# TYPE ").append(prefix).append('_').append(h.name).append(" summary\n");
+			lastName = h.name;
+			Histogram.Snapshot s = h.histogram.snapshot();
+			for (double p : PERCENTILES)
+				sample(out, h.name, "", h.labelName, h.labelValue, Double.toString(p / 100), s.getValueAtPercentile(p));
+			sample(out, h.name, "_max", h.labelName, h.labelValue, null, s.getMax());
+			sample(out, h.name, "_sum", h.labelName, h.labelValue, null, s.getSum());
+			sample(out, h.name, "_count", h.labelName, h.labelValue, null, s.getCount());
+		}
+		return out.toString();
+	}
+
+	private void sample(StringBuilder out, String name, String suffix, String labelName, String labelValue, String quantile, long value) {
+		out.append(prefix).append('_').append(name).append(suffix);
+		if (labelName != null || quantile != null) {
+			out.append('{');
+			if (labelName != null)
+				out.append(labelName).append("=\"").append(labelValue).append('"');
+			if (quantile != null)
+				out.append(labelName != null ? "," : "").append("quantile=\"").append(quantile).append('"');
+			out.append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Registers this registry with the platform MBean server, so every metric shows up as an attribute (e.g. in
+	 * JConsole). Counters and gauges are one attribute each; each histogram has .count, .mean, .max and .pNN
+	 * attributes. An MBean already registered under the same name is replaced.
+	 *
+	 * @param objectName JMX name, e.g. edu.gmu.cs475:type=KeyValueServer
+	 * @throws IllegalArgumentException if objectName is not a valid JMX name
+	 */
+	public void registerMBean(String objectName) {
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(objectName);
+			try {
+				mbeans.registerMBean(this, name);
+			} catch (InstanceAlreadyExistsException e) {
+				mbeans.unregisterMBean(name);
+				mbeans.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			throw new IllegalArgumentException("Could not register metrics as " + objectName, e);
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Counter c = counters.get(attribute);
+		if (c != null)
+			return c.adder.sum();
+		Gauge g = gauges.get(attribute);
+		if (g != null)
+			return g.value.getAsLong();
+		int dot = attribute.lastIndexOf('.');
+		LabeledHistogram h = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+		if (h != null) {
+			Histogram.Snapshot s = h.histogram.snapshot();
+			String stat = attribute.substring(dot + 1);
+			switch (stat) {
+				case "count":
+					return s.getCount();
+				case "mean":
+					return (long) s.getMean();
+				case "max":
+					return s.getMax();
+				default:
+					for (double p : PERCENTILES)
+						if (stat.equals(percentileName(p)))
+							return s.getValueAtPercentile(p);
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList ret = new AttributeList();
+		for (String a : attributes) {
+			try {
+				ret.add(new Attribute(a, getAttribute(a)));
+			} catch (AttributeNotFoundException e) {
+				// left out, as the DynamicMBean contract allows
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+	}
+
+	/**
+	 * Lists the metrics that exist right now; metrics created later appear the next time this is read
+	 */
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (String id : counters.keySet())
+			attributes.add(longAttribute(id, "counter"));
+		for (String id : gauges.keySet())
+			attributes.add(longAttribute(id, "gauge"));
+		for (String id : histograms.keySet()) {
+			attributes.add(longAttribute(id + ".count", "number of values recorded"));
+			attributes.add(longAttribute(id + ".mean", "mean value"));
+			attributes.add(longAttribute(id + ".max", "largest value"));
+			for (double p : PERCENTILES)
+				attributes.add(longAttribute(id + "." + percentileName(p), p + "th percentile"));
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics for " + prefix,
+				attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+
+	private static MBeanAttributeInfo longAttribute(String name, String description) {
+		return new MBeanAttributeInfo(name, "long", description, true, false, false);
+	}
+
+	private static String percentileName(double p) {
+		return "p" + (p == Math.rint(p) ? Long.toString((long) p) : Double.toString(p).replace(".", ""));
+	}
+
+	private static String id(String name, String labelName, String labelValue) {
+		return labelName == null ? name : name + "[" + labelName + "=" + labelValue + "]";
+	}
+
+	@Override
+	public String toString() {
+		return toText();
+	}
+
+	private static final class Counter {
+		final String name;
+		final String labelName;
+		final String labelValue;
+		final LongAdder adder = new LongAdder();
+
+		Counter(String name, String labelName, String labelValue) {
+			this.name = name;
+			this.labelName = labelName;
+			this.labelValue = labelValue;
+		}
+	}
+
+	private static final class Gauge {
+		final String name;
+		final String labelName;
+		final String labelValue;
+		final LongSupplier value;
+
+		Gauge(String name, String labelName, String labelValue, LongSupplier value) {
+			this.name = name;
+			this.labelName = labelName;
+			this.labelValue = labelValue;
+			this.value = value;
+		}
+	}
+
+	private static final class LabeledHistogram {
+		final String name;
+		final String labelName;
+		final String labelValue;
+		final Histogram histogram = new Histogram();
+
+		LabeledHistogram(String name, String labelName, String labelValue) {
+			this.name = name;
+			this.labelName = labelName;
+			this.labelValue = labelValue;
+		}
+	}
+}
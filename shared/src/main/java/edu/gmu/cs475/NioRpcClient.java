@@ -0,0 +1,315 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calling side of the binary transport.
+ * <p>
+ * Each blocking call borrows an idle connection (or opens a new one), writes one request frame and reads back one
+ * response frame, so concurrent callers never wait on each other's round trips. A connection that fails mid-call is
+ * closed instead of being returned.
+ * <p>
+ * Asynchronous calls are instead pipelined over one shared connection: callers write their request and return right
+ * away, and a reader thread matches each response to its request by call ID. The server runs pipelined requests
+ * concurrently, so calls that are in flight at the same time may take effect in any order.
+ */
+public class NioRpcClient implements Closeable {
+
+	/**
+	 * Writes a call's arguments
+	 */
+	public interface Encoder {
+		void encode(WireFormat.Writer out);
+	}
+
+	/**
+	 * Reads a call's return value
+	 */
+	public interface Decoder<T> {
+		T decode(ByteBuffer in);
+	}
+
+	// most asynchronous calls waiting for a response at once; callAsync blocks beyond this
+	public static final int MAX_IN_FLIGHT = 1024;
+
+	private final InetSocketAddress address;
+	private final BufferPool pool;
+	private final ConcurrentLinkedQueue<SocketChannel> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger nextCallId = new AtomicInteger();
+	private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+	private Pipeline pipeline;
+	private volatile boolean closed;
+
+	public NioRpcClient(String host, int port) {
+		this(new InetSocketAddress(host, port), BufferPool.SHARED);
+	}
+
+	public NioRpcClient(InetSocketAddress address, BufferPool pool) {
+		this.address = address;
+		this.pool = pool;
+	}
+
+	/**
+	 * Makes one call and waits for its response
+	 *
+	 * @param opcode   which method to call
+	 * @param request  writes the arguments
+	 * @param response reads the return value (called only if the call succeeded)
+	 * @return whatever response returned
+	 * @throws IOException              if the connection fails, or the called method threw an IOException
+	 * @throws RemoteException          if the called method threw anything else that isn't passed through as-is
+	 * @throws IllegalArgumentException if the called method threw one (likewise for IllegalStateException and
+	 *                                  IllegalMonitorStateException)
+	 */
+	public <T> T call(byte opcode, Encoder request, Decoder<T> response) throws IOException {
+		if (closed)
+			throw new RemoteException("Connection to " + address + " is closed");
+		SocketChannel channel = idle.poll();
+		if (channel == null)
+			channel = open();
+		WireFormat.Writer out = new WireFormat.Writer(pool);
+		ByteBuffer in = null;
+		boolean reusable = false;
+		try {
+			int callId = nextCallId.incrementAndGet();
+			out.begin(callId, opcode);
+			request.encode(out);
+			ByteBuffer frame = out.finish();
+			while (frame.hasRemaining())
+				channel.write(frame);
+			in = readFrame(channel);
+			if (in.getInt() != callId)
+				throw new StreamCorruptedException("Response to the wrong call from " + address);
+			reusable = true;
+			if (in.get() != WireFormat.STATUS_OK) {
+				Exception e = WireFormat.getException(in);
+				if (e instanceof RuntimeException)
+					throw (RuntimeException) e;
+				throw (IOException) e;
+			}
+			return response.decode(in);
+		} finally {
+			out.release();
+			pool.release(in);
+			if (reusable && !closed)
+				idle.offer(channel);
+			else
+				closeQuietly(channel);
+		}
+	}
+
+	/**
+	 * Sends one call over the shared pipelined connection, without waiting for its response.
+	 * <p>
+	 * The returned future is completed on the connection's reader thread, so actions chained onto it with the non-Async
+	 * CompletableFuture methods must not block.
+	 *
+	 * @param opcode   which method to call
+	 * @param request  writes the arguments
+	 * @param response reads the return value (called only if the call succeeded)
+	 * @return a future for whatever response returns, or for the exception the call threw
+	 */
+	public <T> CompletableFuture<T> callAsync(byte opcode, Encoder request, Decoder<T> response) {
+		CompletableFuture<T> ret = new CompletableFuture<>();
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ret.completeExceptionally(new RemoteException("Interrupted waiting to send to " + address, e));
+			return ret;
+		}
+		WireFormat.Writer out = new WireFormat.Writer(pool);
+		try {
+			if (closed)
+				throw new RemoteException("Connection to " + address + " is closed");
+			int callId = nextCallId.incrementAndGet();
+			out.begin(callId, opcode);
+			request.encode(out);
+			getPipeline().send(callId, out.finish(), new PendingCall<>(ret, response));
+		} catch (IOException | RuntimeException e) {
+			inFlight.release();
+			ret.completeExceptionally(e);
+		} finally {
+			out.release();
+		}
+		return ret;
+	}
+
+	private synchronized Pipeline getPipeline() throws IOException {
+		if (pipeline == null || pipeline.failed)
+			pipeline = new Pipeline(open());
+		return pipeline;
+	}
+
+	private static class PendingCall<T> {
+		final CompletableFuture<T> future;
+		final Decoder<T> decoder;
+
+		PendingCall(CompletableFuture<T> future, Decoder<T> decoder) {
+			this.future = future;
+			this.decoder = decoder;
+		}
+
+		void complete(ByteBuffer in) {
+			try {
+				if (in.get() == WireFormat.STATUS_OK)
+					future.complete(decoder.decode(in));
+				else
+					future.completeExceptionally(WireFormat.getException(in));
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * One connection shared by every asynchronous call, with a thread that reads the responses
+	 */
+	private class Pipeline implements Runnable {
+		private final SocketChannel channel;
+		private final ConcurrentHashMap<Integer, PendingCall<?>> pending = new ConcurrentHashMap<>();
+		private volatile boolean failed;
+
+		Pipeline(SocketChannel channel) {
+			this.channel = channel;
+			Thread reader = new Thread(this, "kvstore-pipeline-" + address);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Registers a call and writes its request; if the connection fails, the call's future is failed instead
+		 */
+		void send(int callId, ByteBuffer frame, PendingCall<?> call) {
+			pending.put(callId, call);
+			try {
+				synchronized (this) {
+					while (frame.hasRemaining())
+						channel.write(frame);
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+			// fail() might have already swept the pending calls before this one was added
+			if (failed && pending.remove(callId) != null) {
+				inFlight.release();
+				call.future.completeExceptionally(new RemoteException("Connection to " + address + " failed"));
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					ByteBuffer in = readFrame(channel);
+					try {
+						PendingCall<?> call = pending.remove(in.getInt());
+						if (call == null)
+							throw new StreamCorruptedException("Response to an unknown call from " + address);
+						inFlight.release();
+						call.complete(in);
+					} finally {
+						pool.release(in);
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void fail(IOException cause) {
+			failed = true;
+			closeQuietly(channel);
+			RemoteException e = new RemoteException("Connection to " + address + " failed", cause);
+			for (Integer callId : pending.keySet()) {
+				PendingCall<?> call = pending.remove(callId);
+				if (call != null) {
+					inFlight.release();
+					call.future.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	private SocketChannel open() throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(address);
+		} catch (IOException e) {
+			closeQuietly(channel);
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * @return the frame after its length field, flipped for reading
+	 */
+	private ByteBuffer readFrame(SocketChannel channel) throws IOException {
+		ByteBuffer buf = pool.acquire(pool.getBufferBytes());
+		try {
+			buf.limit(4);
+			readFully(channel, buf);
+			int len = buf.getInt(0);
+			if (len < WireFormat.HEADER_BYTES - 4 || len > WireFormat.MAX_FRAME_BYTES)
+				throw new StreamCorruptedException("Bad frame length " + len + " from " + address);
+			if (len > buf.capacity()) {
+				pool.release(buf);
+				buf = pool.acquire(len);
+			}
+			buf.clear();
+			buf.limit(len);
+			readFully(channel, buf);
+			buf.flip();
+			return buf;
+		} catch (IOException e) {
+			pool.release(buf);
+			throw e;
+		}
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf) < 0)
+				throw new EOFException("Connection closed by peer");
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing left to do with it
+		}
+	}
+
+	/**
+	 * Closes every idle connection, and the pipelined connection (failing any asynchronous calls still in flight);
+	 * blocking calls that are in progress close their connections when they finish
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		SocketChannel channel;
+		while ((channel = idle.poll()) != null)
+			closeQuietly(channel);
+		synchronized (this) {
+			if (pipeline != null)
+				closeQuietly(pipeline.channel);
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package edu.gmu.cs475;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serving side of the binary transport.
+ * <p>
+ * One selector thread does all of the (non-blocking) socket reads. Each complete request frame is handed to a worker
+ * thread, since handlers may block for a long time (on a key lock, or waiting for replicas), unless the handler says
+ * it never blocks. Whichever thread ran the request writes the response itself if the socket will take it all, and
+ * otherwise queues it for the selector thread to finish sending.
+ */
+public class NioRpcServer implements Closeable {
+
+	/**
+	 * Runs one request
+	 */
+	public interface Handler {
+		/**
+		 * @param opcode   which method was called
+		 * @param request  the arguments, positioned after the header
+		 * @param response where to write the return value
+		 * @throws Exception anything the method threw, which is sent back to the caller
+		 */
+		void handle(byte opcode, ByteBuffer request, WireFormat.Writer response) throws Exception;
+
+		/**
+		 * @param opcode which method was called
+		 * @return true if the method never blocks, so it can run right on the selector thread instead of being
+		 * handed off to a worker
+		 */
+		default boolean runsInline(byte opcode) {
+			return false;
+		}
+	}
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final Handler handler;
+	private final BufferPool pool;
+	private final ExecutorService workers;
+	private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+	private final Thread selectorThread;
+	private volatile boolean closed;
+
+	/**
+	 * Starts listening
+	 *
+	 * @param port    port to listen on, or 0 for any free port
+	 * @param handler runs each request
+	 */
+	public NioRpcServer(int port, Handler handler) throws IOException {
+		this(port, handler, BufferPool.SHARED);
+	}
+
+	public NioRpcServer(int port, Handler handler, BufferPool pool) throws IOException {
+		this.handler = handler;
+		this.pool = pool;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		int boundPort = getPort();
+		AtomicInteger n = new AtomicInteger();
+		this.workers = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "kvstore-nio-" + boundPort + "-worker-" + n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		this.selectorThread = new Thread(this::selectLoop, "kvstore-nio-" + boundPort + "-selector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * @return the port this server is listening on
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	private void selectLoop() {
+		try {
+			while (!closed) {
+				selector.select();
+				Connection conn;
+				while ((conn = pendingWrites.poll()) != null)
+					conn.flush();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					conn = (Connection) key.attachment();
+					if (key.isReadable())
+						conn.read();
+					if (key.isValid() && key.isWritable())
+						conn.flush();
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (!closed)
+				e.printStackTrace();
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection)
+					((Connection) key.attachment()).close();
+			}
+			try {
+				selector.close();
+				serverChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch = serverChannel.accept();
+		if (ch == null)
+			return;
+		ch.configureBlocking(false);
+		ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		Connection conn = new Connection(ch);
+		conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+	}
+
+	/**
+	 * Stops accepting connections and closes every open one
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+		workers.shutdownNow();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * One client's socket. Reads only happen on the selector thread; writes happen under the connection's lock.
+	 */
+	private class Connection {
+		private final SocketChannel ch;
+		private SelectionKey key;
+		private ByteBuffer in = pool.acquire(pool.getBufferBytes());
+		// responses that couldn't be written right away, oldest first
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+		Connection(SocketChannel ch) {
+			this.ch = ch;
+		}
+
+		void read() {
+			try {
+				if (ch.read(in) < 0) {
+					close();
+					return;
+				}
+				in.flip();
+				int len;
+				while ((len = WireFormat.frameLength(in)) >= 0) {
+					ByteBuffer request = pool.acquire(len);
+					int end = in.position() + 4 + len;
+					int limit = in.limit();
+					in.position(in.position() + 4).limit(end);
+					request.put(in);
+					request.flip();
+					in.limit(limit);
+					dispatch(request);
+				}
+				// Make sure that a frame bigger than the buffer will fit once it's all arrived
+				if (in.remaining() >= 4) {
+					int needed = 4 + in.getInt(in.position());
+					if (needed > in.capacity()) {
+						ByteBuffer bigger = pool.acquire(needed);
+						bigger.put(in);
+						pool.release(in);
+						in = bigger;
+						return;
+					}
+				}
+				in.compact();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void dispatch(ByteBuffer request) {
+			if (handler.runsInline(request.get(request.position() + 4)))
+				run(request);
+			else
+				workers.execute(() -> run(request));
+		}
+
+		private void run(ByteBuffer request) {
+			WireFormat.Writer response = new WireFormat.Writer(pool);
+			int callId = request.getInt();
+			byte opcode = request.get();
+			response.begin(callId, WireFormat.STATUS_OK);
+			try {
+				handler.handle(opcode, request, response);
+			} catch (Throwable t) {
+				response.begin(callId, WireFormat.STATUS_ERROR);
+				response.putException(t);
+			} finally {
+				pool.release(request);
+			}
+			ByteBuffer buf = response.finish();
+			synchronized (this) {
+				if (out.isEmpty()) {
+					try {
+						ch.write(buf);
+					} catch (IOException e) {
+						// the selector thread notices the socket is gone
+						response.release();
+						return;
+					}
+					if (!buf.hasRemaining()) {
+						response.release();
+						return;
+					}
+				}
+				out.offer(buf);
+			}
+			pendingWrites.offer(this);
+			selector.wakeup();
+		}
+
+		synchronized void flush() {
+			try {
+				ByteBuffer buf;
+				while ((buf = out.peek()) != null) {
+					ch.write(buf);
+					if (buf.hasRemaining()) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					out.poll();
+					pool.release(buf);
+				}
+				if (key.isValid())
+					key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException | CancelledKeyException e) {
+				close();
+			}
+		}
+
+		synchronized void close() {
+			key.cancel();
+			try {
+				ch.close();
+			} catch (IOException e) {
+				// already gone
+			}
+			pool.release(in);
+			in = null;
+		}
+	}
+}
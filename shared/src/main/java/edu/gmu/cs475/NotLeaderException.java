@@ -0,0 +1,15 @@
+package edu.gmu.cs475;
+
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by a member of a replicated server group that isn't its leader, for a call only the leader can serve (any
+ * write, lock or registration). The caller should find the leader (see IKeyValueServer.getLeader) and try there.
+ */
+public class NotLeaderException extends RemoteException {
+	private static final long serialVersionUID = 1L;
+
+	public NotLeaderException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,75 @@
+package edu.gmu.cs475;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted, thread-safe set of keys that can list every key starting with a given prefix (e.g. a directory)
+ * in O(log n + number of results), instead of scanning every key.
+ */
+public class PrefixIndex {
+	private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+
+	/**
+	 * @param key key to add to the index
+	 */
+	public void add(String key) {
+		keys.add(key);
+	}
+
+	/**
+	 * @param key key to remove from the index
+	 */
+	public void remove(String key) {
+		keys.remove(key);
+	}
+
+	/**
+	 * Lists all of the keys that start with the given prefix
+	 *
+	 * @param prefix prefix to look for (e.g. a directory path ending in /)
+	 * @return a new, unsorted set of all matching keys
+	 * @throws NullPointerException if prefix is null
+	 */
+	public Set<String> withPrefix(String prefix) {
+		if (prefix == null)
+			throw new NullPointerException();
+		String end = prefixEnd(prefix);
+		NavigableSet<String> range = end == null ? keys.tailSet(prefix, true) : keys.subSet(prefix, true, end, false);
+		return new HashSet<>(range);
+	}
+
+	/**
+	 * Lists keys in sorted order, a page at a time
+	 *
+	 * @param afterKey only keys strictly greater than this are returned, or null to start from the first key
+	 * @param max      largest number of keys to return
+	 * @return up to max keys, in sorted order
+	 */
+	public List<String> keysAfter(String afterKey, int max) {
+		NavigableSet<String> range = afterKey == null ? keys : keys.tailSet(afterKey, false);
+		List<String> ret = new ArrayList<>(Math.min(max, 1024));
+		for (String key : range) {
+			if (ret.size() >= max)
+				break;
+			ret.add(key);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the smallest string greater than every string that starts with prefix, or null if there is none
+	 */
+	static String prefixEnd(String prefix) {
+		for (int i = prefix.length() - 1; i >= 0; i--) {
+			char c = prefix.charAt(i);
+			if (c != Character.MAX_VALUE)
+				return prefix.substring(0, i) + (char) (c + 1);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,116 @@
+package edu.gmu.cs475;
+
+import java.util.Arrays;
+
+/**
+ * Decides which shard of a sharded deployment owns each key.
+ * <p>
+ * Keys are placed by their top-level directory (/a/ for /a/b/c), so a whole directory tree lives on one shard:
+ * listDirectory and putAll on any directory other than / only ever talk to one server. Top-level directories are
+ * spread over the shards by consistent hashing, each shard owning many points on a hash ring, so adding a shard only
+ * moves about 1/n of the directories and no shard gets a much larger share than the others.
+ * <p>
+ * Each shard also hands out transaction IDs from its own range (see {@link #firstTransactionId(int)}), so IDs from
+ * different shards never collide at a replica that receives writes from all of them.
+ */
+public class ShardMap {
+
+	// a shard's transaction IDs (and so its key versions) all have the shard's number in the bits above this
+	public static final int SHARD_ID_SHIFT = 48;
+
+	// points on the ring per shard; more points even out the share of directories each shard owns
+	static final int POINTS_PER_SHARD = 128;
+
+	private final int shardCount;
+	private final long[] ring;
+	private final int[] owners;
+
+	/**
+	 * @param shardCount number of shards
+	 * @throws IllegalArgumentException if shardCount is less than 1, or too large to tell apart in a transaction ID
+	 */
+	public ShardMap(int shardCount) {
+		if (shardCount < 1 || shardCount > 1 << (63 - SHARD_ID_SHIFT))
+			throw new IllegalArgumentException("Bad shard count " + shardCount);
+		this.shardCount = shardCount;
+		long[][] points = new long[shardCount * POINTS_PER_SHARD][];
+		for (int shard = 0, i = 0; shard < shardCount; shard++)
+			for (int p = 0; p < POINTS_PER_SHARD; p++, i++)
+				points[i] = new long[]{hash("shard-" + shard + "#" + p), shard};
+		Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+		ring = new long[points.length];
+		owners = new int[points.length];
+		for (int i = 0; i < points.length; i++) {
+			ring[i] = points[i][0];
+			owners[i] = (int) points[i][1];
+		}
+	}
+
+	/**
+	 * @return number of shards
+	 */
+	public int size() {
+		return shardCount;
+	}
+
+	/**
+	 * @param key a key, or a directory other than /
+	 * @return the shard that owns it
+	 * @throws IllegalArgumentException if key is the root directory, which spans every shard
+	 */
+	public int shardFor(String key) {
+		String routingKey = routingKey(key);
+		if (routingKey == null)
+			throw new IllegalArgumentException("/ spans every shard");
+		if (shardCount == 1)
+			return 0;
+		int i = Arrays.binarySearch(ring, hash(routingKey));
+		if (i < 0)
+			i = -i - 1; // first point after the hash
+		return owners[i == ring.length ? 0 : i];
+	}
+
+	/**
+	 * @return the part of key that decides its shard: its top-level directory (e.g. /a/ for /a/b/c), the key itself
+	 * for a key in the root directory, or null for the root directory itself
+	 */
+	public static String routingKey(String key) {
+		if (key == null)
+			throw new NullPointerException();
+		int end = key.indexOf('/', 1);
+		if (end < 0)
+			return key.equals("/") ? null : key;
+		return key.substring(0, end + 1);
+	}
+
+	/**
+	 * @return the first transaction ID the given shard hands out
+	 */
+	public static long firstTransactionId(int shard) {
+		return ((long) shard << SHARD_ID_SHIFT) + 1;
+	}
+
+	/**
+	 * @return the shard that handed out the given transaction ID (or key version)
+	 */
+	public static int shardOf(long xid) {
+		return (int) (xid >>> SHARD_ID_SHIFT);
+	}
+
+	/**
+	 * 64-bit FNV-1a, then the MurmurHash3 finalizer so that similar names land far apart on the ring
+	 */
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,24 @@
+package edu.gmu.cs475;
+
+/**
+ * How clients, the server and replicas talk to each other. Chosen at startup with -Dkvstore.transport=rmi|binary
+ */
+public enum Transport {
+	/**
+	 * Java RMI, with default Java serialization of every argument
+	 */
+	RMI,
+	/**
+	 * The length-prefixed binary protocol in WireFormat, over NIO sockets
+	 */
+	BINARY;
+
+	public static final String PROPERTY = "kvstore.transport";
+
+	/**
+	 * @return the transport named by the kvstore.transport system property, or RMI if it is not set
+	 */
+	public static Transport fromSystemProperty() {
+		return valueOf(System.getProperty(PROPERTY, RMI.name()).toUpperCase());
+	}
+}
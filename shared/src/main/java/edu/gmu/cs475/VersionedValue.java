@@ -0,0 +1,41 @@
+package edu.gmu.cs475;
+
+import java.io.Serializable;
+
+/**
+ * A key's value together with the version it was read at.
+ * <p>
+ * A key's version is taken from the server's transaction ID counter when a commit that writes it is made durable,
+ * and a key only ever takes a larger version than the one it has, so it only goes up; a key that was never written is
+ * at version 0. Passing the version back to compareAndSet or commitOptimisticTransaction makes it fail if
+ * the key has been written since.
+ */
+public class VersionedValue implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String value;
+	private final long version;
+
+	/**
+	 * @param value   the key's value, or null if the key doesn't exist
+	 * @param version the key's version
+	 */
+	public VersionedValue(String value, long version) {
+		this.value = value;
+		this.version = version;
+	}
+
+	/**
+	 * @return the key's value, or null if the key doesn't exist
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the key's version
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
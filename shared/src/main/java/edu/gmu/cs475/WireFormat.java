@@ -0,0 +1,337 @@
+package edu.gmu.cs475;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The binary transport's message format.
+ * <p>
+ * Every message is a frame: an int length (of everything after it), an int call ID, and then one byte that is the
+ * opcode (for requests) or the status (for responses), followed by the arguments or return value. Strings are an int
+ * byte count (-1 for null) and UTF-8 bytes; maps and sets are an int count (-1 for null) and their elements.
+ * An error response carries the exception's class name and message.
+ */
+public final class WireFormat {
+	// largest frame either side will accept
+	public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+	// bytes in a frame's header: length, call ID and opcode/status
+	public static final int HEADER_BYTES = 9;
+
+	public static final byte STATUS_OK = 0;
+	public static final byte STATUS_ERROR = 1;
+
+	// IKeyValueServer
+	public static final byte GET = 1;
+	public static final byte LIST_KEYS = 2;
+	public static final byte SET = 3;
+	public static final byte LIST_DIRECTORY = 4;
+	public static final byte LOCK_KEY = 5;
+	public static final byte UNLOCK_KEY = 6;
+	public static final byte LOCK_KEYS = 7;
+	public static final byte UNLOCK_KEYS = 8;
+	public static final byte SET_IN_TRANSACTION = 9;
+	public static final byte SET_MANY_IN_TRANSACTION = 10;
+	public static final byte REGISTER_CLIENT = 11;
+	public static final byte REGISTER_CLIENT_STREAMING = 12;
+	public static final byte GET_BOOTSTRAP_CHUNK = 13;
+	public static final byte CACHE_DISCONNECT = 14;
+	public static final byte START_NEW_TRANSACTION = 15;
+	public static final byte ISSUE_COMMIT_TRANSACTION = 16;
+	public static final byte ISSUE_ABORT_TRANSACTION = 17;
+	public static final byte LEASE_TRANSACTION_IDS = 18;
+	public static final byte GET_VERSIONED = 19;
+	public static final byte COMMIT_OPTIMISTIC_TRANSACTION = 20;
+	public static final byte COMPARE_AND_SET = 21;
+	public static final byte GET_LAST_COMMITTED_XID = 22;
+	public static final byte GET_METRICS = 23;
+	public static final byte SET_CONTENTION_PROFILING = 24;
+	public static final byte GET_CONTENTION_PROFILE = 25;
+	public static final byte GET_LEADER = 26;
+	public static final byte PREPARE_TRANSACTION = 27;
+
+	// IKeyValueReplica
+	public static final byte INNER_WRITE_KEY = 64;
+	public static final byte INNER_WRITE_KEYS = 65;
+	public static final byte COMMIT_TRANSACTION = 66;
+	public static final byte ABORT_TRANSACTION = 67;
+	public static final byte COMMIT_TRANSACTION_AT_VERSION = 68;
+
+	private WireFormat() {
+	}
+
+	public static String getString(ByteBuffer in) {
+		int len = in.getInt();
+		if (len < 0)
+			return null;
+		// Nearly every key and value is ASCII: build the string straight from the buffer, without a byte[] copy
+		int start = in.position();
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			byte b = in.get(start + i);
+			if (b < 0) {
+				byte[] bytes = new byte[len];
+				in.get(bytes);
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+			chars[i] = (char) b;
+		}
+		in.position(start + len);
+		return new String(chars);
+	}
+
+	public static boolean getBoolean(ByteBuffer in) {
+		return in.get() != 0;
+	}
+
+	/**
+	 * Reads a set or list of strings
+	 *
+	 * @param in  buffer to read from
+	 * @param ret collection to add the strings to
+	 * @return ret, or null if a null collection was written
+	 */
+	public static <C extends Collection<String>> C getStrings(ByteBuffer in, C ret) {
+		int n = in.getInt();
+		if (n < 0)
+			return null;
+		for (int i = 0; i < n; i++)
+			ret.add(getString(in));
+		return ret;
+	}
+
+	public static HashMap<String, String> getStringMap(ByteBuffer in) {
+		int n = in.getInt();
+		if (n < 0)
+			return null;
+		HashMap<String, String> ret = new HashMap<>(Math.max(16, (int) (n / .75f) + 1));
+		for (int i = 0; i < n; i++)
+			ret.put(getString(in), getString(in));
+		return ret;
+	}
+
+	public static HashMap<String, Long> getVersionMap(ByteBuffer in) {
+		int n = in.getInt();
+		if (n < 0)
+			return null;
+		HashMap<String, Long> ret = new HashMap<>(Math.max(16, (int) (n / .75f) + 1));
+		for (int i = 0; i < n; i++)
+			ret.put(getString(in), in.getLong());
+		return ret;
+	}
+
+	public static VersionedValue getVersionedValue(ByteBuffer in) {
+		String value = getString(in);
+		return new VersionedValue(value, in.getLong());
+	}
+
+	public static BootstrapChunk getBootstrapChunk(ByteBuffer in) {
+		long version = in.getLong();
+		HashMap<String, String> entries = getStringMap(in);
+		return new BootstrapChunk(version, entries, getString(in));
+	}
+
+	/**
+	 * Rebuilds the exception carried by an error response. An unchecked exception keeps its class whenever that class
+	 * can be loaded here, so a NullPointerException on the server is still a NullPointerException to the caller, just
+	 * as it would be in-process; anything else becomes the IOException or RemoteException the caller declares.
+	 *
+	 * @param in error response, positioned after the status
+	 * @return the exception to throw to the caller
+	 */
+	public static Exception getException(ByteBuffer in) {
+		String type = getString(in);
+		String message = getString(in);
+		if (NotLeaderException.class.getName().equals(type))
+			return new NotLeaderException(message);
+		RuntimeException unchecked = newRuntimeException(type, message);
+		if (unchecked != null)
+			return unchecked;
+		if (type.startsWith("java.io.") || type.startsWith("java.nio.file."))
+			return new IOException(message);
+		return new RemoteException(type + ": " + message);
+	}
+
+	/**
+	 * @return a new instance of the named RuntimeException class, or null if it isn't one we can load and build from
+	 * a message
+	 */
+	private static RuntimeException newRuntimeException(String type, String message) {
+		try {
+			Class<?> c = Class.forName(type, false, WireFormat.class.getClassLoader());
+			if (!RuntimeException.class.isAssignableFrom(c))
+				return null;
+			return (RuntimeException) c.getConstructor(String.class).newInstance(message);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads one frame from a buffer holding the start of a stream
+	 *
+	 * @param in buffer, flipped for reading
+	 * @return the length of the frame after its length field, or -1 if the buffer doesn't hold the whole frame yet
+	 * @throws StreamCorruptedException if the frame is larger than MAX_FRAME_BYTES
+	 */
+	public static int frameLength(ByteBuffer in) throws StreamCorruptedException {
+		if (in.remaining() < 4)
+			return -1;
+		int len = in.getInt(in.position());
+		if (len < HEADER_BYTES - 4 || len > MAX_FRAME_BYTES)
+			throw new StreamCorruptedException("Bad frame length " + len);
+		return in.remaining() - 4 >= len ? len : -1;
+	}
+
+	/**
+	 * Builds one frame in a pooled buffer, growing it as needed.
+	 */
+	public static final class Writer {
+		private final BufferPool pool;
+		private ByteBuffer buf;
+
+		public Writer(BufferPool pool) {
+			this.pool = pool;
+			this.buf = pool.acquire(pool.getBufferBytes());
+		}
+
+		/**
+		 * Starts a new frame, discarding anything written so far
+		 *
+		 * @param callId         call ID to put in the header
+		 * @param opcodeOrStatus opcode (for a request) or status (for a response)
+		 */
+		public void begin(int callId, byte opcodeOrStatus) {
+			buf.clear();
+			buf.putInt(0);
+			buf.putInt(callId);
+			buf.put(opcodeOrStatus);
+		}
+
+		private void ensure(int bytes) {
+			if (buf.remaining() >= bytes)
+				return;
+			long wanted = Math.max((long) buf.capacity() * 2, (long) buf.position() + bytes);
+			ByteBuffer bigger = pool.acquire((int) Math.min(wanted, MAX_FRAME_BYTES + 4));
+			buf.flip();
+			bigger.put(buf);
+			pool.release(buf);
+			buf = bigger;
+		}
+
+		public Writer putByte(byte b) {
+			ensure(1);
+			buf.put(b);
+			return this;
+		}
+
+		public Writer putBoolean(boolean b) {
+			return putByte(b ? (byte) 1 : 0);
+		}
+
+		public Writer putInt(int i) {
+			ensure(4);
+			buf.putInt(i);
+			return this;
+		}
+
+		public Writer putLong(long l) {
+			ensure(8);
+			buf.putLong(l);
+			return this;
+		}
+
+		public Writer putString(String s) {
+			if (s == null)
+				return putInt(-1);
+			int len = s.length();
+			boolean ascii = true;
+			for (int i = 0; i < len && ascii; i++)
+				ascii = s.charAt(i) < 0x80;
+			if (ascii) {
+				ensure(4 + len);
+				buf.putInt(len);
+				for (int i = 0; i < len; i++)
+					buf.put((byte) s.charAt(i));
+			} else {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				ensure(4 + bytes.length);
+				buf.putInt(bytes.length);
+				buf.put(bytes);
+			}
+			return this;
+		}
+
+		public Writer putStrings(Collection<String> strings) {
+			if (strings == null)
+				return putInt(-1);
+			putInt(strings.size());
+			for (String s : strings)
+				putString(s);
+			return this;
+		}
+
+		public Writer putStringMap(Map<String, String> map) {
+			if (map == null)
+				return putInt(-1);
+			putInt(map.size());
+			for (Map.Entry<String, String> e : map.entrySet()) {
+				putString(e.getKey());
+				putString(e.getValue());
+			}
+			return this;
+		}
+
+		public Writer putVersionMap(Map<String, Long> map) {
+			if (map == null)
+				return putInt(-1);
+			putInt(map.size());
+			for (Map.Entry<String, Long> e : map.entrySet()) {
+				putString(e.getKey());
+				putLong(e.getValue());
+			}
+			return this;
+		}
+
+		public Writer putVersionedValue(VersionedValue v) {
+			putString(v.getValue());
+			return putLong(v.getVersion());
+		}
+
+		public Writer putBootstrapChunk(BootstrapChunk chunk) {
+			putLong(chunk.getVersion());
+			putStringMap(chunk.getEntries());
+			return putString(chunk.getLastKey());
+		}
+
+		public Writer putException(Throwable t) {
+			putString(t.getClass().getName());
+			return putString(t.getMessage());
+		}
+
+		/**
+		 * Fills in the frame's length
+		 *
+		 * @return the finished frame, flipped for writing to a channel; owned by this writer until release is called
+		 */
+		public ByteBuffer finish() {
+			buf.putInt(0, buf.position() - 4);
+			buf.flip();
+			return buf;
+		}
+
+		/**
+		 * Hands the frame's buffer back to the pool
+		 */
+		public void release() {
+			pool.release(buf);
+			buf = null;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package edu.gmu.cs475;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The writes one transaction has made but not yet committed, in the order they were made.
+ * <p>
+ * Keys and values are kept in two parallel arrays that grow by doubling, so staging a write doesn't allocate
+ * anything per key. A key written twice is kept twice; applying the writes in order leaves the later value.
+ */
+public class WriteSet {
+	private String[] keys;
+	private String[] values;
+	private int size;
+
+	public WriteSet() {
+		this(4);
+	}
+
+	/**
+	 * @param capacity how many writes to make room for up front
+	 */
+	public WriteSet(int capacity) {
+		keys = new String[Math.max(capacity, 1)];
+		values = new String[keys.length];
+	}
+
+	private void ensure(int capacity) {
+		if (capacity > keys.length) {
+			int newLength = Math.max(capacity, keys.length * 2);
+			keys = Arrays.copyOf(keys, newLength);
+			values = Arrays.copyOf(values, newLength);
+		}
+	}
+
+	public synchronized void add(String key, String value) {
+		ensure(size + 1);
+		keys[size] = key;
+		values[size] = value;
+		size++;
+	}
+
+	public synchronized void addAll(Map<String, String> writes) {
+		ensure(size + writes.size());
+		for (Map.Entry<String, String> e : writes.entrySet()) {
+			keys[size] = e.getKey();
+			values[size] = e.getValue();
+			size++;
+		}
+	}
+
+	/**
+	 * @return number of writes staged (counting a key written twice as two)
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the final value of each key written, in the order each key was first written
+	 */
+	public synchronized LinkedHashMap<String, String> toMap() {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<>();
+		for (int i = 0; i < size; i++)
+			ret.put(keys[i], values[i]);
+		return ret;
+	}
+
+	/**
+	 * Replays every write, in the order they were made
+	 *
+	 * @param target called with each key and value
+	 */
+	public synchronized void forEach(BiConsumer<String, String> target) {
+		for (int i = 0; i < size; i++)
+			target.accept(keys[i], values[i]);
+	}
+}